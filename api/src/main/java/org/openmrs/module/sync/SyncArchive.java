@@ -0,0 +1,183 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * A compressed file that receives the journal rows removed by the cleanup, as SQL insert
+ * statements, so that they can be loaded into a database and queried later on. The files are kept
+ * in the <code>sync/archive</code> folder of the application data directory, one per cleanup run.
+ * The file is only created once there is a row to write.
+ */
+public class SyncArchive {
+
+	private static final Log log = LogFactory.getLog(SyncArchive.class);
+
+	public static final String ARCHIVE_DIRECTORY = "sync/archive";
+
+	private final File file;
+
+	private Writer out = null;
+
+	private int rows = 0;
+
+	/**
+	 * @param file the file to write to
+	 */
+	public SyncArchive(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return a new archive in the archive folder of the application data directory, named after
+	 *         the current time
+	 */
+	public static SyncArchive create() {
+		File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(ARCHIVE_DIRECTORY);
+		String name = "sync_archive_" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".sql.gz";
+		return new SyncArchive(new File(dir, name));
+	}
+
+	/**
+	 * Writes an insert statement for each of the remaining rows of the given result set
+	 *
+	 * @param tableName the table the rows come from
+	 * @param rs the rows
+	 * @return the number of rows written
+	 */
+	public int write(String tableName, ResultSet rs) throws SQLException, IOException {
+		ResultSetMetaData md = rs.getMetaData();
+		StringBuilder columns = new StringBuilder();
+		for (int i = 1; i <= md.getColumnCount(); i++) {
+			if (i > 1)
+				columns.append(", ");
+			columns.append(md.getColumnName(i).toLowerCase());
+		}
+
+		int written = 0;
+		while (rs.next()) {
+			StringBuilder sql = new StringBuilder("insert into ").append(tableName).append(" (").append(columns).append(
+			    ") values (");
+			for (int i = 1; i <= md.getColumnCount(); i++) {
+				if (i > 1)
+					sql.append(", ");
+				Object value = rs.getObject(i);
+				if (value instanceof Clob)
+					value = rs.getString(i);
+				appendValue(sql, value);
+			}
+			sql.append(");\n");
+			getWriter().write(sql.toString());
+			written++;
+		}
+		rows += written;
+		return written;
+	}
+
+	/**
+	 * Writes out the rows buffered so far
+	 */
+	public void flush() throws IOException {
+		if (out != null)
+			out.flush();
+	}
+
+	/**
+	 * Finishes the file, if any row was written
+	 */
+	public void close() {
+		if (out != null) {
+			try {
+				out.close();
+				log.info("Archived " + rows + " sync journal rows to " + file.getAbsolutePath());
+			}
+			catch (IOException e) {
+				log.error("Unable to close the sync archive " + file.getAbsolutePath(), e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * @return the file written to
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	private Writer getWriter() throws IOException {
+		if (out == null)
+			out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8"));
+		return out;
+	}
+
+	static void appendValue(StringBuilder sql, Object value) {
+		if (value == null) {
+			sql.append("NULL");
+		} else if (value instanceof Number) {
+			sql.append(value);
+		} else if (value instanceof Boolean) {
+			sql.append(((Boolean) value) ? "1" : "0");
+		} else if (value instanceof Date) {
+			sql.append('\'').append(new java.sql.Timestamp(((Date) value).getTime())).append('\'');
+		} else {
+			sql.append('\'');
+			String text = value.toString();
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				switch (c) {
+					case '\'':
+						sql.append("''");
+						break;
+					case '\\':
+						sql.append("\\\\");
+						break;
+					case '\n':
+						sql.append("\\n");
+						break;
+					case '\r':
+						sql.append("\\r");
+						break;
+					default:
+						sql.append(c);
+				}
+			}
+			sql.append('\'');
+		}
+	}
+}
@@ -35,6 +35,14 @@ public class SyncConstants {
 	
 	public static final String CLONE_MESSAGE = "clone";
 	
+	/**
+	 * Request header by which a child tells that it can load a gzipped clone of the database;
+	 * without it, the parent sends the clone as plain sql, as older children expect
+	 */
+	public static final String HEADER_ACCEPT_DUMP_ENCODING = "Accept-Dump-Encoding";
+	
+	public static final String PENDING_MESSAGE = "pending";
+	
 	public static final String CLONE_DOWNLOAD_MESSAGE = "clone_download";
 	
 	public static final String CLONE_IMPORT_FILE_NAME = "db_clone_import_parent_";
@@ -154,6 +162,81 @@ public class SyncConstants {
 	
 	public static final String PROPERTY_CONNECTION_TIMEOUT = "sync.connection_timeout";
 	
+	public static final String PROPERTY_CONNECTION_POOL_SIZE = "sync.connection_pool_size";
+	
+	public static final String PROPERTY_CONNECTION_POOL_SIZE_DEFAULT = "2";
+	
+	public static final String PROPERTY_CONNECTION_IDLE_TIMEOUT = "sync.connection_idle_timeout";
+	
+	public static final String PROPERTY_CONNECTION_IDLE_TIMEOUT_DEFAULT = "60000";
+	
+	public static final String PROPERTY_TRANSMISSION_CHUNK_SIZE = "sync.transmission_chunk_size";
+	
+	public static final String PROPERTY_TRANSMISSION_CHUNK_SIZE_DEFAULT = "0";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_ENABLED = "sync.adaptive_batch.enabled";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_MIN_RECORDS = "sync.adaptive_batch.min_records";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_MIN_RECORDS_DEFAULT = "5";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_MAX_BYTES = "sync.adaptive_batch.max_bytes";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_MAX_BYTES_DEFAULT = "5242880";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_TARGET_TIME = "sync.adaptive_batch.target_time";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_TARGET_TIME_DEFAULT = "60000";
+	
+	public static final String PROPERTY_MAX_CONCURRENT_SYNCS = "sync.max_concurrent_syncs";
+	
+	public static final String PROPERTY_MAX_CONCURRENT_SYNCS_DEFAULT = "4";
+	
+	public static final String PROPERTY_TRANSMISSION_WINDOW = "sync.transmission_window";
+	
+	public static final String PROPERTY_TRANSMISSION_WINDOW_DEFAULT = "1";
+	
+	public static final String PROPERTY_SKIP_EMPTY_SYNCS = "sync.skip_empty_syncs";
+	
+	public static final String PROPERTY_SKIP_EMPTY_SYNCS_DEFAULT = "true";
+	
+	public static final String PROPERTY_BANDWIDTH_LIMIT = "sync.bandwidth.limit";
+	
+	public static final String PROPERTY_BANDWIDTH_SERVER_LIMIT = "sync.bandwidth.server_limit";
+	
+	public static final String PROPERTY_BANDWIDTH_SCHEDULE = "sync.bandwidth.schedule";
+	
+	public static final String PROPERTY_PREBUILD_TRANSMISSION = "sync.prebuild_transmission";
+	
+	public static final String PROPERTY_PREBUILD_TRANSMISSION_DEFAULT = "false";
+	
+	public static final String PROPERTY_JOURNAL_MODE = "sync.journal_mode";
+	
+	/**
+	 * A server record is created for every child server along with each sync record
+	 */
+	public static final String JOURNAL_MODE_PER_RECORD = "per_record";
+	
+	/**
+	 * Each child server keeps the id up to which it committed all sync records; server records are
+	 * only created for the records whose state differs from what that id implies, e.g. the ones that
+	 * failed on the child
+	 */
+	public static final String JOURNAL_MODE_WATERMARK = "watermark";
+	
+	public static final String PROPERTY_JOURNAL_MODE_DEFAULT = JOURNAL_MODE_PER_RECORD;
+	
+	/**
+	 * The record id at which the next run of the cleanup task starts, kept by the task itself
+	 */
+	public static final String PROPERTY_CLEANUP_RESUME_RECORD_ID = "sync.cleanup.resume_record_id";
+	
+	/**
+	 * The highest id of the records from before the search index that are not indexed yet, 0 once
+	 * they all are. Kept by the indexing task; searches read the payload of these records instead.
+	 */
+	public static final String PROPERTY_SEARCH_INDEX_PENDING_RECORD_ID = "sync.search_index.pending_record_id";
+	
 	public static final String PROPERTY_SYSTEM_ID_TEMPLATE = "sync.system_id_template";
 	
 	public static final String PROPERTY_SYSTEM_ID_TEMPLATE_DEFAULT = "{SYNCSERVERNAME}_{NEXTUSERID}{CHECKDIGIT}";
@@ -162,6 +245,20 @@ public class SyncConstants {
 	
 	public static final String PROPERTY_SYNC_CLONED_DATABASE_LOG_ENABLED = "sync.cloned_database.log.enabled";
 	
+	/**
+	 * The number of tables read at the same time when dumping the database for a child server
+	 */
+	public static final String PROPERTY_CLONE_EXPORT_THREADS = "sync.clone.export_threads";
+	
+	public static final String PROPERTY_CLONE_EXPORT_THREADS_DEFAULT = "4";
+	
+	/**
+	 * The number of tables loaded at the same time when importing the database of the parent server
+	 */
+	public static final String PROPERTY_CLONE_IMPORT_THREADS = "sync.clone.import_threads";
+	
+	public static final String PROPERTY_CLONE_IMPORT_THREADS_DEFAULT = "4";
+	
 	public static final String RESPONSE_SUFFIX = "_response";
 	
 	public static final String DIR_IMPORT = "import";
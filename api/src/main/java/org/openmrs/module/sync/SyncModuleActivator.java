@@ -16,6 +16,7 @@ package org.openmrs.module.sync;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.sync.server.ServerConnectionPool;
 
 /**
  * This class contains the logic that is run every time this module
@@ -32,6 +33,8 @@ public class SyncModuleActivator extends BaseModuleActivator {
 
 	@Override
 	public void stopped() {
+		SyncTransmissionPrebuilder.shutdown();
+		ServerConnectionPool.shutdown();
 		log.info("Synchronization Module Stopped");
 	}
 }
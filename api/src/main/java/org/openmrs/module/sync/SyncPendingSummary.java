@@ -0,0 +1,100 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.Date;
+
+/**
+ * How many sync records are waiting to be sent to a server, and since when. This is what a server
+ * answers to a {@link SyncConstants#PENDING_MESSAGE}, so that a sync can be skipped or sized
+ * without building a transmission.
+ * <p/>
+ * The count is an upper bound: records that turn out not to be meant for the server are only
+ * filtered out when the transmission is built.
+ */
+public class SyncPendingSummary {
+
+	private long count;
+
+	private Date oldestTimestamp;
+
+	public SyncPendingSummary() {
+	}
+
+	public SyncPendingSummary(long count, Date oldestTimestamp) {
+		this.count = count;
+		this.oldestTimestamp = oldestTimestamp;
+	}
+
+	/**
+	 * @return the number of records waiting
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	/**
+	 * @return the timestamp of the oldest record waiting, null if there is none
+	 */
+	public Date getOldestTimestamp() {
+		return oldestTimestamp;
+	}
+
+	public void setOldestTimestamp(Date oldestTimestamp) {
+		this.oldestTimestamp = oldestTimestamp;
+	}
+
+	/**
+	 * @return true if nothing is waiting
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return this summary in the form sent over the wire, e.g. <code>pending:12:1260000000000</code>
+	 */
+	public String format() {
+		return SyncConstants.PENDING_MESSAGE + ":" + count + ":" + (oldestTimestamp == null ? "" : oldestTimestamp.getTime());
+	}
+
+	/**
+	 * @param value a summary as created by {@link #format()}
+	 * @return the summary, or null if the value is not a summary (e.g. the answer of a server that
+	 *         does not know about {@link SyncConstants#PENDING_MESSAGE})
+	 */
+	public static SyncPendingSummary parse(String value) {
+		if (value == null)
+			return null;
+		String[] fields = value.trim().split(":", -1);
+		if (fields.length != 3 || !SyncConstants.PENDING_MESSAGE.equals(fields[0]))
+			return null;
+		try {
+			Date oldest = fields[2].length() == 0 ? null : new Date(Long.parseLong(fields[2]));
+			return new SyncPendingSummary(Long.parseLong(fields[1]), oldest);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return count + " records pending" + (oldestTimestamp == null ? "" : " since " + oldestTimestamp);
+	}
+}
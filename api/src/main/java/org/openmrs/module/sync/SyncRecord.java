@@ -383,7 +383,30 @@ public class SyncRecord implements Serializable, IItem {
         this.serverRecords = serverRecords;
     }
 
+    /**
+     * Gets the state of this record for the given server. If the server keeps a record watermark
+     * and has no server record of its own for this record, a server record is made up from the
+     * watermark: committed up to it, new beyond it. Such a server record is not part of
+     * {@link #getServerRecords()}; see {@link #addServerRecord(SyncServerRecord)} to store a change
+     * made to it.
+     * 
+     * @param server the server
+     * @return the server record, null if there is none
+     * @see RemoteServer#getRecordWatermark()
+     */
     public SyncServerRecord getServerRecord(RemoteServer server) {
+        SyncServerRecord ret = getStoredServerRecord(server);
+        
+        if ( ret == null && server != null && server.getRecordWatermark() != null ) {
+            ret = new SyncServerRecord(server, this);
+            boolean committed = recordId != null && recordId <= server.getRecordWatermark();
+            ret.setState(committed ? SyncRecordState.COMMITTED : SyncRecordState.NEW);
+        }
+        
+        return ret;
+    }
+    
+    private SyncServerRecord getStoredServerRecord(RemoteServer server) {
         SyncServerRecord ret = null;
         
         if ( server != null && this.serverRecords != null ) {
@@ -448,7 +471,21 @@ public class SyncRecord implements Serializable, IItem {
 	 */
 	public void addServerRecord(RemoteServer server) {
 		// only add this if there isn't one for this server already
-		if (getServerRecord(server) == null)
+		if (getStoredServerRecord(server) == null)
 			serverRecords.add(new SyncServerRecord(server, this));
 	}
+	
+	/**
+	 * Adds the given server record, as returned by {@link #getServerRecord(RemoteServer)}, to this
+	 * SyncRecord if it is not part of it yet, so that it is saved along with it
+	 * 
+	 * @param serverRecord the server record
+	 */
+	public void addServerRecord(SyncServerRecord serverRecord) {
+		if (getStoredServerRecord(serverRecord.getSyncServer()) == null) {
+			if (serverRecords == null)
+				serverRecords = new HashSet<SyncServerRecord>();
+			serverRecords.add(serverRecord);
+		}
+	}
 }
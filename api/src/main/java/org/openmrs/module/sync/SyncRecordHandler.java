@@ -0,0 +1,33 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+/**
+ * Is given the sync records of the journal one at a time, so that all of them can be gone
+ * through without loading them all at once.
+ *
+ * @see org.openmrs.module.sync.api.SyncService#processSyncRecords(SyncRecordState[],
+ *      java.util.Date, java.util.Date, SyncRecordHandler)
+ */
+public interface SyncRecordHandler {
+
+	/**
+	 * Does whatever is needed with the given record. The record is taken out of the session
+	 * shortly afterwards, once the changes made to it are saved, so it should not be kept.
+	 *
+	 * @param record the record
+	 * @throws Exception to stop going through the journal
+	 */
+	public void handle(SyncRecord record) throws Exception;
+}
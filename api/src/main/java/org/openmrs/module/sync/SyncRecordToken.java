@@ -0,0 +1,124 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A word that a sync record can be found by when searching the journal: the uuids it refers to,
+ * the classes it contains and the identifiers in it. Searching these rather than the payload of the
+ * records finds exact matches only, without reading the whole journal.
+ *
+ * @see org.openmrs.module.sync.api.SyncService#getSyncRecords(String, Integer, Integer)
+ */
+public class SyncRecordToken {
+
+	/**
+	 * The longest token kept, longer ones are left out
+	 */
+	public static final int MAX_LENGTH = 255;
+
+	private static final Pattern UUID = Pattern
+	        .compile("\\b[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}\\b");
+
+	private static final Pattern IDENTIFIER = Pattern.compile("<identifier[^>]*>([^<]+)</identifier>");
+
+	private Integer recordTokenId;
+
+	private String token;
+
+	private Integer recordId;
+
+	public SyncRecordToken() {
+	}
+
+	public Integer getRecordTokenId() {
+		return recordTokenId;
+	}
+
+	public void setRecordTokenId(Integer recordTokenId) {
+		this.recordTokenId = recordTokenId;
+	}
+
+	/**
+	 * @return the token, in lower case
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	public void setToken(String token) {
+		this.token = token;
+	}
+
+	public Integer getRecordId() {
+		return recordId;
+	}
+
+	public void setRecordId(Integer recordId) {
+		this.recordId = recordId;
+	}
+
+	/**
+	 * @param text what is searched for
+	 * @return the token that the text is indexed as
+	 */
+	public static String normalize(String text) {
+		return text == null ? null : text.trim().toLowerCase();
+	}
+
+	/**
+	 * Gets the tokens of a record: its uuids, the uuids and classes of its items, the uuids
+	 * referred to by the items and the identifiers they hold. Classes are indexed by both their
+	 * full and simple names.
+	 *
+	 * @param record the record, with its items
+	 * @return the tokens, normalized
+	 */
+	public static Set<String> getTokens(SyncRecord record) {
+		Set<String> tokens = new LinkedHashSet<String>();
+		add(tokens, record.getUuid());
+		add(tokens, record.getOriginalUuid());
+		if (record.getItems() != null) {
+			for (SyncItem item : record.getItems()) {
+				if (item.getContainedType() != null) {
+					add(tokens, item.getContainedType().getName());
+					add(tokens, item.getContainedType().getSimpleName());
+				}
+				if (item.getKey() != null && item.getKey().getKeyValue() != null)
+					add(tokens, item.getKey().getKeyValue().toString());
+				if (item.getContent() != null) {
+					Matcher uuids = UUID.matcher(item.getContent());
+					while (uuids.find()) {
+						add(tokens, uuids.group());
+					}
+					Matcher identifiers = IDENTIFIER.matcher(item.getContent());
+					while (identifiers.find()) {
+						add(tokens, identifiers.group(1));
+					}
+				}
+			}
+		}
+		return tokens;
+	}
+
+	private static void add(Set<String> tokens, String text) {
+		String token = normalize(text);
+		if (token != null && token.length() > 0 && token.length() <= MAX_LENGTH)
+			tokens.add(token);
+	}
+}
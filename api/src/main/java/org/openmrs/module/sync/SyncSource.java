@@ -50,6 +50,8 @@ public interface SyncSource {
 	
 	public List<SyncRecord> getChanged(RemoteServer server, Integer maxResults) throws SyncException; //note this has new items also
 	
+	public List<SyncRecord> getChanged(RemoteServer server, Integer maxResults, SyncRecord after) throws SyncException; //only records that come after the given one
+	
 	//Methods used to apply changes
 	public void applyDeleted(List<SyncRecord> records) throws SyncException;
 	
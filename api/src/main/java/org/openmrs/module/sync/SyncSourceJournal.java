@@ -167,11 +167,16 @@ public class SyncSourceJournal implements SyncSource {
 	
 	// state-based version that takes into consideration what should/shouldn't be sent to a given server
 	public List<SyncRecord> getChanged(RemoteServer server, Integer maxResults) throws SyncException {
+		return getChanged(server, maxResults, null);
+	}
+	
+	// as above, only records that come after the given one in journal order, e.g. because the ones before are still in flight
+	public List<SyncRecord> getChanged(RemoteServer server, Integer maxResults, SyncRecord after) throws SyncException {
 		List<SyncRecord> changed = new ArrayList<SyncRecord>();
 		
 		try {
 			SyncService syncService = Context.getService(SyncService.class);
-			changed = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, server, maxResults, null);
+			changed = syncService.getSyncRecordsAfter(SyncConstants.SYNC_TO_PARENT_STATES, server, maxResults, after);
 			
 		}
 		catch (Exception e) {
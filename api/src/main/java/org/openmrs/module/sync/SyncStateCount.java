@@ -0,0 +1,80 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+/**
+ * A change in the number of server records of a server in a given state, or, for
+ * {@link #LOCAL_SERVER_ID}, in the number of sync records created on this server in a given state.
+ * The count of a server and state is the sum of its rows. A row is added as the states change, so
+ * that the statistics pages do not have to count the journal, and the rows are folded into one per
+ * server and state when the counts are rebuilt.
+ * 
+ * @see org.openmrs.module.sync.api.SyncService#rebuildSyncStateCounts()
+ */
+public class SyncStateCount {
+
+	/**
+	 * The server id under which the states of the sync records created on this server are counted
+	 */
+	public static final int LOCAL_SERVER_ID = 0;
+
+	private Integer stateCountId;
+
+	private Integer serverId;
+
+	private String state;
+
+	private Integer recordCount;
+
+	public SyncStateCount() {
+	}
+
+	public Integer getStateCountId() {
+		return stateCountId;
+	}
+
+	public void setStateCountId(Integer stateCountId) {
+		this.stateCountId = stateCountId;
+	}
+
+	/**
+	 * @return the id of the server, {@link #LOCAL_SERVER_ID} for the sync records themselves
+	 */
+	public Integer getServerId() {
+		return serverId;
+	}
+
+	public void setServerId(Integer serverId) {
+		this.serverId = serverId;
+	}
+
+	/**
+	 * @return the name of the {@link SyncRecordState}
+	 */
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public Integer getRecordCount() {
+		return recordCount;
+	}
+
+	public void setRecordCount(Integer recordCount) {
+		this.recordCount = recordCount;
+	}
+}
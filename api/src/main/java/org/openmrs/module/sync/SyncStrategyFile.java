@@ -84,6 +84,17 @@ public class SyncStrategyFile {
 	 */
 	public SyncTransmission createStateBasedSyncTransmission(SyncSource source, boolean writeFileToo, RemoteServer server,
 	                                                         boolean requestResponseWithTransmission, Integer maxSyncRecords) {
+		return createStateBasedSyncTransmission(source, writeFileToo, server, requestResponseWithTransmission,
+		    maxSyncRecords, null);
+	}
+	
+	/**
+	 * As {@link #createStateBasedSyncTransmission(SyncSource, boolean, RemoteServer, boolean, Integer)}
+	 * , only including records that come after the given one in journal order
+	 */
+	public SyncTransmission createStateBasedSyncTransmission(SyncSource source, boolean writeFileToo, RemoteServer server,
+	                                                         boolean requestResponseWithTransmission,
+	                                                         Integer maxSyncRecords, SyncRecord after) {
 		
 		SyncTransmission syncTx = null;
 		boolean isMaxRetryReached = false;
@@ -93,7 +104,7 @@ public class SyncStrategyFile {
 			List<SyncRecord> filteredChangeset = new ArrayList<SyncRecord>();
 			
 			//get changeset for sourceA
-			changeset = this.getStateBasedChangeset(source, server, maxSyncRecords);
+			changeset = this.getStateBasedChangeset(source, server, maxSyncRecords, after);
 			
 			// need to check each SyncRecord to see if it's eligible for sync'ing
 			if (changeset != null) {
@@ -116,6 +127,7 @@ public class SyncStrategyFile {
 							SyncServerRecord serverRecord = record.getServerRecord(server);
 							if (serverRecord != null) {
 								serverRecord.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
+								record.addServerRecord(serverRecord);
 								Context.getService(SyncService.class).updateSyncRecord(record);
 							}
 						}
@@ -202,14 +214,15 @@ public class SyncStrategyFile {
 		return changeset;
 	}
 	
-	private List<SyncRecord> getStateBasedChangeset(SyncSource source, RemoteServer server, Integer maxResults) {
+	private List<SyncRecord> getStateBasedChangeset(SyncSource source, RemoteServer server, Integer maxResults,
+	                                                SyncRecord after) {
 		List<SyncRecord> deleted = null;
 		List<SyncRecord> changed = null;
 		List<SyncRecord> changeset = null;
 		
 		//get all local deletes, inserts and updates
 		deleted = source.getDeleted();
-		changed = source.getChanged(server, maxResults);
+		changed = source.getChanged(server, maxResults, after);
 		
 		//merge
 		changeset = deleted;
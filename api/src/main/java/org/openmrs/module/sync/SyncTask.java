@@ -13,12 +13,17 @@
  */
 package org.openmrs.module.sync;
 
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
 import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.module.sync.server.ServerConnection;
 import org.openmrs.scheduler.TaskDefinition;
 import org.openmrs.scheduler.tasks.AbstractTask;
 
@@ -34,7 +39,11 @@ public class SyncTask extends AbstractTask {
 	// Instance of configuration information for task
 	private Integer serverId = 0;
 	
-	private static Boolean isExecuting = false; // allow only one running
+	// number of sync tasks running, with any server
+	private static final AtomicInteger executing = new AtomicInteger();
+	
+	// bounds the number of syncs running at the same time, see SyncConstants.PROPERTY_MAX_CONCURRENT_SYNCS
+	private static Semaphore workers = null;
 	
 	/**
 	 * Default Constructor (Uses SchedulerConstants.username and SchedulerConstants.password
@@ -49,16 +58,15 @@ public class SyncTask extends AbstractTask {
 	 * <p>
 	 * NOTE: Any exception (outside of session open/close) is caught and reported in the error log
 	 * thus creating retry behavior based on the scheduled frequency.
+	 * <p>
+	 * Tasks for different servers run at the same time, up to
+	 * {@link SyncConstants#PROPERTY_MAX_CONCURRENT_SYNCS}; a task for a server that is already being
+	 * synchronized with is skipped.
 	 */
 	public void execute() {
 		Context.openSession();
-		synchronized (isExecuting) {
-			if (isExecuting) {
-				log.warn("SyncTask processor aborting (another SyncTask already running)");
-				return;
-			}
-			isExecuting = true;
-		}
+		executing.incrementAndGet();
+		boolean acquired = false;
 		try {
 			log.debug("Synchronizing data to a server.");
 			if (Context.isAuthenticated() == false && serverId > 0)
@@ -66,9 +74,26 @@ public class SyncTask extends AbstractTask {
 			
 			RemoteServer server = Context.getService(SyncService.class).getRemoteServer(serverId);
 			if (server != null) {
+				if (server.getSyncInProgress()) {
+					log.warn("SyncTask processor aborting (a sync with " + server.getNickname() + " is already running)");
+					return;
+				}
+				
+				if (isNothingToSync(server)) {
+					log.debug("Skipping sync with " + server.getNickname() + ", nothing is waiting on either side");
+					return;
+				}
+				
+				getWorkers().acquire();
+				acquired = true;
+				
 				//auto syncing is only via web, so apply the web limit for sync records to send
 				SyncTransmissionResponse response = SyncUtilTransmission.doFullSynchronize(server, null,
 				    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB));
+				if (response.getState() == SyncTransmissionState.ERROR_CANNOT_RUN_PARALLEL) {
+					log.warn("SyncTask processor aborting (a sync with " + server.getNickname() + " is already running)");
+					return;
+				}
 				try {
 					response.createFile(false, SyncConstants.DIR_JOURNAL);
 				}
@@ -77,16 +102,58 @@ public class SyncTask extends AbstractTask {
 				}
 			}
 		}
+		catch (InterruptedException e) {
+			log.warn("SyncTask interrupted while waiting for other syncs to finish. Will retry per schedule.");
+			Thread.currentThread().interrupt();
+		}
 		catch (Exception e) {
 			log.error("Scheduler error while trying to synchronize data. Will retry per schedule.", e);
 		}
 		finally {
-			isExecuting = false;
+			if (acquired)
+				getWorkers().release();
+			executing.decrementAndGet();
 			Context.closeSession();
 			log.debug("Synchronization complete.");
 		}
 	}
 	
+	/**
+	 * Checks, without building any transmission, whether a sync with the given parent would have
+	 * nothing to send either way. Only done if {@link SyncConstants#PROPERTY_SKIP_EMPTY_SYNCS} is
+	 * set; if the parent cannot be asked, the sync is not skipped.
+	 * 
+	 * @param server the server to sync with
+	 * @return true if the sync can be skipped
+	 */
+	private boolean isNothingToSync(RemoteServer server) {
+		if (!server.getServerType().equals(RemoteServerType.PARENT)
+		        || !Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		            SyncConstants.PROPERTY_SKIP_EMPTY_SYNCS, SyncConstants.PROPERTY_SKIP_EMPTY_SYNCS_DEFAULT)))
+			return false;
+		
+		if (!Context.getService(SyncService.class).getPendingSummary(server).isEmpty())
+			return false;
+		SyncPendingSummary remote = ServerConnection.getPendingSummary(server);
+		return remote != null && remote.isEmpty();
+	}
+	
+	private static synchronized Semaphore getWorkers() {
+		if (workers == null) {
+			Integer maxConcurrent = null;
+			try {
+				maxConcurrent = SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_MAX_CONCURRENT_SYNCS);
+			}
+			catch (Exception e) {
+				log.debug("Unable to read " + SyncConstants.PROPERTY_MAX_CONCURRENT_SYNCS, e);
+			}
+			if (maxConcurrent == null || maxConcurrent < 1)
+				maxConcurrent = Integer.valueOf(SyncConstants.PROPERTY_MAX_CONCURRENT_SYNCS_DEFAULT);
+			workers = new Semaphore(maxConcurrent, true);
+		}
+		return workers;
+	}
+	
 	/**
 	 * Initializes task. Note serverId is in most cases an Id (as stored in sync server table) of
 	 * parent. As such, parent Id does not need to be stored separately with the task as it can
@@ -109,13 +176,12 @@ public class SyncTask extends AbstractTask {
 	}
 	
 	/**
-	 * Checks if the sync task is running.
+	 * Checks if a sync task is running, with any server.
 	 * 
 	 * @return true if running, else false.
+	 * @see RemoteServer#getSyncInProgress()
 	 */
 	public static Boolean getIsExecuting() {
-		synchronized (isExecuting) {
-			return isExecuting;
-		}
+		return executing.get() > 0;
 	}
 }
@@ -0,0 +1,376 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.AdaptiveBatchSizer;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
+
+/**
+ * Keeps the records of the next transmission to the parent gathered in the background, so that a
+ * sync does not have to go through the journal while the parent waits. Only used if
+ * {@link SyncConstants#PROPERTY_PREBUILD_TRANSMISSION} is set.
+ * <p/>
+ * A prebuilt transmission holds the first records waiting to be sent, without marking them as
+ * sent; that happens when it is taken by a sync, which then writes it out. It is dropped when a
+ * local sync record is created that would have been part of it (i.e. when it is not full), and
+ * built again once no new record came for {@link #REBUILD_DELAY} milliseconds. The number of
+ * records waiting is checked once more when it is taken, which catches records changed by other
+ * means.
+ * <p/>
+ * Builds run as the user the scheduler runs tasks as.
+ */
+public class SyncTransmissionPrebuilder {
+
+	private static final Log log = LogFactory.getLog(SyncTransmissionPrebuilder.class);
+
+	/**
+	 * How long to wait for more records before building a transmission, in milliseconds
+	 */
+	public static final long REBUILD_DELAY = 5000;
+
+	/**
+	 * True once a transmission was scheduled to be built, so that creating a sync record costs
+	 * nothing as long as this feature is not used
+	 */
+	private static volatile boolean active = false;
+
+	private static ScheduledExecutorService executor = null;
+
+	/**
+	 * serverId -> the transmission built for that server
+	 */
+	private static final Map<Integer, Prebuilt> prebuilt = new HashMap<Integer, Prebuilt>();
+
+	/**
+	 * serverId -> incremented each time the transmission of that server is dropped, so that a
+	 * build that was running at the time is thrown away
+	 */
+	private static final Map<Integer, Integer> generations = new HashMap<Integer, Integer>();
+
+	/**
+	 * serverId -> the maximum number of records as passed to the last sync with that server
+	 */
+	private static final Map<Integer, Integer> maxRecords = new HashMap<Integer, Integer>();
+
+	/**
+	 * serverId -> the build waiting to run for that server
+	 */
+	private static final Map<Integer, ScheduledFuture<?>> scheduled = new HashMap<Integer, ScheduledFuture<?>>();
+
+	/**
+	 * @return true if {@link SyncConstants#PROPERTY_PREBUILD_TRANSMISSION} is set
+	 */
+	public static boolean isEnabled() {
+		return Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_PREBUILD_TRANSMISSION, SyncConstants.PROPERTY_PREBUILD_TRANSMISSION_DEFAULT));
+	}
+
+	/**
+	 * Builds the next transmission to the given server in the background, if this is enabled and
+	 * the server is the parent
+	 *
+	 * @param server the server the transmission is for
+	 * @param maxSyncRecords the configured maximum number of records per transmission, see
+	 *            {@link AdaptiveBatchSizer#getBatchSize(RemoteServer, Integer)}
+	 */
+	public static void scheduleBuild(RemoteServer server, Integer maxSyncRecords) {
+		if (server == null || server.getServerId() == null
+		        || !RemoteServerType.PARENT.equals(server.getServerType()) || !isEnabled())
+			return;
+
+		synchronized (prebuilt) {
+			active = true;
+			maxRecords.put(server.getServerId(), maxSyncRecords);
+			schedule(server.getServerId());
+		}
+	}
+
+	/**
+	 * Called for each sync record created on this server. Drops the transmissions that the record
+	 * would have been part of, and schedules them to be built again.
+	 *
+	 * @param record the record that was created
+	 */
+	public static void recordCreated(SyncRecord record) {
+		if (!active || record == null || !SyncRecordState.NEW.equals(record.getState()))
+			return;
+
+		synchronized (prebuilt) {
+			for (Integer serverId : maxRecords.keySet()) {
+				Prebuilt entry = prebuilt.get(serverId);
+				if (entry != null && entry.isFull())
+					continue; // the new record comes after the ones already in the transmission
+				drop(serverId);
+				schedule(serverId);
+			}
+		}
+	}
+
+	/**
+	 * Takes the transmission built for the given server, if there is one and it still holds the
+	 * records that would be sent now. Builds running for the server are thrown away. The caller
+	 * marks the records of the returned transmission as sent and writes it out.
+	 *
+	 * @param server the server to send to
+	 * @param batchSize the largest number of records that may be sent
+	 * @return the transmission, or null if a new one has to be built
+	 */
+	public static Prebuilt take(RemoteServer server, int batchSize) {
+		if (!active || server == null || server.getServerId() == null)
+			return null;
+
+		Prebuilt entry;
+		synchronized (prebuilt) {
+			entry = prebuilt.remove(server.getServerId());
+			drop(server.getServerId());
+		}
+		if (entry == null)
+			return null;
+
+		try {
+			if (isUsable(entry, server, batchSize))
+				return entry;
+		}
+		catch (Exception e) {
+			log.warn("Unable to check the transmission built for " + server.getNickname(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Stops the background builds and drops all transmissions
+	 */
+	public static void shutdown() {
+		synchronized (prebuilt) {
+			active = false;
+			for (Integer serverId : maxRecords.keySet()) {
+				drop(serverId);
+			}
+			maxRecords.clear();
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+	}
+
+	/**
+	 * @param entry a transmission built for the given server
+	 * @param server the server to send to
+	 * @param batchSize the largest number of records that may be sent
+	 * @return true if the transmission holds the records that would be sent now
+	 */
+	static boolean isUsable(Prebuilt entry, RemoteServer server, int batchSize) {
+		SyncTransmission tx = entry.getTransmission();
+		if (tx.getSyncRecords().size() > batchSize)
+			return false;
+
+		// records that reached the max retry count are handled when building a new transmission
+		long maxRetryCount = Long.parseLong(Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT, SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT));
+		for (SyncRecord record : tx.getSyncRecords()) {
+			if (record.getRetryCount() >= maxRetryCount)
+				return false;
+		}
+
+		long pending = Context.getService(SyncService.class).getPendingSummary(server).getCount();
+		return pending == entry.getPendingCount() || (entry.isFull() && pending > entry.getPendingCount());
+	}
+
+	/**
+	 * Must be called holding the lock
+	 */
+	private static void drop(Integer serverId) {
+		prebuilt.remove(serverId);
+		Integer generation = generations.get(serverId);
+		generations.put(serverId, generation == null ? 1 : generation + 1);
+		ScheduledFuture<?> future = scheduled.remove(serverId);
+		if (future != null)
+			future.cancel(false);
+	}
+
+	/**
+	 * Must be called holding the lock
+	 */
+	private static void schedule(final Integer serverId) {
+		ScheduledFuture<?> future = scheduled.remove(serverId);
+		if (future != null)
+			future.cancel(false);
+
+		if (!generations.containsKey(serverId))
+			generations.put(serverId, 0);
+		final Integer generation = generations.get(serverId);
+		scheduled.put(serverId, getExecutor().schedule(new Runnable() {
+
+			public void run() {
+				build(serverId, generation);
+			}
+		}, REBUILD_DELAY, TimeUnit.MILLISECONDS));
+	}
+
+	private static void build(Integer serverId, Integer generation) {
+		Context.openSession();
+		try {
+			if (!authenticate())
+				return;
+			Context.addProxyPrivilege(SyncConstants.PRIV_VIEW_SYNC_RECORDS);
+			SyncService syncService = Context.getService(SyncService.class);
+			RemoteServer server = syncService.getRemoteServer(serverId);
+			// a sync that is running schedules a new build when it is done
+			if (server == null || server.getSyncInProgress())
+				return;
+
+			Integer maxSyncRecords;
+			synchronized (prebuilt) {
+				maxSyncRecords = maxRecords.get(serverId);
+			}
+			int batchSize = AdaptiveBatchSizer.getBatchSize(server, maxSyncRecords);
+			long pendingCount = syncService.getPendingSummary(server).getCount();
+
+			SyncTransmission tx = new SyncStrategyFile().createStateBasedSyncTransmission(new SyncSourceJournal(), false,
+			    server, false, batchSize);
+			if (tx == null || tx.getSyncRecords() == null || tx.getSyncRecords().isEmpty() || tx.getIsMaxRetryReached())
+				return;
+
+			if (store(serverId, generation, new Prebuilt(tx, batchSize, pendingCount)))
+				log.debug("Built a transmission of " + tx.getSyncRecords().size() + " records for " + server.getNickname());
+		}
+		catch (Exception e) {
+			log.warn("Unable to build the next transmission for server " + serverId, e);
+		}
+		finally {
+			Context.removeProxyPrivilege(SyncConstants.PRIV_VIEW_SYNC_RECORDS);
+			Context.closeSession();
+		}
+	}
+
+	/**
+	 * Keeps the given transmission for the given server, unless it was dropped since the build
+	 * started
+	 *
+	 * @param serverId the id of the server
+	 * @param generation the generation of the server when the build started
+	 * @param entry the transmission built
+	 * @return true if the transmission was kept
+	 */
+	static boolean store(Integer serverId, Integer generation, Prebuilt entry) {
+		synchronized (prebuilt) {
+			if (!generation.equals(generations.get(serverId)))
+				return false; // records were created or sent while building
+			scheduled.remove(serverId);
+			prebuilt.put(serverId, entry);
+			return true;
+		}
+	}
+
+	/**
+	 * @param serverId the id of the server
+	 * @return the generation a build for the given server starting now would have
+	 */
+	static Integer getGeneration(Integer serverId) {
+		synchronized (prebuilt) {
+			return generations.get(serverId);
+		}
+	}
+
+	/**
+	 * Authenticates the current session as the user the scheduler runs tasks as, like
+	 * {@link org.openmrs.scheduler.tasks.AbstractTask} does
+	 *
+	 * @return true if the user could be authenticated
+	 */
+	private static boolean authenticate() {
+		try {
+			AdministrationService adminService = Context.getAdministrationService();
+			Context.authenticate(adminService.getGlobalProperty("scheduler.username"), adminService
+			        .getGlobalProperty("scheduler.password"));
+			return true;
+		}
+		catch (Exception e) {
+			log.warn("Unable to authenticate as the scheduler user, not building the next transmission", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Must be called holding the lock
+	 */
+	private static ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "sync-transmission-prebuilder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * A transmission built ahead of time
+	 */
+	public static class Prebuilt {
+
+		private final SyncTransmission transmission;
+
+		private final int batchSize;
+
+		private final long pendingCount;
+
+		Prebuilt(SyncTransmission transmission, int batchSize, long pendingCount) {
+			this.transmission = transmission;
+			this.batchSize = batchSize;
+			this.pendingCount = pendingCount;
+		}
+
+		/**
+		 * @return the transmission, its records not marked as sent yet
+		 */
+		public SyncTransmission getTransmission() {
+			return transmission;
+		}
+
+		/**
+		 * @return the number of records waiting when the transmission was built
+		 */
+		public long getPendingCount() {
+			return pendingCount;
+		}
+
+		/**
+		 * @return true if the transmission holds as many records as it could, so records created
+		 *         since come after it
+		 */
+		public boolean isFull() {
+			return transmission.getSyncRecords().size() >= batchSize;
+		}
+	}
+}
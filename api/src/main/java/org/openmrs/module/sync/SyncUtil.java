@@ -58,6 +58,7 @@ import org.openmrs.module.sync.serialization.Normalizer;
 import org.openmrs.module.sync.serialization.PropertiesNormalizer;
 import org.openmrs.module.sync.serialization.Record;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
+import org.openmrs.module.sync.server.BackportProgress;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.notification.Alert;
 import org.openmrs.notification.MessageException;
@@ -86,6 +87,7 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -109,6 +111,11 @@ public class SyncUtil {
 	
 	private static Log log = LogFactory.getLog(SyncUtil.class);
 	
+	/**
+	 * The number of record ids backported in one transaction
+	 */
+	private static final int BACKPORT_CHUNK_SIZE = 10000;
+	
 	// safetypes are *hibernate* types that we know how to serialize with help
 	// of Normalizers
 	public static final Map<String, Normalizer> safetypes;
@@ -902,6 +909,51 @@ public class SyncUtil {
 		}
 	}
 	
+	/**
+	 * Copies the SyncRecords after the given <code>date</code> into SyncServerRecords for the given
+	 * <code>server</code>, a range of record ids at a time. Each range is backported in a
+	 * transaction of its own, see {@link SyncService#backportSyncRecords(RemoteServer, Date, int, int)},
+	 * so this must not be called within a transaction for the ranges to be committed as it goes;
+	 * how far it got can be followed with {@link SyncService#getBackportProgress(RemoteServer)}.
+	 * 
+	 * @param server the server to copy the records to
+	 * @param date the exact datetime to start copying records
+	 * @return the number of records changed
+	 */
+	public static int backportSyncRecords(RemoteServer server, Date date) {
+		SyncService syncService = Context.getService(SyncService.class);
+		SyncRecord firstRecord = syncService.getEarliestRecord(date);
+		SyncRecord latestRecord = syncService.getLatestRecord();
+		
+		// we have no sync records, quit early
+		if (firstRecord == null || latestRecord == null)
+			return 0;
+		
+		int firstRecordId = firstRecord.getRecordId();
+		int latestRecordId = latestRecord.getRecordId();
+		log.info("Backporting sync records " + firstRecordId + " to " + latestRecordId + " to " + server.getNickname());
+		
+		BackportProgress progress = BackportProgress.start(server, latestRecordId);
+		int count = 0;
+		try {
+			for (int from = firstRecordId; from <= latestRecordId; from += BACKPORT_CHUNK_SIZE) {
+				count += syncService.backportSyncRecords(server, date, from, from + BACKPORT_CHUNK_SIZE);
+				progress.update(from + BACKPORT_CHUNK_SIZE - 1, count);
+				// the server records were created with sql, the records in the session do not have them
+				Context.clearSession();
+				if (log.isDebugEnabled())
+					log.debug("Backported " + count + " sync records to " + server.getNickname() + ", "
+					        + progress.getPercentDone() + "% done");
+			}
+		}
+		finally {
+			progress.finish();
+		}
+		
+		log.info("Backported " + count + " sync records to " + server.getNickname());
+		return count;
+	}
+	
 	public static void sendSyncErrorMessage(SyncRecord syncRecord, RemoteServer server, Exception exception) {
 
 		SyncService syncService = Context.getService(SyncService.class);
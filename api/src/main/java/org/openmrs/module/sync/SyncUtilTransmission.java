@@ -16,6 +16,12 @@ package org.openmrs.module.sync;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -24,8 +30,11 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.api.SyncIngestService;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.ingest.SyncIngestDeferredActions;
 import org.openmrs.module.sync.ingest.SyncIngestException;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.server.AdaptiveBatchSizer;
+import org.openmrs.module.sync.server.ConnectionRequest;
 import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
@@ -67,9 +76,21 @@ public class SyncUtilTransmission {
 	 */
 	public static SyncTransmission createSyncTransmission(RemoteServer server, boolean requestResponseWithTransmission,
 	                                                      Integer maxSyncRecords) {
+		return createSyncTransmission(server, requestResponseWithTransmission, maxSyncRecords, null);
+	}
+	
+	/**
+	 * Prepares a sync transmission containing local changes to be sent to the remote server,
+	 * starting after the given record
+	 * 
+	 * @param server
+	 * @param maxSyncRecords The maximum number of sync records to include in the Sync Transmission
+	 * @param after only records that come after this one in journal order are included, null for all
+	 * @return
+	 */
+	public static SyncTransmission createSyncTransmission(RemoteServer server, boolean requestResponseWithTransmission,
+	                                                      Integer maxSyncRecords, SyncRecord after) {
 		SyncTransmission tx = null;
-		long maxRetryCount = 0;
-		boolean maxRetryCountReached = false;
 		Exception exceptionThrown = null; // the exception thrown
         boolean createTransmissionLog = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_SYNC_TRANSMISSION_LOG_ENABLED, "true"));
 
@@ -79,7 +100,7 @@ public class SyncUtilTransmission {
 			
 			try {
 				tx = strategy.createStateBasedSyncTransmission(source, createTransmissionLog, server, requestResponseWithTransmission,
-				    maxSyncRecords);
+				    maxSyncRecords, after);
 			}
 			catch (Exception e) {
 				exceptionThrown = e; // save the exception so we can check if one happened in the finally block
@@ -88,7 +109,7 @@ public class SyncUtilTransmission {
 				// difference is that this time we'll do this without trying to create a file (just getting the output)
 				// if it works, that probably means that there was a problem writing file to disk
 				tx = strategy.createStateBasedSyncTransmission(source, false, server, requestResponseWithTransmission,
-				    maxSyncRecords);
+				    maxSyncRecords, after);
 			}
 			finally {
 				boolean incrementRetryCount = true;
@@ -107,63 +128,9 @@ public class SyncUtilTransmission {
 					
 				}
 				if (incrementRetryCount && tx != null) {
-						
-						if (server != null) {
-							tx.setSyncTargetUuid(server.getUuid());
-						}
-						// let's update SyncRecords to reflect the fact that we now have tried to sync them, by setting state to SENT or SENT_AGAIN
-						maxRetryCount = Long.parseLong(Context.getAdministrationService().getGlobalProperty(
-						    SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT, SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT));
-						
-						log.info("Max retry count: " + maxRetryCount);
-						if (tx.getSyncRecords() != null) {
-							for (SyncRecord record : tx.getSyncRecords()) {
-								//if max re-try was reached stop now: 
-								//a) mark the record as failed save it to DB, 
-								//b) clear out the Tx we are creating
-								//c) decrement the retry count on records 'after' the one that failed -- they never really got a chance
-								//  and if offending record is fixed, the dudes that follow would fail with max retry error
-								
-								log.info("Checking record retry count (" + record.getRetryCount()
-								        + ") against max retry count (" + maxRetryCount + ")");
-								if (record.getRetryCount() >= maxRetryCount) {
-									record.setState(SyncRecordState.FAILED_AND_STOPPED);
-									Context.getService(SyncService.class).updateSyncRecord(record);
-									maxRetryCountReached = true;
-									SyncUtil.sendSyncErrorMessage(record, server, new SyncException("Max retry count reached"));
-									continue;
-								}
-								if (record.getServerRecords() != null && !server.getServerType().equals(RemoteServerType.PARENT)) {
-									//parent -> child: this Tx is part of exchange where parent is sending its changes down to child
-									//mark row in the synchronization_server_record table as being sent, 
-									for (SyncServerRecord serverRecord : record.getServerRecords()) {
-										if (serverRecord.getSyncServer().equals(server)) {
-											serverRecord.incrementRetryCount();
-											if (serverRecord.getState().equals(SyncRecordState.NEW))
-												serverRecord.setState(SyncRecordState.SENT);
-											else
-												serverRecord.setState(SyncRecordState.SENT_AGAIN);
-										}
-									}
-									Context.getService(SyncService.class).updateSyncRecord(record);
-								} else if (server.getServerType().equals(RemoteServerType.PARENT)) {
-									//child -> parent scenario: we are about to send data from child to parent
-									record.incrementRetryCount();
-									if (record.getState().equals(SyncRecordState.NEW))
-										record.setState(SyncRecordState.SENT);
-									else
-										record.setState(SyncRecordState.SENT_AGAIN);
-									Context.getService(SyncService.class).updateSyncRecord(record);
-								} else {
-									log.error("Odd state: trying to get syncRecords for a non-parent server with no corresponding server-records");
-								}
-							}
-							if (tx.getIsMaxRetryReached() || maxRetryCountReached) {
-								tx.setSyncRecords(null);
-							}
-						}
-					}
+					markTransmissionAsSent(server, tx);
 				}
+			}
 		}
 		catch (Exception e) {
 			log.error("Error while writing creating sync transmission for server: " + server.getNickname(), e);
@@ -173,6 +140,130 @@ public class SyncUtilTransmission {
 		return tx;
 	}
 	
+	/**
+	 * Updates the records of the given transmission to reflect the fact that we now have tried to
+	 * sync them, by setting their state to SENT or SENT_AGAIN. If a record reached the max retry
+	 * count, it is marked as failed and the records are taken out of the transmission.
+	 */
+	private static void markTransmissionAsSent(RemoteServer server, SyncTransmission tx) {
+		if (server != null) {
+			tx.setSyncTargetUuid(server.getUuid());
+		}
+		long maxRetryCount = Long.parseLong(Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT, SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT));
+		boolean maxRetryCountReached = false;
+		
+		log.info("Max retry count: " + maxRetryCount);
+		if (tx.getSyncRecords() != null) {
+			// records (or server records) going from NEW to SENT, and the ones sent before
+			List<SyncRecord> firstSent = new ArrayList<SyncRecord>();
+			List<SyncRecord> sentAgain = new ArrayList<SyncRecord>();
+			boolean toParent = server.getServerType().equals(RemoteServerType.PARENT);
+			for (SyncRecord record : tx.getSyncRecords()) {
+				//if max re-try was reached stop now: 
+				//a) mark the record as failed save it to DB, 
+				//b) clear out the Tx we are creating
+				//c) decrement the retry count on records 'after' the one that failed -- they never really got a chance
+				//  and if offending record is fixed, the dudes that follow would fail with max retry error
+				
+				log.info("Checking record retry count (" + record.getRetryCount()
+				        + ") against max retry count (" + maxRetryCount + ")");
+				if (record.getRetryCount() >= maxRetryCount) {
+					record.setState(SyncRecordState.FAILED_AND_STOPPED);
+					Context.getService(SyncService.class).updateSyncRecord(record);
+					maxRetryCountReached = true;
+					SyncUtil.sendSyncErrorMessage(record, server, new SyncException("Max retry count reached"));
+					continue;
+				}
+				if (record.getServerRecords() != null && !toParent) {
+					//parent -> child: this Tx is part of exchange where parent is sending its changes down to child
+					//mark row in the synchronization_server_record table as being sent, 
+					SyncServerRecord serverRecord = record.getServerRecord(server);
+					if (serverRecord != null) {
+						if (serverRecord.getState().equals(SyncRecordState.NEW))
+							firstSent.add(record);
+						else
+							sentAgain.add(record);
+					}
+				} else if (toParent) {
+					//child -> parent scenario: we are about to send data from child to parent
+					if (record.getState().equals(SyncRecordState.NEW))
+						firstSent.add(record);
+					else
+						sentAgain.add(record);
+				} else {
+					log.error("Odd state: trying to get syncRecords for a non-parent server with no corresponding server-records");
+				}
+			}
+			markAsSent(server, firstSent, SyncRecordState.SENT);
+			markAsSent(server, sentAgain, SyncRecordState.SENT_AGAIN);
+			if (tx.getIsMaxRetryReached() || maxRetryCountReached) {
+				tx.setSyncRecords(null);
+			}
+		}
+	}
+	
+	/**
+	 * Marks the records of a transmission that was built without changing their state as sent, now
+	 * that it is about to be, and writes it out, so that it holds the records as they are sent
+	 */
+	private static void markPrebuiltAsSent(RemoteServer server, SyncTransmission tx) {
+		markTransmissionAsSent(server, tx);
+		try {
+			tx.create(Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+			    SyncConstants.PROPERTY_SYNC_TRANSMISSION_LOG_ENABLED, "true")));
+		}
+		catch (SyncException e) {
+			log.error("Error while writing the transmission log", e);
+			tx.create(false);
+		}
+	}
+	
+	/**
+	 * Gathers the records of the next transmission to the given server without changing their
+	 * state, as it may never be sent
+	 * 
+	 * @see #markPrebuiltAsSent(RemoteServer, SyncTransmission)
+	 */
+	static SyncTransmission prebuildSyncTransmission(RemoteServer server, Integer maxSyncRecords, SyncRecord after)
+	    throws Exception {
+		return new SyncStrategyFile().createStateBasedSyncTransmission(new SyncSourceJournal(), false, server, false,
+		    maxSyncRecords, after);
+	}
+	
+	/**
+	 * Sets the state of the given records, or of their server records for the given server if it is
+	 * not the parent, and increments their retry count with a single update. The records themselves
+	 * are updated to match.
+	 */
+	private static void markAsSent(RemoteServer server, List<SyncRecord> records, SyncRecordState state) {
+		if (records.isEmpty())
+			return;
+		
+		List<Integer> recordIds = new ArrayList<Integer>(records.size());
+		for (SyncRecord record : records) {
+			recordIds.add(record.getRecordId());
+		}
+		
+		boolean toParent = server.getServerType().equals(RemoteServerType.PARENT);
+		if (toParent)
+			Context.getService(SyncService.class).updateSyncRecordStates(recordIds, state, true);
+		else
+			Context.getService(SyncService.class).updateSyncServerRecordStates(server, recordIds, state, true);
+		
+		// the records were evicted from the session by the update, so this is not saved again
+		for (SyncRecord record : records) {
+			if (toParent) {
+				record.incrementRetryCount();
+				record.setState(state);
+			} else {
+				SyncServerRecord serverRecord = record.getServerRecord(server);
+				serverRecord.incrementRetryCount();
+				serverRecord.setState(state);
+			}
+		}
+	}
+	
 	public static SyncTransmissionResponse sendSyncTranssmission(RemoteServer server, SyncTransmission transmission) {
 		return SyncUtilTransmission.sendSyncTransmission(server, transmission, null);
 	}
@@ -201,10 +292,10 @@ public class SyncUtilTransmission {
 				syncService.saveRemoteServer(server);
 				if (responseInstead != null) {
 					toTransmit = responseInstead.getFileOutput();
-					log.info("Sending a response (with tx inside): " + toTransmit);
+					log.info("Sending a response (with tx inside), length: " + (toTransmit == null ? 0 : toTransmit.length()));
 				} else if (transmission != null) {
 					toTransmit = transmission.getFileOutput();
-					log.info("Sending an actual tx: " + toTransmit);
+					log.info("Sending an actual tx, length: " + (toTransmit == null ? 0 : toTransmit.length()));
 				}
 				
 				if (toTransmit != null && toTransmit.length() > 0) {
@@ -230,39 +321,7 @@ public class SyncUtilTransmission {
 						}
 						
 						if (connResponse != null) {
-							// constructor for SyncTransmissionResponse is null-safe
-							response = new SyncTransmissionResponse(connResponse);
-							
-							//if we got something back, mark status appropriately
-							if (response.getState() == SyncTransmissionState.FAILED) {
-								server.setLastSyncState(SyncTransmissionState.FAILED);
-							} else {
-								server.setLastSyncState(SyncTransmissionState.OK);
-							}
-							;
-							
-							if (response.getSyncImportRecords() == null) {
-								log.debug("No records to process in response");
-							} else {
-								// process each incoming syncImportRecord; if any records failed, mark last send as failed
-								boolean allOK = true;
-								for (SyncImportRecord importRecord : response.getSyncImportRecords()) {
-									Context.getService(SyncIngestService.class)
-									        .processSyncImportRecord(importRecord, server);
-									if (importRecord.getState() != SyncRecordState.COMMITTED
-									        && importRecord.getState() != SyncRecordState.ALREADY_COMMITTED
-									        && importRecord.getState() != SyncRecordState.NOT_SUPPOSED_TO_SYNC) {
-										allOK = false;
-									}
-								}
-								
-								//now if some records failed, record it in lastSyncState
-								if (allOK == false) {
-									server.setLastSyncState(SyncTransmissionState.FAILED_RECORDS);
-								}
-							}
-							//update lastSyncState
-							syncService.saveRemoteServer(server);
+							response = processConnectionResponse(server, connResponse);
 						}
 					}
 				} else {
@@ -290,6 +349,51 @@ public class SyncUtilTransmission {
 		return response;
 	}
 	
+	/**
+	 * Applies the response of the given server to a transmission we sent: marks the records it
+	 * acknowledges and updates the last sync state of the server
+	 * 
+	 * @param server the server the transmission was sent to
+	 * @param connResponse what the server sent back
+	 * @return the response of the server
+	 */
+	private static SyncTransmissionResponse processConnectionResponse(RemoteServer server, ConnectionResponse connResponse) {
+		// constructor for SyncTransmissionResponse is null-safe
+		SyncTransmissionResponse response = new SyncTransmissionResponse(connResponse);
+		connResponse.release();
+		
+		//if we got something back, mark status appropriately
+		if (response.getState() == SyncTransmissionState.FAILED) {
+			server.setLastSyncState(SyncTransmissionState.FAILED);
+		} else {
+			server.setLastSyncState(SyncTransmissionState.OK);
+		}
+		
+		if (response.getSyncImportRecords() == null) {
+			log.debug("No records to process in response");
+		} else {
+			// process each incoming syncImportRecord; if any records failed, mark last send as failed
+			boolean allOK = true;
+			Context.getService(SyncIngestService.class).processSyncImportRecords(response.getSyncImportRecords(), server);
+			for (SyncImportRecord importRecord : response.getSyncImportRecords()) {
+				if (importRecord.getState() != SyncRecordState.COMMITTED
+				        && importRecord.getState() != SyncRecordState.ALREADY_COMMITTED
+				        && importRecord.getState() != SyncRecordState.NOT_SUPPOSED_TO_SYNC) {
+					allOK = false;
+				}
+			}
+			
+			//now if some records failed, record it in lastSyncState
+			if (allOK == false) {
+				server.setLastSyncState(SyncTransmissionState.FAILED_RECORDS);
+			}
+		}
+		//update lastSyncState
+		Context.getService(SyncService.class).saveRemoteServer(server);
+		
+		return response;
+	}
+	
 	/**
 	 * Performs 'full' synchronization (from a child perspective) with parent server identified by
 	 * parent parameter.
@@ -297,7 +401,8 @@ public class SyncUtilTransmission {
 	 * @param parent the server to do send/receive to/from
 	 * @param size (nullable) updated mid-method to be the number of objects coming from the parent
 	 * @param maxSyncRecords The maximum number of sync records to include in the SyncTransmission
-	 * @return
+	 * @return the response, with state ERROR_CANNOT_RUN_PARALLEL if a sync with the given server is
+	 *         already running
 	 */
 	public static SyncTransmissionResponse doFullSynchronize(RemoteServer parent, ReceivingSize size, Integer maxSyncRecords) {
 		SyncTransmissionResponse response = new SyncTransmissionResponse();
@@ -306,21 +411,24 @@ public class SyncUtilTransmission {
 		response.setUuid(SyncConstants.UUID_UNKNOWN);
 		response.setState(SyncTransmissionState.TRANSMISSION_CREATION_FAILED);
 		
+		// set the flag saying that sync'ing is happening, unless another sync with this server already runs;
+		// syncs with other servers are not affected
+		if (parent != null && !parent.tryStartSync())
+			return createCannotRunParallelResponse();
+		final RemoteServer syncServer = parent;
+		
 		try {
 			if (parent != null) {
 				Integer parentId = parent.getServerId();
 				//set the date
 				parent.setLastSync(new Date());
 				
-				// set the flag saying that sync'ing is happening
-				parent.setSyncInProgress(true);
-				
 				//this is the initial handshake only; no state sent
 				SyncTransmission tx = SyncUtilTransmission.createSyncTransmissionRequest(parent);
 				
 				if (tx != null) {
-					if (log.isInfoEnabled()) {
-						log.info("SYNC TX created was: " + tx.getFileOutput());
+					if (log.isDebugEnabled()) {
+						log.debug("SYNC TX created was: " + tx.getFileOutput());
 					}
 					// start by sending request to parent server
 					SyncTransmissionResponse initialResponse = SyncUtilTransmission.sendSyncTranssmission(parent, tx);
@@ -349,12 +457,25 @@ public class SyncUtilTransmission {
 						} else {
 							log.info("initialTxFromParent was null coming back from parent(?)");
 							initialResponse.createFile(false, "requestResponse");
-							log.info("response was: " + initialResponse.getFileOutput());
+							if (log.isDebugEnabled())
+								log.debug("response was: " + initialResponse.getFileOutput());
 						}
 						
 						// now get local changes destined for parent, and package those inside
 						parent = syncService.getRemoteServer(parentId);
-						SyncTransmission st = SyncUtilTransmission.createSyncTransmission(parent, false, maxSyncRecords);
+						// the number of records sent adapts to how the previous exchanges with the parent went
+						int batchSize = AdaptiveBatchSizer.getBatchSize(parent, maxSyncRecords);
+						SyncTransmission st;
+						// the records of a transmission built in the background are used as they are, see
+						// SyncConstants.PROPERTY_PREBUILD_TRANSMISSION
+						SyncTransmissionPrebuilder.Prebuilt prebuilt = SyncTransmissionPrebuilder.take(parent, batchSize);
+						if (prebuilt != null) {
+							st = prebuilt.getTransmission();
+							markPrebuiltAsSent(parent, st);
+						} else {
+							st = SyncUtilTransmission.createSyncTransmission(parent, false, batchSize);
+						}
+						long sendStarted = -1;
 						if (str != null) {
 							if (str.getState() != SyncTransmissionState.CANNOT_FIND_SERVER_WITH_UUID) {
 								log.info("Received updates from parent, so replying and sending updates of our own: "
@@ -363,6 +484,7 @@ public class SyncUtilTransmission {
 								str.createFile(false, "/receiveAndSend");
 								//reload parent
 								//parent = syncService.getRemoteServer(parentId);
+								sendStarted = System.currentTimeMillis();
 								response = SyncUtilTransmission.sendSyncTransmission(parent, null, str);
 								
 								// add all changes from parent into response
@@ -386,9 +508,18 @@ public class SyncUtilTransmission {
 							}
 						} else {
 							log.info("No updates from parent, generating our own transmission");
+							sendStarted = System.currentTimeMillis();
 							response = SyncUtilTransmission.sendSyncTransmission(parent, st, null);
 						}
 						
+						if (sendStarted > 0) {
+							recordExchange(parent, maxSyncRecords, st, response, System.currentTimeMillis() - sendStarted);
+							
+							// with a backlog, keep sending transmissions in this same session
+							if (isBacklogLeft(st, batchSize, response))
+								response = sendWindow(parent, maxSyncRecords, st, response);
+						}
+						
 					} else {
 						log.warn("INITIAL RESPONSE CAME BACK AS NULL IN DOFULLSYNCHRONIZATION(SERVER)");
 						log.warn("TX was: " + tx.getFileOutput());
@@ -410,12 +541,179 @@ public class SyncUtilTransmission {
 		}
 		finally {
 			// unset the flag so we know that sync'ing is done
-			parent.setSyncInProgress(false);
+			if (syncServer != null)
+				syncServer.setSyncInProgress(false);
+			// get the next transmission ready while waiting for the next sync
+			SyncTransmissionPrebuilder.scheduleBuild(syncServer, maxSyncRecords);
 		}
 		
 		return response;
 	}
 	
+	/**
+	 * Sends further transmissions to the parent back to back, up to the window set by
+	 * {@link SyncConstants#PROPERTY_TRANSMISSION_WINDOW}, or until the backlog is drained if that is
+	 * 0. The records of each transmission are gathered while the previous one is in flight, and the
+	 * acknowledgements of a transmission are applied once they have been. The records are only
+	 * marked as sent when their transmission is, so that those of a transmission that never goes out
+	 * because an exchange failed are left as they were. Stops at the first exchange that fails.
+	 * 
+	 * @param parent the parent server
+	 * @param maxSyncRecords the configured maximum number of records per transmission
+	 * @param first the transmission that was already sent in this session
+	 * @param firstResponse the response to it
+	 * @return the response to the last transmission sent, with the acknowledgements of all of them
+	 */
+	private static SyncTransmissionResponse sendWindow(RemoteServer parent, Integer maxSyncRecords,
+	                                                   SyncTransmission first, SyncTransmissionResponse firstResponse) {
+		int window = getTransmissionWindow();
+		if (!isWindowOpen(window, 1))
+			return firstResponse;
+		
+		SyncTransmissionResponse response = firstResponse;
+		final String address = parent.getAddress();
+		final String username = parent.getUsername();
+		final String password = parent.getPassword();
+		// read here, the sender thread has no authenticated user to read global properties with
+		final ServerConnection.ConnectionSettings settings = ServerConnection.ConnectionSettings.read(address);
+		
+		ExecutorService sender = Executors.newSingleThreadExecutor();
+		try {
+			int sent = 1;
+			SyncTransmission next = prebuildSyncTransmission(parent, AdaptiveBatchSizer.getBatchSize(parent,
+			    maxSyncRecords), getLastRecord(first));
+			while (next != null && next.getSyncRecords() != null && !next.getSyncRecords().isEmpty()
+			        && !next.getIsMaxRetryReached() && isWindowOpen(window, sent)) {
+				
+				final SyncTransmission inFlight = next;
+				markPrebuiltAsSent(parent, inFlight);
+				// taken out if a record reached the max retry count
+				if (inFlight.getSyncRecords() == null || inFlight.getSyncRecords().isEmpty())
+					break;
+				
+				final ConnectionRequest request = ServerConnection.createRequest(inFlight.getFileOutput());
+				long sendStarted = System.currentTimeMillis();
+				Future<ConnectionResponse> connResponse = sender.submit(new Callable<ConnectionResponse>() {
+					
+					public ConnectionResponse call() throws Exception {
+						try {
+							return ServerConnection.sendExportedData(address, username, password, request, false,
+							    settings);
+						}
+						finally {
+							request.release();
+						}
+					}
+				});
+				sent++;
+				
+				// gather the records of the next transmission while this one is on the wire
+				next = null;
+				if (isWindowOpen(window, sent))
+					next = prebuildSyncTransmission(parent, AdaptiveBatchSizer.getBatchSize(parent, maxSyncRecords),
+					    getLastRecord(inFlight));
+				
+				SyncTransmissionResponse inFlightResponse = processConnectionResponse(parent, connResponse.get());
+				recordExchange(parent, maxSyncRecords, inFlight, inFlightResponse, System.currentTimeMillis()
+				        - sendStarted);
+				
+				if (inFlightResponse.getSyncImportRecords() != null) {
+					if (response.getSyncImportRecords() == null)
+						response.setSyncImportRecords(new ArrayList<SyncImportRecord>());
+					response.getSyncImportRecords().addAll(inFlightResponse.getSyncImportRecords());
+				}
+				if (inFlightResponse.getState() != SyncTransmissionState.OK) {
+					response.setState(inFlightResponse.getState());
+					response.setErrorMessage(inFlightResponse.getErrorMessage());
+					if (next != null && next.getSyncRecords() != null && !next.getSyncRecords().isEmpty())
+						log.info(next.getSyncRecords().size() + " records gathered for the next transmission are left "
+						        + "for the next sync");
+					break;
+				}
+			}
+			log.info("Sent " + sent + " transmissions to " + parent.getNickname() + " in this sync");
+		}
+		catch (Exception e) {
+			log.error("Error while sending further transmissions to " + parent.getNickname(), e);
+		}
+		finally {
+			sender.shutdownNow();
+		}
+		return response;
+	}
+	
+	/**
+	 * @param window the maximum number of transmissions per sync, 0 or less for no limit
+	 * @param sent the number of transmissions sent so far
+	 * @return true if another transmission may be sent in this sync
+	 */
+	static boolean isWindowOpen(int window, int sent) {
+		return window < 1 || sent < window;
+	}
+	
+	/**
+	 * @return true if the given exchange went fine and the transmission was full, so there are
+	 *         likely more records waiting
+	 */
+	static boolean isBacklogLeft(SyncTransmission st, int batchSize, SyncTransmissionResponse response) {
+		if (st == null || st.getSyncRecords() == null || response == null
+		        || response.getState() != SyncTransmissionState.OK)
+			return false;
+		return st.getSyncRecords().size() >= batchSize;
+	}
+	
+	/**
+	 * @return the last record of the given transmission in journal order, where the next
+	 *         transmission starts
+	 */
+	static SyncRecord getLastRecord(SyncTransmission st) {
+		List<SyncRecord> records = st.getSyncRecords();
+		return records.isEmpty() ? null : records.get(records.size() - 1);
+	}
+	
+	static int getTransmissionWindow() {
+		Integer window = null;
+		try {
+			window = SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_TRANSMISSION_WINDOW);
+		}
+		catch (Exception e) {
+			log.debug("Unable to read " + SyncConstants.PROPERTY_TRANSMISSION_WINDOW, e);
+		}
+		if (window == null)
+			window = Integer.valueOf(SyncConstants.PROPERTY_TRANSMISSION_WINDOW_DEFAULT);
+		return window;
+	}
+	
+	private static SyncTransmissionResponse createCannotRunParallelResponse() {
+		SyncTransmissionResponse response = new SyncTransmissionResponse();
+		response.setErrorMessage(SyncConstants.ERROR_CANNOT_RUN_PARALLEL.toString());
+		response.setFileName(SyncConstants.FILENAME_NOT_CREATED);
+		response.setUuid(SyncConstants.UUID_UNKNOWN);
+		response.setState(SyncTransmissionState.ERROR_CANNOT_RUN_PARALLEL);
+		return response;
+	}
+	
+	/**
+	 * Feeds the outcome of sending the given transmission to the parent into the adaptive batch size
+	 * of the parent
+	 * 
+	 * @see AdaptiveBatchSizer#recordExchange(RemoteServer, Integer, int, long, long, SyncTransmissionState)
+	 */
+	private static void recordExchange(RemoteServer parent, Integer maxSyncRecords, SyncTransmission st,
+	                                   SyncTransmissionResponse response, long elapsedMillis) {
+		if (st == null || st.getSyncRecords() == null || st.getSyncRecords().isEmpty())
+			return;
+		try {
+			String output = st.getFileOutput();
+			AdaptiveBatchSizer.recordExchange(parent, maxSyncRecords, st.getSyncRecords().size(), output == null ? 0
+			        : output.length(), elapsedMillis, response == null ? null : response.getState());
+			Context.getService(SyncService.class).saveRemoteServer(parent);
+		}
+		catch (Exception e) {
+			log.warn("Unable to update the batch size of " + parent.getNickname(), e);
+		}
+	}
+	
 	/**
 	 * Processes incoming sync transmission.
 	 * <p/>
@@ -475,48 +773,82 @@ public class SyncUtilTransmission {
 		List<SyncImportRecord> importRecords = new ArrayList<SyncImportRecord>();
 		if (st.getSyncRecords() != null) {
 			log.info("Processing Sync Transmission from " + origin.getNickname());
-			SyncImportRecord importRecord = null;
+			
+			// find records that were committed before (e.g. the whole batch is resent after a dropped
+			// connection) with one query for the whole transmission instead of one per record
+			List<String> originalUuids = new ArrayList<String>();
 			for (SyncRecord record : st.getSyncRecords()) {
-				try {
-					//pre-create import record in case we get exception            		
-					importRecord = new SyncImportRecord();
-					importRecord.setState(SyncRecordState.FAILED); // by default, until we know otherwise
-					importRecord.setRetryCount(record.getRetryCount());
-					importRecord.setTimestamp(record.getTimestamp());
-					importRecord.setSourceServer(origin);
+				originalUuids.add(record.getOriginalUuid());
+			}
+			Map<String, SyncRecordState> knownStates = syncService.getSyncImportRecordStates(originalUuids);
+			
+			SyncImportRecord importRecord = null;
+			// rebuild concept words once per concept for the whole transmission rather than per record
+			SyncIngestDeferredActions.begin();
+			try {
+				for (SyncRecord record : st.getSyncRecords()) {
+					SyncRecordState knownState = knownStates.get(record.getOriginalUuid());
+					if (knownState != null && knownState.isFinal()) {
+						// the remote server doesn't realize it's committed, remind it without reprocessing
+						// the record, see SyncIngestService#processSyncRecord(SyncRecord, RemoteServer)
+						if (log.isDebugEnabled())
+							log.debug("Record " + record.getOriginalUuid() + " was already committed, acknowledging it");
+						importRecord = new SyncImportRecord();
+						importRecord.setUuid(record.getOriginalUuid());
+						importRecord.setState(SyncRecordState.ALREADY_COMMITTED);
+						importRecord.setRetryCount(record.getRetryCount());
+						importRecord.setTimestamp(record.getTimestamp());
+						importRecord.setSourceServer(origin);
+						importRecords.add(importRecord);
+						continue;
+					}
+				
+					try {
+						//pre-create import record in case we get exception            		
+						importRecord = new SyncImportRecord();
+						importRecord.setState(SyncRecordState.FAILED); // by default, until we know otherwise
+						importRecord.setRetryCount(record.getRetryCount());
+						importRecord.setTimestamp(record.getTimestamp());
+						importRecord.setSourceServer(origin);
 					
-					//TODO: write record as pending to prevent someone else trying to process this record at the same time
+						//TODO: write record as pending to prevent someone else trying to process this record at the same time
 					
-					//reload origin for SYNC-175
-					Integer originId = origin.getServerId();
-					//now attempt to process
-					if (log.isInfoEnabled())
-						log.info("Processing record " + record.getUuid() + " which contains "
-					        + record.getContainedClassSet().toString());
-					importRecord = Context.getService(SyncIngestService.class).processSyncRecord(record, origin);
-					origin = syncService.getRemoteServer(originId);
-				}
-				catch (SyncIngestException e) {
-					log.error("Sync error while ingesting records for server: " + origin.getNickname(), e);
-					importRecord = e.getSyncImportRecord();
-				}
-				catch (Exception e) {
-					//just report error, import record already set to failed
-					log.error("Unexpected exception while ingesting records for server: " + origin.getNickname(), e);
-					if (importRecord != null)
-						importRecord.setErrorMessage(e.getMessage());
-				}
-				importRecords.add(importRecord);
+						//reload origin for SYNC-175
+						Integer originId = origin.getServerId();
+						//now attempt to process
+						if (log.isInfoEnabled())
+							log.info("Processing record " + record.getUuid() + " which contains "
+						        + record.getContainedClassSet().toString());
+						importRecord = Context.getService(SyncIngestService.class).processSyncRecord(record, origin);
+						origin = syncService.getRemoteServer(originId);
+					}
+					catch (SyncIngestException e) {
+						log.error("Sync error while ingesting records for server: " + origin.getNickname(), e);
+						importRecord = e.getSyncImportRecord();
+					}
+					catch (Exception e) {
+						//just report error, import record already set to failed
+						log.error("Unexpected exception while ingesting records for server: " + origin.getNickname(), e);
+						if (importRecord != null)
+							importRecord.setErrorMessage(e.getMessage());
+					}
+					importRecords.add(importRecord);
+					// the concept words of a record that was rolled back are left as they are
+					SyncIngestDeferredActions.recordProcessed(importRecord.getState() == SyncRecordState.COMMITTED);
 				
-				//if the record update failed for any reason, do not continue on, stop now
-				//adding NOT_SUPPOSED_TO_SYNC: SYNC-204.
-				if (importRecord.getState() != SyncRecordState.COMMITTED
-				        && importRecord.getState() != SyncRecordState.ALREADY_COMMITTED
-				        && importRecord.getState() != SyncRecordState.NOT_SUPPOSED_TO_SYNC) {
-					success = false;
-					break;
+					//if the record update failed for any reason, do not continue on, stop now
+					//adding NOT_SUPPOSED_TO_SYNC: SYNC-204.
+					if (importRecord.getState() != SyncRecordState.COMMITTED
+					        && importRecord.getState() != SyncRecordState.ALREADY_COMMITTED
+					        && importRecord.getState() != SyncRecordState.NOT_SUPPOSED_TO_SYNC) {
+						success = false;
+						break;
+					}
 				}
 			}
+			finally {
+				applyDeferredActions();
+			}
 		}
 		
 		//what ever happened here, send the status for the import records back
@@ -554,6 +886,24 @@ public class SyncUtilTransmission {
 		return str;
 	}
 	
+	/**
+	 * Applies the actions that were deferred while processing the records of a transmission, see
+	 * {@link SyncIngestDeferredActions}. Failures are logged and do not fail the transmission: the
+	 * records themselves are committed already, and concept words can always be rebuilt later on.
+	 */
+	private static void applyDeferredActions() {
+		Set<Integer> conceptIds = SyncIngestDeferredActions.end();
+		if (conceptIds.isEmpty())
+			return;
+		try {
+			log.info("Updating concept words for " + conceptIds.size() + " concepts changed by this transmission");
+			Context.getService(SyncIngestService.class).updateConceptWords(conceptIds);
+		}
+		catch (Exception e) {
+			log.error("Unable to update concept words for concepts " + conceptIds, e);
+		}
+	}
+	
 	public static class ReceivingSize {
 		
 		private Integer size;
@@ -582,16 +932,7 @@ public class SyncUtilTransmission {
 		RemoteServer parent = Context.getService(SyncService.class).getParentServer();
 		
 		if (parent != null) {
-			if (parent.getSyncInProgress() || SyncTask.getIsExecuting()) {
-				SyncTransmissionResponse response = new SyncTransmissionResponse();
-				response.setErrorMessage(SyncConstants.ERROR_CANNOT_RUN_PARALLEL.toString());
-				response.setFileName(SyncConstants.FILENAME_NOT_CREATED);
-				response.setUuid(SyncConstants.UUID_UNKNOWN);
-				response.setState(SyncTransmissionState.ERROR_CANNOT_RUN_PARALLEL);
-				
-				return response;
-			}
-			
+			// returns ERROR_CANNOT_RUN_PARALLEL if a sync with the parent is already running
 			return SyncUtilTransmission.doFullSynchronize(parent, size, maxSyncRecords);
 		} else {
 			SyncTransmissionResponse response = new SyncTransmissionResponse();
@@ -13,6 +13,7 @@
  */
 package org.openmrs.module.sync.api;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -48,6 +49,18 @@ public interface SyncIngestService {
     //@Authorized({"Manage Synchronization Records"})
     public void processSyncImportRecord(SyncImportRecord importRecord, RemoteServer server) throws APIException;
     
+    /**
+     * Processes all SyncImportRecords of a response at once, updating the states of the acknowledged
+     * records with one statement per resulting state rather than one per record.
+     * @param importRecords the acknowledgements sent back by the server
+     * @param server the server the acknowledgements came from
+     * @throws APIException
+     * @should set the state of all acknowledged records
+     * @should ignore acknowledgements of unknown records
+     */
+    //@Authorized({"Manage Synchronization Records"})
+    public void processSyncImportRecords(Collection<SyncImportRecord> importRecords, RemoteServer server) throws APIException;
+    
     /**
      * Processes incoming SyncItem against the local server instance.
      * 
@@ -81,6 +94,17 @@ public interface SyncIngestService {
 	 */
     @Logging(ignoreAllArgumentValues=true)
 	public void applyPreCommitRecordActions(Map<String, List<SyncProcessedObject>> processedObjects) throws APIException;
+	
+	/**
+	 * Rebuilds the concept words of the given concepts. Used to apply the concept word updates that
+	 * were deferred while processing a whole transmission.
+	 * 
+	 * @param conceptIds ids of the concepts to update
+	 * @throws APIException
+	 * @see org.openmrs.module.sync.ingest.SyncIngestDeferredActions
+	 */
+	@Logging(ignoreAllArgumentValues=true)
+	public void updateConceptWords(Collection<Integer> conceptIds) throws APIException;
 
     
 
@@ -95,6 +119,18 @@ public interface SyncIngestService {
      */
     @Logging(ignoreAllArgumentValues=true)
 	public void processSyncSubclassStub(SyncSubclassStub stub) throws APIException;
+    
+    /**
+     * Same as {@link #processSyncSubclassStub(SyncSubclassStub)} for a number of stubs, e.g. when
+     * importing patients in bulk: the stub rows are written in one batch per kind of stub.
+     * 
+     * @see SyncSubclassStub
+     * 
+     * @param stubs
+     * @throws APIException
+     */
+    @Logging(ignoreAllArgumentValues=true)
+	public void processSyncSubclassStubs(List<SyncSubclassStub> stubs) throws APIException;
 
     /**
      * Validates that database does not already contain concept with mismatched
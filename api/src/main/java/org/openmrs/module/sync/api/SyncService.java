@@ -16,6 +16,7 @@ package org.openmrs.module.sync.api;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.LinkedHashSet;
@@ -29,14 +30,18 @@ import org.openmrs.annotation.Authorized;
 import org.openmrs.annotation.Logging;
 import org.openmrs.api.APIException;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.sync.SyncArchive;
 import org.openmrs.module.sync.SyncClass;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.server.BackportProgress;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.SyncServerRecord;
 import org.springframework.transaction.annotation.Transactional;
@@ -92,6 +97,42 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public List<SyncRecord> getSyncRecords(String keyword) throws APIException;
 	
+	/**
+	 * Finds the records that contain the given uuid, class name or identifier, newest first. Only
+	 * exact matches are found, except among the records from before the search index that are not
+	 * indexed yet, see {@link #indexSyncRecords(int)}.
+	 * 
+	 * @param keyword the uuid, class name (full or simple) or identifier to look for
+	 * @param firstResult the position of the first record to return, from 0
+	 * @param maxResults the largest number of records to return, or null for all
+	 * @return the matching records
+	 * @throws APIException
+	 * @should find the records referring to a uuid
+	 * @should find the records of a class by its simple name
+	 * @should return the given page of the matches
+	 */
+	@Transactional(readOnly = true)
+	public List<SyncRecord> getSyncRecords(String keyword, Integer firstResult, Integer maxResults) throws APIException;
+	
+	/**
+	 * @param keyword the uuid, class name or identifier to look for
+	 * @return the number of records that {@link #getSyncRecords(String, Integer, Integer)} finds
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	public Long getCountOfSyncRecords(String keyword) throws APIException;
+	
+	/**
+	 * Indexes the records created before the search index existed, the given number of record ids
+	 * at a time, from the newest down. Records created since are indexed as they are created.
+	 * 
+	 * @param maxRecords the number of record ids to go through
+	 * @return the highest id of the records still to be indexed, 0 once they all are
+	 * @throws APIException
+	 * @should only find exact matches once all records are indexed
+	 */
+	public int indexSyncRecords(int maxRecords) throws APIException;
+	
 	/**
 	 * @param syncRecordId of the SyncRecord to retrieve
 	 * @return SyncRecord The SyncRecord or null if not found
@@ -114,6 +155,54 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public SyncRecord getSyncRecordByOriginalUuid(String originalUuid) throws APIException;
 	
+	/**
+	 * @param originalUuids the original uuids of the records to look up
+	 * @return original uuid -> record id, for the records that exist
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	public Map<String, Integer> getSyncRecordIdsByOriginalUuid(Collection<String> originalUuids) throws APIException;
+	
+	/**
+	 * Sets the state of many sync records at once, without loading them
+	 * 
+	 * @param recordIds the ids of the records to update
+	 * @param state the new state
+	 * @param incrementRetryCount true to also increment the retry count of the records
+	 * @return the number of records updated
+	 * @throws APIException
+	 * @should update the state of all given records
+	 * @should increment the retry count if asked to
+	 */
+	public int updateSyncRecordStates(Collection<Integer> recordIds, SyncRecordState state, boolean incrementRetryCount)
+	    throws APIException;
+	
+	/**
+	 * Sets the state of the server records of many sync records at once, without loading them
+	 * 
+	 * @param server the server the server records belong to
+	 * @param recordIds the ids of the sync records
+	 * @param state the new state
+	 * @param incrementRetryCount true to also increment the retry count of the server records
+	 * @return the number of server records updated
+	 * @throws APIException
+	 * @should only update the server records of the given server
+	 */
+	public int updateSyncServerRecordStates(RemoteServer server, Collection<Integer> recordIds, SyncRecordState state,
+	                                        boolean incrementRetryCount) throws APIException;
+	
+	/**
+	 * Sets the error message of the server records of many sync records at once
+	 * 
+	 * @param server the server the server records belong to
+	 * @param recordIds the ids of the sync records
+	 * @param errorMessage the error message, null to clear it
+	 * @return the number of server records updated
+	 * @throws APIException
+	 */
+	public int updateSyncServerRecordErrorMessages(RemoteServer server, Collection<Integer> recordIds,
+	                                               String errorMessage) throws APIException;
+	
 	/**
 	 * @return SyncRecord The latest SyncRecord or null if not found
 	 * @throws APIException
@@ -196,6 +285,18 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public SyncImportRecord getSyncImportRecord(String uuid) throws APIException;
 	
+	/**
+	 * Gets the states of the SyncImportRecords with the given uuids with a single query, e.g. to
+	 * find out which records of an incoming transmission have been seen before
+	 * 
+	 * @param uuids the (original) uuids of the SyncImportRecords
+	 * @return map from uuid to state; uuids without an import record are not in the map
+	 * @throws APIException
+	 * @should return the states of existing import records only
+	 */
+	@Transactional(readOnly = true)
+	public Map<String, SyncRecordState> getSyncImportRecordStates(Collection<String> uuids) throws APIException;
+	
 	/**
 	 * Get all SyncImportRecords in a specific SyncRecordState
 	 * 
@@ -268,6 +369,23 @@ public interface SyncService {
 	public List<SyncRecord> getSyncRecords(SyncRecordState[] states, RemoteServer server, Integer maxSyncRecords, Integer firstRecordId)
 	                                                                                                             throws APIException;
 	
+	/**
+	 * As {@link #getSyncRecords(SyncRecordState[], RemoteServer, Integer, Integer)}, only returning
+	 * the records that come after the given one in journal order (by timestamp, then record id).
+	 * This pages through the journal with a keyset cursor, e.g. to build the next transmission
+	 * while the previous one is in flight.
+	 * 
+	 * @param states SyncRecordStates for the SyncRecords to be returned
+	 * @param server Server these records will be sent to, so we can filter on Class
+	 * @param maxSyncRecords
+	 * @param after the last record of the previous page, null to start at the beginning
+	 * @return SyncRecord A list containing the next SyncRecords with the given states
+	 * @throws APIException
+	 */
+	//@Authorized({"View Synchronization Records"})
+	public List<SyncRecord> getSyncRecordsAfter(SyncRecordState[] states, RemoteServer server, Integer maxSyncRecords,
+	                                            SyncRecord after) throws APIException;
+	
 	/**
 	 * Get all SyncRecords in a specific SyncRecordStates
 	 * 
@@ -308,6 +426,24 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public List<SyncRecord> getSyncRecordsBetween(Date from, Date to) throws APIException;
 	
+	/**
+	 * Goes through the SyncRecords with the given states between two timestamps, from oldest to
+	 * newest, giving them to the handler one at a time. The records are read a chunk at a time and
+	 * taken out of the session once handled, so that however many there are, only a chunk is in
+	 * memory at once. Changes the handler makes to the records are saved.
+	 * 
+	 * @param states the states of the records to go through, null for all of them
+	 * @param from Timestamp specifying lower bound, not included. (nullable)
+	 * @param to Timestamp specifying upper bound, included. (nullable)
+	 * @param handler is given each of the records
+	 * @return the number of records handled
+	 * @throws APIException if the handler fails; the records after it are not handled
+	 * @should give the handler each record in the given states from oldest to newest
+	 * @should save the changes the handler makes to the records
+	 */
+	public int processSyncRecords(SyncRecordState[] states, Date from, Date to, SyncRecordHandler handler)
+	    throws APIException;
+	
 	/**
 	 * @param server optional server to restrict this to
 	 * @param from the start date
@@ -320,6 +456,19 @@ public interface SyncService {
 	public Long getCountOfSyncRecords(RemoteServer server, Date from, Date to, SyncRecordState... states)
 	                                                                                                        throws APIException;
 	
+	/**
+	 * Gets how many records are waiting to be sent to the given server, and since when, without
+	 * loading any of them
+	 * 
+	 * @param server the server the records are to be sent to; for the parent these are the records
+	 *            of this server's journal, for other servers their server records
+	 * @return the number and oldest timestamp of the waiting records
+	 * @throws APIException
+	 * @should count the records waiting for a child server
+	 */
+	@Transactional(readOnly = true)
+	public SyncPendingSummary getPendingSummary(RemoteServer server) throws APIException;
+	
 	/**
 	 * Get the most recent sync records
 	 * 
@@ -361,6 +510,25 @@ public interface SyncService {
 	 */
 	public Integer deleteSyncRecords(SyncRecordState[] states, Date to) throws APIException;
 	
+	/**
+	 * Deletes the {@link SyncRecord}s with ids in the given range the way
+	 * {@link #deleteSyncRecords(SyncRecordState[], Date)} does, in a transaction of its own. Used
+	 * to clean up a large journal a chunk at a time.
+	 * 
+	 * @param states the states on {@link SyncServerRecord} to delete (or null if automatic
+	 *            selection should be done)
+	 * @param to the date to delete before
+	 * @param fromRecordId the lowest record id to delete (inclusive)
+	 * @param toRecordId the highest record id to delete (exclusive)
+	 * @param archive receives the deleted rows before they are deleted, may be null
+	 * @return the number of deleted records
+	 * @throws APIException
+	 * @should only delete records within the given range
+	 * @should write the deleted rows to the archive
+	 */
+	public int deleteSyncRecords(SyncRecordState[] states, Date to, int fromRecordId, int toRecordId, SyncArchive archive)
+	    throws APIException;
+	
 	/**
 	 * Retrieve value of given global property using synchronization data access mechanisms.
 	 * 
@@ -590,8 +758,19 @@ public interface SyncService {
 	 * @return
 	 * @throws DAOException
 	 */
+	@Transactional(readOnly = true)
 	public Map<RemoteServer, LinkedHashSet<SyncStatistic>> getSyncStatistics(Date fromDate, Date toDate) throws DAOException;
 	
+	/**
+	 * Counts the records per server and state shown by {@link #getSyncStatistics(Date, Date)} again
+	 * from the journal. These counts are kept up to date as the records change, this fixes any drift.
+	 * The committed watermarks of the servers are worked out again as well.
+	 * 
+	 * @throws APIException
+	 * @should count the records per server and state as the statistics did
+	 */
+	public void rebuildSyncStateCounts() throws APIException;
+	
 	/**
 	 * Gets any type of OpenmrsObject given a class and a UUID
 	 * 
@@ -614,8 +793,8 @@ public interface SyncService {
 	
 	/**
 	 * Dumps the entire database, much like what you'd get from the mysqldump command, and adds a
-	 * few insert lines to set the child's UUID, and delete sync history. This is slightly slower
-	 * than the {@link #generateDataFile()} method but not specific to mysql.
+	 * few insert lines to set the child's UUID, and delete sync history. The tables are read in
+	 * parallel and written as multi-row inserts, see {@link #generateDataFile()}.
 	 * 
 	 * @param uuidForChild if not null, use this as the uuid for the child server, otherwise
 	 *            autogenerate one
@@ -627,23 +806,28 @@ public interface SyncService {
 	public void exportChildDB(String uuidForChild, OutputStream os) throws APIException;
 	
 	/**
-	 * imports a synchronization database backup from the parent
+	 * imports a synchronization database backup from the parent. The inserts are loaded in batches,
+	 * several tables at a time (see {@link SyncConstants#PROPERTY_CLONE_IMPORT_THREADS}), and the
+	 * sync journal is emptied afterwards.
 	 * 
 	 * @throws DAOException
 	 */
 	public void importParentDB(InputStream in) throws APIException;
 	
 	/**
-	 * Dumps the entire database with the mysqldump command to a file.
+	 * Dumps the entire database to a gzipped file, without the sync journal. The dump is made in the
+	 * JVM, reading several tables at a time (see {@link SyncConstants#PROPERTY_CLONE_EXPORT_THREADS}).
 	 * 
-	 * @return the file pointer to the database dump
+	 * @return the file pointer to the database dump, a .sql.gz file
 	 */
 	@Transactional(readOnly = true)
 	public File generateDataFile() throws APIException;
 	
 	/**
-	 * Executes a sql file on the database. <br/>
-	 * The sync global properties and sync records are cleared out after importing the sql.
+	 * Executes a sql file, gzipped or not, on the database the same way as
+	 * {@link #importParentDB(InputStream)}. <br/>
+	 * The sync global properties are kept and the sync journal is cleared out after importing the
+	 * sql.
 	 * 
 	 * @param fileToExec the file to run
 	 * @throws APIException
@@ -706,19 +890,42 @@ public interface SyncService {
 	public void handleInsertSubclassIfNeeded(SyncSubclassStub stub) throws APIException;
 	
 	/**
-	 * This method copies SyncRecords after the given <code>date</code> into SyncServerRecords for the given <code>server</code>.
-	 * This is needed when a server is using data that was copied BEFORE the server was set up in the sync admin pages.
+	 * This method copies the SyncRecords with ids in the given range after the given
+	 * <code>date</code> into SyncServerRecords for the given <code>server</code>, in a transaction
+	 * of its own. This is needed when a server is using data that was copied BEFORE the server was
+	 * set up in the sync admin pages. The server records are created with set-based sql; the whole
+	 * journal is backported a range at a time by
+	 * {@link org.openmrs.module.sync.SyncUtil#backportSyncRecords(RemoteServer, Date)}.
 	 * 
-	 * @param server the server to copy the records tos
+	 * @param server the server to copy the records to
 	 * @param date the exact datetime to start copying records
+	 * @param fromRecordId the lowest record id to copy (inclusive)
+	 * @param toRecordId the highest record id to copy (exclusive)
 	 * @return the number of records changed
+	 * @should create a server record for the records from the given date on
+	 * @should only backport the records within the given range
+	 * @should send the records committed as far as the watermark goes again
 	 */
-	public Integer backportSyncRecords(RemoteServer server, Date date);
+	public int backportSyncRecords(RemoteServer server, Date date, int fromRecordId, int toRecordId)
+	    throws APIException;
+	
+	/**
+	 * @param server the server
+	 * @return the running or last backport to the given server since startup, or null if there was
+	 *         none
+	 */
+	@Transactional(readOnly = true)
+	public BackportProgress getBackportProgress(RemoteServer server);
 
 
     /**
-     * Gets the Most recent successfully committed record
-     * @return record id of the most successful most recent committed record
+     * Gets the Most recent successfully committed record: the last record up to which all records
+     * were committed by the parent, or if there is none by every child (or are not supposed to be
+     * sent to it). Found from the committed watermark of each server rather than the journal.
+     * @return record id of the most successful most recent committed record, -1 if there is none
+     * @see org.openmrs.module.sync.server.RemoteServer#getCommittedWatermark()
+     * @should return the last record up to which all records are committed
+     * @should go back when a record is no longer committed
      */
      @Transactional(readOnly = true)
      public int getMostRecentFullyCommittedRecordId();
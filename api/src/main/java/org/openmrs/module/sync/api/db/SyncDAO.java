@@ -16,6 +16,7 @@ package org.openmrs.module.sync.api.db;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.LinkedHashSet;
@@ -25,10 +26,13 @@ import java.util.Map;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.APIException;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.sync.SyncArchive;
 import org.openmrs.module.sync.SyncClass;
 import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.api.SyncService;
@@ -67,6 +71,41 @@ public interface SyncDAO {
 	
 	public List<SyncRecord> getSyncRecords(String query) throws DAOException;
 	
+	/**
+	 * Gives the records with ids in the given range, created at or after the given date, a server
+	 * record for the given server if they have none, so that they are sent to it
+	 * 
+	 * @param server the server to send the records to
+	 * @param from the date to start from
+	 * @param fromRecordId the lowest record id (inclusive)
+	 * @param toRecordId the highest record id (exclusive)
+	 * @return the number of server records created
+	 * @throws DAOException
+	 */
+	public int backportSyncRecords(RemoteServer server, Date from, int fromRecordId, int toRecordId)
+	    throws DAOException;
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncRecords(String, Integer, Integer)
+	 */
+	public List<SyncRecord> getSyncRecords(String query, Integer firstResult, Integer maxResults) throws DAOException;
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getCountOfSyncRecords(String)
+	 */
+	public Long getCountOfSyncRecords(String query) throws DAOException;
+	
+	/**
+	 * Indexes the records with ids in the given range for searching, replacing what was indexed
+	 * for them before
+	 * 
+	 * @param fromRecordId the lowest record id (inclusive)
+	 * @param toRecordId the highest record id (exclusive)
+	 * @return the number of records indexed
+	 * @throws DAOException
+	 */
+	public int indexSyncRecords(int fromRecordId, int toRecordId) throws DAOException;
+	
 	public SyncRecord getSyncRecord(Integer recordId) throws DAOException;
 	
 	/**
@@ -78,12 +117,69 @@ public interface SyncDAO {
 	
 	public SyncRecord getSyncRecordByOriginalUuid(String originalUuid) throws DAOException;
 	
+	/**
+	 * @param originalUuids the original uuids of the records to look up
+	 * @return original uuid -> record id, for the records that exist
+	 * @throws DAOException
+	 */
+	public Map<String, Integer> getSyncRecordIdsByOriginalUuid(Collection<String> originalUuids) throws DAOException;
+	
+	/**
+	 * Sets the state of the given sync records in one statement, without loading them. Copies of
+	 * the records held by the current session are evicted, so they are read again when needed.
+	 * 
+	 * @param recordIds the ids of the records to update
+	 * @param state the new state
+	 * @param incrementRetryCount true to also increment the retry count of the records
+	 * @return the number of records updated
+	 * @throws DAOException
+	 */
+	public int updateSyncRecordStates(Collection<Integer> recordIds, SyncRecordState state, boolean incrementRetryCount)
+	    throws DAOException;
+	
+	/**
+	 * Sets the state of the server records of the given server and sync records in one statement,
+	 * without loading them. The sync records held by the current session are evicted.
+	 * <p/>
+	 * If the server keeps a record watermark, server records are created for the sync records that
+	 * had none and whose new state differs from what the watermark implies, and committing the
+	 * records right beyond the watermark moves it forward.
+	 * 
+	 * @param server the server the server records belong to
+	 * @param recordIds the ids of the sync records
+	 * @param state the new state
+	 * @param incrementRetryCount true to also increment the retry count of the server records
+	 * @return the number of server records updated
+	 * @throws DAOException
+	 */
+	public int updateSyncServerRecordStates(RemoteServer server, Collection<Integer> recordIds, SyncRecordState state,
+	                                        boolean incrementRetryCount) throws DAOException;
+	
+	/**
+	 * Sets (or clears) the error message of the server records of the given server and sync records
+	 * in one statement
+	 * 
+	 * @param server the server the server records belong to
+	 * @param recordIds the ids of the sync records
+	 * @param errorMessage the error message, null to clear it
+	 * @return the number of server records updated
+	 * @throws DAOException
+	 */
+	public int updateSyncServerRecordErrorMessages(RemoteServer server, Collection<Integer> recordIds,
+	                                               String errorMessage) throws DAOException;
+	
 	/**
 	 * @return SyncRecord The latest SyncRecord or null if not found
 	 * @throws DAOException
 	 */
 	public SyncRecord getLatestRecord() throws DAOException;
 	
+	/**
+	 * @return the highest sync record id, null if there are no sync records
+	 * @throws DAOException
+	 */
+	public Integer getLastSyncRecordId() throws DAOException;
+	
 	/**
 	 * @return The earliest SyncRecord or null if not found
 	 * @throws DAOException
@@ -140,6 +236,13 @@ public interface SyncDAO {
 	 */
 	public SyncImportRecord getSyncImportRecord(String uuid) throws DAOException;
 	
+	/**
+	 * @param uuids the uuids of the SyncImportRecords
+	 * @return map from uuid to state of the existing SyncImportRecords
+	 * @throws DAOException
+	 */
+	public Map<String, SyncRecordState> getSyncImportRecordStates(Collection<String> uuids) throws DAOException;
+	
 	/**
 	 * Get all SyncImportRecords in a specific SyncRecordState
 	 * 
@@ -181,13 +284,28 @@ public interface SyncDAO {
 	 * @param inverse if true, will get all records that DO NOT have the given states
 	 * @param maxSyncRecords if less than 1 will use {@link SyncConstants#PROPERTY_NAME_MAX_RECORDS_DEFAULT
 	 * @param server if not null, will restrict records to only those for the given server (optional)
-	 * @param firstRecordId the id of the first record to return, if null, assumes 0
+	 * @param firstRecordId the id of the first record to return, if null, assumes 0; records after it
+	 *            in the order of the results are returned too
 	 * @return SyncRecord A list containing all SyncRecords with the given states
 	 * @throws DAOException
 	 */
 	public List<SyncRecord> getSyncRecords(SyncRecordState[] states, boolean inverse, Integer maxSyncRecords,
 	                                       RemoteServer server, Integer firstRecordId) throws DAOException;
 	
+	/**
+	 * Get the SyncRecords in specific SyncRecordStates that come after the given record in journal
+	 * order, i.e. by timestamp and then record id
+	 * 
+	 * @param states SyncRecordStates for the SyncRecords to be returned
+	 * @param maxSyncRecords if less than 1 will use {@link SyncConstants#PROPERTY_NAME_MAX_RECORDS_DEFAULT
+	 * @param server if not null, will restrict records to only those for the given server (optional)
+	 * @param after the last record of the previous page, null to start at the beginning
+	 * @return SyncRecord A list containing the next SyncRecords with the given states
+	 * @throws DAOException
+	 */
+	public List<SyncRecord> getSyncRecordsAfter(SyncRecordState[] states, Integer maxSyncRecords, RemoteServer server,
+	                                            SyncRecord after) throws DAOException;
+	
 	/**
 	 * Deletes all sync records that have the given state and are before the given date
 	 * 
@@ -198,6 +316,22 @@ public interface SyncDAO {
 	 */
 	public Integer deleteSyncRecords(SyncRecordState[] states, Date to) throws DAOException;
 	
+	/**
+	 * Deletes the sync records and server records with ids in the given range like
+	 * {@link #deleteSyncRecords(SyncRecordState[], Date)} does, keeping the statements (and the
+	 * locks they take) small on a large journal
+	 * 
+	 * @param states the states to delete
+	 * @param to the date to delete before
+	 * @param fromRecordId the lowest record id to delete (inclusive)
+	 * @param toRecordId the highest record id to delete (exclusive)
+	 * @param archive receives the rows before they are deleted, may be null
+	 * @return the number of sync records deleted
+	 * @throws DAOException
+	 */
+	public int deleteSyncRecords(SyncRecordState[] states, Date to, int fromRecordId, int toRecordId, SyncArchive archive)
+	    throws DAOException;
+	
 	/**
 	 * Get all SyncRecords between two timestamps, including the to-timestamp. <br/>
 	 * If firstRecordId is not null, that is the earliest record returned, only that record and
@@ -216,6 +350,13 @@ public interface SyncDAO {
 	public List<SyncRecord> getSyncRecords(Date from, Date to, Integer firstRecordId, Integer numberToReturn,
 	                                       boolean oldestToNewest) throws DAOException;
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#processSyncRecords(SyncRecordState[], Date, Date,
+	 *      SyncRecordHandler)
+	 */
+	public int processSyncRecords(SyncRecordState[] states, Date from, Date to, SyncRecordHandler handler)
+	    throws DAOException;
+	
 	/**
 	 * Retrieve value of given global property using synchronization data access meachnisms.
 	 * 
@@ -373,6 +514,22 @@ public interface SyncDAO {
 	 */
 	public Map<RemoteServer, LinkedHashSet<SyncStatistic>> getSyncStatistics(Date fromDate, Date toDate) throws DAOException;
 	
+	/**
+	 * Counts the sync records and server records per server and state again, replacing the counts
+	 * kept up to date as they change
+	 * 
+	 * @throws DAOException
+	 */
+	public void rebuildSyncStateCounts() throws DAOException;
+	
+	/**
+	 * Deletes all sync records, their server records and search tokens, and the counts kept of
+	 * them, a table at a time
+	 * 
+	 * @throws DAOException
+	 */
+	public void deleteSyncJournal() throws DAOException;
+	
 	public <T extends OpenmrsObject> T getOpenmrsObjectByUuid(Class<T> clazz, String uuid);
 	
 	/**
@@ -424,9 +581,21 @@ public interface SyncDAO {
 	 */
 	public void importParentDB(InputStream in) throws DAOException;
 	
+	/**
+	 * Dumps the database to the given file as sql, gzipped if the name of the file ends with .gz
+	 * 
+	 * @param outFile the file to write
+	 * @param ignoreTables the tables to leave out
+	 */
 	public void generateDataFile(File outFile, String[] ignoreTables);
 	
-	public void execGeneratedFile(File generatedDataFile);
+	/**
+	 * Runs the sql in the given file, gzipped or not
+	 * 
+	 * @param generatedDataFile the file to run
+	 * @throws DAOException
+	 */
+	public void execGeneratedFile(File generatedDataFile) throws DAOException;
 	
 	/**
 	 * Mimics the hack for saving patients who are already users/persons. For full description of
@@ -437,6 +606,27 @@ public interface SyncDAO {
 	 */
 	public void processSyncSubclassStub(SyncSubclassStub stub);
 	
+	/**
+	 * Same as {@link #processSyncSubclassStub(SyncSubclassStub)} for a number of stubs at once: the
+	 * stub rows are written in one batch per kind of stub, each with a single insert that only adds
+	 * the row if the parent row exists and has no subclass row yet.
+	 * 
+	 * @see SyncSubclassStub
+	 * @param stubs the stubs to process
+	 * @throws DAOException if the rows could not be written
+	 */
+	public void processSyncSubclassStubs(List<SyncSubclassStub> stubs);
+	
+	/**
+	 * Checks whether a subclass row needs to be created for the given stub, i.e. whether the parent
+	 * row exists and has no subclass row yet. Both are checked with a single query.
+	 * 
+	 * @see SyncSubclassStub
+	 * @param stub the stub to check
+	 * @return true if the parent row exists without a matching subclass row
+	 */
+	public boolean isSubclassStubInsertNeeded(SyncSubclassStub stub);
+	
 	/**
 	 * See
 	 * {@link org.openmrs.module.sync.api.SyncIngestService#isConceptIdValidForUuid(int, String)}
@@ -445,6 +635,17 @@ public interface SyncDAO {
 	
 	public Long getCountOfSyncRecords(RemoteServer server, Date from, Date to, SyncRecordState... states);
 	
+	/**
+	 * Counts the records in the given states, and finds the oldest of them, with a single aggregate
+	 * query that does not load any record
+	 * 
+	 * @param server if not null, the states of the server records of this server are looked at
+	 *            rather than the states of the records themselves
+	 * @param states the states of the records that are waiting
+	 * @return the number and oldest timestamp of the matching records
+	 */
+	public SyncPendingSummary getPendingSummary(RemoteServer server, SyncRecordState... states);
+	
 	/**
 	 * @see SyncService#getOlderSyncRecordInState(SyncRecord, EnumSet)
 	 */
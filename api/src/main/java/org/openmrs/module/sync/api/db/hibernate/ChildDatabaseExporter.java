@@ -0,0 +1,637 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Dumps a database as the sql to create a child server from, in the JVM rather than with
+ * mysqldump. The tables are read on several connections at once, each streamed row by row, and
+ * their rows are written as multi-row inserts to a single output as they come; the output can be
+ * compressed by the caller. The inserts of different tables are interleaved, so the structure of
+ * all tables is written first and key checks are off while loading.
+ * <p/>
+ * On mysql the rows are a consistent snapshot: each connection reads in a transaction started
+ * WITH CONSISTENT SNAPSHOT, and with more than one thread the snapshots are all started under a
+ * brief FLUSH TABLES WITH READ LOCK, so that they see the same moment. If the tables cannot be
+ * locked, they are read on a single connection instead. The structure of the tables is only
+ * written for mysql.
+ *
+ * @see org.openmrs.module.sync.api.SyncService#exportChildDB(String, OutputStream)
+ */
+public class ChildDatabaseExporter {
+
+	private static final Log log = LogFactory.getLog(ChildDatabaseExporter.class);
+
+	/**
+	 * Where the exporter gets its connections from, one per thread
+	 */
+	public interface ConnectionSource {
+
+		public Connection getConnection() throws SQLException;
+
+		public void releaseConnection(Connection connection) throws SQLException;
+	}
+
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * The size an insert statement is kept under, well below the 4 MB mysql accepts by default
+	 */
+	public static final int DEFAULT_STATEMENT_SIZE = 1024 * 1024;
+
+	/**
+	 * The number of insert statements waiting to be written before the readers wait
+	 */
+	private static final int QUEUED_STATEMENTS = 32;
+
+	private static final byte[] DONE = new byte[0];
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final ConnectionSource connections;
+
+	private Set<String> tablesToSkip = new HashSet<String>();
+
+	private int threads = DEFAULT_THREADS;
+
+	private int statementSize = DEFAULT_STATEMENT_SIZE;
+
+	public ChildDatabaseExporter(ConnectionSource connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @param tablesToSkip the names of the tables not to dump, in any case
+	 */
+	public void setTablesToSkip(Collection<String> tablesToSkip) {
+		this.tablesToSkip = new HashSet<String>();
+		for (String table : tablesToSkip) {
+			this.tablesToSkip.add(table.trim().toLowerCase());
+		}
+	}
+
+	/**
+	 * @param threads the number of tables read at the same time
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param statementSize the number of characters an insert statement is kept under; a single
+	 *            row longer than that gets a statement of its own
+	 */
+	public void setStatementSize(int statementSize) {
+		this.statementSize = Math.max(1, statementSize);
+	}
+
+	/**
+	 * Writes the structure and the rows of all tables but the skipped ones to the given output, in
+	 * utf-8. The output is neither closed nor flushed.
+	 *
+	 * @param out where to write the sql
+	 * @return the number of rows written
+	 * @throws SQLException if the database could not be read
+	 * @throws IOException if the sql could not be written
+	 */
+	public long export(OutputStream out) throws SQLException, IOException {
+		List<String> tables = new ArrayList<String>();
+		boolean mysql;
+		Connection connection = connections.getConnection();
+		try {
+			DatabaseMetaData metaData = connection.getMetaData();
+			mysql = metaData.getDatabaseProductName().toLowerCase().contains("mysql");
+			ResultSet rs = metaData.getTables(connection.getCatalog(), null, "%", new String[] { "TABLE" });
+			try {
+				while (rs.next()) {
+					String table = rs.getString("TABLE_NAME");
+					if (!tablesToSkip.contains(table.toLowerCase()))
+						tables.add(table);
+				}
+			}
+			finally {
+				rs.close();
+			}
+
+			write(out, getHeader());
+			if (mysql) {
+				for (String table : tables) {
+					write(out, getCreateTable(connection, table));
+				}
+			}
+		}
+		finally {
+			connections.releaseConnection(connection);
+		}
+
+		long rows = exportRows(out, tables, mysql);
+		write(out, getFooter());
+		return rows;
+	}
+
+	/**
+	 * Reads the tables on as many threads as allowed and writes their inserts as they come
+	 */
+	private long exportRows(OutputStream out, List<String> tables, final boolean mysql) throws SQLException,
+	                                                                                   IOException {
+		final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>(tables);
+		final BlockingQueue<byte[]> statements = new ArrayBlockingQueue<byte[]>(QUEUED_STATEMENTS);
+		final AtomicLong rows = new AtomicLong();
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final AtomicBoolean aborted = new AtomicBoolean();
+
+		int readers = Math.max(1, Math.min(threads, tables.size()));
+		Connection lock = null;
+		if (mysql && readers > 1) {
+			lock = lockTables();
+			if (lock == null)
+				readers = 1;
+		}
+		final CountDownLatch snapshots = new CountDownLatch(readers);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(readers);
+		try {
+			for (int i = 0; i < readers; i++) {
+				executor.execute(new Runnable() {
+
+					public void run() {
+						Connection connection = null;
+						Snapshot snapshot = null;
+						try {
+							try {
+								connection = connections.getConnection();
+								if (mysql)
+									snapshot = Snapshot.start(connection);
+							}
+							finally {
+								snapshots.countDown();
+							}
+							String table;
+							while ((table = pending.poll()) != null && errors.isEmpty()) {
+								rows.addAndGet(exportTable(connection, table, mysql, statements));
+							}
+						}
+						catch (Throwable t) {
+							errors.add(t);
+						}
+						finally {
+							try {
+								if (snapshot != null)
+									snapshot.end();
+							}
+							catch (Throwable t) {
+								log.warn("Unable to restore the settings of a connection the database was exported on", t);
+							}
+							try {
+								if (connection != null)
+									connections.releaseConnection(connection);
+							}
+							catch (Throwable t) {
+								log.warn("Unable to release a connection the database was exported on", t);
+							}
+							try {
+								// nobody is waiting for it once writing failed
+								if (!aborted.get())
+									statements.put(DONE);
+							}
+							catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					}
+				});
+			}
+
+			// the writes wait for as long as it takes the readers to start their snapshots
+			snapshots.await();
+			if (lock != null) {
+				unlockTables(lock);
+				lock = null;
+			}
+			
+			int done = 0;
+			while (done < readers) {
+				byte[] statement = statements.take();
+				if (statement == DONE)
+					done++;
+				else
+					out.write(statement);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting the database");
+		}
+		finally {
+			// stops the readers if writing failed, making room for those about to queue anything
+			aborted.set(true);
+			executor.shutdownNow();
+			statements.clear();
+			if (lock != null)
+				unlockTables(lock);
+		}
+
+		if (!errors.isEmpty()) {
+			Throwable error = errors.get(0);
+			if (error instanceof SQLException)
+				throw (SQLException) error;
+			throw (IOException) new IOException("Unable to export the database").initCause(error);
+		}
+		return rows.get();
+	}
+
+	/**
+	 * Reads the rows of the given table, streaming them from the database, and queues them as
+	 * multi-row inserts
+	 *
+	 * @return the number of rows
+	 */
+	private long exportTable(Connection connection, String table, boolean mysql, BlockingQueue<byte[]> statements)
+	                                                                                                      throws Exception {
+		long start = System.currentTimeMillis();
+		Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		long rows = 0;
+		try {
+			if (mysql) {
+				// streams the rows rather than reading the whole table into memory
+				st.setFetchSize(Integer.MIN_VALUE);
+			} else {
+				st.setFetchSize(1000);
+			}
+			ResultSet rs = st.executeQuery("SELECT * FROM " + quote(table, mysql));
+			try {
+				ResultSetMetaData md = rs.getMetaData();
+				int columns = md.getColumnCount();
+				int[] types = new int[columns + 1];
+				for (int i = 1; i <= columns; i++) {
+					types[i] = md.getColumnType(i);
+				}
+
+				String insert = "INSERT INTO " + quote(table, mysql) + " VALUES ";
+				StringBuilder sql = new StringBuilder(Math.min(statementSize, DEFAULT_STATEMENT_SIZE) + 1024);
+				while (rs.next()) {
+					if (sql.length() == 0)
+						sql.append(insert);
+					else
+						sql.append(',');
+					sql.append('(');
+					for (int i = 1; i <= columns; i++) {
+						if (i > 1)
+							sql.append(',');
+						appendValue(sql, rs, i, types[i]);
+					}
+					sql.append(')');
+					rows++;
+
+					if (sql.length() >= statementSize) {
+						statements.put(toStatement(sql));
+						sql.setLength(0);
+					}
+				}
+				if (sql.length() > 0)
+					statements.put(toStatement(sql));
+			}
+			finally {
+				rs.close();
+			}
+		}
+		finally {
+			st.close();
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Exported " + rows + " rows of " + table + " in " + (System.currentTimeMillis() - start) + " ms");
+		return rows;
+	}
+
+	/**
+	 * Keeps the writes to all tables from going on, so that the readers can start their snapshots
+	 * at the same moment
+	 *
+	 * @return the connection holding the lock, or null if the tables could not be locked
+	 */
+	private Connection lockTables() throws SQLException {
+		Connection connection = connections.getConnection();
+		try {
+			execute(connection, "FLUSH TABLES WITH READ LOCK");
+			return connection;
+		}
+		catch (SQLException e) {
+			log.warn("Unable to lock the tables to export them on several connections, reading them on one: "
+			        + e.getMessage());
+			connections.releaseConnection(connection);
+			return null;
+		}
+	}
+
+	private void unlockTables(Connection connection) {
+		try {
+			execute(connection, "UNLOCK TABLES");
+		}
+		catch (SQLException e) {
+			log.warn("Unable to unlock the tables after starting to export them", e);
+		}
+		finally {
+			try {
+				connections.releaseConnection(connection);
+			}
+			catch (SQLException e) {
+				log.warn("Unable to release the connection that locked the tables", e);
+			}
+		}
+	}
+
+	/**
+	 * A transaction reading a mysql connection as of a single moment, with the time zone the dates
+	 * are read in set as in the header; the settings the connection had are restored when it ends
+	 */
+	private static class Snapshot {
+
+		private final Connection connection;
+
+		private final boolean autoCommit;
+
+		private final int isolation;
+
+		private String timeZone;
+
+		private Snapshot(Connection connection) throws SQLException {
+			this.connection = connection;
+			this.autoCommit = connection.getAutoCommit();
+			this.isolation = connection.getTransactionIsolation();
+		}
+
+		public static Snapshot start(Connection connection) throws SQLException {
+			Snapshot ret = new Snapshot(connection);
+			ret.timeZone = setTimeZone(connection, "+00:00");
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			connection.setAutoCommit(false);
+			execute(connection, "START TRANSACTION WITH CONSISTENT SNAPSHOT");
+			return ret;
+		}
+
+		public void end() throws SQLException {
+			try {
+				connection.rollback();
+			}
+			finally {
+				connection.setAutoCommit(autoCommit);
+				connection.setTransactionIsolation(isolation);
+				if (timeZone != null)
+					setTimeZone(connection, timeZone);
+			}
+		}
+	}
+
+	/**
+	 * Sets the time zone of the given mysql connection, so that dates are read as they are written
+	 * (see the header)
+	 *
+	 * @return the time zone it had
+	 */
+	private static String setTimeZone(Connection connection, String timeZone) throws SQLException {
+		Statement st = connection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("SELECT @@session.time_zone");
+			rs.next();
+			String previous = rs.getString(1);
+			rs.close();
+			st.execute("SET TIME_ZONE='" + timeZone.replace("'", "") + "'");
+			return previous;
+		}
+		finally {
+			st.close();
+		}
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		Statement st = connection.createStatement();
+		try {
+			st.execute(sql);
+		}
+		finally {
+			st.close();
+		}
+	}
+
+	private static byte[] toStatement(StringBuilder sql) throws IOException {
+		return sql.append(";\n").toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Appends the value of the given column as a sql literal
+	 */
+	static void appendValue(StringBuilder sql, ResultSet rs, int column, int type) throws SQLException, IOException {
+		switch (type) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT: {
+				long value = rs.getLong(column);
+				if (rs.wasNull())
+					sql.append("NULL");
+				else
+					sql.append(value);
+				break;
+			}
+			case Types.DECIMAL:
+			case Types.NUMERIC: {
+				BigDecimal value = rs.getBigDecimal(column);
+				if (value == null)
+					sql.append("NULL");
+				else
+					sql.append(value.toPlainString());
+				break;
+			}
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE: {
+				double value = rs.getDouble(column);
+				if (rs.wasNull())
+					sql.append("NULL");
+				else
+					sql.append(value);
+				break;
+			}
+			case Types.BIT:
+			case Types.BOOLEAN: {
+				boolean value = rs.getBoolean(column);
+				if (rs.wasNull())
+					sql.append("NULL");
+				else
+					sql.append(value ? '1' : '0');
+				break;
+			}
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB: {
+				InputStream in = rs.getBinaryStream(column);
+				if (in == null)
+					sql.append("NULL");
+				else
+					appendHex(sql, in);
+				break;
+			}
+			default: {
+				// strings, and dates as the database writes them
+				String value = rs.getString(column);
+				if (value == null)
+					sql.append("NULL");
+				else
+					appendString(sql, value);
+			}
+		}
+	}
+
+	/**
+	 * Appends the given text as a quoted sql string, escaped the way mysql reads it
+	 */
+	static void appendString(StringBuilder sql, String value) {
+		sql.append('\'');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case 0:
+					sql.append("\\0");
+					break;
+				case '\n':
+					sql.append("\\n");
+					break;
+				case '\r':
+					sql.append("\\r");
+					break;
+				case '\\':
+					sql.append("\\\\");
+					break;
+				case '\'':
+					sql.append("\\'");
+					break;
+				case '"':
+					sql.append("\\\"");
+					break;
+				case '\032':
+					sql.append("\\Z");
+					break;
+				default:
+					sql.append(c);
+			}
+		}
+		sql.append('\'');
+	}
+
+	/**
+	 * Appends the given bytes as a hexadecimal literal, or an empty string if there are none
+	 */
+	static void appendHex(StringBuilder sql, InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[8192];
+			boolean empty = true;
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				if (read > 0 && empty) {
+					sql.append("0x");
+					empty = false;
+				}
+				for (int i = 0; i < read; i++) {
+					sql.append(HEX[(buffer[i] >> 4) & 0xF]).append(HEX[buffer[i] & 0xF]);
+				}
+			}
+			if (empty)
+				sql.append("''");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static String quote(String table, boolean mysql) {
+		return mysql ? "`" + table + "`" : "\"" + table + "\"";
+	}
+
+	private String getCreateTable(Connection connection, String table) throws SQLException {
+		StringBuilder sql = new StringBuilder();
+		sql.append("\n--\n-- Table structure for table `").append(table).append("`\n--\n");
+		sql.append("DROP TABLE IF EXISTS `").append(table).append("`;\n");
+		Statement st = connection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("SHOW CREATE TABLE `" + table + "`");
+			while (rs.next()) {
+				sql.append(rs.getString(2)).append(";\n");
+			}
+			rs.close();
+		}
+		finally {
+			st.close();
+		}
+		return sql.toString();
+	}
+
+	private static String getHeader() {
+		return "/*!40101 SET @OLD_CHARACTER_SET_CLIENT=@@CHARACTER_SET_CLIENT */;\n"
+		        + "/*!40101 SET @OLD_CHARACTER_SET_RESULTS=@@CHARACTER_SET_RESULTS */;\n"
+		        + "/*!40101 SET @OLD_COLLATION_CONNECTION=@@COLLATION_CONNECTION */;\n"
+		        + "/*!40101 SET NAMES utf8 */;\n"
+		        + "/*!40103 SET @OLD_TIME_ZONE=@@TIME_ZONE */;\n"
+		        + "/*!40103 SET TIME_ZONE='+00:00' */;\n"
+		        + "/*!40014 SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0 */;\n"
+		        + "/*!40014 SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0 */;\n"
+		        + "/*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;\n"
+		        + "/*!40111 SET @OLD_SQL_NOTES=@@SQL_NOTES, SQL_NOTES=0 */;\n";
+	}
+
+	private static String getFooter() {
+		return "\n/*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;\n"
+		        + "/*!40101 SET SQL_MODE=@OLD_SQL_MODE */;\n"
+		        + "/*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;\n"
+		        + "/*!40014 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS */;\n"
+		        + "/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;\n"
+		        + "/*!40101 SET CHARACTER_SET_RESULTS=@OLD_CHARACTER_SET_RESULTS */;\n"
+		        + "/*!40101 SET COLLATION_CONNECTION=@OLD_COLLATION_CONNECTION */;\n"
+		        + "/*!40111 SET SQL_NOTES=@OLD_SQL_NOTES */;\n";
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes("UTF-8"));
+	}
+}
@@ -0,0 +1,689 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Loads a database dump, as written by {@link ChildDatabaseExporter} or mysqldump, into the
+ * database of a child server. The dump is read a statement at a time. The inserts are loaded in
+ * JDBC batches on connections of their own, the rows of different tables at the same time; every
+ * other statement is run on the given connection once the inserts it may depend on are loaded.
+ * <p/>
+ * The session settings at the top of the dump (e.g. turning off the foreign key and unique checks)
+ * are run on every connection, and those at the bottom again when done. On mysql the session
+ * variables these change are put back on every connection afterwards, even if loading fails. Like
+ * mysql -f, a statement that fails is logged and the rest of the dump is still loaded.
+ *
+ * @see org.openmrs.module.sync.api.SyncService#execGeneratedFile(java.io.File)
+ */
+public class ChildDatabaseImporter {
+
+	private static final Log log = LogFactory.getLog(ChildDatabaseImporter.class);
+
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * The number of insert statements sent to the database at a time
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * The number of characters of insert statements after which a batch is sent, whatever its size
+	 */
+	private static final int MAX_BATCH_CHARS = 16 * 1024 * 1024;
+
+	/**
+	 * The number of statements waiting for each loader before reading the dump waits
+	 */
+	private static final int QUEUED_STATEMENTS = 16;
+
+	private final ChildDatabaseExporter.ConnectionSource connections;
+
+	private int threads = DEFAULT_THREADS;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private final AtomicLong executed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	public ChildDatabaseImporter(ChildDatabaseExporter.ConnectionSource connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @param threads the number of tables loaded at the same time
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param batchSize the number of insert statements sent to the database at a time
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @return the number of statements that failed
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Runs the statements of the given dump
+	 *
+	 * @param connection the connection to run the statements other than inserts on
+	 * @param in the dump
+	 * @return the number of statements run successfully
+	 * @throws SQLException if a connection to load the inserts on could not be set up
+	 * @throws IOException if the dump could not be read
+	 */
+	public long importSql(Connection connection, Reader in) throws SQLException, IOException {
+		boolean mysql = connection.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+		StatementReader reader = new StatementReader(in);
+		List<String> setup = new ArrayList<String>();
+		List<String> teardown = new ArrayList<String>();
+		Map<String, Loader> loaderByTable = new HashMap<String, Loader>();
+		List<Loader> loaders = new ArrayList<Loader>();
+
+		SessionVariables saved = mysql ? SessionVariables.save(connection) : null;
+		try {
+			String sql;
+			while ((sql = reader.next()) != null) {
+				// only mysql runs what is in its conditional comments
+				if (sql.startsWith("/*!") && !mysql)
+					continue;
+
+				String table = getInsertTable(sql);
+				if (table != null) {
+					Loader loader = loaderByTable.get(table);
+					if (loader == null) {
+						if (loaders.size() < threads) {
+							Connection loaderConnection = connections.getConnection();
+							try {
+								loader = new Loader(loaderConnection, setup, mysql);
+							}
+							catch (SQLException e) {
+								connections.releaseConnection(loaderConnection);
+								throw e;
+							}
+							loaders.add(loader);
+						} else {
+							// the loader with the fewest tables so far
+							loader = Collections.min(loaders);
+						}
+						loader.tables++;
+						loaderByTable.put(table, loader);
+					}
+					loader.put(sql);
+				} else if (isSkipped(sql)) {
+					continue;
+				} else if (isSessionSetting(sql)) {
+					(loaders.isEmpty() ? setup : teardown).add(sql);
+					execute(connection, sql);
+				} else {
+					// everything but the structure of a table may depend on the rows of any table
+					String created = getCreatedTable(sql);
+					Loader loader = (created == null) ? null : loaderByTable.get(created);
+					if (created == null)
+						waitFor(loaders);
+					else if (loader != null)
+						waitFor(Collections.singletonList(loader));
+					execute(connection, sql);
+				}
+			}
+			waitFor(loaders);
+		}
+		finally {
+			for (Loader loader : loaders) {
+				loader.finish(teardown);
+			}
+			if (saved != null)
+				saved.restore();
+		}
+
+		for (Loader loader : loaders) {
+			if (loader.error != null) {
+				if (loader.error instanceof SQLException)
+					throw (SQLException) loader.error;
+				throw (IOException) new IOException("Unable to load the database").initCause(loader.error);
+			}
+		}
+		return executed.get();
+	}
+
+	private void execute(Connection connection, String sql) {
+		Statement st = null;
+		try {
+			st = connection.createStatement();
+			st.execute(sql);
+			executed.incrementAndGet();
+		}
+		catch (SQLException e) {
+			logFailure(sql, e);
+		}
+		finally {
+			close(st);
+		}
+	}
+
+	private void logFailure(String sql, SQLException e) {
+		failed.incrementAndGet();
+		log.warn("Unable to run " + (sql.length() > 200 ? sql.substring(0, 200) + "..." : sql) + ": " + e.getMessage());
+	}
+
+	private static void close(Statement st) {
+		if (st != null) {
+			try {
+				st.close();
+			}
+			catch (SQLException e) {
+				log.debug("Unable to close the statement", e);
+			}
+		}
+	}
+
+	private static void waitFor(List<Loader> loaders) throws IOException {
+		List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+		for (Loader loader : loaders) {
+			latches.add(loader.flush());
+		}
+		try {
+			for (int i = 0; i < latches.size(); i++) {
+				// a loader that failed does not get to the latch
+				while (!latches.get(i).await(1, TimeUnit.SECONDS) && loaders.get(i).thread.isAlive()) {
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading the database");
+		}
+	}
+
+	/**
+	 * @return the table the given statement inserts into, or null if it is no insert
+	 */
+	static String getInsertTable(String sql) {
+		String rest = skipKeyword(sql, "INSERT");
+		if (rest == null)
+			rest = skipKeyword(sql, "REPLACE");
+		if (rest == null)
+			return null;
+		String ignore = skipKeyword(rest, "IGNORE");
+		if (ignore != null)
+			rest = ignore;
+		rest = skipKeyword(rest, "INTO");
+		return (rest == null) ? null : getIdentifier(rest);
+	}
+
+	/**
+	 * @return the table the given statement creates or drops, or null if it does neither
+	 */
+	static String getCreatedTable(String sql) {
+		String rest = skipKeyword(sql, "CREATE");
+		if (rest == null)
+			rest = skipKeyword(sql, "DROP");
+		if (rest == null || (rest = skipKeyword(rest, "TABLE")) == null)
+			return null;
+		String ifExists = skipKeyword(rest, "IF");
+		if (ifExists != null) {
+			rest = skipKeyword(ifExists, "EXISTS");
+			if (rest == null && (rest = skipKeyword(ifExists, "NOT")) != null)
+				rest = skipKeyword(rest, "EXISTS");
+			if (rest == null)
+				return null;
+		}
+		return getIdentifier(rest);
+	}
+
+	/**
+	 * Table locks would keep the loaders out, and the keys are only turned off for MyISAM tables
+	 */
+	private static boolean isSkipped(String sql) {
+		String upper = sql.toUpperCase();
+		return upper.startsWith("LOCK TABLES") || upper.startsWith("UNLOCK TABLES")
+		        || (upper.startsWith("/*!40000 ALTER TABLE") && upper.contains(" KEYS"));
+	}
+
+	private static boolean isSessionSetting(String sql) {
+		String upper = sql.toUpperCase();
+		return upper.startsWith("SET ") || (upper.startsWith("/*!") && upper.matches("^/\\*!\\d*\\s*SET\\s.*"));
+	}
+
+	/**
+	 * @return what follows the given keyword at the start of the given statement, or null if it
+	 *         does not start with it
+	 */
+	private static String skipKeyword(String sql, String keyword) {
+		int length = keyword.length();
+		if (sql.length() <= length || !sql.regionMatches(true, 0, keyword, 0, length)
+		        || !Character.isWhitespace(sql.charAt(length)))
+			return null;
+		return sql.substring(length).trim();
+	}
+
+	/**
+	 * @return the identifier at the start of the given text, without its quotes, in lower case
+	 */
+	private static String getIdentifier(String text) {
+		if (text.length() == 0)
+			return null;
+		char quote = text.charAt(0);
+		if (quote == '`' || quote == '"') {
+			int end = text.indexOf(quote, 1);
+			return (end < 0) ? null : text.substring(1, end).toLowerCase();
+		}
+		int end = 0;
+		while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_'
+		        || text.charAt(end) == '.' || text.charAt(end) == '$')) {
+			end++;
+		}
+		return (end == 0) ? null : text.substring(0, end).toLowerCase();
+	}
+
+	/**
+	 * Loads the inserts of some of the tables, in batches, on a connection of its own
+	 */
+	private class Loader implements Runnable, Comparable<Loader> {
+
+		private final Connection connection;
+
+		private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUED_STATEMENTS);
+
+		private final Thread thread;
+
+		private final boolean autoCommit;
+
+		private final SessionVariables saved;
+
+		private List<String> batch = new ArrayList<String>();
+
+		private int batchChars = 0;
+
+		private volatile Throwable error;
+
+		private int tables = 0;
+
+		private Loader(Connection connection, List<String> setup, boolean mysql) throws SQLException {
+			this.connection = connection;
+			saved = mysql ? SessionVariables.save(connection) : null;
+			try {
+				runSettings(setup);
+				autoCommit = connection.getAutoCommit();
+				connection.setAutoCommit(false);
+			}
+			catch (SQLException e) {
+				if (saved != null)
+					saved.restore();
+				throw e;
+			}
+			thread = new Thread(this, "Sync database import " + System.identityHashCode(this));
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public int compareTo(Loader other) {
+			return tables - other.tables;
+		}
+
+		/**
+		 * @return a latch released once all statements added so far are loaded
+		 */
+		private CountDownLatch flush() throws IOException {
+			CountDownLatch latch = new CountDownLatch(1);
+			put(latch);
+			return latch;
+		}
+
+		/**
+		 * Loads what is left, runs the given statements and gives the connection back
+		 */
+		private void finish(List<String> teardown) {
+			try {
+				if (thread.isAlive())
+					put(teardown);
+				thread.join();
+			}
+			catch (Exception e) {
+				log.warn("Unable to finish loading the database", e);
+			}
+			finally {
+				try {
+					if (saved != null)
+						saved.restore();
+					connection.setAutoCommit(autoCommit);
+					connections.releaseConnection(connection);
+				}
+				catch (SQLException e) {
+					log.warn("Unable to release the connection", e);
+				}
+			}
+		}
+
+		private void put(Object task) throws IOException {
+			try {
+				// a loader that failed takes nothing any more
+				while (!queue.offer(task, 1, TimeUnit.SECONDS)) {
+					if (!thread.isAlive())
+						return;
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading the database");
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		public void run() {
+			try {
+				while (true) {
+					Object task = queue.take();
+					if (task instanceof String) {
+						batch.add((String) task);
+						batchChars += ((String) task).length();
+						if (batch.size() >= batchSize || batchChars >= MAX_BATCH_CHARS)
+							load();
+					} else if (task instanceof CountDownLatch) {
+						load();
+						((CountDownLatch) task).countDown();
+					} else {
+						load();
+						runSettings((List<String>) task);
+						connection.commit();
+						return;
+					}
+				}
+			}
+			catch (Throwable t) {
+				error = t;
+				log.error("Unable to load the database", t);
+			}
+			finally {
+				queue.clear();
+			}
+		}
+
+		/**
+		 * Runs session settings of the dump again on this connection
+		 */
+		private void runSettings(List<String> settings) {
+			for (String sql : settings) {
+				Statement st = null;
+				try {
+					st = connection.createStatement();
+					st.execute(sql);
+				}
+				catch (SQLException e) {
+					log.debug("Unable to run " + sql + ": " + e.getMessage());
+				}
+				finally {
+					close(st);
+				}
+			}
+		}
+
+		/**
+		 * Sends the batch to the database; if any of it fails, the statements are run one at a time
+		 * so that only those that fail are left out
+		 */
+		private void load() throws SQLException {
+			if (batch.isEmpty())
+				return;
+
+			Statement st = connection.createStatement();
+			try {
+				for (String sql : batch) {
+					st.addBatch(sql);
+				}
+				st.executeBatch();
+				connection.commit();
+				executed.addAndGet(batch.size());
+			}
+			catch (SQLException e) {
+				connection.rollback();
+				for (String sql : batch) {
+					try {
+						st.execute(sql);
+						connection.commit();
+						executed.incrementAndGet();
+					}
+					catch (SQLException failure) {
+						connection.rollback();
+						logFailure(sql, failure);
+					}
+				}
+			}
+			finally {
+				close(st);
+				batch = new ArrayList<String>();
+				batchChars = 0;
+			}
+		}
+	}
+
+	/**
+	 * The session variables of a mysql connection that the settings of a dump change, saved so
+	 * that they can be put back before the connection is used for anything else
+	 */
+	static class SessionVariables {
+
+		private final Connection connection;
+
+		private final int foreignKeyChecks;
+
+		private final int uniqueChecks;
+
+		private final String timeZone;
+
+		private final String sqlMode;
+
+		private SessionVariables(Connection connection, int foreignKeyChecks, int uniqueChecks, String timeZone,
+		    String sqlMode) {
+			this.connection = connection;
+			this.foreignKeyChecks = foreignKeyChecks;
+			this.uniqueChecks = uniqueChecks;
+			this.timeZone = timeZone;
+			this.sqlMode = sqlMode;
+		}
+
+		static SessionVariables save(Connection connection) throws SQLException {
+			Statement st = connection.createStatement();
+			try {
+				ResultSet rs = st.executeQuery("SELECT @@session.foreign_key_checks, @@session.unique_checks,"
+				        + " @@session.time_zone, @@session.sql_mode");
+				try {
+					rs.next();
+					return new SessionVariables(connection, rs.getInt(1), rs.getInt(2), rs.getString(3), rs
+					        .getString(4));
+				}
+				finally {
+					rs.close();
+				}
+			}
+			finally {
+				close(st);
+			}
+		}
+
+		/**
+		 * Sets the variables back to what they were; a failure is only logged
+		 */
+		void restore() {
+			PreparedStatement st = null;
+			try {
+				st = connection.prepareStatement("SET @@session.foreign_key_checks = ?, @@session.unique_checks = ?,"
+				        + " @@session.time_zone = ?, @@session.sql_mode = ?");
+				st.setInt(1, foreignKeyChecks);
+				st.setInt(2, uniqueChecks);
+				st.setString(3, timeZone);
+				st.setString(4, sqlMode);
+				st.execute();
+			}
+			catch (SQLException e) {
+				log.warn("Unable to restore the session variables of a connection the database was loaded on", e);
+			}
+			finally {
+				close(st);
+			}
+		}
+	}
+
+	/**
+	 * Splits sql into statements at the semicolons that are not quoted or in comments. Comments
+	 * are left out, except the conditional comments of mysql, which are statements themselves.
+	 */
+	static class StatementReader {
+
+		private final Reader in;
+
+		private final char[] buffer = new char[65536];
+
+		private int position = 0;
+
+		private int length = 0;
+
+		StatementReader(Reader in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return the next statement, trimmed and without its semicolon, or null at the end
+		 */
+		String next() throws IOException {
+			StringBuilder sql = new StringBuilder();
+			int c;
+			while ((c = read()) >= 0) {
+				if (c == ';') {
+					String statement = sql.toString().trim();
+					if (statement.length() > 0)
+						return statement;
+					sql.setLength(0);
+				} else if (c == '\'' || c == '"' || c == '`') {
+					sql.append((char) c);
+					readQuoted(sql, (char) c);
+				} else if (c == '#' || (c == '-' && peek() == '-' && isWhitespaceOrEnd(peek(1)))) {
+					skipLine();
+					sql.append(' ');
+				} else if (c == '/' && peek() == '*' && peek(1) != '!') {
+					read();
+					skipComment();
+					sql.append(' ');
+				} else {
+					sql.append((char) c);
+				}
+			}
+			String statement = sql.toString().trim();
+			return (statement.length() > 0) ? statement : null;
+		}
+
+		private void readQuoted(StringBuilder sql, char quote) throws IOException {
+			int c;
+			while ((c = read()) >= 0) {
+				sql.append((char) c);
+				if (c == '\\' && quote != '`') {
+					c = read();
+					if (c < 0)
+						return;
+					sql.append((char) c);
+				} else if (c == quote) {
+					// a doubled quote stands for itself
+					if (peek() != quote)
+						return;
+					sql.append((char) read());
+				}
+			}
+		}
+
+		private void skipLine() throws IOException {
+			int c;
+			while ((c = read()) >= 0 && c != '\n') {
+			}
+		}
+
+		private void skipComment() throws IOException {
+			int c;
+			while ((c = read()) >= 0) {
+				if (c == '*' && peek() == '/') {
+					read();
+					return;
+				}
+			}
+		}
+
+		private boolean isWhitespaceOrEnd(int c) {
+			return c < 0 || Character.isWhitespace(c);
+		}
+
+		private int read() throws IOException {
+			if (position >= length && !fill(1))
+				return -1;
+			return buffer[position++];
+		}
+
+		private int peek() throws IOException {
+			return peek(0);
+		}
+
+		private int peek(int ahead) throws IOException {
+			if (position + ahead >= length && !fill(ahead + 1))
+				return -1;
+			return buffer[position + ahead];
+		}
+
+		/**
+		 * Makes sure at least the given number of characters is buffered
+		 *
+		 * @return false if the end comes first
+		 */
+		private boolean fill(int needed) throws IOException {
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, length - position);
+				length -= position;
+				position = 0;
+			}
+			while (length < needed) {
+				int read = in.read(buffer, length, buffer.length - length);
+				if (read < 0)
+					return false;
+				length += read;
+			}
+			return true;
+		}
+	}
+}
@@ -13,66 +13,90 @@
  */
 package org.openmrs.module.sync.api.db.hibernate;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.io.Reader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.CacheMode;
+import org.hibernate.EntityMode;
 import org.hibernate.Criteria;
 import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.Expression;
-import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.PersistenceContext;
 import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.impl.CriteriaImpl;
 import org.hibernate.impl.SessionImpl;
 import org.hibernate.loader.OuterJoinLoader;
 import org.hibernate.loader.criteria.CriteriaLoader;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.persister.entity.OuterJoinLoadable;
 import org.openmrs.GlobalProperty;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.sync.SyncArchive;
 import org.openmrs.module.sync.SyncClass;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncSubclassStub;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
 import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncRecordToken;
+import org.openmrs.module.sync.SyncStateCount;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.api.db.SyncDAO;
@@ -83,7 +107,6 @@ import org.openmrs.module.sync.server.RemoteServerType;
 import org.openmrs.module.sync.server.SyncServerRecord;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
-import org.springframework.util.StringUtils;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
@@ -91,6 +114,38 @@ public class HibernateSyncDAO implements SyncDAO {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * Upper bound for the number of values bound in a single IN clause
+	 */
+	private static final int MAX_PARAMETERS_PER_QUERY = 1000;
+	
+	/**
+	 * The states a server is done with a sync record in, as far as the committed watermark goes
+	 * 
+	 * @see RemoteServer#getCommittedWatermark()
+	 */
+	private static final EnumSet<SyncRecordState> DONE_STATES = EnumSet.of(SyncRecordState.COMMITTED,
+	    SyncRecordState.COMMITTED_AND_CONFIRMATION_SENT, SyncRecordState.ALREADY_COMMITTED,
+	    SyncRecordState.NOT_SUPPOSED_TO_SYNC);
+	
+	/**
+	 * The states that hold the committed watermark of a server back
+	 */
+	private static final EnumSet<SyncRecordState> UNFINISHED_STATES = EnumSet.complementOf(DONE_STATES);
+	
+	/**
+	 * The tables left out of the database of a new child server: the queues and the sync journal
+	 * of this server
+	 */
+	private static final String[] CHILD_TABLES_TO_SKIP = { "hl7_in_archive", "hl7_in_queue", "hl7_in_error",
+	        "formentry_archive", "formentry_queue", "formentry_error", "sync_class", "sync_import", "sync_record",
+	        "sync_record_token", "sync_server", "sync_server_class", "sync_server_record", "sync_state_count" };
+	
+	/**
+	 * The number of records read at a time when going through the journal with a handler
+	 */
+	private static final int PROCESS_CHUNK_SIZE = 100;
+	
 	/**
 	 * Hibernate session factory
 	 */
@@ -119,10 +174,20 @@ public class HibernateSyncDAO implements SyncDAO {
 
 		Session session = sessionFactory.getCurrentSession();
 		try {
+			if (!SyncRecordsInFlight.isTrackingKnown()) {
+				Number kept = (Number) session.createSQLQuery(
+				    "select count(*) from sync_server where record_watermark is not null").uniqueResult();
+				SyncRecordsInFlight.setTracking(kept.intValue() > 0);
+			}
 			session.save(record);
+			SyncRecordsInFlight.recordCreated(record.getRecordId());
+			// this may run after the last flush of the transaction
+			SyncStateCounts.apply(session);
+			saveTokens(record.getRecordId(), SyncRecordToken.getTokens(record));
 		}
 		catch (ConstraintViolationException e) {
 			sessionFactory.getCurrentSession().clear();
+			SyncStateCounts.clear();
 			SyncRecord existingRecord = getSyncRecord(record.getUuid());
 			if (existingRecord != null) {
 				//compare the contents
@@ -140,7 +205,42 @@ public class HibernateSyncDAO implements SyncDAO {
 	 */
 	public void updateSyncRecord(SyncRecord record) throws DAOException {
 		Session session = sessionFactory.getCurrentSession();
+		
+		// only a record or server record that went back from a done state can be below a watermark
+		// it was not below before, so the watermarks are left alone for the usual changes of state
+		Set<Integer> serverIds = new HashSet<Integer>();
+		boolean parent = false;
+		if (record.getRecordId() != null) {
+			// server records not loaded have not been changed either
+			if (record.getServerRecords() != null && Hibernate.isInitialized(record.getServerRecords())) {
+				for (SyncServerRecord serverRecord : record.getServerRecords()) {
+					if (serverRecord.getSyncServer() != null && mayBeReopened(session, serverRecord, serverRecord.getState()))
+						serverIds.add(serverRecord.getSyncServer().getServerId());
+				}
+			}
+			parent = mayBeReopened(session, record, record.getState());
+		}
+		
 		session.saveOrUpdate(record);
+		
+		if (record.getRecordId() != null)
+			lowerCommittedWatermarks(record.getRecordId(), serverIds, parent);
+	}
+	
+	/**
+	 * @param entity a sync record or server record, before it is saved
+	 * @param state its state
+	 * @return true if its state is unfinished and was not known to be before, from when it was
+	 *         loaded or last flushed
+	 */
+	private static boolean mayBeReopened(Session session, Object entity, SyncRecordState state) {
+		if (state == null || !UNFINISHED_STATES.contains(state))
+			return false;
+		EntityEntry entry = ((SessionImplementor) session).getPersistenceContext().getEntry(entity);
+		if (entry == null || entry.getLoadedState() == null)
+			return true; // detached or new, what it was is not known
+		Object previous = entry.getLoadedValue("state");
+		return previous == null || DONE_STATES.contains(previous);
 	}
 	
 	/**
@@ -148,6 +248,8 @@ public class HibernateSyncDAO implements SyncDAO {
 	 */
 	public void deleteSyncRecord(SyncRecord record) throws DAOException {
 		Session session = sessionFactory.getCurrentSession();
+		session.createSQLQuery("delete from sync_record_token where record_id = :recordId").setInteger("recordId",
+		    record.getRecordId()).executeUpdate();
 		session.delete(record);
 	}
 	
@@ -219,6 +321,14 @@ public class HibernateSyncDAO implements SyncDAO {
 		}
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getLastSyncRecordId()
+	 */
+	public Integer getLastSyncRecordId() throws DAOException {
+		return (Integer) sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
+		        .setProjection(Projections.max("recordId")).uniqueResult();
+	}
+	
 	@SuppressWarnings("unchecked")
 	public SyncRecord getEarliestRecord(Date afterDate) throws DAOException {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
@@ -265,15 +375,141 @@ public class HibernateSyncDAO implements SyncDAO {
 		return getSyncRecord((Integer)prevRecordId);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public List<SyncRecord> getSyncRecords(String query) throws DAOException {
-		return sessionFactory
-		        .getCurrentSession()
-		        .createCriteria(SyncRecord.class)
-		        .add(
-		            Expression.or(Restrictions.like("items", query, MatchMode.ANYWHERE),
-		                Restrictions.eq("originalUuid", query))).addOrder(Order.desc("timestamp")).setMaxResults(250) // max number of records returned
-		        .list();
+		return getSyncRecords(query, 0, 250); // max number of records returned
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecords(java.lang.String, java.lang.Integer,
+	 *      java.lang.Integer)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<SyncRecord> getSyncRecords(String query, Integer firstResult, Integer maxResults) throws DAOException {
+		Query idQuery = createSearchQuery(query, "r.record_id", " order by r.timestamp desc, r.record_id desc");
+		if (firstResult != null)
+			idQuery.setFirstResult(firstResult);
+		if (maxResults != null)
+			idQuery.setMaxResults(maxResults);
+		List<Integer> recordIds = new ArrayList<Integer>();
+		for (Number recordId : (List<Number>) idQuery.list()) {
+			recordIds.add(recordId.intValue());
+		}
+		
+		// only the records of the page are loaded, then put back in the order of the page
+		Map<Integer, SyncRecord> records = new HashMap<Integer, SyncRecord>();
+		Session session = sessionFactory.getCurrentSession();
+		for (int from = 0; from < recordIds.size(); from += MAX_PARAMETERS_PER_QUERY) {
+			List<Integer> chunk = recordIds.subList(from, Math.min(from + MAX_PARAMETERS_PER_QUERY, recordIds.size()));
+			for (SyncRecord record : (List<SyncRecord>) session.createCriteria(SyncRecord.class).add(
+			    Restrictions.in("recordId", chunk)).list()) {
+				records.put(record.getRecordId(), record);
+			}
+		}
+		List<SyncRecord> ret = new ArrayList<SyncRecord>(recordIds.size());
+		for (Integer recordId : recordIds) {
+			SyncRecord record = records.get(recordId);
+			if (record != null)
+				ret.add(record);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getCountOfSyncRecords(java.lang.String)
+	 */
+	public Long getCountOfSyncRecords(String query) throws DAOException {
+		Number count = (Number) createSearchQuery(query, "count(*)", "").uniqueResult();
+		return count == null ? 0L : count.longValue();
+	}
+	
+	/**
+	 * Creates a query over the sync_record rows, r, that the given search finds: the records indexed
+	 * by the given token, and those with the given original uuid. The payload of the records that
+	 * are not indexed yet is searched as well, see
+	 * {@link SyncConstants#PROPERTY_SEARCH_INDEX_PENDING_RECORD_ID}; all of them if that is not set.
+	 * Each lookup goes through its own index, and only the ids they find are joined back to
+	 * sync_record.
+	 * 
+	 * @param query the search
+	 * @param select what to select from the rows found
+	 * @param orderBy the order by clause, if any
+	 */
+	private Query createSearchQuery(String query, String select, String orderBy) {
+		Integer pendingRecordId = null;
+		try {
+			pendingRecordId = Integer.valueOf(getGlobalProperty(SyncConstants.PROPERTY_SEARCH_INDEX_PENDING_RECORD_ID));
+		}
+		catch (NumberFormatException e) {
+			log.debug("The records indexed for searching are not known, searching the payload of all of them");
+		}
+		
+		StringBuilder matches = new StringBuilder("select t.record_id from sync_record_token t where t.token = :token");
+		matches.append(" union select o.record_id from sync_record o where o.original_uuid = :query");
+		if (pendingRecordId == null || pendingRecordId > 0) {
+			matches.append(" union select p.record_id from sync_record p where p.payload like :pattern");
+			if (pendingRecordId != null)
+				matches.append(" and p.record_id <= :pendingRecordId");
+		}
+		
+		Query ret = sessionFactory.getCurrentSession().createSQLQuery(
+		    "select " + select + " from (" + matches + ") m join sync_record r on r.record_id = m.record_id" + orderBy);
+		ret.setString("token", SyncRecordToken.normalize(query)).setString("query", query);
+		if (pendingRecordId == null || pendingRecordId > 0)
+			ret.setString("pattern", "%" + query + "%");
+		if (pendingRecordId != null && pendingRecordId > 0)
+			ret.setInteger("pendingRecordId", pendingRecordId);
+		return ret;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#indexSyncRecords(int, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public int indexSyncRecords(int fromRecordId, int toRecordId) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.createSQLQuery("delete from sync_record_token where record_id >= :from and record_id < :to")
+		        .setInteger("from", fromRecordId).setInteger("to", toRecordId).executeUpdate();
+		
+		List<SyncRecord> records = session.createCriteria(SyncRecord.class).add(Restrictions.ge("recordId", fromRecordId))
+		        .add(Restrictions.lt("recordId", toRecordId)).list();
+		for (SyncRecord record : records) {
+			saveTokens(record.getRecordId(), SyncRecordToken.getTokens(record));
+			session.evict(record);
+		}
+		return records.size();
+	}
+	
+	/**
+	 * Indexes the given record by the given tokens
+	 */
+	private void saveTokens(Integer recordId, Set<String> tokens) {
+		if (recordId == null || tokens.isEmpty())
+			return;
+		
+		PreparedStatement ps = null;
+		try {
+			ps = sessionFactory.getCurrentSession().connection().prepareStatement(
+			    "insert into sync_record_token (token, record_id) values (?, ?)");
+			for (String token : tokens) {
+				ps.setString(1, token);
+				ps.setInt(2, recordId);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		catch (SQLException e) {
+			throw new DAOException("Unable to index sync record " + recordId + " for searching", e);
+		}
+		finally {
+			if (ps != null) {
+				try {
+					ps.close();
+				}
+				catch (SQLException e) {
+					log.warn("Unable to close the statement", e);
+				}
+			}
+		}
 	}
 	
 	public SyncRecord getSyncRecord(Integer recordId) throws DAOException {
@@ -289,11 +525,467 @@ public class HibernateSyncDAO implements SyncDAO {
 		        .add(Restrictions.eq("uuid", uuid)).uniqueResult();
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncImportRecordStates(java.util.Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, SyncRecordState> getSyncImportRecordStates(Collection<String> uuids) throws DAOException {
+		Map<String, SyncRecordState> ret = new HashMap<String, SyncRecordState>();
+		List<String> uuidList = new ArrayList<String>(uuids);
+		for (int from = 0; from < uuidList.size(); from += MAX_PARAMETERS_PER_QUERY) {
+			List<String> chunk = uuidList.subList(from, Math.min(from + MAX_PARAMETERS_PER_QUERY, uuidList.size()));
+			List<Object[]> rows = sessionFactory.getCurrentSession().createCriteria(SyncImportRecord.class)
+			        .add(Restrictions.in("uuid", chunk))
+			        .setProjection(Projections.projectionList().add(Projections.property("uuid")).add(Projections.property("state")))
+			        .list();
+			for (Object[] row : rows) {
+				ret.put((String) row[0], (SyncRecordState) row[1]);
+			}
+		}
+		return ret;
+	}
+	
 	public SyncRecord getSyncRecordByOriginalUuid(String originalUuid) throws DAOException {
 		return (SyncRecord) sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
 		        .add(Restrictions.eq("originalUuid", originalUuid)).uniqueResult();
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecordIdsByOriginalUuid(java.util.Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Integer> getSyncRecordIdsByOriginalUuid(Collection<String> originalUuids) throws DAOException {
+		Map<String, Integer> ret = new HashMap<String, Integer>();
+		List<String> uuidList = new ArrayList<String>(originalUuids);
+		for (int from = 0; from < uuidList.size(); from += MAX_PARAMETERS_PER_QUERY) {
+			List<String> chunk = uuidList.subList(from, Math.min(from + MAX_PARAMETERS_PER_QUERY, uuidList.size()));
+			List<Object[]> rows = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
+			        .add(Restrictions.in("originalUuid", chunk))
+			        .setProjection(Projections.projectionList().add(Projections.property("originalUuid")).add(Projections.property("recordId")))
+			        .list();
+			for (Object[] row : rows) {
+				ret.put((String) row[0], (Integer) row[1]);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#updateSyncRecordStates(java.util.Collection,
+	 *      org.openmrs.module.sync.SyncRecordState, boolean)
+	 */
+	public int updateSyncRecordStates(Collection<Integer> recordIds, SyncRecordState state, boolean incrementRetryCount)
+	    throws DAOException {
+		String sql = "update sync_record set state = :state"
+		        + (incrementRetryCount ? ", retry_count = retry_count + 1" : "") + " where record_id in (:recordIds)";
+		countStateChanges(null, recordIds, state);
+		int updated = executeRecordUpdate(sql, null, recordIds, state.name(), null);
+		
+		if (recordIds != null && !recordIds.isEmpty()) {
+			// the states of the sync records are those of the parent
+			if (UNFINISHED_STATES.contains(state)) {
+				lowerCommittedWatermarks(Collections.min(recordIds), Collections.<Integer> emptySet(), true);
+			} else {
+				RemoteServer parent = getParentServer();
+				if (parent != null)
+					advanceCommittedWatermark(parent, true);
+			}
+		}
+		SyncStateCounts.apply(sessionFactory.getCurrentSession());
+		return updated;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#updateSyncServerRecordStates(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.Collection, org.openmrs.module.sync.SyncRecordState, boolean)
+	 */
+	public int updateSyncServerRecordStates(RemoteServer server, Collection<Integer> recordIds, SyncRecordState state,
+	                                        boolean incrementRetryCount) throws DAOException {
+		String sql = "update sync_server_record set state = :state"
+		        + (incrementRetryCount ? ", retry_count = retry_count + 1" : "")
+		        + " where server_id = :serverId and record_id in (:recordIds)";
+		countStateChanges(server, recordIds, state);
+		int updated = executeRecordUpdate(sql, server, recordIds, state.name(), null);
+		
+		if (server.getRecordWatermark() != null && recordIds != null && !recordIds.isEmpty()) {
+			// only new records go without a server record beyond the watermark, so that the retry
+			// count and error message of a record are kept from the first time it is sent on
+			if (state == SyncRecordState.COMMITTED)
+				advanceRecordWatermark(server, recordIds);
+			else if (state != SyncRecordState.NEW)
+				updated += insertServerRecords(server, recordIds, state, incrementRetryCount ? 1 : 0);
+		}
+		if (recordIds != null && !recordIds.isEmpty()) {
+			if (UNFINISHED_STATES.contains(state))
+				lowerCommittedWatermarks(Collections.min(recordIds), Collections.singleton(server.getServerId()), false);
+			else
+				advanceCommittedWatermark(server, true);
+		}
+		SyncStateCounts.apply(sessionFactory.getCurrentSession());
+		return updated;
+	}
+	
+	/**
+	 * Adds the records among the given ones that are about to be moved to the given state to the
+	 * sync state counts: the server records of the given server, or, if none is given, the sync
+	 * records created on this server. Must be called before the update.
+	 * 
+	 * @see SyncStateCounts
+	 */
+	@SuppressWarnings("unchecked")
+	private void countStateChanges(RemoteServer server, Collection<Integer> recordIds, SyncRecordState state) {
+		if (recordIds == null || recordIds.isEmpty())
+			return;
+		
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		
+		String sql = (server == null) ? "select state, count(*) from sync_record where record_id in (:recordIds)"
+		        + " and original_uuid = uuid group by state" : "select state, count(*) from sync_server_record"
+		        + " where server_id = :serverId and record_id in (:recordIds) group by state";
+		Integer serverId = (server == null) ? SyncStateCount.LOCAL_SERVER_ID : server.getServerId();
+		List<Integer> idList = new ArrayList<Integer>(recordIds);
+		for (int from = 0; from < idList.size(); from += MAX_PARAMETERS_PER_QUERY) {
+			Query query = session.createSQLQuery(sql);
+			query.setParameterList("recordIds", idList.subList(from, Math.min(from + MAX_PARAMETERS_PER_QUERY, idList
+			        .size())));
+			if (server != null)
+				query.setInteger("serverId", server.getServerId());
+			for (Object[] row : (List<Object[]>) query.list()) {
+				int count = ((Number) row[1]).intValue();
+				SyncStateCounts.add(serverId, (String) row[0], -count);
+				SyncStateCounts.add(serverId, state.name(), count);
+			}
+		}
+	}
+	
+	/**
+	 * Subtracts the given rows of server id, state and count from the sync state counts
+	 */
+	private static void countDeletes(List<Object[]> rows) {
+		for (Object[] row : rows) {
+			SyncStateCounts.add(((Number) row[0]).intValue(), (String) row[1], -((Number) row[2]).intValue());
+		}
+	}
+	
+	/**
+	 * Moves the watermark of the given server past the given committed records, as far as they
+	 * follow each other. Records that have a server record of their own do not hold the watermark
+	 * back; the committed records it cannot get past are given a server record.
+	 */
+	@SuppressWarnings("unchecked")
+	private void advanceRecordWatermark(RemoteServer server, Collection<Integer> committedIds) {
+		int watermark = server.getRecordWatermark();
+		TreeSet<Integer> committed = new TreeSet<Integer>();
+		for (Integer recordId : committedIds) {
+			if (recordId > watermark)
+				committed.add(recordId);
+		}
+		if (committed.isEmpty())
+			return;
+		
+		// the records beyond the watermark that only the watermark keeps the state of, in id order
+		Session session = sessionFactory.getCurrentSession();
+		List<Number> implied = session.createSQLQuery(
+		    "select s.record_id from sync_record s where s.record_id > :watermark and s.record_id <= :last"
+		            + " and not exists (select 1 from sync_server_record ssr"
+		            + " where ssr.server_id = :serverId and ssr.record_id = s.record_id) order by s.record_id")
+		        .setInteger("watermark", watermark).setInteger("last", committed.last())
+		        .setInteger("serverId", server.getServerId()).setMaxResults(committed.size() + 1).list();
+		
+		// not going past the last committed record: records with lower ids may still be in
+		// transactions that are not committed yet
+		int newWatermark = committed.last();
+		for (Number recordId : implied) {
+			if (!committed.contains(recordId.intValue())) {
+				newWatermark = recordId.intValue() - 1;
+				break;
+			}
+		}
+		// nor past the records this transaction cannot see yet; the committed records beyond keep
+		// a server record until the watermark gets to them
+		SyncRecordsInFlight.setTracking(true);
+		newWatermark = Math.min(newWatermark, SyncRecordsInFlight.getWatermarkLimit());
+		
+		List<Integer> beyond = new ArrayList<Integer>(committed.tailSet(newWatermark, false));
+		insertServerRecords(server, beyond, SyncRecordState.COMMITTED, 0);
+		
+		if (newWatermark > watermark) {
+			// the committed server records up to the watermark say nothing the watermark does not
+			int deleted = session.createSQLQuery(
+			    "delete from sync_server_record where server_id = :serverId and state = :state"
+			            + " and record_id <= :watermark").setInteger("serverId", server.getServerId())
+			        .setString("state", SyncRecordState.COMMITTED.name()).setInteger("watermark", newWatermark)
+			        .executeUpdate();
+			SyncStateCounts.add(server.getServerId(), SyncRecordState.COMMITTED.name(), -deleted);
+			session.createSQLQuery("update sync_server set record_watermark = :watermark where server_id = :serverId")
+			        .setInteger("watermark", newWatermark).setInteger("serverId", server.getServerId()).executeUpdate();
+			server.setRecordWatermark(newWatermark);
+		}
+	}
+	
+	/**
+	 * Creates server records in the given state for those of the given sync records that have none
+	 * for the given server yet
+	 */
+	private int insertServerRecords(RemoteServer server, Collection<Integer> recordIds, SyncRecordState state,
+	                                int retryCount) {
+		String sql = "insert into sync_server_record (server_id, record_id, state, retry_count)"
+		        + " select :serverId, s.record_id, :state, " + retryCount + " from sync_record s"
+		        + " where s.record_id in (:recordIds) and not exists (select 1 from sync_server_record ssr"
+		        + " where ssr.server_id = :serverId and ssr.record_id = s.record_id)";
+		int inserted = executeRecordUpdate(sql, server, recordIds, state.name(), null);
+		SyncStateCounts.add(server.getServerId(), state.name(), inserted);
+		return inserted;
+	}
+	
+	/**
+	 * Works out how far the committed watermark of the given server goes now: up to the record
+	 * before the first one the server is not done with, but not past the last record seen to be
+	 * done, as records with higher ids may still be in transactions that are not committed yet. Only
+	 * the records beyond the stored watermark are looked at, so it never goes back; going back is
+	 * up to {@link #lowerCommittedWatermarks(int, Set, boolean)}.
+	 * 
+	 * @param server a child server, or the parent, whose states are those of the sync records
+	 * @param save true to store the new watermark
+	 * @return the watermark
+	 * @see RemoteServer#getCommittedWatermark()
+	 */
+	private int advanceCommittedWatermark(RemoteServer server, boolean save) {
+		Session session = sessionFactory.getCurrentSession();
+		Number stored = (Number) session.createSQLQuery(
+		    "select committed_watermark from sync_server where server_id = :serverId").setInteger("serverId",
+		    server.getServerId()).uniqueResult();
+		int watermark = (stored == null) ? 0 : stored.intValue();
+		
+		Integer serverId = (server.getServerType() == RemoteServerType.PARENT) ? null : server.getServerId();
+		Integer unfinished = findRecordId(true, serverId, UNFINISHED_STATES, watermark, null);
+		int newWatermark;
+		if (serverId != null && server.getRecordWatermark() != null) {
+			// up to the record watermark the records without a server record are committed, beyond it new
+			newWatermark = server.getRecordWatermark();
+			if (unfinished != null)
+				newWatermark = Math.min(newWatermark, unfinished - 1);
+		} else {
+			// every sync record is in a state, but not every one has a server record
+			Integer done = findRecordId(false, serverId, serverId == null ? null : DONE_STATES, watermark, unfinished);
+			newWatermark = (done == null) ? watermark : done;
+		}
+		newWatermark = Math.max(watermark, newWatermark);
+		
+		if (save && (stored == null || newWatermark > watermark)) {
+			// unless it was lowered meanwhile
+			Query query = session.createSQLQuery(
+			    "update sync_server set committed_watermark = :watermark where server_id = :serverId and "
+			            + (stored == null ? "committed_watermark is null" : "committed_watermark = :stored"))
+			        .setInteger("watermark", newWatermark).setInteger("serverId", server.getServerId());
+			if (stored != null)
+				query.setInteger("stored", watermark);
+			if (query.executeUpdate() > 0)
+				server.setCommittedWatermark(newWatermark);
+		}
+		return newWatermark;
+	}
+	
+	/**
+	 * Finds the lowest or highest id of the records in the given states within the given range,
+	 * one state at a time so that each lookup is a seek on the index of the states
+	 * 
+	 * @param lowest true for the lowest id, false for the highest
+	 * @param serverId the server whose server records are looked at, null for the sync records
+	 * @param states the states, null for any
+	 * @param after the ids to look at are greater than this
+	 * @param before if not null, the ids to look at are less than this
+	 * @return the id, or null if there is no such record
+	 */
+	private Integer findRecordId(boolean lowest, Integer serverId, Set<SyncRecordState> states, int after,
+	                             Integer before) {
+		String sql = "select " + (lowest ? "min" : "max") + "(record_id) from "
+		        + (serverId == null ? "sync_record where" : "sync_server_record where server_id = :serverId and")
+		        + (states == null ? "" : " state = :state and") + " record_id > :after"
+		        + (before == null ? "" : " and record_id < :before");
+		
+		Integer found = null;
+		for (SyncRecordState state : (states == null ? Collections.<SyncRecordState> singleton(null) : states)) {
+			Query query = sessionFactory.getCurrentSession().createSQLQuery(sql).setInteger("after", after);
+			if (serverId != null)
+				query.setInteger("serverId", serverId);
+			if (state != null)
+				query.setString("state", state.name());
+			if (before != null)
+				query.setInteger("before", before);
+			Number recordId = (Number) query.uniqueResult();
+			if (recordId != null && (found == null || (lowest ? recordId.intValue() < found : recordId.intValue() > found)))
+				found = recordId.intValue();
+		}
+		return found;
+	}
+	
+	/**
+	 * Moves the committed watermarks of the given servers back to before the given record, if they
+	 * are past it, as records up to it are no longer done with. The watermarks are read first, as
+	 * they hardly ever need to change.
+	 * 
+	 * @param recordId the lowest id of the records a server is no longer done with
+	 * @param serverIds the ids of the servers
+	 * @param parent true to move the watermark of the parent as well
+	 */
+	@SuppressWarnings("unchecked")
+	private void lowerCommittedWatermarks(int recordId, Set<Integer> serverIds, boolean parent) {
+		if (serverIds.isEmpty() && !parent)
+			return;
+		
+		Session session = sessionFactory.getCurrentSession();
+		List<Object[]> past = session.createSQLQuery(
+		    "select server_id, server_type from sync_server where committed_watermark >= :recordId").setInteger(
+		    "recordId", recordId).list();
+		for (Object[] row : past) {
+			Integer serverId = ((Number) row[0]).intValue();
+			if (serverIds.contains(serverId) || (parent && RemoteServerType.PARENT.name().equals(row[1]))) {
+				session.createSQLQuery(
+				    "update sync_server set committed_watermark = :watermark where server_id = :serverId"
+				            + " and committed_watermark > :watermark").setInteger("watermark", recordId - 1)
+				        .setInteger("serverId", serverId).executeUpdate();
+				RemoteServer server = (RemoteServer) session.get(RemoteServer.class, serverId);
+				if (server != null)
+					server.setCommittedWatermark(recordId - 1);
+			}
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#backportSyncRecords(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.Date, int, int)
+	 */
+	public int backportSyncRecords(RemoteServer server, Date from, int fromRecordId, int toRecordId)
+	    throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		
+		// the records beyond the watermark of the server are waiting to be sent already
+		String sql = "insert into sync_server_record (server_id, record_id, state, retry_count)"
+		        + " select :serverId, s.record_id, :state, 0 from sync_record s"
+		        + " where s.record_id >= :fromRecordId and s.record_id < :toRecordId and s.timestamp >= :from"
+		        + (server.getRecordWatermark() != null ? " and s.record_id <= :watermark" : "")
+		        + " and not exists (select 1 from sync_server_record ssr"
+		        + " where ssr.server_id = :serverId and ssr.record_id = s.record_id)";
+		Query query = session.createSQLQuery(sql).setInteger("serverId", server.getServerId()).setString("state",
+		    SyncRecordState.NEW.name()).setInteger("fromRecordId", fromRecordId).setInteger("toRecordId", toRecordId)
+		        .setTimestamp("from", from);
+		if (server.getRecordWatermark() != null)
+			query.setInteger("watermark", server.getRecordWatermark());
+		int inserted = query.executeUpdate();
+		if (inserted > 0)
+			lowerCommittedWatermarks(fromRecordId, Collections.singleton(server.getServerId()), false);
+		
+		SyncStateCounts.add(server.getServerId(), SyncRecordState.NEW.name(), inserted);
+		SyncStateCounts.apply(session);
+		return inserted;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#updateSyncServerRecordErrorMessages(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.Collection, java.lang.String)
+	 */
+	public int updateSyncServerRecordErrorMessages(RemoteServer server, Collection<Integer> recordIds,
+	                                               String errorMessage) throws DAOException {
+		if (errorMessage != null && server.getRecordWatermark() != null && recordIds != null) {
+			// the new records beyond the watermark need a server record to hold the message; the
+			// records up to it are committed
+			List<Integer> beyond = new ArrayList<Integer>();
+			for (Integer recordId : recordIds) {
+				if (recordId > server.getRecordWatermark())
+					beyond.add(recordId);
+			}
+			insertServerRecords(server, beyond, SyncRecordState.NEW, 0);
+		}
+		String sql = "update sync_server_record set error_message = :errorMessage"
+		        + " where server_id = :serverId and record_id in (:recordIds)";
+		return executeRecordUpdate(sql, server, recordIds, null, errorMessage);
+	}
+	
+	/**
+	 * Runs one of the set-based updates of sync_record or sync_server_record, at most
+	 * {@link #MAX_PARAMETERS_PER_QUERY} record ids at a time. Pending changes are flushed first, and
+	 * the affected records are evicted from the session afterwards, so that neither the update nor
+	 * the session overwrite the other.
+	 */
+	private int executeRecordUpdate(String sql, RemoteServer server, Collection<Integer> recordIds, String state,
+	                                String errorMessage) {
+		if (recordIds == null || recordIds.isEmpty())
+			return 0;
+		
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		
+		int updated = 0;
+		List<Integer> idList = new ArrayList<Integer>(recordIds);
+		for (int from = 0; from < idList.size(); from += MAX_PARAMETERS_PER_QUERY) {
+			List<Integer> chunk = idList.subList(from, Math.min(from + MAX_PARAMETERS_PER_QUERY, idList.size()));
+			Query query = session.createSQLQuery(sql);
+			query.setParameterList("recordIds", chunk);
+			if (server != null)
+				query.setInteger("serverId", server.getServerId());
+			if (state != null)
+				query.setString("state", state);
+			else
+				query.setString("errorMessage", errorMessage);
+			updated += query.executeUpdate();
+		}
+		
+		evictSyncRecords(idList, server);
+		return updated;
+	}
+	
+	/**
+	 * Evicts the given sync records, with their server records, from the current session, if they
+	 * are in it. Server records that were loaded on their own are evicted too.
+	 * 
+	 * @param recordIds the ids of the records
+	 * @param server the server whose server records to evict, null for those of all servers
+	 */
+	@SuppressWarnings("unchecked")
+	private void evictSyncRecords(List<Integer> recordIds, RemoteServer server) {
+		SessionImplementor session = (SessionImplementor) sessionFactory.getCurrentSession();
+		PersistenceContext context = session.getPersistenceContext();
+		
+		// collect first: evicting a record cascades to its server records
+		List<Object> toEvict = new ArrayList<Object>();
+		addLoadedEntities(context, SyncRecord.class, recordIds, toEvict);
+		String sql = "select server_record_id from sync_server_record where record_id in (:recordIds)"
+		        + (server != null ? " and server_id = :serverId" : "");
+		for (int from = 0; from < recordIds.size(); from += MAX_PARAMETERS_PER_QUERY) {
+			Query query = sessionFactory.getCurrentSession().createSQLQuery(sql).setParameterList("recordIds",
+			    recordIds.subList(from, Math.min(from + MAX_PARAMETERS_PER_QUERY, recordIds.size())));
+			if (server != null)
+				query.setInteger("serverId", server.getServerId());
+			List<Integer> serverRecordIds = new ArrayList<Integer>();
+			for (Number serverRecordId : (List<Number>) query.list()) {
+				serverRecordIds.add(serverRecordId.intValue());
+			}
+			addLoadedEntities(context, SyncServerRecord.class, serverRecordIds, toEvict);
+		}
+		
+		for (Object entity : toEvict) {
+			sessionFactory.getCurrentSession().evict(entity);
+		}
+	}
+	
+	/**
+	 * Adds the entities of the given class and ids that are in the given persistence context to the
+	 * given list, without loading any that are not.
+	 */
+	private void addLoadedEntities(PersistenceContext context, Class<?> entityClass, List<Integer> ids,
+	                               List<Object> entities) {
+		EntityPersister persister = ((SessionFactoryImplementor) sessionFactory).getEntityPersister(entityClass
+		        .getName());
+		for (Integer id : ids) {
+			Object entity = context.getEntity(new EntityKey(id, persister, EntityMode.POJO));
+			if (entity != null)
+				entities.add(entity);
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncImportRecord(java.lang.String)
 	 */
@@ -334,30 +1026,57 @@ public class HibernateSyncDAO implements SyncDAO {
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecords(org.openmrs.module.sync.SyncRecordState[],
 	 *      boolean, java.lang.Integer, org.openmrs.module.sync.server.RemoteServer, java.lang.Integer)
 	 */
-	@SuppressWarnings("unchecked")
 	public List<SyncRecord> getSyncRecords(SyncRecordState[] states, boolean inverse, Integer maxSyncRecords,
 	                                       RemoteServer server, Integer firstRecordId) throws DAOException {
+		Criterion position = null;
+		if (firstRecordId != null)
+			position = getJournalPosition("s.", firstRecordId, getSyncRecordTimestamp(firstRecordId), true, true);
+		return getSyncRecords(states, inverse, maxSyncRecords, server, position);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecordsAfter(org.openmrs.module.sync.SyncRecordState[],
+	 *      java.lang.Integer, org.openmrs.module.sync.server.RemoteServer,
+	 *      org.openmrs.module.sync.SyncRecord)
+	 */
+	public List<SyncRecord> getSyncRecordsAfter(SyncRecordState[] states, Integer maxSyncRecords, RemoteServer server,
+	                                            SyncRecord after) throws DAOException {
+		Criterion position = null;
+		if (after != null)
+			position = getJournalPosition("s.", after.getRecordId(), after.getTimestamp(), true, false);
+		return getSyncRecords(states, false, maxSyncRecords, server, position);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<SyncRecord> getSyncRecords(SyncRecordState[] states, boolean inverse, Integer maxSyncRecords,
+	                                        RemoteServer server, Criterion position) throws DAOException {
 		if (maxSyncRecords == null) {
 			maxSyncRecords = Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT);
 		}
 		
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class, "s");
 		
-		String column = "s.state";
-		
-		if (server != null) {
-			criteria = criteria.createCriteria("serverRecords", "sr");
-			criteria.add(Restrictions.eq("sr.syncServer", server));
-			column = "sr.state";
+		if (server != null && server.getRecordWatermark() != null) {
+			criteria.add(getWatermarkStates(server, states, inverse));
+		} else {
+			String column = "s.state";
+			
+			if (server != null) {
+				// filtered on the sync_server_record (server_id, state, record_id) index; the records found
+				// are still sorted by timestamp afterwards
+				criteria = criteria.createCriteria("serverRecords", "sr");
+				criteria.add(Restrictions.eq("sr.syncServer", server));
+				column = "sr.state";
+			}
+			
+			if (inverse)
+				criteria.add(Restrictions.not(Restrictions.in(column, states)));
+			else
+				criteria.add(Restrictions.in(column, states));
 		}
 		
-		if (inverse)
-			criteria.add(Restrictions.not(Restrictions.in(column, states)));
-		else
-			criteria.add(Restrictions.in(column, states));
-		
-		if (firstRecordId != null)
-			criteria.add(Restrictions.ge("s.recordId", firstRecordId));
+		if (position != null)
+			criteria.add(position);
 		
 		criteria.addOrder(Order.asc("s.timestamp"));
 		criteria.addOrder(Order.asc("s.recordId"));
@@ -369,6 +1088,82 @@ public class HibernateSyncDAO implements SyncDAO {
 		return criteria.list();
 	}
 	
+	/**
+	 * Restricts a query on sync records aliased "s" to those in (or, if inverse, not in) the given
+	 * states for a server that keeps a record watermark: the records with a server record of their
+	 * own in these states, and the records without one if the state the watermark implies for them
+	 * is.
+	 * 
+	 * @see RemoteServer#getRecordWatermark()
+	 */
+	private static Criterion getWatermarkStates(RemoteServer server, SyncRecordState[] states, boolean inverse) {
+		List<SyncRecordState> stateList = Arrays.asList(states);
+		Criterion stored = Restrictions.in("ssr.state", states);
+		if (inverse)
+			stored = Restrictions.not(stored);
+		
+		Disjunction ret = Restrictions.disjunction();
+		ret.add(Subqueries.exists(getServerRecordQuery(server).add(stored)));
+		
+		// beyond the watermark the records are new, up to it committed
+		boolean beyond = stateList.contains(SyncRecordState.NEW) != inverse;
+		boolean upTo = stateList.contains(SyncRecordState.COMMITTED) != inverse;
+		Criterion implied = Subqueries.notExists(getServerRecordQuery(server));
+		if (beyond && upTo)
+			ret.add(implied);
+		else if (beyond)
+			ret.add(Restrictions.and(Restrictions.gt("s.recordId", server.getRecordWatermark()), implied));
+		else if (upTo)
+			ret.add(Restrictions.and(Restrictions.le("s.recordId", server.getRecordWatermark()), implied));
+		return ret;
+	}
+	
+	/**
+	 * @return a subquery for the server record of the given server and the sync record aliased "s"
+	 */
+	private static DetachedCriteria getServerRecordQuery(RemoteServer server) {
+		return DetachedCriteria.forClass(SyncServerRecord.class, "ssr").add(
+		    Restrictions.eqProperty("ssr.syncRecord.recordId", "s.recordId")).add(Restrictions.eq("ssr.syncServer", server))
+		        .setProjection(Projections.id());
+	}
+	
+	/**
+	 * Restricts a query ordered by timestamp and record id to the records from the given position
+	 * on, i.e. a keyset cursor: unlike an offset, it does not get slower the further into the
+	 * journal it is, and records created meanwhile do not shift the pages.
+	 * 
+	 * @param prefix the alias of the sync record with a trailing dot, or the empty string
+	 * @param recordId the id of the record at the position
+	 * @param timestamp the timestamp of that record, null if it no longer exists; the position is
+	 *            then only given by the id
+	 * @param ascending true if the query is ordered from oldest to newest
+	 * @param inclusive true to include the record at the position itself
+	 */
+	private static Criterion getJournalPosition(String prefix, Integer recordId, Date timestamp, boolean ascending,
+	                                            boolean inclusive) {
+		String id = prefix + "recordId";
+		Criterion sameTimestamp;
+		if (ascending)
+			sameTimestamp = inclusive ? Restrictions.ge(id, recordId) : Restrictions.gt(id, recordId);
+		else
+			sameTimestamp = inclusive ? Restrictions.le(id, recordId) : Restrictions.lt(id, recordId);
+		if (timestamp == null)
+			return sameTimestamp;
+		
+		String time = prefix + "timestamp";
+		Criterion otherTimestamp = ascending ? Restrictions.gt(time, timestamp) : Restrictions.lt(time, timestamp);
+		return Restrictions.or(otherTimestamp, Restrictions.and(Restrictions.eq(time, timestamp), sameTimestamp));
+	}
+	
+	/**
+	 * @return the timestamp of the given record, null if there is no such record
+	 */
+	private Date getSyncRecordTimestamp(Integer recordId) {
+		return (Date) sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
+		        .add(Restrictions.eq("recordId", recordId)).setProjection(Projections.property("timestamp"))
+		        .uniqueResult();
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#deleteSyncRecords(org.openmrs.module.sync.SyncRecordState[],
 	 *      java.util.Date)
@@ -384,26 +1179,136 @@ public class HibernateSyncDAO implements SyncDAO {
 		String[] syncServerStates = new String[] { SyncRecordState.NOT_SUPPOSED_TO_SYNC.name(),
 		        SyncRecordState.COMMITTED.name() };
 		
+		sessionFactory.getCurrentSession().flush();
+		
 		// delete all rows in sync_server_id that are of the right state and are old
-		Query deleteSSRQuery = sessionFactory
-		        .getCurrentSession()
-		        .createSQLQuery(
-		            "delete from sync_server_record where state in (:states) and (select timestamp from sync_record sr where sr.record_id = sync_server_record.record_id) < :to");
+		String serverRecords = " from sync_server_record where state in (:states) and (select timestamp from sync_record sr where sr.record_id = sync_server_record.record_id) < :to";
+		countDeletes(sessionFactory.getCurrentSession().createSQLQuery(
+		    "select server_id, state, count(*)" + serverRecords + " group by server_id, state").setParameterList("states",
+		    syncServerStates).setDate("to", to).list());
+		Query deleteSSRQuery = sessionFactory.getCurrentSession().createSQLQuery("delete" + serverRecords);
 		deleteSSRQuery.setParameterList("states", syncServerStates);
 		deleteSSRQuery.setDate("to", to);
 		Integer quantityDeleted = deleteSSRQuery.executeUpdate(); // this quantity isn't really used
 		
 		// if a sync_record now has zero sync_record_server rows, then that means all
 		// the rows were deleted in the previous query and so the sync_record can also be deleted
-		Query deleteQuery = sessionFactory
-		        .getCurrentSession()
-		        .createSQLQuery(
-		            "delete from sync_record where (select count(*) from sync_server_record ssr where ssr.record_id = sync_record.record_id) = 0 and sync_record.timestamp <= :to and sync_record.state in (:states)");
+		// servers keeping a record watermark have no server records for the records beyond it
+		String records = " from sync_record where (select count(*) from sync_server_record ssr where ssr.record_id = sync_record.record_id) = 0 and sync_record.timestamp <= :to and sync_record.state in (:states)"
+		        + " and not exists (select 1 from sync_server ss where ss.record_watermark < sync_record.record_id)";
+		countDeletes(sessionFactory.getCurrentSession().createSQLQuery(
+		    "select " + SyncStateCount.LOCAL_SERVER_ID + ", state, count(*)" + records
+		            + " and original_uuid = uuid group by state").setDate("to", to).setParameterList("states", stateStrings)
+		        .list());
+		Query deleteQuery = sessionFactory.getCurrentSession().createSQLQuery("delete" + records);
 		deleteQuery.setDate("to", to);
 		deleteQuery.setParameterList("states", stateStrings);
 		quantityDeleted = deleteQuery.executeUpdate();
 		
-		return quantityDeleted;
+		sessionFactory.getCurrentSession().createSQLQuery(
+		    "delete from sync_record_token where not exists (select 1 from sync_record sr"
+		            + " where sr.record_id = sync_record_token.record_id)").executeUpdate();
+		
+		SyncStateCounts.apply(sessionFactory.getCurrentSession());
+		return quantityDeleted;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#deleteSyncRecords(org.openmrs.module.sync.SyncRecordState[],
+	 *      java.util.Date, int, int, org.openmrs.module.sync.SyncArchive)
+	 */
+	public int deleteSyncRecords(SyncRecordState[] states, Date to, int fromRecordId, int toRecordId, SyncArchive archive)
+	    throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		Object[] parameters = new Object[] { fromRecordId, toRecordId, new Timestamp(to.getTime()) };
+		
+		// as in deleteSyncRecords(SyncRecordState[], Date), without the correlated count over the whole journal
+		String serverRecords = " from sync_server_record where record_id >= ? and record_id < ?"
+		        + " and (select timestamp from sync_record sr where sr.record_id = sync_server_record.record_id) < ?"
+		        + " and state in "
+		        + getStateList(new SyncRecordState[] { SyncRecordState.NOT_SUPPOSED_TO_SYNC, SyncRecordState.COMMITTED });
+		archiveRows(archive, "sync_server_record", serverRecords, parameters);
+		countDeletes(select("select server_id, state, count(*)" + serverRecords + " group by server_id, state",
+		    parameters));
+		executeDelete("delete" + serverRecords, parameters);
+		
+		String records = " from sync_record where record_id >= ? and record_id < ? and timestamp <= ?"
+		        + " and state in " + getStateList(states)
+		        + " and not exists (select 1 from sync_server_record ssr where ssr.record_id = sync_record.record_id)"
+		        + " and not exists (select 1 from sync_server ss where ss.record_watermark < sync_record.record_id)";
+		archiveRows(archive, "sync_record", records, parameters);
+		countDeletes(select("select " + SyncStateCount.LOCAL_SERVER_ID + ", state, count(*)" + records
+		        + " and original_uuid = uuid group by state", parameters));
+		int deleted = executeDelete("delete" + records, parameters);
+		executeDelete("delete from sync_record_token where record_id >= ? and record_id < ?"
+		        + " and not exists (select 1 from sync_record sr where sr.record_id = sync_record_token.record_id)",
+		    new Object[] { fromRecordId, toRecordId });
+		SyncStateCounts.apply(session);
+		return deleted;
+	}
+	
+	/**
+	 * @return the names of the given states as an SQL list, e.g. ('NEW', 'SENT')
+	 */
+	private static String getStateList(SyncRecordState[] states) {
+		StringBuilder ret = new StringBuilder("(");
+		for (int i = 0; i < states.length; i++) {
+			if (i > 0)
+				ret.append(", ");
+			ret.append('\'').append(states[i].name()).append('\'');
+		}
+		return ret.append(")").toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<Object[]> select(String sql, Object[] parameters) {
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(sql);
+		for (int i = 0; i < parameters.length; i++) {
+			query.setParameter(i, parameters[i]);
+		}
+		return query.list();
+	}
+	
+	private int executeDelete(String sql, Object[] parameters) {
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(sql);
+		for (int i = 0; i < parameters.length; i++) {
+			query.setParameter(i, parameters[i]);
+		}
+		return query.executeUpdate();
+	}
+	
+	/**
+	 * Writes the rows selected by the given from and where clauses to the given archive, if any
+	 */
+	private void archiveRows(SyncArchive archive, String table, String fromAndWhere, Object[] parameters) {
+		if (archive == null)
+			return;
+		
+		PreparedStatement ps = null;
+		try {
+			ps = sessionFactory.getCurrentSession().connection().prepareStatement("select *" + fromAndWhere);
+			for (int i = 0; i < parameters.length; i++) {
+				ps.setObject(i + 1, parameters[i]);
+			}
+			ResultSet rs = ps.executeQuery();
+			archive.write(table, rs);
+			rs.close();
+			archive.flush();
+		}
+		catch (Exception e) {
+			throw new DAOException("Unable to archive the rows of " + table + " before deleting them", e);
+		}
+		finally {
+			if (ps != null) {
+				try {
+					ps.close();
+				}
+				catch (SQLException e) {
+					log.warn("Unable to close the statement", e);
+				}
+			}
+		}
 	}
 	
 	/**
@@ -424,16 +1329,14 @@ public class HibernateSyncDAO implements SyncDAO {
 		if (numberToReturn != null)
 			criteria.setMaxResults(numberToReturn);
 		
+		if (firstRecordId != null)
+			criteria.add(getJournalPosition("", firstRecordId, getSyncRecordTimestamp(firstRecordId), oldestToNewest,
+			    true));
+		
 		if (oldestToNewest) {
-			if (firstRecordId != null)
-				criteria.add(Restrictions.ge("recordId", firstRecordId));
-			
 			criteria.addOrder(Order.asc("timestamp"));
 			criteria.addOrder(Order.asc("recordId"));
 		} else {
-			if (firstRecordId != null)
-				criteria.add(Restrictions.le("recordId", firstRecordId));
-			
 			criteria.addOrder(Order.desc("timestamp"));
 			criteria.addOrder(Order.desc("recordId"));
 		}
@@ -441,6 +1344,67 @@ public class HibernateSyncDAO implements SyncDAO {
 		return criteria.list();
 	}
 	
+	/**
+	 * Each chunk is scrolled through rather than listed, so its records are only loaded as they are
+	 * handled, and the next chunk starts after the last record of the previous one rather than at an
+	 * offset. The handler may run queries of its own while a chunk is read.
+	 * 
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#processSyncRecords(org.openmrs.module.sync.SyncRecordState[],
+	 *      java.util.Date, java.util.Date, org.openmrs.module.sync.SyncRecordHandler)
+	 */
+	public int processSyncRecords(SyncRecordState[] states, Date from, Date to, SyncRecordHandler handler)
+	    throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		List<SyncRecord> chunk = new ArrayList<SyncRecord>(PROCESS_CHUNK_SIZE);
+		SyncRecord last = null;
+		int processed = 0;
+		do {
+			Criteria criteria = session.createCriteria(SyncRecord.class);
+			if (states != null)
+				criteria.add(Restrictions.in("state", states));
+			if (from != null)
+				criteria.add(Restrictions.gt("timestamp", from));
+			if (to != null)
+				criteria.add(Restrictions.le("timestamp", to));
+			if (last != null)
+				criteria.add(getJournalPosition("", last.getRecordId(), last.getTimestamp(), true, false));
+			criteria.addOrder(Order.asc("timestamp")).addOrder(Order.asc("recordId"));
+			criteria.setMaxResults(PROCESS_CHUNK_SIZE).setFetchSize(PROCESS_CHUNK_SIZE).setCacheMode(CacheMode.IGNORE);
+			
+			chunk.clear();
+			ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				while (results.next()) {
+					SyncRecord record = (SyncRecord) results.get(0);
+					chunk.add(record);
+					try {
+						handler.handle(record);
+					}
+					catch (RuntimeException e) {
+						throw e;
+					}
+					catch (Exception e) {
+						throw new DAOException("Unable to process sync record " + record.getRecordId(), e);
+					}
+					processed++;
+				}
+			}
+			finally {
+				results.close();
+			}
+			
+			// the changes made by the handler are saved before the chunk leaves the session
+			session.flush();
+			for (SyncRecord record : chunk) {
+				session.evict(record);
+			}
+			if (!chunk.isEmpty())
+				last = chunk.get(chunk.size() - 1);
+		} while (chunk.size() == PROCESS_CHUNK_SIZE);
+		
+		return processed;
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getGlobalProperty(String propertyName)
 	 */
@@ -487,6 +1451,8 @@ public class HibernateSyncDAO implements SyncDAO {
 	 */
 	public RemoteServer saveRemoteServer(RemoteServer server) throws DAOException {
 		Session session = sessionFactory.getCurrentSession();
+		if (server.getRecordWatermark() != null)
+			SyncRecordsInFlight.setTracking(true);
 		return (RemoteServer) session.merge(server);
 	}
 	
@@ -663,501 +1629,227 @@ public class HibernateSyncDAO implements SyncDAO {
 		
 		Map<RemoteServer, LinkedHashSet<SyncStatistic>> map = new HashMap<RemoteServer, LinkedHashSet<SyncStatistic>>();
 		
-		String hqlChild = "select rs.nickname, ssr.state, count(*) " + "from RemoteServer rs join rs.serverRecords as ssr "
-		        + "where rs.serverId = :server_id and ssr.state  <> '" + SyncRecordState.NOT_SUPPOSED_TO_SYNC.toString()
-		        + "' " + "group by rs.nickname, ssr.state " + "order by nickname, state";
-		
-		String hqlParent = "select count(*) from SyncRecord where originalUuid = uuid and state <> '"
-		        + SyncRecordState.COMMITTED.toString() + "' and state <> '"
-		        + SyncRecordState.NOT_SUPPOSED_TO_SYNC.toString() + "'";
+		Session session = sessionFactory.getCurrentSession();
 		
-		//for each server configured, get its stats
+		//for each server configured, get its stats, as kept up to date in sync_state_count, whose
+		//rows are summed per state
 		for (RemoteServer r : servers) {
+			LinkedHashSet<SyncStatistic> props = new LinkedHashSet<SyncStatistic>();
 			if (r.getServerType() == RemoteServerType.CHILD) {
-				Query q = sessionFactory.getCurrentSession().createQuery(hqlChild);
-				q.setParameter("server_id", r.getServerId());
-				List<Object[]> rows = q.list();
-				LinkedHashSet<SyncStatistic> props = new LinkedHashSet<SyncStatistic>();
-				for (Object[] row : rows) {
-					SyncStatistic stat = new SyncStatistic(SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE, row[1].toString(),
-					        row[2]); //state/count
+				List<Object[]> counts = session.createCriteria(SyncStateCount.class).add(
+				    Restrictions.eq("serverId", r.getServerId())).add(
+				    Restrictions.ne("state", SyncRecordState.NOT_SUPPOSED_TO_SYNC.name())).setProjection(
+				    Projections.projectionList().add(Projections.groupProperty("state")).add(
+				        Projections.sum("recordCount"))).addOrder(Order.asc("state")).list();
+				for (Object[] row : counts) {
+					if (row[1] == null || ((Number) row[1]).longValue() <= 0)
+						continue;
+					SyncStatistic stat = new SyncStatistic(SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE, row[0].toString(),
+					        ((Number) row[1]).longValue()); //state/count
 					props.add(stat);
 				}
-				map.put(r, props);
 			} else {
 				//for parent servers, get the number of records in sync record
-				Query q = sessionFactory.getCurrentSession().createQuery(hqlParent);
-				Long count = (Long) q.uniqueResult();
-				LinkedHashSet<SyncStatistic> props = new LinkedHashSet<SyncStatistic>();
-				if (count != null) {
-					props.add(new SyncStatistic(SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE, "AWAITING", count)); //count
-				}
-				map.put(r, props);
+				Number count = (Number) session.createCriteria(SyncStateCount.class).add(
+				    Restrictions.eq("serverId", SyncStateCount.LOCAL_SERVER_ID)).add(
+				    Restrictions.not(Restrictions.in("state", new String[] { SyncRecordState.COMMITTED.name(),
+				            SyncRecordState.NOT_SUPPOSED_TO_SYNC.name() }))).setProjection(Projections.sum("recordCount"))
+				        .uniqueResult();
+				props.add(new SyncStatistic(SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE, "AWAITING",
+				        count == null ? 0L : count.longValue())); //count
 			}
+			map.put(r, props);
 		}
 		
 		return map;
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#rebuildSyncStateCounts()
+	 */
+	public void rebuildSyncStateCounts() throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		SyncStateCounts.clear();
+		
+		session.createSQLQuery("delete from sync_state_count").executeUpdate();
+		// worked out again from the start by the next update, in case one was missed
+		session.createSQLQuery("update sync_server set committed_watermark = null").executeUpdate();
+		session.createSQLQuery(
+		    "insert into sync_state_count (server_id, state, record_count)"
+		            + " select server_id, state, count(*) from sync_server_record group by server_id, state")
+		        .executeUpdate();
+		session.createSQLQuery(
+		    "insert into sync_state_count (server_id, state, record_count) select " + SyncStateCount.LOCAL_SERVER_ID
+		            + ", state, count(*) from sync_record where original_uuid = uuid group by state").executeUpdate();
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#deleteSyncJournal()
+	 */
+	public void deleteSyncJournal() throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		session.clear();
+		SyncStateCounts.clear();
+		
+		for (String table : new String[] { "sync_record_token", "sync_server_record", "sync_record", "sync_state_count" }) {
+			session.createSQLQuery("delete from " + table).executeUpdate();
+		}
+		session.createSQLQuery("update sync_server set committed_watermark = null").executeUpdate();
+	}
+	
 	/*
 	 * called at Openmrs sync parent server: exports the openmrs database to a
 	 * DDL output stream for sending it back to a new child node being created
 	 */
 	public void exportChildDB(String uuidForChild, OutputStream os) throws DAOException {
-		PrintStream out = new PrintStream(os);
-		Set<String> tablesToSkip = new HashSet<String>();
-		{
-			tablesToSkip.add("hl7_in_archive");
-			tablesToSkip.add("hl7_in_queue");
-			tablesToSkip.add("hl7_in_error");
-			tablesToSkip.add("formentry_archive");
-			tablesToSkip.add("formentry_queue");
-			tablesToSkip.add("formentry_error");
-			tablesToSkip.add("sync_class");
-			tablesToSkip.add("sync_import");
-			tablesToSkip.add("sync_record");
-			tablesToSkip.add("sync_server");
-			tablesToSkip.add("sync_server_class");
-			tablesToSkip.add("sync_server_record");
-			// TODO: figure out which other tables to skip
-			// tablesToSkip.add("obs");
-			// tablesToSkip.add("concept");
-			// tablesToSkip.add("patient");
-		}
-		List<String> tablesToDump = new ArrayList<String>();
-		Session session = sessionFactory.getCurrentSession();
-		String schema = (String) session.createSQLQuery("SELECT schema()").uniqueResult();
-		log.warn("schema: " + schema);
-		// Get all tables that we'll need to dump
-		{
-			Query query = session
-			        .createSQLQuery("SELECT tabs.table_name FROM INFORMATION_SCHEMA.TABLES tabs WHERE tabs.table_schema = '"
-			                + schema + "'");
-			for (Object tn : query.list()) {
-				String tableName = (String) tn;
-				if (!tablesToSkip.contains(tableName.toLowerCase()))
-					tablesToDump.add(tableName);
-			}
-		}
-		log.warn("tables to dump: " + tablesToDump);
-		
-		String thisServerGuid = getGlobalProperty(SyncConstants.PROPERTY_SERVER_UUID);
-		
-		// Write the DDL Header as mysqldump does
-		{
-			out.println("-- ------------------------------------------------------");
-			out.println("-- Database dump to create an openmrs child server");
-			out.println("-- Schema: " + schema);
-			out.println("-- Parent GUID: " + thisServerGuid);
-			out.println("-- Parent version: " + OpenmrsConstants.OPENMRS_VERSION);
-			out.println("-- ------------------------------------------------------");
-			out.println("");
-			out.println("/*!40101 SET CHARACTER_SET_CLIENT=utf8 */;");
-			out.println("/*!40101 SET NAMES utf8 */;");
-			out.println("/*!40103 SET TIME_ZONE='+00:00' */;");
-			out.println("/*!40101 SET @OLD_CHARACTER_SET_CLIENT=@@CHARACTER_SET_CLIENT */;");
-			out.println("/*!40101 SET @OLD_CHARACTER_SET_RESULTS=@@CHARACTER_SET_RESULTS */;");
-			out.println("/*!40101 SET @OLD_COLLATION_CONNECTION=@@COLLATION_CONNECTION */;");
-			out.println("/*!40103 SET @OLD_TIME_ZONE=@@TIME_ZONE */;");
-			out.println("/*!40014 SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0 */;");
-			out.println("/*!40014 SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0 */;");
-			out.println("/*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;");
-			out.println("/*!40111 SET @OLD_SQL_NOTES=@@SQL_NOTES, SQL_NOTES=0 */;");
-			out.println("");
-		}
+		if (uuidForChild == null)
+			uuidForChild = SyncUtil.generateUuid();
 		try {
-			// JDBC way of doing this
-			// Connection conn =
-			// DriverManager.getConnection("jdbc:mysql://localhost/" + schema,
-			// "test", "test");
-			Connection conn = sessionFactory.getCurrentSession().connection();
-			try {
-				Statement st = conn.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-				
-				// Get the create database statement
-				ResultSet rs = st.executeQuery("SHOW CREATE DATABASE " + schema);
-				for (String tableName : tablesToDump) {
-					out.println();
-					out.println("--");
-					out.println("-- Table structure for table `" + tableName + "`");
-					out.println("--");
-					out.println("DROP TABLE IF EXISTS `" + tableName + "`;");
-					out.println("SET @saved_cs_client     = @@character_set_client;");
-					out.println("SET character_set_client = utf8;");
-					rs = st.executeQuery("SHOW CREATE TABLE " + tableName);
-					while (rs.next()) {
-						out.println(rs.getString("Create Table") + ";");
-					}
-					out.println("SET character_set_client = @saved_cs_client;");
-					out.println();
-					
-					{
-						out.println("-- Dumping data for table `" + tableName + "`");
-						out.println("LOCK TABLES `" + tableName + "` WRITE;");
-						out.println("/*!40000 ALTER TABLE `" + tableName + "` DISABLE KEYS */;");
-						boolean first = true;
-						
-						rs = st.executeQuery("select * from " + tableName);
-						ResultSetMetaData md = rs.getMetaData();
-						int numColumns = md.getColumnCount();
-						int rowNum = 0;
-						boolean insert = false;
-						
-						while (rs.next()) {
-							if (rowNum == 0) {
-								insert = true;
-								out.print("INSERT INTO `" + tableName + "` VALUES ");
-							}
-							++rowNum;
-							if (first) {
-								first = false;
-							} else {
-								out.print(", ");
-							}
-							if (rowNum % 20 == 0) {
-								out.println();
-							}
-							out.print("(");
-							for (int i = 1; i <= numColumns; ++i) {
-								if (i != 1) {
-									out.print(",");
-								}
-								if (rs.getObject(i) == null) {
-									out.print("NULL");
-								} else {
-									switch (md.getColumnType(i)) {
-										case Types.VARCHAR:
-										case Types.CHAR:
-										case Types.LONGVARCHAR:
-											out.print("'");
-											out.print(rs.getString(i).replaceAll("\n", "\\\\n").replaceAll("'", "\\\\'"));
-											out.print("'");
-											break;
-										case Types.BIGINT:
-										case Types.DECIMAL:
-										case Types.NUMERIC:
-											out.print(rs.getBigDecimal(i));
-											break;
-										case Types.BIT:
-											out.print(rs.getBoolean(i));
-											break;
-										case Types.INTEGER:
-										case Types.SMALLINT:
-										case Types.TINYINT:
-											out.print(rs.getInt(i));
-											break;
-										case Types.REAL:
-										case Types.FLOAT:
-										case Types.DOUBLE:
-											out.print(rs.getDouble(i));
-											break;
-										case Types.BLOB:
-										case Types.VARBINARY:
-										case Types.LONGVARBINARY:
-											Blob blob = rs.getBlob(i);
-											out.print("'");
-											InputStream in = blob.getBinaryStream();
-											while (true) {
-												int b = in.read();
-												if (b < 0) {
-													break;
-												}
-												char c = (char) b;
-												if (c == '\'') {
-													out.print("\'");
-												} else {
-													out.print(c);
-												}
-											}
-											out.print("'");
-											break;
-										case Types.CLOB:
-											out.print("'");
-											out.print(rs.getString(i).replaceAll("\n", "\\\\n").replaceAll("'", "\\\\'"));
-											out.print("'");
-											break;
-										case Types.DATE:
-											out.print("'" + rs.getDate(i) + "'");
-											break;
-										case Types.TIMESTAMP:
-											out.print("'" + rs.getTimestamp(i) + "'");
-											break;
-										default:
-											throw new RuntimeException("TODO: handle type code " + md.getColumnType(i)
-											        + " (name " + md.getColumnTypeName(i) + ")");
-									}
-								}
-							}
-							out.print(")");
-						}
-						if (insert) {
-							out.println(";");
-							insert = false;
-						}
-						
-						out.println("/*!40000 ALTER TABLE `" + tableName + "` ENABLE KEYS */;");
-						out.println("UNLOCK TABLES;");
-						out.println();
-					}
-				}
-			}
-			finally {
-				conn.close();
-			}
-			
-			// Now we mark this as a child
-			out.println("-- Now mark this as a child database");
-			if (uuidForChild == null)
-				uuidForChild = SyncUtil.generateUuid();
-			out.println("update global_property set property_value = '" + uuidForChild + "' where property = '"
-			        + SyncConstants.PROPERTY_SERVER_UUID + "';");
-			
-			// Write the footer of the DDL script
-			{
-				out.println("/*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;");
-				out.println("/*!40101 SET SQL_MODE=@OLD_SQL_MODE */;");
-				out.println("/*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;");
-				out.println("/*!40014 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS */;");
-				out.println("/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;");
-				out.println("/*!40101 SET CHARACTER_SET_RESULTS=@OLD_CHARACTER_SET_RESULTS */;");
-				out.println("/*!40101 SET COLLATION_CONNECTION=@OLD_COLLATION_CONNECTION */;");
-				out.println("/*!40111 SET SQL_NOTES=@OLD_SQL_NOTES */;");
-			}
-			out.flush();
-			out.close();
+			exportDatabase(os, Arrays.asList(CHILD_TABLES_TO_SKIP), uuidForChild);
+			os.close();
 		}
-		catch (IOException ex) {
-			log.error("IOException", ex);
-			
+		catch (Exception e) {
+			throw new DAOException("Unable to export the database for a child server", e);
 		}
-		catch (SQLException ex) {
-			log.error("SQLException", ex);
+	}
+	
+	/**
+	 * Dumps the database to the given output with a {@link ChildDatabaseExporter}, reading the
+	 * tables on connections of their own
+	 * 
+	 * @param uuidForChild if not null, the dump marks the database it is loaded into as a child
+	 *            server with this uuid
+	 */
+	private void exportDatabase(OutputStream out, Collection<String> tablesToSkip, String uuidForChild)
+	    throws SQLException, IOException {
+		ChildDatabaseExporter exporter = new ChildDatabaseExporter(getConnectionSource());
+		exporter.setTablesToSkip(tablesToSkip);
+		exporter.setThreads(getIntegerGlobalProperty(SyncConstants.PROPERTY_CLONE_EXPORT_THREADS,
+		    SyncConstants.PROPERTY_CLONE_EXPORT_THREADS_DEFAULT));
+		
+		StringBuilder header = new StringBuilder();
+		header.append("-- ------------------------------------------------------\n");
+		header.append("-- Database dump to create an openmrs child server\n");
+		header.append("-- Parent GUID: ").append(getGlobalProperty(SyncConstants.PROPERTY_SERVER_UUID)).append("\n");
+		header.append("-- Parent version: ").append(OpenmrsConstants.OPENMRS_VERSION).append("\n");
+		header.append("-- ------------------------------------------------------\n\n");
+		out.write(header.toString().getBytes("UTF-8"));
+		
+		long start = System.currentTimeMillis();
+		long rows = exporter.export(out);
+		
+		if (uuidForChild != null) {
+			// Now we mark this as a child
+			out.write(("-- Now mark this as a child database\nupdate global_property set property_value = '"
+			        + uuidForChild + "' where property = '" + SyncConstants.PROPERTY_SERVER_UUID + "';\n")
+			        .getBytes("UTF-8"));
 		}
+		out.flush();
+		log.info("Exported " + rows + " rows for a child server in " + (System.currentTimeMillis() - start) + " ms");
 	}
 	
 	/*
 	 * Called at Openmrs sync child: imports the DDL backup of the parent server
-	 * from an input stream generated from the parent DB @Impl: Reads the DDL
-	 * statement line by line and updates the child DB
+	 * from an input stream generated from the parent DB
 	 */
-	public void importParentDB(InputStream in) {
+	public void importParentDB(InputStream in) throws DAOException {
 		try {
-			Connection conn = sessionFactory.getCurrentSession().connection();
-			Statement statement = conn.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			String line;
-			StringBuffer query = new StringBuffer();
-			boolean queryEnds = false;
-			
-			while ((line = reader.readLine()) != null) {
-				if ((line.startsWith("#") || line.startsWith("--"))) {
-					continue;
-				}
-				queryEnds = line.endsWith(";");
-				query.append(line);
-				if (queryEnds) {
-					try {
-						statement.execute(query.toString());
-					}
-					catch (SQLException ex) {
-						log.warn(ex);
-						ex.printStackTrace();
-					}
-					query.setLength(0);
-				}
-			}
-			in.close();
-			
+			importDatabase(in);
 		}
-		catch (IOException ex) {
-			log.warn(ex);
-			ex.printStackTrace();
+		catch (Exception e) {
+			throw new DAOException("Unable to import the database of the parent server", e);
 		}
-		catch (SQLException ex) {
-			log.warn(ex);
-			ex.printStackTrace();
+		finally {
+			IOUtils.closeQuietly(in);
 		}
 	}
 	
-	public void generateDataFile(File outFile, String[] ignoreTables) {
-		// TODO totally breaks if someone isn't using mysql as the backend
-		// TODO get custom location of mysql instead of just relying on path?
-		// TODO make this linux compatible
-		String[] props = getConnectionProperties();
-		String username = props[0];
-		String password = props[1];
-		String database = props[2];
-		String host = props[3];
-		String port = props[4];
-		try {
-			if (!outFile.exists())
-				outFile.createNewFile();
-		}
-		catch (IOException io) {
-			log.warn(io.toString());
-		}
-		
-		List<String> commands = new ArrayList<String>();
-		commands.add("mysqldump");
-		commands.add("-u" + username);
-		commands.add("-p" + password);
-		commands.add("-h" + host);
-		commands.add("-P" + port);
-		commands.add("--hex-blob");
-		commands.add("-q");
-		commands.add("-e");
-		commands.add("--single-transaction");
-		commands.add("-r");
-		commands.add(outFile.getAbsolutePath());
-		commands.add(database);
-		
-		// mark the tables to ignore
-		for (String table : ignoreTables) {
-			table = table.trim();
-			if (StringUtils.hasLength(table)) {
-				commands.add("--ignore-table");
-				commands.add(database + "." + table);
-			}
-		}
-		
-		String output;
-		if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
-			output = execCmd(outFile.getParentFile(), commands.toArray(new String[] {}));
-		else
-			output = execCmd(null, commands.toArray(new String[] {}));
-		
-		if (output != null && output.length() > 0) {
-			log.debug("Exec called: " + Arrays.asList(commands));
-			log.debug("Output of exec: " + output);
-		}
+	/**
+	 * Loads a database dump with a {@link ChildDatabaseImporter}, the inserts of several tables
+	 * at a time on connections of their own
+	 */
+	private void importDatabase(InputStream in) throws SQLException, IOException {
+		ChildDatabaseImporter importer = new ChildDatabaseImporter(getConnectionSource());
+		importer.setThreads(getIntegerGlobalProperty(SyncConstants.PROPERTY_CLONE_IMPORT_THREADS,
+		    SyncConstants.PROPERTY_CLONE_IMPORT_THREADS_DEFAULT));
 		
+		long start = System.currentTimeMillis();
+		Connection connection = sessionFactory.getCurrentSession().connection();
+		long statements = importer.importSql(connection, new InputStreamReader(in, "UTF-8"));
+		log.info("Imported " + statements + " statements in " + (System.currentTimeMillis() - start) + " ms, "
+		        + importer.getFailedCount() + " failed");
 	}
 	
 	/**
-	 * Auto generated method comment
-	 * 
-	 * @return
-	 */
-	private String[] getConnectionProperties() {
-		Properties props = Context.getRuntimeProperties();
-		
-		// username, password, database, host, port
-		String[] connProps = { "test", "test", "openmrs", "localhost", "3306" };
-		
-		String username = (String) props.get("database.username");
-		if (username == null)
-			username = (String) props.get("connection.username");
-		if (username != null)
-			connProps[0] = username;
-		
-		String password = (String) props.get("database.password");
-		if (password == null)
-			password = (String) props.get("connection.password");
-		if (password != null)
-			connProps[1] = password;
-		// get database name
-		String database = "openmrs";
-		String host = "localhost";
-		String port = "3306";
-		String connectionUrl = (String) props.get("connection.url");
-		if (connectionUrl == null)
-			connectionUrl = (String) props.get("connection.url");
-		if (connectionUrl != null) {
-			//jdbc:mysql://localhost:3306/openmrs
-			//jdbc:mysql:mxj://127.0.0.1:3317/openmrs?
-			//Assuming the last full colon will be that before the port
-			int lastColonPos = connectionUrl.lastIndexOf(':');
-			int slash = connectionUrl.indexOf('/', lastColonPos);
-			int qmark = connectionUrl.indexOf('?', lastColonPos);
-			database = connectionUrl.substring(slash + 1, qmark != -1 ? qmark : connectionUrl.length());
-			connProps[2] = database;
+	 * @return the connections of the session factory, for dumping and loading the database on
+	 *         several connections at a time
+	 */
+	@SuppressWarnings("deprecation")
+	private ChildDatabaseExporter.ConnectionSource getConnectionSource() {
+		final ConnectionProvider provider = ((SessionFactoryImplementor) sessionFactory).getConnectionProvider();
+		return new ChildDatabaseExporter.ConnectionSource() {
 			
-			//Assuming that port is explicitly set
-			int doubleSlashPos = connectionUrl.indexOf("://");
-			host = connectionUrl.substring(doubleSlashPos + 3, lastColonPos);
-			connProps[3] = host;
+			public Connection getConnection() throws SQLException {
+				return provider.getConnection();
+			}
 			
-			port = connectionUrl.substring(lastColonPos + 1, slash);
-			connProps[4] = port;
+			public void releaseConnection(Connection connection) throws SQLException {
+				provider.closeConnection(connection);
+			}
+		};
+	}
+	
+	private int getIntegerGlobalProperty(String propertyName, String defaultValue) {
+		try {
+			return Integer.parseInt(getGlobalProperty(propertyName));
+		}
+		catch (NumberFormatException e) {
+			return Integer.parseInt(defaultValue);
 		}
-		
-		return connProps;
 	}
 	
 	/**
-	 * @param cmdWithArguments
-	 * @param wd
-	 * @return
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#generateDataFile(java.io.File, java.lang.String[])
 	 */
-	private String execCmd(File wd, String[] cmdWithArguments) {
-		log.debug("executing command: " + Arrays.toString(cmdWithArguments));
-		
-		StringBuffer out = new StringBuffer();
+	public void generateDataFile(File outFile, String[] ignoreTables) {
+		OutputStream out = null;
 		try {
-			Process p = (wd != null) ? Runtime.getRuntime().exec(cmdWithArguments, null, wd) : Runtime.getRuntime().exec(
-			    cmdWithArguments);
-			
-			out.append("Normal cmd output:\n");
-			Reader reader = new InputStreamReader(p.getInputStream());
-			BufferedReader input = new BufferedReader(reader);
-			int readChar = 0;
-			while ((readChar = input.read()) != -1) {
-				out.append((char) readChar);
-			}
-			input.close();
-			reader.close();
-			
-			out.append("ErrorStream cmd output:\n");
-			reader = new InputStreamReader(p.getErrorStream());
-			input = new BufferedReader(reader);
-			readChar = 0;
-			while ((readChar = input.read()) != -1) {
-				out.append((char) readChar);
-			}
-			input.close();
-			reader.close();
-			
-			Integer exitValue = p.waitFor();
-			
-			log.debug("Process exit value: " + exitValue);
-			
+			out = new BufferedOutputStream(new FileOutputStream(outFile), 65536);
+			if (outFile.getName().endsWith(".gz"))
+				out = new GZIPOutputStream(out, 65536);
+			exportDatabase(out, Arrays.asList(ignoreTables), null);
+			out.close();
 		}
 		catch (Exception e) {
-			log.error("Error while executing command: '" + cmdWithArguments + "'", e);
+			throw new DAOException("Unable to write the database to " + outFile, e);
+		}
+		finally {
+			IOUtils.closeQuietly(out);
 		}
-		
-		log.debug("execCmd output: \n" + out.toString());
-		
-		return out.toString();
 	}
 	
-	public void execGeneratedFile(File generatedDataFile) {
-		// TODO this depends on mysql being on the path
-		// TODO fix this so that queries are parsed out and run linebyline?
-		
-		String[] props = getConnectionProperties();
-		String username = props[0];
-		String password = props[1];
-		String database = props[2];
-		String host = props[3];
-		String port = props[4];
-		
-		String path = generatedDataFile.getAbsolutePath();
-		path = path.replace("\\", "/");
-		// replace windows file separator with
-		// forward slash
-		
-		String[] commands = { "mysql", "-e", "source " + path, "-f", "-u" + username, "-p" + password,
-				"-h" + host, "-P" + port, "-D" + database };
-		String output;
-		if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
-			output = execCmd(generatedDataFile.getParentFile(), commands);
-		else
-			output = execCmd(null, commands);
-		
-		if (output != null && output.length() > 0) {
-			log.error("Exec call: " + Arrays.asList(commands));
-			log.error("Output of exec: " + output);
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#execGeneratedFile(java.io.File)
+	 */
+	public void execGeneratedFile(File generatedDataFile) throws DAOException {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(generatedDataFile), 65536);
+			// gzipped files start with 1f 8b
+			in.mark(2);
+			boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+			in.reset();
+			if (gzipped)
+				in = new GZIPInputStream(in, 65536);
+			importDatabase(in);
+		}
+		catch (Exception e) {
+			throw new DAOException("Unable to import " + generatedDataFile, e);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
 		}
 	}
 	
@@ -1167,6 +1859,48 @@ public class HibernateSyncDAO implements SyncDAO {
 		return (T) crit.uniqueResult();
 	}
 	
+	/**
+	 * Loads the objects of the given type with the given uuids, a chunk of uuids per query
+	 * 
+	 * @param className the type of the objects to load
+	 * @param uuids the uuids of the objects
+	 * @return the loaded objects keyed by className + "|" + uuid
+	 */
+	private Map<String, OpenmrsObject> getOpenmrsObjectsByUuid(String className, Collection<String> uuids) {
+		return getOpenmrsObjectsByUuid(className, uuids, MAX_PARAMETERS_PER_QUERY);
+	}
+	
+	/**
+	 * Loads the objects of the given type with the given uuids, at most chunkSize uuids per query
+	 * 
+	 * @param className the type of the objects to load
+	 * @param uuids the uuids of the objects
+	 * @param chunkSize the most uuids to put in one query
+	 * @return the loaded objects keyed by className + "|" + uuid
+	 */
+	Map<String, OpenmrsObject> getOpenmrsObjectsByUuid(String className, Collection<String> uuids, int chunkSize) {
+		Map<String, OpenmrsObject> ret = new HashMap<String, OpenmrsObject>();
+		Class<?> clazz;
+		try {
+			clazz = Context.loadClass(className);
+		}
+		catch (ClassNotFoundException e) {
+			log.warn("getOpenmrsObjectsByUuid couldn't find class: " + className, e);
+			return ret;
+		}
+		
+		List<String> uuidList = new ArrayList<String>(uuids);
+		for (int from = 0; from < uuidList.size(); from += chunkSize) {
+			List<String> chunk = uuidList.subList(from, Math.min(from + chunkSize, uuidList.size()));
+			Criteria crit = sessionFactory.getCurrentSession().createCriteria(clazz);
+			crit.add(Restrictions.in("uuid", chunk));
+			for (Object o : crit.list()) {
+				ret.put(className + "|" + ((OpenmrsObject) o).getUuid(), (OpenmrsObject) o);
+			}
+		}
+		return ret;
+	}
+	
 	public <T extends OpenmrsObject> T getOpenmrsObjectByPrimaryKey(String classname, Object primaryKey) {
 		Criteria crit;
 		try {
@@ -1302,68 +2036,107 @@ public class HibernateSyncDAO implements SyncDAO {
 		}
 		
 		//now, finally process nodes, phew!!
+		//first pull out all entries so that they can be loaded with one query per entry type
+		List<Element> entryNodes = new ArrayList<Element>();
+		Map<String, Set<String>> entryUuidsByClass = new HashMap<String, Set<String>>();
 		for (i = 0; i < nodes.getLength(); i++) {
 			if ("entry".equals(nodes.item(i).getNodeName())) {
-				String entryClassName = ((Element) nodes.item(i)).getAttribute("type");
-				String entryUuid = ((Element) nodes.item(i)).getAttribute("uuid");
-				String entryAction = ((Element) nodes.item(i)).getAttribute("action");
-				Object entry = SyncUtil.getOpenmrsObj(entryClassName, entryUuid);
-				
-				// objects like Privilege, Role, and GlobalProperty might have different
-				// uuids for different objects
-				if (entry == null && SyncUtil.hasNoAutomaticPrimaryKey(entryClassName)) {
-					String key = ((Element) nodes.item(i)).getAttribute("primaryKey");
-					entry = getOpenmrsObjectByPrimaryKey(entryClassName, key);
+				Element entryNode = (Element) nodes.item(i);
+				entryNodes.add(entryNode);
+				Set<String> uuids = entryUuidsByClass.get(entryNode.getAttribute("type"));
+				if (uuids == null) {
+					uuids = new HashSet<String>();
+					entryUuidsByClass.put(entryNode.getAttribute("type"), uuids);
 				}
-				
-				if (entry == null) {
-					// blindly ignore this entry if it doesn't exist and we're trying to delete it
-					if (!"delete".equals(entryAction)) {
-						//the object not found: most likely cause here is data collision
-						
-						log.error("Was not able to retrieve reference to the collection entry object by uuid.");
-						log.error("Entry info: " + "\nentryClassName: " + entryClassName + "\nentryUuid: " + entryUuid
-						        + "\nentryAction: " + entryAction);
-                        log.error("Sync record original uuid: " + originalRecordUuid);
-						throw new SyncIngestException(SyncConstants.ERROR_ITEM_UUID_NOT_FOUND, ownerClassName + " missing "
-						        + entryClassName + "," + entryUuid, incoming, null);
-					}
-				} else if ("update".equals(entryAction)) {
+				uuids.add(entryNode.getAttribute("uuid"));
+			}
+		}
+		Map<String, OpenmrsObject> loadedEntries = new HashMap<String, OpenmrsObject>();
+		for (Map.Entry<String, Set<String>> uuidsForClass : entryUuidsByClass.entrySet()) {
+			loadedEntries.putAll(getOpenmrsObjectsByUuid(uuidsForClass.getKey(), uuidsForClass.getValue()));
+		}
+		
+		//uuid-indexed view of the existing collection, kept in step with the changes below
+		Map<String, Object> existingEntries = new HashMap<String, Object>();
+		for (Object o : entries) {
+			if (o instanceof OpenmrsObject && ((OpenmrsObject) o).getUuid() != null) {
+				existingEntries.put(((OpenmrsObject) o).getUuid(), o);
+			}
+		}
+		//entries that could not be removed directly, most likely because of a bad implementation of equals
+		//or a sorted set that is out of order; these are removed together in one pass over the collection
+		Set<String> pendingRemovals = new HashSet<String>();
+		
+		for (Element entryNode : entryNodes) {
+			String entryClassName = entryNode.getAttribute("type");
+			String entryUuid = entryNode.getAttribute("uuid");
+			String entryAction = entryNode.getAttribute("action");
+			Object entry = loadedEntries.get(entryClassName + "|" + entryUuid);
+			
+			// objects like Privilege, Role, and GlobalProperty might have different
+			// uuids for different objects
+			if (entry == null && SyncUtil.hasNoAutomaticPrimaryKey(entryClassName)) {
+				String key = entryNode.getAttribute("primaryKey");
+				entry = getOpenmrsObjectByPrimaryKey(entryClassName, key);
+			}
+			
+			if (entry == null) {
+				// blindly ignore this entry if it doesn't exist and we're trying to delete it
+				if (!"delete".equals(entryAction)) {
+					//the object not found: most likely cause here is data collision
+					
+					log.error("Was not able to retrieve reference to the collection entry object by uuid.");
+					log.error("Entry info: " + "\nentryClassName: " + entryClassName + "\nentryUuid: " + entryUuid
+					        + "\nentryAction: " + entryAction);
+					log.error("Sync record original uuid: " + originalRecordUuid);
+					throw new SyncIngestException(SyncConstants.ERROR_ITEM_UUID_NOT_FOUND, ownerClassName + " missing "
+					        + entryClassName + "," + entryUuid, incoming, null);
+				}
+				continue;
+			}
+			
+			// the uuid of the loaded entry can differ from the one sent for entries found by primary key
+			String uuid = ((OpenmrsObject) entry).getUuid();
+			if ("update".equals(entryAction)) {
+				pendingRemovals.remove(uuid);
+				if (uuid == null) {
 					if (!OpenmrsUtil.collectionContains(entries, entry)) {
 						entries.add(entry);
 					}
-				} else if ("delete".equals(entryAction)) {
-					OpenmrsUtil.collectionContains(entries, entry);
-					
+				} else if (!existingEntries.containsKey(uuid)) {
+					entries.add(entry);
+					existingEntries.put(uuid, entry);
+				}
+			} else if ("delete".equals(entryAction)) {
+				Object existing = (uuid == null) ? null : existingEntries.remove(uuid);
+				if (existing == null) {
+					existing = (entryUuid == null) ? null : existingEntries.remove(entryUuid);
+				}
+				if (existing == null) {
 					if (!entries.remove(entry)) {
-						//couldn't find entry in collection: hmm, bad implementation of equals?
-						//fall back to trying to find the item in entries by uuid
-						OpenmrsObject toBeRemoved = null;
-						for (Object o : entries) {
-							if (o instanceof OpenmrsObject) {
-								if (entryUuid.equals(((OpenmrsObject) o).getUuid())) {
-									toBeRemoved = (OpenmrsObject) o;
-									break;
-								}
-							}
-						}
-						if (toBeRemoved == null) {
-							//the item to be removed was not located in the collection: log it for reference and continue
-							log.warn("Was not able to process collection entry delete.");
-							log.warn("Owner info: " + "\nownerClassName:" + ownerClassName
-							        + "\nownerCollectionPropertyName:" + ownerCollectionPropertyName
-							        + "\nownerCollectionAction:" + ownerCollectionAction + "\nownerUuid:" + ownerUuid);
-							log.warn("entry info: " + "\nentryClassName:" + entryClassName + "\nentryUuid:" + entryUuid);
-                            log.warn("Sync record original uuid: " + originalRecordUuid);
-						} else {
-							//finally, remove it from the collection
-							entries.remove(toBeRemoved);
-						}
+						//the item to be removed was not located in the collection: log it for reference and continue
+						log.warn("Was not able to process collection entry delete.");
+						log.warn("Owner info: " + "\nownerClassName:" + ownerClassName + "\nownerCollectionPropertyName:"
+						        + ownerCollectionPropertyName + "\nownerCollectionAction:" + ownerCollectionAction
+						        + "\nownerUuid:" + ownerUuid);
+						log.warn("entry info: " + "\nentryClassName:" + entryClassName + "\nentryUuid:" + entryUuid);
+						log.warn("Sync record original uuid: " + originalRecordUuid);
 					}
-					
-				} else {
-					log.error("Unknown collection entry action, action was: " + entryAction);
-					throw new SyncIngestException(SyncConstants.ERROR_ITEM_NOT_COMMITTED, ownerClassName, incoming, null);
+				} else if (!entries.remove(existing)) {
+					pendingRemovals.add(((OpenmrsObject) existing).getUuid());
+				}
+			} else {
+				log.error("Unknown collection entry action, action was: " + entryAction);
+				throw new SyncIngestException(SyncConstants.ERROR_ITEM_NOT_COMMITTED, ownerClassName, incoming, null);
+			}
+		}
+		
+		if (!pendingRemovals.isEmpty()) {
+			Iterator<?> it = entries.iterator();
+			while (it.hasNext()) {
+				Object o = it.next();
+				if (o instanceof OpenmrsObject && pendingRemovals.contains(((OpenmrsObject) o).getUuid())) {
+					it.remove();
 				}
 			}
 		}
@@ -1398,111 +2171,98 @@ public class HibernateSyncDAO implements SyncDAO {
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#processSyncSubclassStub(org.openmrs.module.sync.SyncSubclassStub)
 	 */
 	public void processSyncSubclassStub(SyncSubclassStub stub) {
+		List<SyncSubclassStub> stubs = new ArrayList<SyncSubclassStub>();
+		stubs.add(stub);
+		processSyncSubclassStubs(stubs);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#processSyncSubclassStubs(java.util.List)
+	 */
+	public void processSyncSubclassStubs(List<SyncSubclassStub> stubs) {
 		Connection connection = sessionFactory.getCurrentSession().connection();
 		
-		boolean stubInsertNeeded = false;
-		PreparedStatement ps = null;
-		int internalDatabaseId = 0;
+		// statements are prepared once per kind of stub and reused for all stubs of that kind; each
+		// insert checks for the parent row and for an existing subclass row itself, so a stub that
+		// is not needed, or that is in the batch twice, just inserts nothing
+		Map<SubclassStubStatements, PreparedStatement> inserts = new LinkedHashMap<SubclassStubStatements, PreparedStatement>();
+		Map<SubclassStubStatements, List<SyncSubclassStub>> batches = new HashMap<SubclassStubStatements, List<SyncSubclassStub>>();
+		SyncSubclassStub current = null;
 		
-		// check if there is a row with a matching person record and no patient record 
 		try {
-			// becomes something like "select person_id from person where uuid = x" or "select concept_id from concept where uuid = x"
-			ps = connection.prepareStatement("SELECT " + stub.getParentTableId() + " FROM " + stub.getParentTable() + " WHERE uuid = ?");
-			ps.setString(1, stub.getUuid());
-			ps.execute();
-			ResultSet rs = ps.getResultSet();
-			if (rs.next()) {
-				stubInsertNeeded = true;
-				internalDatabaseId = rs.getInt(stub.getParentTableId());
-			} else {
-				stubInsertNeeded = false;
+			for (SyncSubclassStub stub : stubs) {
+				current = stub;
+				SubclassStubStatements statements = SubclassStubStatements.getStatements(stub);
+				PreparedStatement insert = inserts.get(statements);
+				if (insert == null) {
+					insert = connection.prepareStatement(statements.getInsertStatement());
+					inserts.put(statements, insert);
+					batches.put(statements, new ArrayList<SyncSubclassStub>());
+				}
+				statements.bindInsert(insert, stub);
+				insert.addBatch();
+				batches.get(statements).add(stub);
 			}
+			current = null;
 			
-			//this should get no rows
-			ps = connection.prepareStatement("SELECT " + stub.getSubclassTableId() + " FROM " + stub.getSubclassTable() + " WHERE " + stub.getSubclassTableId() + " = ?");
-			ps.setInt(1, internalDatabaseId);
-			ps.execute();
-			if (ps.getResultSet().next()) {
-				stubInsertNeeded = false;
+			for (Map.Entry<SubclassStubStatements, PreparedStatement> insert : inserts.entrySet()) {
+				List<SyncSubclassStub> batch = batches.get(insert.getKey());
+				int[] counts = insert.getValue().executeBatch();
+				for (int i = 0; i < counts.length; i++) {
+					// a driver that does not report the count of a statement is taken to have inserted the
+					// row: the parent applies the stub with the same check
+					if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+						SyncSubclassStub stub = batch.get(i);
+						//*and* create sync items for these
+						HibernateSyncInterceptor.addSyncItemForSubclassStub(stub);
+						log.debug("Sync Inserted " + stub.getParentTable() + " Stub for " + stub.getUuid());
+					}
+				}
 			}
-			ps.close();
-			ps = null;
-			
 		}
 		catch (SQLException e) {
-			log.error("Error while trying to see if this person is a patient already (or concept is a concept numeric already)", e);
+			String table = current != null ? current.getSubclassTable() : "subclass";
+			throw new DAOException("Unable to insert the " + table + " rows of " + stubs.size() + " subclass stubs", e);
 		}
-		if (ps != null) {
-			try {
-				ps.close();
-			}
-			catch (SQLException e) {
-				log.error("Error generated while closing statement", e);
-			}
+		finally {
+			closeStatements(inserts.values());
 		}
-		
-		if (stubInsertNeeded) {
-			try {
-				//insert the stub
-				String sql = "INSERT INTO " + stub.getSubclassTable() + " (" + stub.getSubclassTableId() + "COLUMNNAMEGOESHERE) VALUES (?COLUMNVALUEGOESHERE)";
-
-				if (CollectionUtils.isNotEmpty(stub.getRequiredColumnNames())
-						&& CollectionUtils.isNotEmpty(stub.getRequiredColumnValues())
-						&& CollectionUtils.isNotEmpty(stub.getRequiredColumnClasses())) {
-					for (int x = 0; x < stub.getRequiredColumnNames().size(); x++) {
-						String column = stub.getRequiredColumnNames().get(x);
-						sql = sql.replace("COLUMNNAMEGOESHERE", ", " + column + "COLUMNNAMEGOESHERE");
-						sql = sql.replace("COLUMNVALUEGOESHERE", ", ?COLUMNVALUEGOESHERE");
-					}
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#isSubclassStubInsertNeeded(org.openmrs.module.sync.SyncSubclassStub)
+	 */
+	public boolean isSubclassStubInsertNeeded(SyncSubclassStub stub) {
+		SubclassStubStatements statements = SubclassStubStatements.getStatements(stub);
+		PreparedStatement ps = null;
+		try {
+			ps = sessionFactory.getCurrentSession().connection().prepareStatement(statements.getExistenceQuery());
+			return statements.getParentIdIfInsertNeeded(ps, stub) != null;
+		}
+		catch (SQLException e) {
+			throw new DAOException("Unable to check for an existing " + stub.getSubclassTable() + " row", e);
+		}
+		finally {
+			if (ps != null) {
+				try {
+					ps.close();
 				}
-				
-				sql = sql.replace("COLUMNNAMEGOESHERE", "");
-				sql = sql.replace("COLUMNVALUEGOESHERE", "");
-				
-				ps = connection.prepareStatement(sql);
-				
-				ps.setInt(1, internalDatabaseId);
-				
-				if (CollectionUtils.isNotEmpty(stub.getRequiredColumnNames())
-						&& CollectionUtils.isNotEmpty(stub.getRequiredColumnValues())
-						&& CollectionUtils.isNotEmpty(stub.getRequiredColumnClasses())) {
-					
-					for (int x = 0; x < stub.getRequiredColumnValues().size(); x++) {
-						String value = stub.getRequiredColumnValues().get(x);
-						String className = stub.getRequiredColumnClasses().get(x);
-						Class c;
-						try {
-							c = Context.loadClass(className);
-							ps.setObject(x + 2, SyncUtil.getNormalizer(c).fromString(c, value));
-						} catch (ClassNotFoundException e) {
-							log.error("Unable to convert classname into a Class object " + className);
-						}
-						
-					}
+				catch (SQLException e) {
+					log.error("Error generated while closing statement", e);
 				}
-
-				ps.executeUpdate();
-				
-				//*and* create sync item for this
-				HibernateSyncInterceptor.addSyncItemForSubclassStub(stub);
-				log.debug("Sync Inserted " + stub.getParentTable() + " Stub for " + stub.getUuid());
 			}
-			catch (SQLException e) {
-				log.warn("SQL Exception while trying to create a " + stub.getParentTable() + " stub", e);
+		}
+	}
+	
+	private void closeStatements(Collection<PreparedStatement> statements) {
+		for (PreparedStatement ps : statements) {
+			try {
+				ps.close();
 			}
-			finally {
-				if (ps != null) {
-					try {
-						ps.close();
-					}
-					catch (SQLException e) {
-						log.error("Error generated while closing statement", e);
-					}
-				}
+			catch (SQLException e) {
+				log.error("Error generated while closing statement", e);
 			}
 		}
-		
-		return;
 	}
 	
 	/**
@@ -1583,6 +2343,28 @@ public class HibernateSyncDAO implements SyncDAO {
 		return (Long) criteria.uniqueResult();
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getPendingSummary(org.openmrs.module.sync.server.RemoteServer,
+	 *      org.openmrs.module.sync.SyncRecordState[])
+	 */
+	public SyncPendingSummary getPendingSummary(RemoteServer server, SyncRecordState... states) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class, "s");
+		if (server != null && server.getRecordWatermark() != null) {
+			criteria.add(getWatermarkStates(server, states, false));
+		} else if (server != null) {
+			criteria.createCriteria("serverRecords", "sr");
+			criteria.add(Restrictions.eq("sr.syncServer", server));
+			criteria.add(Restrictions.in("sr.state", states));
+		} else {
+			criteria.add(Restrictions.in("s.state", states));
+		}
+		criteria.setProjection(Projections.projectionList().add(Projections.rowCount()).add(Projections.min("s.timestamp")));
+		
+		Object[] row = (Object[]) criteria.uniqueResult();
+		long count = row[0] == null ? 0 : ((Number) row[0]).longValue();
+		return new SyncPendingSummary(count, (Date) row[1]);
+	}
+	
 	//this is a utility method that i used for Sync-180
 	//won't hurt to leave it around -- may be useful in the future
 	// MG: I'm commenting this out since the CriteriaLoader method signature has 
@@ -1615,18 +2397,56 @@ public class HibernateSyncDAO implements SyncDAO {
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getOlderSyncRecordInState(org.openmrs.module.sync.SyncRecord,
 	 *      java.util.EnumSet)
 	 */
+	@SuppressWarnings("unchecked")
 	public SyncRecord getOlderSyncRecordInState(SyncRecord syncRecord, EnumSet<SyncRecordState> states) {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class);
-		criteria.createAlias("serverRecords", "serverRecord", Criteria.LEFT_JOIN);
+		Session session = sessionFactory.getCurrentSession();
+		
+		// none of the records up to the committed watermark of a server is in a state it is not
+		// done with, so these are skipped
+		Map<Integer, Integer> watermarks = new HashMap<Integer, Integer>();
+		if (!states.isEmpty() && UNFINISHED_STATES.containsAll(states)) {
+			for (Object[] row : (List<Object[]>) session.createSQLQuery(
+			    "select server_id, committed_watermark from sync_server where committed_watermark is not null").list()) {
+				watermarks.put(((Number) row[0]).intValue(), ((Number) row[1]).intValue());
+			}
+		}
+		
+		// We need to look for errors in both SyncRecord and SyncRecordServer, each on its own so
+		// that the indexes on the states can be used.
+		Criteria criteria = session.createCriteria(SyncRecord.class);
+		criteria.add(Restrictions.in("state", states));
 		criteria.add(Restrictions.le("timestamp", syncRecord.getTimestamp()));
 		// We need to look for a lower recordId since some may have the same timestamp.
 		criteria.add(Restrictions.lt("recordId", syncRecord.getRecordId()));
-		// We need to look for errors in both SyncRecord and SyncRecordServer.
-		criteria.add(Restrictions.or(Restrictions.in("state", states), Restrictions.in("serverRecord.state", states)));
+		RemoteServer parent = getParentServer();
+		if (parent != null && watermarks.containsKey(parent.getServerId()))
+			criteria.add(Restrictions.gt("recordId", watermarks.get(parent.getServerId())));
 		criteria.addOrder(Order.desc("timestamp"));
 		criteria.addOrder(Order.desc("recordId"));
 		criteria.setMaxResults(1);
-		return (SyncRecord) criteria.uniqueResult();
+		SyncRecord ret = (SyncRecord) criteria.uniqueResult();
+		
+		for (RemoteServer server : getRemoteServers()) {
+			if (server.getServerType() == RemoteServerType.PARENT)
+				continue;
+			criteria = session.createCriteria(SyncServerRecord.class);
+			criteria.createAlias("syncRecord", "s");
+			criteria.add(Restrictions.eq("syncServer", server));
+			criteria.add(Restrictions.in("state", states));
+			criteria.add(Restrictions.le("s.timestamp", syncRecord.getTimestamp()));
+			criteria.add(Restrictions.lt("s.recordId", syncRecord.getRecordId()));
+			if (watermarks.containsKey(server.getServerId()))
+				criteria.add(Restrictions.gt("s.recordId", watermarks.get(server.getServerId())));
+			if (ret != null)
+				criteria.add(getJournalPosition("s.", ret.getRecordId(), ret.getTimestamp(), true, false));
+			criteria.addOrder(Order.desc("s.timestamp"));
+			criteria.addOrder(Order.desc("s.recordId"));
+			criteria.setMaxResults(1);
+			SyncServerRecord serverRecord = (SyncServerRecord) criteria.uniqueResult();
+			if (serverRecord != null)
+				ret = serverRecord.getSyncRecord();
+		}
+		return ret;
 	}
 	
 	/**
@@ -1640,33 +2460,20 @@ public class HibernateSyncDAO implements SyncDAO {
     /**
      * @see SyncDAO#getMostRecentFullyCommittedRecordId()
      */
-     public int getMostRecentFullyCommittedRecordId() {
-		 Set<String> committedStates = new HashSet<String>();
-		 for (SyncRecordState s : SyncConstants.SYNC_RECORD_COMMITTED_STATES) {
-			 committedStates.add(s.name());
-		 }
-		 StringBuilder q = new StringBuilder();
-		 if (getParentServer() != null) {
-			 q.append("SELECT record_id FROM sync_record WHERE state IN (:states) ORDER BY record_id DESC");
-		 }
-		 else {
-			 q.append("SELECT sr1.record_id FROM sync_record sr1 ");
-			 q.append("INNER JOIN sync_server_record ssr1 ON sr1.record_id = ssr1.record_id ");
-			 q.append("WHERE ssr1.state IN (:states) AND NOT EXISTS (");
-			 q.append("	SELECT sr2.record_id FROM sync_record sr2 ");
-			 q.append("	INNER JOIN sync_server_record ssr2 ON sr2.record_id=ssr2.record_id ");
-			 q.append("	WHERE sr1.record_id=sr2.record_id AND ssr2.state NOT IN (:states)");
-			 q.append(") ORDER BY sr1.record_id DESC");
-		 }
-
-         Query allCommittedSSRQuery = sessionFactory.getCurrentSession().createSQLQuery(q.toString());
-         allCommittedSSRQuery.setParameterList("states", committedStates);
-         allCommittedSSRQuery.setMaxResults(1);
-
-		 Object result = allCommittedSSRQuery.uniqueResult();
-         if(result != null) {
-             return Integer.parseInt(result.toString());
-         }
-         return -1;
-     }
+	public int getMostRecentFullyCommittedRecordId() {
+		// the records that count are those sent to the parent, or to the children if there is none
+		RemoteServer parent = getParentServer();
+		List<RemoteServer> servers = (parent != null) ? Collections.singletonList(parent) : getRemoteServers();
+		if (servers.isEmpty())
+			return -1;
+		
+		int watermark = Integer.MAX_VALUE;
+		for (RemoteServer server : servers) {
+			watermark = Math.min(watermark, advanceCommittedWatermark(server, false));
+		}
+		Number result = (Number) sessionFactory.getCurrentSession().createSQLQuery(
+		    "select max(record_id) from sync_record where record_id <= :watermark").setInteger("watermark", watermark)
+		        .uniqueResult();
+		return (result == null) ? -1 : result.intValue();
+	}
 }
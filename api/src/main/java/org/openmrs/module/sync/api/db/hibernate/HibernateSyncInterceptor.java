@@ -104,7 +104,7 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	}
 
 	/**
-	 * No operation, logging only
+	 * Notes when the transaction began, see {@link SyncRecordsInFlight}
 	 * @see EmptyInterceptor#afterTransactionBegin(Transaction)
 	 */
 	@Override
@@ -112,6 +112,7 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 		if (log.isDebugEnabled()) {
 			log.debug("Transaction Started");
 		}
+		SyncRecordsInFlight.transactionBegun();
 	}
 
 	/**
@@ -121,6 +122,7 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	@Override
 	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
 		log.debug("Delete intercepted");
+		SyncStateCounts.onDelete(entity, state, propertyNames);
 		if (shouldSynchronize(entity)) {
 			log.debug("Packaging: " + SyncUtil.formatObject(entity));
 			packageObject((OpenmrsObject) entity, state, propertyNames, types, id, SyncItemState.DELETED);
@@ -137,6 +139,7 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	@Override
 	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
 		log.debug("Insert intercepted");
+		SyncStateCounts.onSave(entity, state, propertyNames);
 		if (shouldSynchronize(entity)) {
 			log.debug("Packaging: " + SyncUtil.formatObject(entity));
 			packageObject((OpenmrsObject) entity, state, propertyNames, types, id, SyncItemState.NEW);
@@ -154,6 +157,7 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	@Override
 	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
 		log.debug("Update intercepted");
+		SyncStateCounts.onFlushDirty(entity, currentState, previousState, propertyNames);
 		if (shouldSynchronize(entity)) {
 			log.debug("Packaging: " + SyncUtil.formatObject(entity));
 			packageObject((OpenmrsObject) entity, currentState, propertyNames, types, id, SyncItemState.UPDATED);
@@ -260,14 +264,16 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	}
 
 	/**
-	 * No operation, logging only
+	 * Adds the changes of state of the sync records that were flushed to the sync state counts
 	 * @see EmptyInterceptor#postFlush(Iterator)
+	 * @see SyncStateCounts
 	 */
 	@Override
 	public void postFlush(Iterator entities) {
 		if (log.isDebugEnabled()) {
 			log.debug("postFlush intercepted: " + SyncUtil.formatEntities(entities));
 		}
+		SyncStateCounts.apply(getSessionFactory().getCurrentSession());
 	}
 
 	/**
@@ -351,7 +357,7 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	}
 
 	/**
-	 * No operation, logging only
+	 * Forgets what was left on the thread by the transaction, which matters on rollback
 	 * @see EmptyInterceptor#afterTransactionCompletion(Transaction)
 	 */
 	@Override
@@ -361,6 +367,8 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 		}
 		// Because the beforeTransactionCompletion method is not called on rollback, we need to ensure any syncRecords still on the thread are removed after the tx is completed
 		syncRecordHolder.remove();
+		SyncStateCounts.clear();
+		SyncRecordsInFlight.transactionCompleted(tx.wasCommitted());
 	}
 
 	/**
@@ -0,0 +1,182 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.sync.SyncSubclassStub;
+import org.openmrs.module.sync.SyncUtil;
+
+/**
+ * Registry of the parameterized statements used to write {@link SyncSubclassStub} rows, one
+ * entry per kind of stub (e.g. person/patient, concept/concept_numeric). The SQL is built and
+ * validated once per kind of stub; only values are ever bound at execution time.
+ *
+ * @see HibernateSyncDAO#processSyncSubclassStubs(List)
+ */
+class SubclassStubStatements {
+
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+	private static final Map<String, SubclassStubStatements> registry = new ConcurrentHashMap<String, SubclassStubStatements>();
+
+	private final String key;
+
+	private final String existenceQuery;
+
+	private final String insertStatement;
+
+	private SubclassStubStatements(String key, SyncSubclassStub stub) {
+		this.key = key;
+
+		String parentTable = checkIdentifier(stub.getParentTable());
+		String parentTableId = checkIdentifier(stub.getParentTableId());
+		String subclassTable = checkIdentifier(stub.getSubclassTable());
+		String subclassTableId = checkIdentifier(stub.getSubclassTableId());
+
+		// one round trip: the parent row by uuid, and whether it already has a subclass row
+		existenceQuery = "SELECT p." + parentTableId + ", s." + subclassTableId + " FROM " + parentTable + " p LEFT JOIN "
+		        + subclassTable + " s ON s." + subclassTableId + " = p." + parentTableId + " WHERE p.uuid = ?";
+
+		// also one round trip: inserts the subclass row only if the parent row exists and has none yet
+		StringBuilder columns = new StringBuilder(subclassTableId);
+		StringBuilder values = new StringBuilder("p." + parentTableId);
+		for (String column : getRequiredColumnNames(stub)) {
+			columns.append(", ").append(checkIdentifier(column));
+			values.append(", ?");
+		}
+		insertStatement = "INSERT INTO " + subclassTable + " (" + columns + ") SELECT " + values + " FROM " + parentTable
+		        + " p WHERE p.uuid = ? AND NOT EXISTS (SELECT 1 FROM " + subclassTable + " s WHERE s." + subclassTableId
+		        + " = p." + parentTableId + ")";
+	}
+
+	/**
+	 * @param stub the stub to be written
+	 * @return the statements for the given kind of stub
+	 * @throws DAOException if any of the table or column names of the stub is not a plain identifier
+	 */
+	public static SubclassStubStatements getStatements(SyncSubclassStub stub) throws DAOException {
+		StringBuilder key = new StringBuilder();
+		key.append(stub.getParentTable()).append('|').append(stub.getParentTableId()).append('|');
+		key.append(stub.getSubclassTable()).append('|').append(stub.getSubclassTableId());
+		for (String column : getRequiredColumnNames(stub)) {
+			key.append('|').append(column);
+		}
+
+		SubclassStubStatements statements = registry.get(key.toString());
+		if (statements == null) {
+			statements = new SubclassStubStatements(key.toString(), stub);
+			registry.put(key.toString(), statements);
+		}
+		return statements;
+	}
+
+	public String getExistenceQuery() {
+		return existenceQuery;
+	}
+
+	public String getInsertStatement() {
+		return insertStatement;
+	}
+
+	/**
+	 * Runs the existence check for the given stub
+	 *
+	 * @param ps a statement prepared from {@link #getExistenceQuery()}
+	 * @param stub the stub to check
+	 * @return the id of the parent row if it exists and has no subclass row yet, null otherwise
+	 */
+	public Integer getParentIdIfInsertNeeded(PreparedStatement ps, SyncSubclassStub stub) throws SQLException {
+		ps.setString(1, stub.getUuid());
+		ResultSet rs = ps.executeQuery();
+		try {
+			if (!rs.next())
+				return null;
+			int parentId = rs.getInt(1);
+			rs.getObject(2);
+			return rs.wasNull() ? parentId : null;
+		}
+		finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Binds the values of the given stub to a statement prepared from {@link #getInsertStatement()}.
+	 * The statement inserts one row if the parent row exists and has no subclass row yet, and none
+	 * otherwise.
+	 *
+	 * @param ps the insert statement
+	 * @param stub the stub to insert
+	 */
+	public void bindInsert(PreparedStatement ps, SyncSubclassStub stub) throws SQLException {
+		List<String> columnValues = stub.getRequiredColumnValues();
+		List<String> columnClasses = stub.getRequiredColumnClasses();
+		int count = getRequiredColumnNames(stub).size();
+		for (int x = 0; x < count; x++) {
+			String value = (columnValues != null && x < columnValues.size()) ? columnValues.get(x) : null;
+			String className = (columnClasses != null && x < columnClasses.size()) ? columnClasses.get(x) : null;
+			if (value == null || className == null) {
+				ps.setObject(x + 1, null);
+				continue;
+			}
+			try {
+				Class c = Context.loadClass(className);
+				ps.setObject(x + 1, SyncUtil.getNormalizer(c).fromString(c, value));
+			}
+			catch (ClassNotFoundException e) {
+				throw new DAOException("Unable to convert classname into a Class object " + className, e);
+			}
+		}
+		ps.setString(count + 1, stub.getUuid());
+	}
+
+	/**
+	 * Stubs only carry extra columns when names, values and classes are all present, see
+	 * SyncSubclassStub#addColumn
+	 */
+	private static List<String> getRequiredColumnNames(SyncSubclassStub stub) {
+		if (CollectionUtils.isNotEmpty(stub.getRequiredColumnNames())
+		        && CollectionUtils.isNotEmpty(stub.getRequiredColumnValues())
+		        && CollectionUtils.isNotEmpty(stub.getRequiredColumnClasses()))
+			return stub.getRequiredColumnNames();
+		return new ArrayList<String>();
+	}
+
+	private static String checkIdentifier(String name) throws DAOException {
+		if (name == null || !IDENTIFIER.matcher(name).matches())
+			throw new DAOException("Invalid table or column name for a subclass stub: " + name);
+		return name;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof SubclassStubStatements && key.equals(((SubclassStubStatements) obj).key);
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps track of the sync records created by transactions that are still running, and by those
+ * that committed recently. Another transaction may not see these records yet, although they can
+ * have lower ids than records it does see, so it must not move a record watermark past them.
+ * <p/>
+ * All sync records are created through {@link HibernateSyncDAO#createSyncRecord}, which tells
+ * about each one; the {@link HibernateSyncInterceptor} tells when transactions begin and end.
+ * Committed transactions are only remembered once a server keeps a record watermark, and for no
+ * longer than {@link #COMMITTED_MEMORY}.
+ * <p/>
+ * This is only known within this JVM: with several OpenMRS instances sharing a database, the
+ * transactions of the other instances are not seen, so record watermarks are not safe there.
+ *
+ * @see org.openmrs.module.sync.server.RemoteServer#getRecordWatermark()
+ */
+public class SyncRecordsInFlight {
+
+	/**
+	 * How long a committed transaction is remembered, in milliseconds. A transaction that has been
+	 * running for longer does not move any watermark.
+	 */
+	static final long COMMITTED_MEMORY = 10 * 60 * 1000;
+
+	/**
+	 * When the transaction of the current thread began
+	 */
+	private static final ThreadLocal<Long> transactionStart = new ThreadLocal<Long>();
+
+	/**
+	 * thread -> the lowest id of the records created by its running transaction
+	 */
+	private static final Map<Thread, Integer> running = new HashMap<Thread, Integer>();
+
+	/**
+	 * The transactions that created records and committed, oldest first
+	 */
+	private static final LinkedList<Commit> committed = new LinkedList<Commit>();
+
+	/**
+	 * Whether some server keeps a record watermark, null until it is known
+	 */
+	private static Boolean tracking;
+
+	/**
+	 * When the last transaction that created records committed without being remembered
+	 */
+	private static long lastUntracked;
+
+	/**
+	 * @return whether it is known if some server keeps a record watermark
+	 */
+	public static boolean isTrackingKnown() {
+		synchronized (running) {
+			return tracking != null;
+		}
+	}
+
+	/**
+	 * Called when it becomes known whether some server keeps a record watermark. Once on, it stays
+	 * on, as servers rarely stop keeping one.
+	 *
+	 * @param watermarksKept true if some server keeps a record watermark
+	 */
+	public static void setTracking(boolean watermarksKept) {
+		synchronized (running) {
+			if (Boolean.TRUE.equals(tracking))
+				return;
+			tracking = watermarksKept;
+		}
+	}
+
+	/**
+	 * Called when the transaction of the current thread begins
+	 */
+	public static void transactionBegun() {
+		transactionStart.set(System.currentTimeMillis());
+	}
+
+	/**
+	 * Called once a sync record was inserted in the transaction of the current thread
+	 *
+	 * @param recordId the id of the record
+	 */
+	public static void recordCreated(Integer recordId) {
+		if (recordId == null)
+			return;
+
+		synchronized (running) {
+			Integer lowest = running.get(Thread.currentThread());
+			if (lowest == null || recordId < lowest)
+				running.put(Thread.currentThread(), recordId);
+		}
+	}
+
+	/**
+	 * Called when the transaction of the current thread ends
+	 *
+	 * @param wasCommitted false if it was rolled back, so that its records do not exist
+	 */
+	public static void transactionCompleted(boolean wasCommitted) {
+		transactionStart.remove();
+		long now = System.currentTimeMillis();
+		synchronized (running) {
+			Integer lowest = running.remove(Thread.currentThread());
+			if (lowest != null && wasCommitted) {
+				if (Boolean.TRUE.equals(tracking))
+					committed.add(new Commit(now, lowest));
+				else
+					lastUntracked = now;
+			}
+			forgetOldCommits(now);
+		}
+	}
+
+	/**
+	 * @return the highest id the transaction of the current thread may move a watermark to: below
+	 *         the records created by other transactions that are still running or that committed
+	 *         since it began, {@link Integer#MAX_VALUE} if there are none
+	 */
+	public static int getWatermarkLimit() {
+		long now = System.currentTimeMillis();
+		Long start = transactionStart.get();
+		if (start != null && start < now - COMMITTED_MEMORY)
+			return 0; // the transactions that committed since are no longer known
+
+		int limit = Integer.MAX_VALUE;
+		synchronized (running) {
+			if (lastUntracked >= (start != null ? start : now - COMMITTED_MEMORY))
+				return 0; // a transaction that committed since was not remembered
+
+			forgetOldCommits(now);
+			for (Commit commit : committed) {
+				if (start == null || commit.time >= start)
+					limit = Math.min(limit, commit.lowestRecordId - 1);
+			}
+			for (Map.Entry<Thread, Integer> entry : running.entrySet()) {
+				if (entry.getKey() != Thread.currentThread())
+					limit = Math.min(limit, entry.getValue() - 1);
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Drops the commits older than {@link #COMMITTED_MEMORY}, the caller holding the lock
+	 */
+	private static void forgetOldCommits(long now) {
+		for (Iterator<Commit> it = committed.iterator(); it.hasNext();) {
+			if (it.next().time >= now - COMMITTED_MEMORY)
+				break; // the list is oldest first
+			it.remove();
+		}
+	}
+
+	private static class Commit {
+
+		private final long time;
+
+		private final int lowestRecordId;
+
+		private Commit(long time, int lowestRecordId) {
+			this.time = time;
+			this.lowestRecordId = lowestRecordId;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncStateCount;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.SyncServerRecord;
+
+/**
+ * Keeps the sync_state_count table up to date. The changes of state made by the current thread
+ * are collected as they happen, from the {@link HibernateSyncInterceptor} for records saved
+ * through hibernate and from {@link HibernateSyncDAO} for the set-based updates, and are inserted
+ * as rows of their own in the same transaction by {@link #apply(Session)}. The count of a server
+ * and state is the sum of its rows: no row is ever updated, so concurrent transactions do not wait
+ * on each other's row locks. The rows are folded into one per server and state when the counts
+ * are rebuilt.
+ * <p/>
+ * Records updated without their previous state being known (i.e. detached ones) are not counted;
+ * the counts are rebuilt from the journal by
+ * {@link org.openmrs.module.sync.scheduler.ReconcileSyncStatisticsTask}.
+ *
+ * @see SyncStateCount
+ */
+public class SyncStateCounts {
+
+	private static final Log log = LogFactory.getLog(SyncStateCounts.class);
+
+	/**
+	 * serverId -> state name -> change in count, for the current thread
+	 */
+	private static final ThreadLocal<Map<Integer, Map<String, Integer>>> changes = new ThreadLocal<Map<Integer, Map<String, Integer>>>();
+
+	/**
+	 * Adds the given change to the counts, once applied
+	 *
+	 * @param serverId the server id, {@link SyncStateCount#LOCAL_SERVER_ID} for sync records
+	 * @param state the name of the state
+	 * @param change the number of records that came into (or, if negative, left) the state
+	 */
+	public static void add(Integer serverId, String state, int change) {
+		if (serverId == null || state == null || change == 0)
+			return;
+
+		Map<Integer, Map<String, Integer>> pending = changes.get();
+		if (pending == null) {
+			pending = new TreeMap<Integer, Map<String, Integer>>();
+			changes.set(pending);
+		}
+		Map<String, Integer> byState = pending.get(serverId);
+		if (byState == null) {
+			byState = new TreeMap<String, Integer>();
+			pending.put(serverId, byState);
+		}
+		Integer current = byState.get(state);
+		byState.put(state, (current == null ? 0 : current) + change);
+	}
+
+	/**
+	 * Counts a sync record or server record being inserted
+	 */
+	public static void onSave(Object entity, Object[] state, String[] propertyNames) {
+		count(entity, state, propertyNames, 1);
+	}
+
+	/**
+	 * Counts a sync record or server record being deleted
+	 */
+	public static void onDelete(Object entity, Object[] state, String[] propertyNames) {
+		count(entity, state, propertyNames, -1);
+	}
+
+	/**
+	 * Counts a sync record or server record being updated, if its previous state is known
+	 */
+	public static void onFlushDirty(Object entity, Object[] currentState, Object[] previousState, String[] propertyNames) {
+		if (previousState == null || !(entity instanceof SyncRecord || entity instanceof SyncServerRecord))
+			return;
+		count(entity, previousState, propertyNames, -1);
+		count(entity, currentState, propertyNames, 1);
+	}
+
+	private static void count(Object entity, Object[] values, String[] propertyNames, int change) {
+		if (values == null)
+			return;
+
+		if (entity instanceof SyncRecord) {
+			// only the records created on this server are waiting to be sent to the parent
+			Object uuid = getValue(values, propertyNames, "uuid");
+			if (uuid != null && uuid.equals(getValue(values, propertyNames, "originalUuid")))
+				add(SyncStateCount.LOCAL_SERVER_ID, getStateName(values, propertyNames), change);
+		} else if (entity instanceof SyncServerRecord) {
+			RemoteServer server = (RemoteServer) getValue(values, propertyNames, "syncServer");
+			if (server != null)
+				add(server.getServerId(), getStateName(values, propertyNames), change);
+		}
+	}
+
+	private static String getStateName(Object[] values, String[] propertyNames) {
+		SyncRecordState state = (SyncRecordState) getValue(values, propertyNames, "state");
+		return state == null ? null : state.name();
+	}
+
+	private static Object getValue(Object[] values, String[] propertyNames, String propertyName) {
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (propertyName.equals(propertyNames[i]))
+				return values[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Inserts the changes collected so far by the current thread into the counts, using the
+	 * connection of the given session so that they are part of its transaction, which fails if
+	 * they cannot be.
+	 *
+	 * @param session the current session
+	 * @throws SyncException if the changes cannot be inserted
+	 */
+	@SuppressWarnings("deprecation")
+	public static void apply(Session session) {
+		Map<Integer, Map<String, Integer>> pending = changes.get();
+		if (pending == null)
+			return;
+		changes.remove();
+
+		PreparedStatement insert = null;
+		try {
+			insert = session.connection().prepareStatement(
+			    "insert into sync_state_count (server_id, state, record_count) values (?, ?, ?)");
+			boolean any = false;
+			for (Map.Entry<Integer, Map<String, Integer>> server : pending.entrySet()) {
+				for (Map.Entry<String, Integer> state : server.getValue().entrySet()) {
+					if (state.getValue() == 0)
+						continue;
+					insert.setInt(1, server.getKey());
+					insert.setString(2, state.getKey());
+					insert.setInt(3, state.getValue());
+					insert.addBatch();
+					any = true;
+				}
+			}
+			if (any)
+				insert.executeBatch();
+		}
+		catch (SQLException e) {
+			throw new SyncException("Unable to update the sync state counts", e);
+		}
+		finally {
+			close(insert);
+		}
+	}
+
+	/**
+	 * Forgets the changes collected by the current thread, e.g. after a rollback
+	 */
+	public static void clear() {
+		changes.remove();
+	}
+
+	private static void close(PreparedStatement statement) {
+		if (statement != null) {
+			try {
+				statement.close();
+			}
+			catch (SQLException e) {
+				log.warn("Unable to close the statement", e);
+			}
+		}
+	}
+}
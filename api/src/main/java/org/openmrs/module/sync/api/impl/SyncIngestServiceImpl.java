@@ -19,10 +19,8 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.Concept;
 import org.openmrs.ConceptName;
 import org.openmrs.OpenmrsObject;
-import org.openmrs.Person;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.db.SerializedObject;
 import org.openmrs.module.ModuleUtil;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncItem;
@@ -38,6 +36,8 @@ import org.openmrs.module.sync.api.db.SyncDAO;
 import org.openmrs.module.sync.api.db.hibernate.HibernateSyncInterceptor;
 import org.openmrs.module.sync.ingest.SyncImportItem;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.ingest.SyncIngestDeferredActions;
+import org.openmrs.module.sync.ingest.SyncIngestPlanner;
 import org.openmrs.module.sync.ingest.SyncIngestException;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
@@ -48,14 +48,23 @@ import org.w3c.dom.NodeList;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class SyncIngestServiceImpl implements SyncIngestService {
 
     private Log log = LogFactory.getLog(this.getClass());
     
+    /**
+     * The subclass stubs of the record being processed on this thread that are not written yet, see
+     * {@link #processSyncSubclassStub(SyncSubclassStub)}
+     */
+    private static final ThreadLocal<List<SyncSubclassStub>> pendingSubclassStubs = new ThreadLocal<List<SyncSubclassStub>>();
+    
     private SyncDAO dao;
     
     public void setSyncDAO(SyncDAO dao) {
@@ -75,24 +84,15 @@ public class SyncIngestServiceImpl implements SyncIngestService {
                 if (record == null) return;
                 if ( server.getServerType().equals(RemoteServerType.PARENT) ) {
                     // with parents, we set the actual state of the record
-                    if ( importRecord.getState().equals(SyncRecordState.ALREADY_COMMITTED) ) record.setState(SyncRecordState.COMMITTED);
-                    else if ( importRecord.getState().equals(SyncRecordState.REJECTED) ) {
-                    		record.setState(SyncRecordState.FAILED); 
-                    		log.error("Sync Response for record " + record.getUuid() + " returned REJECTED, meaning that the failure on the target server was caused by openmrs version differences." );
-                    } else if ( importRecord.getState().equals(SyncRecordState.NOT_SUPPOSED_TO_SYNC) ) record.setState(SyncRecordState.REJECTED);
-                    else record.setState(importRecord.getState());
+                    record.setState(getAcknowledgedState(importRecord));
                 } else {
                     // with non-parents we set state in the server-record
                     SyncServerRecord serverRecord = record.getServerRecord(server);
-                    if ( importRecord.getState().equals(SyncRecordState.ALREADY_COMMITTED) ) serverRecord.setState(SyncRecordState.COMMITTED);
-                    else if ( importRecord.getState().equals(SyncRecordState.REJECTED) ) {
-                    		serverRecord.setState(SyncRecordState.FAILED);
-                    		log.error("Sync Response for record " + record.getUuid() + " returned REJECTED, meaning that the failure on the target server was caused by openmrs version differences." );
-                    } else if ( importRecord.getState().equals(SyncRecordState.NOT_SUPPOSED_TO_SYNC) ) serverRecord.setState(SyncRecordState.REJECTED);
-                    else serverRecord.setState(importRecord.getState());
+                    serverRecord.setState(getAcknowledgedState(importRecord));
                     
                     // record (or clear out) the error message for this server and this record
                     serverRecord.setErrorMessage(importRecord.getErrorMessage());
+                    record.addServerRecord(serverRecord);
                 }
                 
                 Context.getService(SyncService.class).updateSyncRecord(record);
@@ -100,6 +100,70 @@ public class SyncIngestServiceImpl implements SyncIngestService {
         }        
     }
     
+    /**
+     * @see org.openmrs.module.sync.api.SyncIngestService#processSyncImportRecords(Collection, RemoteServer)
+     */
+    public void processSyncImportRecords(Collection<SyncImportRecord> importRecords, RemoteServer server) throws APIException {
+        if (importRecords == null || importRecords.isEmpty())
+            return;
+        
+        List<String> uuids = new ArrayList<String>();
+        for (SyncImportRecord importRecord : importRecords) {
+            if (importRecord != null && importRecord.getUuid() != null && importRecord.getState() != null)
+                uuids.add(importRecord.getUuid());
+        }
+        SyncService syncService = Context.getService(SyncService.class);
+        Map<String, Integer> recordIds = syncService.getSyncRecordIdsByOriginalUuid(uuids);
+        
+        // group the acknowledged records by the state (and error message) they end up with
+        Map<SyncRecordState, List<Integer>> byState = new HashMap<SyncRecordState, List<Integer>>();
+        Map<String, List<Integer>> byErrorMessage = new HashMap<String, List<Integer>>();
+        for (SyncImportRecord importRecord : importRecords) {
+            Integer recordId = importRecord == null ? null : recordIds.get(importRecord.getUuid());
+            // ignore the incoming ack if matching sync record cannot be found
+            if (recordId == null || importRecord.getState() == null)
+                continue;
+            addToGroup(byState, getAcknowledgedState(importRecord), recordId);
+            addToGroup(byErrorMessage, importRecord.getErrorMessage(), recordId);
+        }
+        
+        boolean isParent = server.getServerType().equals(RemoteServerType.PARENT);
+        for (Map.Entry<SyncRecordState, List<Integer>> group : byState.entrySet()) {
+            if (isParent)
+                syncService.updateSyncRecordStates(group.getValue(), group.getKey(), false);
+            else
+                syncService.updateSyncServerRecordStates(server, group.getValue(), group.getKey(), false);
+        }
+        if (!isParent) {
+            // record (or clear out) the error message for this server and these records
+            for (Map.Entry<String, List<Integer>> group : byErrorMessage.entrySet()) {
+                syncService.updateSyncServerRecordErrorMessages(server, group.getValue(), group.getKey());
+            }
+        }
+    }
+    
+    private static <K> void addToGroup(Map<K, List<Integer>> groups, K key, Integer recordId) {
+        List<Integer> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<Integer>();
+            groups.put(key, group);
+        }
+        group.add(recordId);
+    }
+    
+    /**
+     * @return the state to give to the local record (or server record) that the given
+     *         acknowledgement is about
+     */
+    private SyncRecordState getAcknowledgedState(SyncImportRecord importRecord) {
+        if ( importRecord.getState().equals(SyncRecordState.ALREADY_COMMITTED) ) return SyncRecordState.COMMITTED;
+        else if ( importRecord.getState().equals(SyncRecordState.REJECTED) ) {
+            log.error("Sync Response for record " + importRecord.getUuid() + " returned REJECTED, meaning that the failure on the target server was caused by openmrs version differences." );
+            return SyncRecordState.FAILED;
+        } else if ( importRecord.getState().equals(SyncRecordState.NOT_SUPPOSED_TO_SYNC) ) return SyncRecordState.REJECTED;
+        else return importRecord.getState();
+    }
+    
     /**
      * Applies  synchronization record against the local data store in single transaction.  
      * <p/> Remarks: Exceptions are always thrown if something goes wrong while processing the record in order to abort sync items as 
@@ -116,8 +180,11 @@ public class SyncIngestServiceImpl implements SyncIngestService {
      * persistensortedset; this overrides remove() method and by calling remove()/add() the actual 'delete' to the 
      * database is generated.
      * To deal with this issue, simply process all patient identifier inserts and deletes first, and only then
-     * process updates that can potentially mess up the treeset order. The long-term fix to this is not to use
-     * treesets for collection of mutable objects such as patient.identifiers in core.
+     * process updates that can potentially mess up the treeset order, and re-sort the affected sets before the
+     * record is flushed. The long-term fix to this is not to use treesets for collection of mutable objects such
+     * as patient.identifiers in core.
+     * <p/> The order in which items are applied is determined by {@link SyncIngestPlanner}; the record is applied
+     * with flushing suspended and written with a single flush at the end.
      * 
      * @param record SyncRecord to be processed
      * @param server Server where the record came from
@@ -125,10 +192,6 @@ public class SyncIngestServiceImpl implements SyncIngestService {
      */
     public SyncImportRecord processSyncRecord(SyncRecord record, RemoteServer server) throws SyncIngestException {
         
-    	ArrayList<SyncItem> deletedItems = new ArrayList<SyncItem>();
-    	Map<String, Class> deletedObjects = new HashMap<String, Class>(); // actual openmrsobjects deleted.  so that we don't try to process them again when saving/updating things in the treeSetItems list
-    	ArrayList<SyncItem> treeSetItems = new ArrayList<SyncItem>();  //these are processed out of order.  See method comments.
-    	ArrayList<SyncItem> regularNewAndUpdateItems = new ArrayList<SyncItem>();  //inserts and updates
     	SyncImportRecord importRecord = new SyncImportRecord();
         importRecord.setState(SyncRecordState.FAILED);  // by default, until we know otherwise
         importRecord.setRetryCount(record.getRetryCount());
@@ -197,98 +260,58 @@ public class SyncIngestServiceImpl implements SyncIngestService {
                 	
                     boolean isError = false;
                             
-                    //as we start setting properties, suspend session flushing 
+                    //as we start setting properties, suspend session flushing: the planner orders the items
+                    //and only asks for a flush where an item needs an object created before it
                     syncService.setFlushModeManual();
-
-                    // for each sync item, process it and insert/update the database; 
-                    //put deletes into deletedItems collection -- these will get processed last
-                    for ( SyncItem item : record.getItems() ) {
-                    	//System.out.println("item: " + item.getContainedType() + " state: " + item.getState());
-                    	//System.out.println("content: " + item.getContent());
-                    	if (item.getState() == SyncItemState.DELETED) {
-                    		deletedItems.add(item);
-                    	}
-						else if (item.getState() == SyncItemState.UPDATED && item.getContainedType() != null && (
-                    			   "org.openmrs.PatientIdentifier".equals(item.getContainedType().getName())
-                    			|| "org.openmrs.PersonAttribute".equals(item.getContainedType().getName())
-                    			|| "org.openmrs.PersonAddress".equals(item.getContainedType().getName())
-                    			|| "org.openmrs.PersonName".equals(item.getContainedType().getName())
-                    			)) {
-                    		treeSetItems.add(item);
-                    	}
-						else if (Person.class.isAssignableFrom(item.getContainedType()) || Concept.class.isAssignableFrom(item.getContainedType()) || SyncSubclassStub.class.isAssignableFrom(item.getContainedType())
-                    			|| SerializedObject.class.isAssignableFrom(item.getContainedType())){
-                    		//Sync-180: Person items need to be processed first, Concept exhibited same behavior.
+                    SyncIngestPlanner planner = new SyncIngestPlanner(record);
+                    
+                    //subclass stubs that follow each other are written together, before the next item that may need them
+                    List<SyncSubclassStub> stubs = new ArrayList<SyncSubclassStub>();
+                    pendingSubclassStubs.set(stubs);
+                    try {
+	                    for ( SyncItem item : planner.getPlannedItems() ) {
+	                    	boolean isStub = item.getContainedType() != null && SyncSubclassStub.class.isAssignableFrom(item.getContainedType());
+	                    	if (!isStub) {
+	                    		writeSubclassStubs(stubs);
+	                    	}
+	                    	//nothing is created between stubs that follow each other, one flush before the first will do
+	                    	if (planner.isFlushNeededBefore(item) && (!isStub || stubs.isEmpty())) {
+	                    		syncService.flushSession();
+	                    	}
 		                    SyncImportItem importedItem = syncIngestService.processSyncItem(item, record.getOriginalUuid() + "|" + server.getUuid(), processedObjects);
 		                    importedItem.setKey(item.getKey());
 		                    importRecord.addItem(importedItem);
 		                    if ( !importedItem.getState().equals(SyncItemState.SYNCHRONIZED)) isError = true;
-                    	}
-						else {
-                    		regularNewAndUpdateItems.add(item);
-                    	}
+	                    }
+	                    writeSubclassStubs(stubs);
                     }
-
-                    for (SyncItem item : regularNewAndUpdateItems){
-	                    SyncImportItem importedItem = syncIngestService.processSyncItem(item, record.getOriginalUuid() + "|" + server.getUuid(), processedObjects);
-	                    importedItem.setKey(item.getKey());
-	                    importRecord.addItem(importedItem);
-	                    if ( !importedItem.getState().equals(SyncItemState.SYNCHRONIZED)) isError = true;
+                    finally {
+                    	pendingSubclassStubs.remove();
                     }
                     
-                    syncService.flushSession();
-                    syncService.setFlushModeAutomatic();
-                    Context.clearSession(); // so that objects aren't resaved at next flush below
-                    
-                    /* now run through deletes: deletes must be processed after inserts/updates
-                     * because of hibernate flushing semantics inside transactions:
-                     * if deleted entity is part of a collection on another object within the same session
-                     * and this object gets flushed, error is thrown stating that deleted entities must first be removed
-                     * from collection; this happens immediately when stmts are executed (and not at the Tx boundary) because
-                     * default hibernate FlushMode is AUTO. To further avoid this issue, explicitly suspend flushing for the 
-                     * duration of deletes.
+                    /* deletes and sorted-set updates have been applied against objects that may still be loaded
+                     * in the session, see SyncIngestPlanner: take deleted objects out of loaded parent collections
+                     * so they are not re-saved by cascade and restore the order of the sorted sets
                      */
-                	syncService.setFlushModeManual(); 
-                    for ( SyncItem item : deletedItems ) {
-                        SyncImportItem importedItem = this.processSyncItem(item, record.getOriginalUuid() + "|" + server.getUuid(), processedObjects);
-                        importedItem.setKey(item.getKey());
-                        importRecord.addItem(importedItem);
-                        // save this object for later so we're sure to not update it when processing the "treesetitems"
-                        deletedObjects.put((String)item.getKey().getKeyValue(), item.getContainedType());
-                        if ( !importedItem.getState().equals(SyncItemState.SYNCHRONIZED)) isError = true;
+                    List<SyncProcessedObject> allProcessed = new ArrayList<SyncProcessedObject>();
+                    for (List<SyncProcessedObject> objects : processedObjects.values()) {
+                    	allProcessed.addAll(objects);
                     }
-                    syncService.flushSession();
-                    syncService.setFlushModeAutomatic();
-                    Context.clearSession(); // so that objects aren't resaved at next flush below
+                    SyncIngestPlanner.detachFromLoadedCollections(allProcessed);
+                    SyncIngestPlanner.resortLoadedTreeSets(allProcessed);
                     
-                    /* Run through the updates for patient props that are treesets, see the method comments to understand
-                     * why this is done here. 
-                     */
-                    syncService.setFlushModeManual(); 
-                    for ( SyncItem item : treeSetItems ) {
-                    	if (item.getContainedType().equals(deletedObjects.get((String)item.getKey().getKeyValue()))) {
-                    		log.debug("skipping update of " + item.getContainedType() + ":" + item.getKey() + " because we just deleted it");
-                    		continue;
-                    	}
-                    	
-                    	//why is the identifier not getting into a sync item?
-                        SyncImportItem importedItem = syncIngestService.processSyncItem(item, record.getOriginalUuid() + "|" + server.getUuid(), processedObjects);
-                        importedItem.setKey(item.getKey());
-                        importRecord.addItem(importedItem);
-                        if ( !importedItem.getState().equals(SyncItemState.SYNCHRONIZED)) isError = true;
-                    }
-                    syncService.flushSession();
-                    syncService.setFlushModeAutomatic();
-                    Context.clearSession(); // so that objects aren't resaved at next flush below
-                   
                     /* 
                      * finally execute the pending actions that resulted from processing all sync items 
                      */
-                    syncService.setFlushModeManual();
                     syncIngestService.applyPreCommitRecordActions(processedObjects);
-                    syncService.flushSession();
+                    try {
+                    	syncService.flushSession();
+                    }
+                    catch (Exception e) {
+                    	log.error("Unable to flush the changes of SyncRecord with original uuid " + record.getOriginalUuid(), e);
+                    	throw new SyncIngestException(e, SyncConstants.ERROR_ITEM_NOT_COMMITTED, e.getMessage(), null, importRecord);
+                    }
                     syncService.setFlushModeAutomatic();
-                    Context.clearSession(); // so that objects aren't resaved at next flush below
                     
                     if ( !isError ) {
                         importRecord.setState(SyncRecordState.COMMITTED);
@@ -378,19 +401,55 @@ public class SyncIngestServiceImpl implements SyncIngestService {
 			
 		}
 		
-		// fix concept words for all names found
+		// fix concept words for all names found, once per concept; while a transmission is being
+		// processed this is deferred to its end, see SyncIngestDeferredActions
 		List<SyncProcessedObject> names = processedObjects.get("org.openmrs.ConceptName");
 		if (names != null) {
+			Set<Integer> conceptIds = new LinkedHashSet<Integer>();
 			for (SyncProcessedObject o : names) {
 				// we only want to update the concept words if this is NOT a delete action
 				if (o.getState() != SyncItemState.DELETED) {
-                    // we need to reload the concept here because the session has been cleared earlier
-					Concept c = Context.getConceptService().getConcept(((ConceptName) o.getObject()).getConcept().getId());
+					conceptIds.add(((ConceptName) o.getObject()).getConcept().getId());
+				}
+			}
+			for (Integer conceptId : conceptIds) {
+				if (!SyncIngestDeferredActions.deferConceptWordUpdate(conceptId)) {
+					Concept c = Context.getConceptService().getConcept(conceptId);
 					Context.getConceptService().updateConceptWord(c);
 				}
 			}
 		}
 	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncIngestService#updateConceptWords(java.util.Collection)
+	 */
+	public void updateConceptWords(Collection<Integer> conceptIds) throws APIException {
+		// keep the session small for large dictionary pushes, evicting only the concepts loaded here:
+		// the caller still holds other objects of the session
+		List<Concept> loaded = new ArrayList<Concept>();
+		for (Integer conceptId : conceptIds) {
+			Concept c = Context.getConceptService().getConcept(conceptId);
+			if (c != null) {
+				Context.getConceptService().updateConceptWord(c);
+				loaded.add(c);
+			}
+			if (loaded.size() == 100) {
+				evictConcepts(loaded);
+			}
+		}
+		evictConcepts(loaded);
+	}
+	
+	private void evictConcepts(List<Concept> concepts) {
+		if (concepts.isEmpty())
+			return;
+		Context.flushSession();
+		for (Concept c : concepts) {
+			Context.evictFromSession(c);
+		}
+		concepts.clear();
+	}
     
     /**
      * Note: preCommitRecordActions collection is provided as a way for the OpenmrsObject instances to 'schedule' action that is necessary
@@ -456,15 +515,51 @@ public class SyncIngestServiceImpl implements SyncIngestService {
 
     /**
      * Takes steps necessary to handle ingest of {@link SyncSubclassStub} by calling 
-     * {@link SyncDAO#processSyncSubclassStub(SyncSubclassStub)} 
+     * {@link SyncDAO#processSyncSubclassStub(SyncSubclassStub)}. While a sync record is being processed
+     * the stub is held back instead, and written in one batch with the stubs next to it.
      * 
      * param stub {@link SyncSubclassStub} to be saved.
      */
     public void processSyncSubclassStub(SyncSubclassStub stub) throws APIException {
+    	List<SyncSubclassStub> stubs = pendingSubclassStubs.get();
+    	if (stubs != null) {
+    		//a record is being processed: written with the stubs that follow it, see processSyncRecord
+    		stubs.add(stub);
+    		return;
+    	}
     	dao.processSyncSubclassStub(stub);
     	return;
     }
     
+    /**
+     * Writes the given pending subclass stubs of the record being processed in one go, and empties
+     * the list
+     * 
+     * @param stubs the stubs not written yet
+     * @throws SyncIngestException if the stub rows could not be written
+     */
+    private void writeSubclassStubs(List<SyncSubclassStub> stubs) throws SyncIngestException {
+    	if (stubs.isEmpty())
+    		return;
+    	try {
+    		dao.processSyncSubclassStubs(stubs);
+    	}
+    	catch (Exception e) {
+    		log.error("Unable to write " + stubs.size() + " subclass stubs", e);
+    		throw new SyncIngestException(e, SyncConstants.ERROR_ITEM_NOT_COMMITTED, e.getMessage(), null, null);
+    	}
+    	finally {
+    		stubs.clear();
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.sync.api.SyncIngestService#processSyncSubclassStubs(java.util.List)
+     */
+    public void processSyncSubclassStubs(List<SyncSubclassStub> stubs) throws APIException {
+    	dao.processSyncSubclassStubs(stubs);
+    }
+    
     
     /**
      * Processes serialized SyncItem state by attempting to hydrate the object SyncItem represents and then using OpenMRS service layer to
@@ -557,8 +652,8 @@ public class SyncIngestServiceImpl implements SyncIngestService {
 	        // now try to commit this fully inflated object
 	        try {
 	        	log.debug("About to update or create a " + className + " object, uuid: '" + uuid + "'");
+	            // no flush here: the changes are written when the whole record is flushed, see processSyncRecord
 	            SyncUtil.updateOpenmrsObject(o, className, uuid);
-	            Context.getService(SyncService.class).flushSession();
 	        } catch ( Exception e ) {
 	        	// don't include stacktrace here because the parent classes log it sufficiently
 	        	log.error("Unexpected exception occurred while saving openmrsobject: " + className + ", uuid '" + uuid + "'");
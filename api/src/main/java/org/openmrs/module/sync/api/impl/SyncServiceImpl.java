@@ -18,6 +18,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -39,22 +40,26 @@ import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.api.db.SerializedObjectDAO;
+import org.openmrs.module.sync.SyncArchive;
 import org.openmrs.module.sync.SyncClass;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncServerClass;
 import org.openmrs.module.sync.SyncStatistic;
+import org.openmrs.module.sync.SyncTransmissionPrebuilder;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.api.db.SyncDAO;
 import org.openmrs.module.sync.api.db.hibernate.HibernateSyncInterceptor;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.server.BackportProgress;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
 import org.openmrs.module.sync.server.SyncServerRecord;
-import org.openmrs.util.OpenmrsConstants;
 
 /**
  * Default implementation of the {@link SyncService}
@@ -135,13 +140,23 @@ public class SyncServiceImpl implements SyncService {
 				log.debug("IN createSyncRecord(), SERVERRECORDS ARE NULL, SO SETTING DEFAULTS");
 				serverRecords = new HashSet<SyncServerRecord>();
 				List<RemoteServer> servers = this.getRemoteServers();
+				boolean watermarkMode = SyncConstants.JOURNAL_MODE_WATERMARK.equals(Context.getAdministrationService()
+				        .getGlobalProperty(SyncConstants.PROPERTY_JOURNAL_MODE, SyncConstants.PROPERTY_JOURNAL_MODE_DEFAULT));
 				if (servers != null) {
 					for (RemoteServer server : servers) {
 						// we only need to create extra server-records for servers that are NOT the parent - the parent state is kept in the actual sync record
 						if (!server.getServerType().equals(RemoteServerType.PARENT)) {
-							SyncServerRecord serverRecord = new SyncServerRecord(server, record);
 							// can't compare with .equals because of so many variables in it. SYNC-227
-							if (server != null && origin != null && server.getServerId().equals(origin.getServerId())) {
+							boolean fromServer = server != null && origin != null
+							        && server.getServerId().equals(origin.getServerId());
+							if (watermarkMode) {
+								startRecordWatermark(server);
+								// the record is new for the server as long as it is beyond its watermark
+								if (!fromServer)
+									continue;
+							}
+							SyncServerRecord serverRecord = new SyncServerRecord(server, record);
+							if (fromServer) {
 								log.info("this record came from server " + origin.getNickname()
 								        + ", so we will set its status to commmitted");
 								serverRecord.setState(SyncRecordState.COMMITTED);
@@ -154,6 +169,21 @@ public class SyncServiceImpl implements SyncService {
 			}
 			
 			getSynchronizationDAO().createSyncRecord(record);
+			SyncTransmissionPrebuilder.recordCreated(record);
+		}
+	}
+	
+	/**
+	 * Starts keeping a record watermark for the given child server, from the last sync record
+	 * created so far: the earlier records were either given a server record of their own or not
+	 * meant for this server.
+	 */
+	private void startRecordWatermark(RemoteServer server) {
+		if (server.getRecordWatermark() == null) {
+			Integer lastRecordId = getSynchronizationDAO().getLastSyncRecordId();
+			server.setRecordWatermark(lastRecordId == null ? 0 : lastRecordId);
+			getSynchronizationDAO().saveRemoteServer(server);
+			log.info("Keeping a record watermark for " + server.getNickname() + " from record " + server.getRecordWatermark());
 		}
 	}
 	
@@ -178,6 +208,45 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getSyncRecords(query);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncRecords(java.lang.String, java.lang.Integer,
+	 *      java.lang.Integer)
+	 */
+	public List<SyncRecord> getSyncRecords(String keyword, Integer firstResult, Integer maxResults) throws APIException {
+		return getSynchronizationDAO().getSyncRecords(keyword, firstResult, maxResults);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getCountOfSyncRecords(java.lang.String)
+	 */
+	public Long getCountOfSyncRecords(String keyword) throws APIException {
+		return getSynchronizationDAO().getCountOfSyncRecords(keyword);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#indexSyncRecords(int)
+	 */
+	public int indexSyncRecords(int maxRecords) throws APIException {
+		Integer pendingRecordId = null;
+		try {
+			pendingRecordId = Integer.valueOf(getSynchronizationDAO().getGlobalProperty(
+			    SyncConstants.PROPERTY_SEARCH_INDEX_PENDING_RECORD_ID));
+		}
+		catch (NumberFormatException e) {
+			// not known, start from the last record
+			Integer lastRecordId = getSynchronizationDAO().getLastSyncRecordId();
+			pendingRecordId = (lastRecordId == null) ? 0 : lastRecordId;
+		}
+		if (pendingRecordId <= 0)
+			return 0;
+		
+		int from = Math.max(0, pendingRecordId - Math.max(1, maxRecords));
+		getSynchronizationDAO().indexSyncRecords(from + 1, pendingRecordId + 1);
+		getSynchronizationDAO().setGlobalProperty(SyncConstants.PROPERTY_SEARCH_INDEX_PENDING_RECORD_ID,
+		    String.valueOf(from));
+		return from;
+	}
+	
 	/**
 	 * @see org.openmrs.api.SyncService#getSyncRecord(java.lang.Integer)
 	 */
@@ -196,6 +265,40 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getSyncRecordByOriginalUuid(originalUuid);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncRecordIdsByOriginalUuid(java.util.Collection)
+	 */
+	public Map<String, Integer> getSyncRecordIdsByOriginalUuid(Collection<String> originalUuids) throws APIException {
+		return getSynchronizationDAO().getSyncRecordIdsByOriginalUuid(originalUuids);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#updateSyncRecordStates(java.util.Collection,
+	 *      org.openmrs.module.sync.SyncRecordState, boolean)
+	 */
+	public int updateSyncRecordStates(Collection<Integer> recordIds, SyncRecordState state, boolean incrementRetryCount)
+	    throws APIException {
+		return getSynchronizationDAO().updateSyncRecordStates(recordIds, state, incrementRetryCount);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#updateSyncServerRecordStates(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.Collection, org.openmrs.module.sync.SyncRecordState, boolean)
+	 */
+	public int updateSyncServerRecordStates(RemoteServer server, Collection<Integer> recordIds, SyncRecordState state,
+	                                        boolean incrementRetryCount) throws APIException {
+		return getSynchronizationDAO().updateSyncServerRecordStates(server, recordIds, state, incrementRetryCount);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#updateSyncServerRecordErrorMessages(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.Collection, java.lang.String)
+	 */
+	public int updateSyncServerRecordErrorMessages(RemoteServer server, Collection<Integer> recordIds,
+	                                               String errorMessage) throws APIException {
+		return getSynchronizationDAO().updateSyncServerRecordErrorMessages(server, recordIds, errorMessage);
+	}
+	
 	/**
 	 * @see org.openmrs.api.SyncService#getLatestRecord()
 	 */
@@ -231,6 +334,13 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getSyncImportRecord(uuid);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncImportRecordStates(java.util.Collection)
+	 */
+	public Map<String, SyncRecordState> getSyncImportRecordStates(Collection<String> uuids) throws APIException {
+		return getSynchronizationDAO().getSyncImportRecordStates(uuids);
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.SyncService#getOlderSyncRecordInState(org.openmrs.module.sync.SyncRecord,
 	 *      java.util.EnumSet)
@@ -273,7 +383,6 @@ public class SyncServiceImpl implements SyncService {
 	 */
 	public List<SyncRecord> getSyncRecords(SyncRecordState[] states, RemoteServer server, Integer maxSyncRecords, Integer firstRecordId)
 	                                                                                                             throws APIException {
-		List<SyncRecord> temp = null;
 		List<SyncRecord> ret = null;
 		
 		if (server != null) {
@@ -284,6 +393,28 @@ public class SyncServiceImpl implements SyncService {
 			}
 		}
 		
+		return filterForServer(ret, server);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncRecordsAfter(org.openmrs.module.sync.SyncRecordState[],
+	 *      org.openmrs.module.sync.server.RemoteServer, java.lang.Integer,
+	 *      org.openmrs.module.sync.SyncRecord)
+	 */
+	public List<SyncRecord> getSyncRecordsAfter(SyncRecordState[] states, RemoteServer server, Integer maxSyncRecords,
+	                                            SyncRecord after) throws APIException {
+		if (server == null)
+			return null;
+		
+		// the state of the records sent to the parent is kept on the records themselves
+		RemoteServer restrictTo = server.getServerType().equals(RemoteServerType.PARENT) ? null : server;
+		return filterForServer(getSynchronizationDAO().getSyncRecordsAfter(states, maxSyncRecords, restrictTo, after),
+		    server);
+	}
+	
+	private List<SyncRecord> filterForServer(List<SyncRecord> ret, RemoteServer server) {
+		List<SyncRecord> temp = null;
+		
 		// filter out classes that are not supposed to be sent to the specified server
 		// and update their status
 		if (ret != null) {
@@ -300,13 +431,11 @@ public class SyncServiceImpl implements SyncService {
 						record.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
 					} else {
 						// if not the parent, we have to update the record for this specific server
-						Set<SyncServerRecord> records = record.getServerRecords();
-						for (SyncServerRecord serverRecord : records) {
-							if (serverRecord.getSyncServer().equals(server)) {
-								serverRecord.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
-							}
+						SyncServerRecord serverRecord = record.getServerRecord(server);
+						if (serverRecord != null) {
+							serverRecord.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
+							record.addServerRecord(serverRecord);
 						}
-						record.setServerRecords(records);
 					}
 					this.updateSyncRecord(record);
 				}
@@ -375,6 +504,15 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getSyncRecords(from, to, null, null, true);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#processSyncRecords(org.openmrs.module.sync.SyncRecordState[],
+	 *      java.util.Date, java.util.Date, org.openmrs.module.sync.SyncRecordHandler)
+	 */
+	public int processSyncRecords(SyncRecordState[] states, Date from, Date to, SyncRecordHandler handler)
+	    throws APIException {
+		return getSynchronizationDAO().processSyncRecords(states, from, to, handler);
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.SyncService#getSyncRecords(java.lang.Integer,
 	 *      java.lang.Integer)
@@ -388,7 +526,19 @@ public class SyncServiceImpl implements SyncService {
 	 *      java.util.Date)
 	 */
 	public Integer deleteSyncRecords(SyncRecordState[] states, Date to) throws APIException {
-		
+		return getSynchronizationDAO().deleteSyncRecords(getStatesToDelete(states), to);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#deleteSyncRecords(org.openmrs.module.sync.SyncRecordState[],
+	 *      java.util.Date, int, int, org.openmrs.module.sync.SyncArchive)
+	 */
+	public int deleteSyncRecords(SyncRecordState[] states, Date to, int fromRecordId, int toRecordId, SyncArchive archive)
+	    throws APIException {
+		return getSynchronizationDAO().deleteSyncRecords(getStatesToDelete(states), to, fromRecordId, toRecordId, archive);
+	}
+	
+	private SyncRecordState[] getStatesToDelete(SyncRecordState[] states) {
 		// if no states passed in, then decide based on current server setup
 		if (states == null || states.length == 0) {
 			
@@ -402,8 +552,7 @@ public class SyncServiceImpl implements SyncService {
 				states = new SyncRecordState[] { SyncRecordState.NOT_SUPPOSED_TO_SYNC, SyncRecordState.COMMITTED };
 			}
 		}
-		
-		return getSynchronizationDAO().deleteSyncRecords(states, to);
+		return states;
 	}
 	
 	/**
@@ -650,6 +799,13 @@ public class SyncServiceImpl implements SyncService {
 		return stats;
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#rebuildSyncStateCounts()
+	 */
+	public void rebuildSyncStateCounts() throws APIException {
+		getSynchronizationDAO().rebuildSyncStateCounts();
+	}
+	
 	public <T extends OpenmrsObject> T getOpenmrsObjectByUuid(Class<T> clazz, String uuid) {
 		T ret = dao.getOpenmrsObjectByUuid(clazz, uuid);
 		if (ret == null) {
@@ -678,9 +834,7 @@ public class SyncServiceImpl implements SyncService {
 	public void importParentDB(InputStream in) throws APIException {
 		getSynchronizationDAO().importParentDB(in);
 		//Delete any data kept into sync journal after clone of the parent DB
-		for (SyncRecord record : this.getSynchronizationDAO().getSyncRecords()) {
-			this.getSynchronizationDAO().deleteSyncRecord(record);
-		}
+		getSynchronizationDAO().deleteSyncJournal();
 	}
 	
 	/**
@@ -689,10 +843,10 @@ public class SyncServiceImpl implements SyncService {
 	public File generateDataFile() throws APIException {
 		File dir = SyncUtil.getSyncApplicationDir();
 		String fileName = SyncConstants.CLONE_IMPORT_FILE_NAME + SyncConstants.SYNC_FILENAME_MASK.format(new Date())
-		        + ".sql";
+		        + ".sql.gz";
 		String[] ignoreTables = { "hl7_in_archive", "hl7_in_queue", "hl7_in_error", "formentry_archive", "formentry_queue",
-		        "formentry_error", "sync_class", "sync_import", "sync_record", "sync_server", "sync_server_class",
-		        "sync_server_record" };
+		        "formentry_error", "sync_class", "sync_import", "sync_record", "sync_record_token", "sync_server",
+		        "sync_server_class", "sync_server_record", "sync_state_count" };
 		
 		File outputFile = new File(dir, fileName);
 		getSynchronizationDAO().generateDataFile(outputFile, ignoreTables);
@@ -716,9 +870,7 @@ public class SyncServiceImpl implements SyncService {
 		}
 		
 		//Delete any data in sync record after import of the parent DB
-		for (SyncRecord record : this.getSynchronizationDAO().getSyncRecords()) {
-			this.getSynchronizationDAO().deleteSyncRecord(record);
-		}
+		getSynchronizationDAO().deleteSyncJournal();
 	}
 	
 	/**
@@ -863,38 +1015,14 @@ public class SyncServiceImpl implements SyncService {
 			return;
 		}
 		
-		// changing the flush mode temporarily so that nothing is flushed
-		// to the db while we are checking for the uuids
-		boolean wasFlushModeManualAlready = dao.setFlushModeManual();
-		try {
-			//check if person obj exists
-			Object parentId = null;
-			Object subclassId = null;
-			
-			// TODO: Fix this logic when patient_id != person_id anymore
-			List<List<Object>> rows = executeSQLPrivilegeSafe("select " + stub.getParentTableId() + " from " + stub.getParentTable() + " where uuid = '" + stub.getUuid()
-			        + "'", true);
-			if (rows.size() > 0)
-				parentId = rows.get(0).get(0);
-			
-			rows = executeSQLPrivilegeSafe(
-			    "select " + stub.getSubclassTableId() + " from " + stub.getSubclassTable() + " where " + stub.getSubclassTableId() + " = (select " + stub.getParentTableId() + " from " + stub.getParentTable() + " where uuid = '"
-			            + stub.getUuid() + "')", true);
-			
-			if (rows.size() > 0)
-				subclassId = rows.get(0).get(0);
+		// the check runs straight against the connection so nothing pending in the session is flushed
+		// while we are checking for the uuids
+		// TODO: Fix this logic when patient_id != person_id anymore
+		if (dao.isSubclassStubInsertNeeded(stub)) {
+			//bingo!
+			log.info("Create of new parent " + stub.getParentTable() + " who is already other object detected, uuid: " + stub.getUuid());
 			
-			if (parentId != null && subclassId == null) {
-				//bingo!
-				log.info("Create of new parent " + stub.getParentTable() + " who is already other object detected, uuid: " + stub.getUuid());
-				
-				HibernateSyncInterceptor.addSyncItemForSubclassStub(stub);
-			}
-		}
-		finally {
-			// only reset this if we really changed it when setting it to manual
-			if (!wasFlushModeManualAlready)
-				dao.setFlushModeAutomatic();
+			HibernateSyncInterceptor.addSyncItemForSubclassStub(stub);
 		}
 		
 		return;
@@ -906,76 +1034,28 @@ public class SyncServiceImpl implements SyncService {
 	}
 	
 	/**
-	 * Utility method for wrapping executeSQL calls in SQL LEVEL ACCESS privilege, if necessary
-	 * 
-	 * @param sql
-	 * @param selectOnly
-	 * @return
+	 * @see org.openmrs.module.sync.api.SyncService#getPendingSummary(org.openmrs.module.sync.server.RemoteServer)
 	 */
-	private List<List<Object>> executeSQLPrivilegeSafe(String sql, boolean selectOnly) {
-		String privilege = OpenmrsConstants.PRIV_SQL_LEVEL_ACCESS;
-		
-		if (!Context.isAuthenticated() || !Context.hasPrivilege(privilege)) {
-			try {
-				Context.addProxyPrivilege(privilege);
-				return Context.getAdministrationService().executeSQL(sql, selectOnly);
-			}
-			finally {
-				Context.removeProxyPrivilege(privilege);
-			}
-			
-		} else
-			return Context.getAdministrationService().executeSQL(sql, selectOnly);
+	public SyncPendingSummary getPendingSummary(RemoteServer server) throws APIException {
+		if (server.getServerType().equals(RemoteServerType.PARENT))
+			return dao.getPendingSummary(null, SyncConstants.SYNC_TO_PARENT_STATES);
+		return dao.getPendingSummary(server, SyncConstants.SYNC_TO_PARENT_STATES);
 	}
-
 	
-	public Integer backportSyncRecords(RemoteServer server, Date date) {
-		int count = 0;
-		SyncRecord firstRecord = getEarliestRecord(date);
-		SyncRecord latestRecord = getLatestRecord();
-		
-		// we have no sync records, quit early
-		if (firstRecord == null)
-			return 0;
-		
-		// not sure how this would happen without the previous one, but just in case.
-		if (latestRecord == null)
-			return 0;
-		
-		Integer firstRecordId = 0;
-		Integer latestRecordId = latestRecord.getRecordId();
-		
-		System.out.println("first record id: " + firstRecord.getRecordId());
-		System.out.println("latest record id: " + latestRecord.getRecordId());
-		
-		boolean recordsFound = false;
-		
-		do {
-			recordsFound = false;
-			
-			// only getting a small number at a time so that we don't get an OOM
-			for (SyncRecord record : getSynchronizationDAO().getSyncRecords(null, null, firstRecordId, 35, true)) {
-				recordsFound = true;
-				System.out.println("record id: " + record.getRecordId());
-				firstRecordId = record.getRecordId();
-				SyncServerRecord serverRecord = record.getServerRecord(server);
-				if (serverRecord == null) {
-					// if this record is not being sent to this server yet, add it as a SyncServerRecord and send it
-					record.addServerRecord(server);
-					updateSyncRecord(record); // persist to the db
-					count++;
-					System.out.println("saved record id: " + record.getRecordId());
-				}
-				if (count % 50 == 0) {
-					// flush every so often so we don't get an OOM
-					Context.flushSession();
-					Context.clearSession();
-				}
-			}
-			
-		} while (recordsFound == true && firstRecordId != latestRecordId);
-		
-		return count;
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#backportSyncRecords(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.Date, int, int)
+	 */
+	public int backportSyncRecords(RemoteServer server, Date date, int fromRecordId, int toRecordId)
+	    throws APIException {
+		return getSynchronizationDAO().backportSyncRecords(server, date, fromRecordId, toRecordId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getBackportProgress(org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public BackportProgress getBackportProgress(RemoteServer server) {
+		return BackportProgress.get(server);
 	}
 
     /**
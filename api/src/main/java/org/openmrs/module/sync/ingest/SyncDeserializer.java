@@ -13,6 +13,9 @@
  */
 package org.openmrs.module.sync.ingest;
 
+import java.io.InputStream;
+
+import org.openmrs.module.sync.SyncException;
 import org.openmrs.module.sync.SyncTransmission;
 import org.openmrs.module.sync.serialization.Item;
 import org.openmrs.module.sync.serialization.Record;
@@ -51,4 +54,23 @@ public class SyncDeserializer {
 		return str;
 	}
 
+	/**
+	 * Same as {@link #xmlToSyncTransmissionResponse(String)}, parsing the response as it is read
+	 * from the given stream
+	 * 
+	 * @throws SyncException if the response cannot be parsed
+	 */
+	public static SyncTransmissionResponse xmlToSyncTransmissionResponse(InputStream incoming) {
+
+		try {
+			Record xml = Record.create(incoming);
+			Item root = xml.getRootItem();
+			SyncTransmissionResponse str = new SyncTransmissionResponse();
+			str.load(xml, root);
+			return str;
+		} catch (Exception e) {
+			throw new SyncException("Unable to parse the sync transmission response", e);
+		}
+	}
+
 }
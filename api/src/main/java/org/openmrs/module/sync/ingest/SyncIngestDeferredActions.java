@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.ingest;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Per-thread queue of actions that are deferred from the processing of single sync records to the
+ * end of the whole transmission. Currently this holds the concepts whose concept words need to be
+ * rebuilt: a concept dictionary push touches the same concepts from many records, and rebuilding
+ * the words once per record makes these transmissions quadratic.
+ * <p/>
+ * Actions are only deferred between {@link #begin()} and {@link #end()}; outside of that they are
+ * applied right away by the caller, as before. The actions deferred while processing a record are
+ * only kept once {@link #recordProcessed(boolean)} tells that the record was committed. Calls to begin and end may be nested, e.g. when a
+ * transmission is processed from within another one: everything is deferred to the outermost end.
+ *
+ * @see org.openmrs.module.sync.SyncUtilTransmission#processSyncTransmission(org.openmrs.module.sync.SyncTransmission,
+ *      Integer)
+ * @see org.openmrs.module.sync.api.SyncIngestService#applyPreCommitRecordActions(java.util.Map)
+ */
+public class SyncIngestDeferredActions {
+
+	private static final ThreadLocal<Set<Integer>> conceptIdsHolder = new ThreadLocal<Set<Integer>>();
+
+	/**
+	 * The concepts deferred by the record being processed, until it is known whether it committed
+	 */
+	private static final ThreadLocal<Set<Integer>> recordConceptIdsHolder = new ThreadLocal<Set<Integer>>();
+
+	/**
+	 * How many calls to {@link #begin()} have not been ended yet on this thread
+	 */
+	private static final ThreadLocal<Integer> depthHolder = new ThreadLocal<Integer>();
+
+	/**
+	 * Starts collecting deferred actions for the current thread
+	 */
+	public static void begin() {
+		if (conceptIdsHolder.get() == null) {
+			conceptIdsHolder.set(new LinkedHashSet<Integer>());
+			recordConceptIdsHolder.set(new LinkedHashSet<Integer>());
+			depthHolder.set(0);
+		}
+		depthHolder.set(depthHolder.get() + 1);
+	}
+
+	/**
+	 * @return true if actions are currently being deferred on this thread
+	 */
+	public static boolean isDeferring() {
+		return conceptIdsHolder.get() != null;
+	}
+
+	/**
+	 * Queues the rebuild of the concept words of the given concept
+	 *
+	 * @param conceptId the concept
+	 * @return true if the rebuild was deferred, false if the caller needs to apply it right away
+	 */
+	public static boolean deferConceptWordUpdate(Integer conceptId) {
+		Set<Integer> conceptIds = recordConceptIdsHolder.get();
+		if (conceptIds == null)
+			return false;
+		conceptIds.add(conceptId);
+		return true;
+	}
+
+	/**
+	 * Called once a record has been processed, keeping the actions it deferred if it committed and
+	 * dropping them if it was rolled back
+	 *
+	 * @param committed true if the changes of the record were committed
+	 */
+	public static void recordProcessed(boolean committed) {
+		Set<Integer> recordConceptIds = recordConceptIdsHolder.get();
+		if (recordConceptIds == null)
+			return;
+		if (committed)
+			conceptIdsHolder.get().addAll(recordConceptIds);
+		recordConceptIds.clear();
+	}
+
+	/**
+	 * Ends the matching call to {@link #begin()}. Only the outermost call stops collecting deferred
+	 * actions for the current thread and hands them over; nested calls return nothing, their
+	 * actions are applied by the outermost caller.
+	 *
+	 * @return the ids of the concepts whose words are to be rebuilt, each id once, leaving out those
+	 *         of a record not known to be committed
+	 */
+	public static Set<Integer> end() {
+		Set<Integer> conceptIds = conceptIdsHolder.get();
+		if (conceptIds == null)
+			return new LinkedHashSet<Integer>();
+		int depth = depthHolder.get() - 1;
+		if (depth > 0) {
+			depthHolder.set(depth);
+			return new LinkedHashSet<Integer>();
+		}
+		conceptIdsHolder.remove();
+		recordConceptIdsHolder.remove();
+		depthHolder.remove();
+		return conceptIds;
+	}
+}
@@ -0,0 +1,416 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.ingest;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Hibernate;
+import org.openmrs.Concept;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.api.db.SerializedObject;
+import org.openmrs.module.sync.SyncItem;
+import org.openmrs.module.sync.SyncItemState;
+import org.openmrs.module.sync.SyncProcessedObject;
+import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncSubclassStub;
+
+/**
+ * Determines the order in which the items of a single {@link SyncRecord} are applied so that the
+ * whole record can be ingested with flushing suspended, without clearing the session between
+ * groups of items. The session is only flushed at the end and where an item needs what was
+ * applied before it, see {@link #isFlushNeededBefore(SyncItem)}.
+ * <p/>
+ * Items are planned into four groups, in this order:
+ * <ol>
+ * <li>Person, Concept, SerializedObject and SyncSubclassStub items, in their original order
+ * (SYNC-180)</li>
+ * <li>all other inserts and updates, topologically ordered on their many-to-one associations so
+ * that referenced objects that are new in this record are saved before the objects pointing at
+ * them</li>
+ * <li>deletes</li>
+ * <li>updates to objects held in sorted sets (patient.identifiers, person.names, person.addresses
+ * and person.attributes), minus those deleted in the same record</li>
+ * </ol>
+ * The two session-level problems that used to be worked around by clearing the session are
+ * handled explicitly: see {@link #detachFromLoadedCollections(Collection)} and
+ * {@link #resortLoadedTreeSets(Collection)}.
+ */
+public class SyncIngestPlanner {
+
+	private static final Log log = LogFactory.getLog(SyncIngestPlanner.class);
+
+	/**
+	 * class -> types of its many-to-one (OpenmrsObject valued) properties
+	 */
+	private static final Map<Class<?>, List<Class<?>>> referencedTypesCache = new ConcurrentHashMap<Class<?>, List<Class<?>>>();
+
+	private List<SyncItem> plannedItems = new ArrayList<SyncItem>();
+
+	private int skippedItemCount = 0;
+
+	/**
+	 * The uuids of the objects created by the items applied since the session was last flushed
+	 */
+	private Set<String> unflushedNewUuids = new HashSet<String>();
+
+	/**
+	 * Plans the items of the given record
+	 *
+	 * @param record the record about to be ingested
+	 */
+	public SyncIngestPlanner(SyncRecord record) {
+		List<SyncItem> earlyItems = new ArrayList<SyncItem>();
+		List<SyncItem> regularItems = new ArrayList<SyncItem>();
+		List<SyncItem> deletedItems = new ArrayList<SyncItem>();
+		List<SyncItem> treeSetItems = new ArrayList<SyncItem>();
+		Set<String> deletedKeys = new HashSet<String>();
+		if (!record.hasItems())
+			return;
+
+		for (SyncItem item : record.getItems()) {
+			Class<?> type = item.getContainedType();
+			if (item.getState() == SyncItemState.DELETED) {
+				deletedItems.add(item);
+				deletedKeys.add(getKey(item));
+			} else if (item.getState() == SyncItemState.UPDATED && isTreeSetType(type)) {
+				treeSetItems.add(item);
+			} else if (type != null
+			        && (Person.class.isAssignableFrom(type) || Concept.class.isAssignableFrom(type)
+			                || SyncSubclassStub.class.isAssignableFrom(type) || SerializedObject.class
+			                .isAssignableFrom(type))) {
+				earlyItems.add(item);
+			} else {
+				regularItems.add(item);
+			}
+		}
+
+		plannedItems.addAll(earlyItems);
+		plannedItems.addAll(sortByAssociations(regularItems));
+		plannedItems.addAll(deletedItems);
+		for (SyncItem item : treeSetItems) {
+			if (deletedKeys.contains(getKey(item))) {
+				log.debug("skipping update of " + item.getContainedType() + ":" + item.getKey() + " because it is deleted in the same record");
+				skippedItemCount++;
+			} else {
+				plannedItems.add(item);
+			}
+		}
+	}
+
+	/**
+	 * @return the items of the record in the order they should be applied
+	 */
+	public List<SyncItem> getPlannedItems() {
+		return plannedItems;
+	}
+
+	/**
+	 * @return the number of items left out of the plan because they are made obsolete by a delete
+	 *         in the same record
+	 */
+	public int getSkippedItemCount() {
+		return skippedItemCount;
+	}
+
+	/**
+	 * With flushing suspended, objects created earlier in the record are not found by the queries
+	 * that look objects up by uuid, unless their id generator already inserted them. So the
+	 * session is flushed before an item that is about, or refers, to such an object. SyncSubclassStub
+	 * items are written with plain JDBC against the parent table, so pending changes must always
+	 * reach the database before they are applied.
+	 * <p/>
+	 * Must be called once for each planned item, in order, right before it is applied.
+	 *
+	 * @param item the item about to be applied
+	 * @return true if the session must be flushed before the given item is applied
+	 */
+	public boolean isFlushNeededBefore(SyncItem item) {
+		boolean flush = item.getContainedType() != null
+		        && SyncSubclassStub.class.isAssignableFrom(item.getContainedType());
+		if (!flush && !unflushedNewUuids.isEmpty()) {
+			String uuid = getUuid(item);
+			String content = item.getContent();
+			for (String unflushed : unflushedNewUuids) {
+				if (unflushed.equals(uuid) || (content != null && content.contains(unflushed))) {
+					flush = true;
+					break;
+				}
+			}
+		}
+		if (flush)
+			unflushedNewUuids.clear();
+
+		if (item.getState() == SyncItemState.NEW && getUuid(item) != null)
+			unflushedNewUuids.add(getUuid(item));
+		return flush;
+	}
+
+	/**
+	 * @param type the type contained in a sync item
+	 * @return true if instances of the type are held in a sorted set on their parent
+	 */
+	public static boolean isTreeSetType(Class<?> type) {
+		return type != null
+		        && (PatientIdentifier.class.equals(type) || PersonAttribute.class.equals(type)
+		                || PersonAddress.class.equals(type) || PersonName.class.equals(type));
+	}
+
+	/**
+	 * Removes deleted objects from the already loaded collections of their parents. Without this,
+	 * the single flush at the end of the record would fail with 'deleted object would be re-saved by
+	 * cascade' for any parent that was loaded earlier in the record. Collections that are not
+	 * initialized are left alone; they are not affected and do not need to be loaded.
+	 * <p/>
+	 * Person collections are already taken care of when the object is deleted, see
+	 * SyncUtil#deleteOpenmrsObject(OpenmrsObject).
+	 *
+	 * @param processedObjects the objects processed for the record so far
+	 */
+	public static void detachFromLoadedCollections(Collection<SyncProcessedObject> processedObjects) {
+		for (SyncProcessedObject processed : processedObjects) {
+			OpenmrsObject deleted = processed.getObject();
+			if (processed.getState() != SyncItemState.DELETED || deleted == null || isTreeSetType(deleted.getClass()))
+				continue;
+
+			for (Field field : getReferenceFields(deleted.getClass())) {
+				try {
+					field.setAccessible(true);
+					Object parent = field.get(deleted);
+					if (parent == null || !Hibernate.isInitialized(parent))
+						continue;
+
+					for (Collection<?> collection : getLoadedChildCollections(parent, deleted.getClass())) {
+						Iterator<?> it = collection.iterator();
+						while (it.hasNext()) {
+							Object child = it.next();
+							if (child instanceof OpenmrsObject && deleted.getUuid() != null
+							        && deleted.getUuid().equals(((OpenmrsObject) child).getUuid())) {
+								it.remove();
+							}
+						}
+					}
+				}
+				catch (Exception e) {
+					log.debug("Unable to detach deleted " + deleted.getClass().getName() + " from its parent", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restores the ordering of sorted sets holding objects that were updated by this record. Updating
+	 * e.g. the voided flag of a patient identifier changes its position per compareTo(); until the
+	 * set is re-sorted contains() and remove() can no longer find elements in it. The set is
+	 * rebuilt in place so the hibernate collection wrapper stays the same and no elements become
+	 * orphans. Sets that were never loaded are skipped as they will be sorted when they are read.
+	 *
+	 * @param processedObjects the objects processed for the record so far
+	 */
+	@SuppressWarnings("unchecked")
+	public static void resortLoadedTreeSets(Collection<SyncProcessedObject> processedObjects) {
+		List<Collection<Object>> resorted = new ArrayList<Collection<Object>>();
+		for (SyncProcessedObject processed : processedObjects) {
+			if (processed.getState() != SyncItemState.UPDATED)
+				continue;
+
+			Collection<?> set = null;
+			Object o = processed.getObject();
+			if (o instanceof PatientIdentifier && ((PatientIdentifier) o).getPatient() != null)
+				set = ((PatientIdentifier) o).getPatient().getIdentifiers();
+			else if (o instanceof PersonAttribute && ((PersonAttribute) o).getPerson() != null)
+				set = ((PersonAttribute) o).getPerson().getAttributes();
+			else if (o instanceof PersonAddress && ((PersonAddress) o).getPerson() != null)
+				set = ((PersonAddress) o).getPerson().getAddresses();
+			else if (o instanceof PersonName && ((PersonName) o).getPerson() != null)
+				set = ((PersonName) o).getPerson().getNames();
+
+			// identity based: the broken ordering makes equals()/hashCode() of the set unreliable
+			if (set instanceof SortedSet && Hibernate.isInitialized(set) && !containsSame(resorted, set)) {
+				Collection<Object> sortedSet = (Collection<Object>) set;
+				List<Object> elements = new ArrayList<Object>(sortedSet);
+				sortedSet.clear();
+				sortedSet.addAll(elements);
+				resorted.add(sortedSet);
+			}
+		}
+	}
+
+	/**
+	 * Stable topological sort of the given items: an item is moved behind the new objects it
+	 * references, otherwise the original order of the record is kept. Cycles are broken in favor of
+	 * the original order.
+	 */
+	private static List<SyncItem> sortByAssociations(List<SyncItem> items) {
+		int n = items.size();
+		if (n < 2)
+			return items;
+
+		List<List<Integer>> dependents = new ArrayList<List<Integer>>(n);
+		int[] unresolved = new int[n];
+		for (int i = 0; i < n; i++)
+			dependents.add(new ArrayList<Integer>());
+
+		for (int j = 0; j < n; j++) {
+			Class<?> type = items.get(j).getContainedType();
+			boolean isObject = type != null && OpenmrsObject.class.isAssignableFrom(type);
+			List<Class<?>> referencedTypes = isObject ? getReferencedTypes(type) : null;
+			for (int i = 0; i < n; i++) {
+				if (i == j)
+					continue;
+				boolean dependsOn;
+				if (!isObject) {
+					// collections and anything else we can't reason about stay behind everything before them
+					dependsOn = i < j;
+				} else {
+					SyncItem other = items.get(i);
+					dependsOn = other.getState() == SyncItemState.NEW && references(referencedTypes, other.getContainedType())
+					        && (i < j || !sameHierarchy(type, other.getContainedType()));
+				}
+				if (dependsOn) {
+					dependents.get(i).add(j);
+					unresolved[j]++;
+				}
+			}
+		}
+
+		List<SyncItem> sorted = new ArrayList<SyncItem>(n);
+		boolean[] emitted = new boolean[n];
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+		for (int i = 0; i < n; i++) {
+			if (unresolved[i] == 0)
+				ready.add(i);
+		}
+		int next = 0;
+		while (sorted.size() < n) {
+			if (ready.isEmpty()) {
+				// cycle: fall back to the first item still waiting
+				while (emitted[next])
+					next++;
+				log.debug("Association cycle found while planning sync items, keeping original order for item " + next);
+				unresolved[next] = 0;
+				ready.add(next);
+			}
+			int i = ready.poll();
+			if (emitted[i])
+				continue;
+			emitted[i] = true;
+			sorted.add(items.get(i));
+			for (Integer j : dependents.get(i)) {
+				if (!emitted[j] && --unresolved[j] == 0)
+					ready.add(j);
+			}
+		}
+
+		return sorted;
+	}
+
+	private static boolean references(List<Class<?>> referencedTypes, Class<?> type) {
+		if (type == null)
+			return false;
+		for (Class<?> referenced : referencedTypes) {
+			if (referenced.isAssignableFrom(type))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean sameHierarchy(Class<?> a, Class<?> b) {
+		return b != null && (a.isAssignableFrom(b) || b.isAssignableFrom(a));
+	}
+
+	private static List<Class<?>> getReferencedTypes(Class<?> type) {
+		List<Class<?>> referenced = referencedTypesCache.get(type);
+		if (referenced == null) {
+			referenced = new ArrayList<Class<?>>();
+			for (Field field : getReferenceFields(type)) {
+				referenced.add(field.getType());
+			}
+			referencedTypesCache.put(type, referenced);
+		}
+		return referenced;
+	}
+
+	/**
+	 * @return the fields, including inherited ones, that hold a single OpenmrsObject
+	 */
+	private static List<Field> getReferenceFields(Class<?> type) {
+		List<Field> fields = new ArrayList<Field>();
+		for (Class<?> c = type; c != null && !Object.class.equals(c); c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (OpenmrsObject.class.isAssignableFrom(field.getType()))
+					fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * @return the initialized collections on parent that can hold instances of childType
+	 */
+	private static List<Collection<?>> getLoadedChildCollections(Object parent, Class<?> childType) throws Exception {
+		List<Collection<?>> collections = new ArrayList<Collection<?>>();
+		for (Method method : Hibernate.getClass(parent).getMethods()) {
+			Type returnType = method.getGenericReturnType();
+			if (!method.getName().startsWith("get") || method.getParameterTypes().length > 0
+			        || !(returnType instanceof ParameterizedType)
+			        || !Collection.class.isAssignableFrom(method.getReturnType()))
+				continue;
+			Type[] args = ((ParameterizedType) returnType).getActualTypeArguments();
+			if (args.length == 1 && args[0] instanceof Class && ((Class<?>) args[0]).isAssignableFrom(childType)) {
+				Collection<?> collection = (Collection<?>) method.invoke(parent);
+				if (collection != null && Hibernate.isInitialized(collection))
+					collections.add(collection);
+			}
+		}
+		return collections;
+	}
+
+	private static boolean containsSame(Collection<?> collections, Object collection) {
+		for (Object c : collections) {
+			if (c == collection)
+				return true;
+		}
+		return false;
+	}
+
+	private static String getUuid(SyncItem item) {
+		Object keyValue = item.getKey() == null ? null : item.getKey().getKeyValue();
+		return keyValue == null ? null : keyValue.toString();
+	}
+
+	private static String getKey(SyncItem item) {
+		Object keyValue = item.getKey() == null ? null : item.getKey().getKeyValue();
+		return item.getContainedType() + ":" + keyValue;
+	}
+}
@@ -14,10 +14,12 @@
 package org.openmrs.module.sync.ingest;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.sync.SyncConstants;
@@ -99,13 +101,15 @@ public class SyncTransmissionResponse implements IItem {
 	    // this needs to be bulletproof
     	if ( connResponse != null ) {
     		
-    		if (log.isInfoEnabled())
-    			log.info("RESPONSE PAYLOAD IS: " + connResponse.getResponsePayload());
+    		if (log.isDebugEnabled())
+    			log.debug("RESPONSE PAYLOAD IS: " + connResponse.getResponsePayload());
     		
     		if ( connResponse.getState().equals(ServerConnectionState.OK) ) {
+    			InputStream payload = null;
     			try {
-    				// this method is null safe
-    				SyncTransmissionResponse str = SyncDeserializer.xmlToSyncTransmissionResponse(connResponse.getResponsePayload());
+    				// this method is null safe; the response is parsed as it is read, not copied into a string
+    				payload = connResponse.getPayloadStream();
+    				SyncTransmissionResponse str = SyncDeserializer.xmlToSyncTransmissionResponse(payload);
     				this.errorMessage = str.getErrorMessage();
     				this.fileName = str.getFileName();
     				this.uuid = str.getUuid();
@@ -115,7 +119,7 @@ public class SyncTransmissionResponse implements IItem {
     				this.syncImportRecords = str.getSyncImportRecords();
                     this.syncTransmission = str.getSyncTransmission();
     			} catch (Exception e) {
-    				e.printStackTrace();
+    				log.error("Unable to read the sync transmission response", e);
     	    		this.errorMessage = SyncConstants.ERROR_RESPONSE_NOT_UNDERSTOOD.toString();
     	        	this.fileName = SyncConstants.FILENAME_RESPONSE_NOT_UNDERSTOOD;
     	        	this.uuid = SyncConstants.UUID_UNKNOWN;
@@ -123,6 +127,9 @@ public class SyncTransmissionResponse implements IItem {
                     this.syncTargetUuid = SyncConstants.UUID_UNKNOWN;
     	        	this.state = SyncTransmissionState.RESPONSE_NOT_UNDERSTOOD;
     			} 
+    			finally {
+    				IOUtils.closeQuietly(payload);
+    			}
     		} else {
         		this.errorMessage = SyncConstants.ERROR_SEND_FAILED.toString();
             	this.fileName = SyncConstants.FILENAME_SEND_FAILED;
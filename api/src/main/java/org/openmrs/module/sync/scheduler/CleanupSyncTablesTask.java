@@ -23,6 +23,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncArchive;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncRecord;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.server.SyncServerRecord;
@@ -32,6 +35,11 @@ import org.springframework.util.StringUtils;
 /**
  * This task deletes rows in the sync_record and sync_server_record tables that are older and not
  * needed anymore. (Sync_import is not touched at this point)
+ * <p/>
+ * The journal is gone through in ranges of record ids, each deleted in a transaction of its own so
+ * that the tables are never locked for long. A run stops when its time budget is used up and the
+ * next run resumes where it stopped, see {@link SyncConstants#PROPERTY_CLEANUP_RESUME_RECORD_ID}.
+ * The deleted rows can be archived to compressed files first, see {@link SyncArchive}.
  */
 public class CleanupSyncTablesTask extends AbstractTask {
 	
@@ -50,6 +58,25 @@ public class CleanupSyncTablesTask extends AbstractTask {
 	// by default let the service decide which states to delete
 	private SyncRecordState[] DEFAULT_STATES_TO_DELETE = new SyncRecordState[] { };
 	
+	/**
+	 * The number of record ids to delete in one transaction
+	 */
+	protected static final String PROPERTY_CHUNK_SIZE = "chunk_size";
+	
+	private Integer DEFAULT_CHUNK_SIZE = 1000;
+	
+	/**
+	 * The number of seconds after which a run stops starting new chunks
+	 */
+	protected static final String PROPERTY_TIME_BUDGET = "time_budget_seconds";
+	
+	private Integer DEFAULT_TIME_BUDGET = 300;
+	
+	/**
+	 * Set to true to write the deleted rows to a file in the application data directory first
+	 */
+	protected static final String PROPERTY_ARCHIVE = "archive";
+	
 	/**
 	 * Do the actual deleting of tables.
 	 */
@@ -74,9 +101,14 @@ public class CleanupSyncTablesTask extends AbstractTask {
 			SyncRecordState[] statesToDelete = getSyncRecordStateProperty(PROPERTY_STATES_TO_DELETE, props,
 			    DEFAULT_STATES_TO_DELETE);
 			
+			int chunkSize = Math.max(1, getIntegerProperty(PROPERTY_CHUNK_SIZE, props, DEFAULT_CHUNK_SIZE));
+			long deadline = System.currentTimeMillis() + 1000L
+			        * getIntegerProperty(PROPERTY_TIME_BUDGET, props, DEFAULT_TIME_BUDGET);
+			boolean archive = props != null && "true".equalsIgnoreCase(props.get(PROPERTY_ARCHIVE));
+			
 			// do the actual deleting
 			SyncService syncService = Context.getService(SyncService.class);
-			Integer quantityDeleted = syncService.deleteSyncRecords(statesToDelete, deleteTo);
+			int quantityDeleted = deleteInChunks(syncService, statesToDelete, deleteTo, chunkSize, deadline, archive);
 			
 			log.info("There were " + quantityDeleted + " sync records cleaned out");
 		}
@@ -89,6 +121,65 @@ public class CleanupSyncTablesTask extends AbstractTask {
 		}
 	}
 	
+	/**
+	 * Deletes a range of record ids at a time, from where the last run stopped (or from the first
+	 * record still in the journal) up to the last record, until the deadline is passed
+	 * 
+	 * @return the number of sync records deleted
+	 */
+	protected int deleteInChunks(SyncService syncService, SyncRecordState[] statesToDelete, Date deleteTo,
+	                             int chunkSize, long deadline, boolean archive) {
+		SyncRecord lastRecord = syncService.getLatestRecord();
+		if (lastRecord == null)
+			return 0;
+		int lastRecordId = lastRecord.getRecordId();
+		
+		int position = getIntegerProperty(SyncConstants.PROPERTY_CLEANUP_RESUME_RECORD_ID, 0);
+		if (position > lastRecordId)
+			position = 0;
+		
+		// skip the ids that earlier cleanups already emptied out
+		if (position == 0)
+			position = syncService.getEarliestRecord(null).getRecordId();
+		
+		SyncArchive syncArchive = archive ? SyncArchive.create() : null;
+		int quantityDeleted = 0;
+		try {
+			while (position <= lastRecordId && System.currentTimeMillis() < deadline) {
+				int next = position + chunkSize;
+				quantityDeleted += syncService.deleteSyncRecords(statesToDelete, deleteTo, position, next, syncArchive);
+				position = next;
+				// the records were deleted with sql, nothing to keep in the session
+				Context.clearSession();
+			}
+		}
+		finally {
+			if (syncArchive != null)
+				syncArchive.close();
+			
+			// start over with the next run once the whole journal was gone through
+			if (position > lastRecordId) {
+				position = 0;
+			} else {
+				log.info("Sync table cleanup ran out of time, the next run resumes at record " + position);
+			}
+			syncService.setGlobalProperty(SyncConstants.PROPERTY_CLEANUP_RESUME_RECORD_ID, String.valueOf(position));
+		}
+		return quantityDeleted;
+	}
+	
+	private static int getIntegerProperty(String globalPropertyName, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(globalPropertyName);
+		try {
+			if (StringUtils.hasText(value))
+				return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.error("Unable to convert " + globalPropertyName + " : '" + value + "' to an integer");
+		}
+		return defaultValue;
+	}
+	
 	/**
 	 * Get the given property name from the given Map object. If not found or if the value is an
 	 * invalid integer, return defaultValue
@@ -0,0 +1,91 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * This task indexes the sync records created before the search index existed, so that searching
+ * the journal no longer has to read their payload. Each chunk of record ids is indexed in a
+ * transaction of its own, and a run stops when its time budget is used up; the next run goes on
+ * from there, see {@link SyncConstants#PROPERTY_SEARCH_INDEX_PENDING_RECORD_ID}. Once all records
+ * are indexed the task does nothing.
+ *
+ * @see SyncService#indexSyncRecords(int)
+ */
+public class IndexSyncJournalTask extends AbstractTask {
+
+	private static Log log = LogFactory.getLog(IndexSyncJournalTask.class);
+
+	/**
+	 * The number of record ids to index in one transaction
+	 */
+	protected static final String PROPERTY_CHUNK_SIZE = "chunk_size";
+
+	private Integer DEFAULT_CHUNK_SIZE = 1000;
+
+	/**
+	 * The number of seconds after which a run stops starting new chunks
+	 */
+	protected static final String PROPERTY_TIME_BUDGET = "time_budget_seconds";
+
+	private Integer DEFAULT_TIME_BUDGET = 300;
+
+	/**
+	 * Index the records that are not indexed yet.
+	 */
+	public void execute() {
+		Context.openSession();
+		log.debug("Starting sync journal indexing ... ");
+		try {
+			if (Context.isAuthenticated() == false)
+				authenticate();
+
+			Map<String, String> props = null;
+			if (taskDefinition != null)
+				props = taskDefinition.getProperties();
+
+			int chunkSize = Math.max(1, CleanupSyncTablesTask.getIntegerProperty(PROPERTY_CHUNK_SIZE, props,
+			    DEFAULT_CHUNK_SIZE));
+			long deadline = System.currentTimeMillis() + 1000L
+			        * CleanupSyncTablesTask.getIntegerProperty(PROPERTY_TIME_BUDGET, props, DEFAULT_TIME_BUDGET);
+
+			SyncService syncService = Context.getService(SyncService.class);
+			int pendingRecordId;
+			do {
+				pendingRecordId = syncService.indexSyncRecords(chunkSize);
+				// the tokens were written with sql, nothing to keep in the session
+				Context.clearSession();
+			} while (pendingRecordId > 0 && System.currentTimeMillis() < deadline);
+
+			if (pendingRecordId > 0)
+				log.info("Sync journal indexing ran out of time, the next run resumes at record " + pendingRecordId);
+		}
+		catch (Throwable t) {
+			log.error("Error while indexing the sync journal", t);
+			throw new APIException(t);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * This task counts the sync records per server and state again from the journal. The counts shown
+ * by the statistics pages are kept up to date as records change; this fixes whatever they missed,
+ * e.g. records changed outside of hibernate or while detached from the session. The committed
+ * watermarks of the servers are worked out again from the start too.
+ *
+ * @see SyncService#rebuildSyncStateCounts()
+ */
+public class ReconcileSyncStatisticsTask extends AbstractTask {
+
+	private static Log log = LogFactory.getLog(ReconcileSyncStatisticsTask.class);
+
+	/**
+	 * Recount the records per server and state.
+	 */
+	public void execute() {
+		Context.openSession();
+		log.debug("Starting sync statistics reconciliation ... ");
+		try {
+			if (Context.isAuthenticated() == false)
+				authenticate();
+
+			Context.getService(SyncService.class).rebuildSyncStateCounts();
+
+			log.info("The sync statistics were counted again");
+		}
+		catch (Throwable t) {
+			log.error("Error while reconciling the sync statistics", t);
+			throw new APIException(t);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
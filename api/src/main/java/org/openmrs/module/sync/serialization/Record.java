@@ -125,6 +125,16 @@ public class Record
         return create(new StringBuffer(data));
 	}
 
+	/** Construct a document from a stream of xml data, without reading it into a string first
+     * @input stream of xml data, which is not closed
+	*/
+	public static Record create(InputStream data) throws Exception
+	{
+        Record xml = new Record();
+		xml.init(data);
+        return xml;
+	}
+
 	/** Dump to a stream - there is no thread safety guarantee
      * with regard to this XML tree being manipulated nor with
      * individual nodes being modified
@@ -0,0 +1,165 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncTransmissionState;
+import org.openmrs.module.sync.SyncUtil;
+
+/**
+ * Sizes the transmissions sent to a remote server from how the previous exchanges with that server
+ * went, in the manner of AIMD: the number of records grows by {@link #ADDITIVE_INCREASE} after
+ * each full transmission that came back within the target time, and is halved when an exchange
+ * fails or takes longer than that. The size is further capped by a byte budget, using the average
+ * serialized size of the records sent so far, and always stays between the configured minimum and
+ * the maximum passed in by the caller (normally {@link SyncConstants#PROPERTY_NAME_MAX_RECORDS_WEB}).
+ * <p/>
+ * The state is kept on the {@link RemoteServer}, so it survives restarts.
+ */
+public class AdaptiveBatchSizer {
+
+	private static final Log log = LogFactory.getLog(AdaptiveBatchSizer.class);
+
+	public static final int ADDITIVE_INCREASE = 5;
+
+	/**
+	 * Weight of the latest exchange in the average record size
+	 */
+	private static final double RECORD_BYTES_WEIGHT = 0.3;
+
+	/**
+	 * Gets the number of records to put in the next transmission to the given server
+	 *
+	 * @param server the server to send to
+	 * @param maxSyncRecords the configured maximum, null or less than 1 for the default
+	 * @return the number of records to send
+	 */
+	public static Integer getBatchSize(RemoteServer server, Integer maxSyncRecords) {
+		int max = getMax(maxSyncRecords);
+		if (server == null || !isEnabled())
+			return max;
+
+		int min = getMin(max);
+		int maxBytes = getIntegerProperty(SyncConstants.PROPERTY_ADAPTIVE_BATCH_MAX_BYTES,
+		    SyncConstants.PROPERTY_ADAPTIVE_BATCH_MAX_BYTES_DEFAULT);
+
+		return getBatchSize(server.getBatchSize(), server.getAverageRecordBytes(), min, max, maxBytes);
+	}
+
+	/**
+	 * @param batchSize the current size, null if nothing was measured yet
+	 * @param averageRecordBytes the average record size, null if nothing was measured yet
+	 * @param min the smallest size allowed
+	 * @param max the largest size allowed
+	 * @param maxBytes the byte budget of a transmission
+	 * @return the number of records to send
+	 */
+	static int getBatchSize(Integer batchSize, Integer averageRecordBytes, int min, int max, int maxBytes) {
+		int size = batchSize == null ? max : batchSize;
+		if (averageRecordBytes != null && averageRecordBytes > 0)
+			size = Math.min(size, maxBytes / averageRecordBytes);
+		return Math.max(min, Math.min(max, size));
+	}
+
+	/**
+	 * Adapts the batch size of the given server after an exchange with it. The caller saves the
+	 * server.
+	 *
+	 * @param server the server the transmission was sent to
+	 * @param maxSyncRecords the configured maximum, as passed to
+	 *            {@link #getBatchSize(RemoteServer, Integer)}
+	 * @param recordCount the number of records that were sent
+	 * @param bytes the size of the serialized transmission
+	 * @param elapsedMillis the time from sending the transmission until the response was received,
+	 *            which includes the time the server took to apply the records
+	 * @param state the state of the response
+	 */
+	public static void recordExchange(RemoteServer server, Integer maxSyncRecords, int recordCount, long bytes,
+	                                  long elapsedMillis, SyncTransmissionState state) {
+		if (server == null || recordCount < 1 || !isEnabled())
+			return;
+
+		int batchSize = getBatchSize(server, maxSyncRecords);
+		int max = getMax(maxSyncRecords);
+		int min = getMin(max);
+		long targetTime = getIntegerProperty(SyncConstants.PROPERTY_ADAPTIVE_BATCH_TARGET_TIME,
+		    SyncConstants.PROPERTY_ADAPTIVE_BATCH_TARGET_TIME_DEFAULT);
+
+		boolean linkFailed = state == null || state == SyncTransmissionState.FAILED
+		        || state == SyncTransmissionState.CONNECTION_FAILED;
+		int next = getNextBatchSize(batchSize, min, max, recordCount, elapsedMillis, targetTime, linkFailed);
+		server.setBatchSize(next);
+
+		if (!linkFailed) {
+			int recordBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / recordCount));
+			Integer average = server.getAverageRecordBytes();
+			server.setAverageRecordBytes(average == null ? recordBytes : (int) Math.round(RECORD_BYTES_WEIGHT
+			        * recordBytes + (1 - RECORD_BYTES_WEIGHT) * average));
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Sent " + recordCount + " records (" + bytes + " bytes) to " + server.getNickname() + " in "
+			        + elapsedMillis + " ms with state " + state + ", next batch size: " + next);
+	}
+
+	/**
+	 * @param batchSize the size used for the exchange
+	 * @param min the smallest size allowed
+	 * @param max the largest size allowed
+	 * @param recordCount the number of records that were actually sent
+	 * @param elapsedMillis the duration of the exchange
+	 * @param targetTime the longest an exchange should take
+	 * @param linkFailed true if the exchange failed
+	 * @return the size for the next exchange
+	 */
+	static int getNextBatchSize(int batchSize, int min, int max, int recordCount, long elapsedMillis, long targetTime,
+	                            boolean linkFailed) {
+		int next = batchSize;
+		if (linkFailed || elapsedMillis > targetTime)
+			next = batchSize / 2;
+		else if (recordCount >= batchSize)
+			next = batchSize + ADDITIVE_INCREASE; // only grow if the last batch was full
+		return Math.max(min, Math.min(max, next));
+	}
+
+	private static int getMax(Integer maxSyncRecords) {
+		if (maxSyncRecords == null || maxSyncRecords < 1)
+			return Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT);
+		return maxSyncRecords;
+	}
+
+	private static int getMin(int max) {
+		return Math.min(max, getIntegerProperty(SyncConstants.PROPERTY_ADAPTIVE_BATCH_MIN_RECORDS,
+		    SyncConstants.PROPERTY_ADAPTIVE_BATCH_MIN_RECORDS_DEFAULT));
+	}
+
+	private static boolean isEnabled() {
+		return Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_ADAPTIVE_BATCH_ENABLED, "false"));
+	}
+
+	private static int getIntegerProperty(String name, String defaultValue) {
+		Integer value = null;
+		try {
+			value = SyncUtil.getGlobalPropetyValueAsInteger(name);
+		}
+		catch (Exception e) {
+			log.debug("Unable to read global property " + name, e);
+		}
+		return (value != null && value > 0) ? value : Integer.valueOf(defaultValue);
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How far the backport of the journal to a server has got, so that it can be followed from the
+ * maintenance page while it runs. The last backport of each server is kept until the next one
+ * starts (static, not saved in the database).
+ *
+ * @see org.openmrs.module.sync.SyncUtil#backportSyncRecords(RemoteServer, Date)
+ * @see org.openmrs.module.sync.api.SyncService#getBackportProgress(RemoteServer)
+ */
+public class BackportProgress {
+
+	private static ConcurrentMap<Integer, BackportProgress> backports = new ConcurrentHashMap<Integer, BackportProgress>();
+
+	private final Date started = new Date();
+
+	private final int lastRecordId;
+
+	private volatile int recordId = 0;
+
+	private volatile int recordsBackported = 0;
+
+	private volatile Date finished = null;
+
+	private BackportProgress(int lastRecordId) {
+		this.lastRecordId = lastRecordId;
+	}
+
+	/**
+	 * Starts following a backport to the given server
+	 *
+	 * @param server the server the records are backported to
+	 * @param lastRecordId the id of the last record to go through
+	 * @return the progress, to be updated as the backport goes on
+	 */
+	public static BackportProgress start(RemoteServer server, int lastRecordId) {
+		BackportProgress progress = new BackportProgress(lastRecordId);
+		if (server.getServerId() != null)
+			backports.put(server.getServerId(), progress);
+		return progress;
+	}
+
+	/**
+	 * @param server the server
+	 * @return the running or last backport to the given server, or null if there was none
+	 */
+	public static BackportProgress get(RemoteServer server) {
+		return server.getServerId() == null ? null : backports.get(server.getServerId());
+	}
+
+	/**
+	 * @param recordId the id of the record the backport got up to
+	 * @param recordsBackported the number of records backported so far
+	 */
+	public void update(int recordId, int recordsBackported) {
+		this.recordId = Math.min(recordId, lastRecordId);
+		this.recordsBackported = recordsBackported;
+	}
+
+	/**
+	 * Marks the backport as done, whether it went through all records or failed
+	 */
+	public void finish() {
+		finished = new Date();
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return when the backport was done, or null if it is still running
+	 */
+	public Date getFinished() {
+		return finished;
+	}
+
+	public boolean isRunning() {
+		return finished == null;
+	}
+
+	public int getLastRecordId() {
+		return lastRecordId;
+	}
+
+	/**
+	 * @return the id of the record the backport got up to
+	 */
+	public int getRecordId() {
+		return recordId;
+	}
+
+	public int getRecordsBackported() {
+		return recordsBackported;
+	}
+
+	/**
+	 * @return how far the backport got through the record ids, from 0 to 100
+	 */
+	public int getPercentDone() {
+		return lastRecordId <= 0 ? 100 : (int) (100L * recordId / lastRecordId);
+	}
+}
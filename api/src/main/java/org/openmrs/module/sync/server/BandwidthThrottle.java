@@ -0,0 +1,304 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+
+/**
+ * Caps the bandwidth used by sync so that it does not starve the other users of a narrow link.
+ * Every byte sent to or received from a remote server is taken from two token buckets: one shared
+ * by all servers ({@link SyncConstants#PROPERTY_BANDWIDTH_LIMIT}) and one per server address (
+ * {@link SyncConstants#PROPERTY_BANDWIDTH_SERVER_LIMIT}).
+ * <p/>
+ * If {@link SyncConstants#PROPERTY_BANDWIDTH_SCHEDULE} lists time windows (e.g. clinic hours), the
+ * limits only apply within these windows and sync runs at full speed outside of them. A window can
+ * set its own shared limit, e.g. <code>07:00-12:00=32768,12:00-17:00</code>.
+ *
+ * @see ServerConnection#sendExportedData(String, String, String, String, boolean)
+ */
+public class BandwidthThrottle {
+
+	private static final Log log = LogFactory.getLog(BandwidthThrottle.class);
+
+	private static final TokenBucket sharedBucket = new TokenBucket();
+
+	/**
+	 * address (scheme://host:port) -> bucket for that server
+	 */
+	private static final Map<String, TokenBucket> serverBuckets = new HashMap<String, TokenBucket>();
+
+	private final TokenBucket serverBucket;
+
+	private final long sharedLimit;
+
+	private final long serverLimit;
+
+	private final List<Window> schedule;
+
+	BandwidthThrottle(TokenBucket serverBucket, long sharedLimit, long serverLimit, List<Window> schedule) {
+		this.serverBucket = serverBucket;
+		this.sharedLimit = sharedLimit;
+		this.serverLimit = serverLimit;
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Gets the throttle for the given server, as currently configured
+	 *
+	 * @param address scheme, host and port of the remote server
+	 * @return the throttle, or null if no limit is configured
+	 */
+	public static BandwidthThrottle getThrottle(String address) {
+		long sharedLimit = getLongProperty(SyncConstants.PROPERTY_BANDWIDTH_LIMIT);
+		long serverLimit = getLongProperty(SyncConstants.PROPERTY_BANDWIDTH_SERVER_LIMIT);
+		List<Window> schedule = parseSchedule(Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_BANDWIDTH_SCHEDULE));
+
+		boolean windowLimits = false;
+		for (Window window : schedule) {
+			windowLimits |= window.limit > 0;
+		}
+		if (sharedLimit <= 0 && serverLimit <= 0 && !windowLimits)
+			return null;
+
+		TokenBucket serverBucket;
+		synchronized (serverBuckets) {
+			serverBucket = serverBuckets.get(address);
+			if (serverBucket == null) {
+				serverBucket = new TokenBucket();
+				serverBuckets.put(address, serverBucket);
+			}
+		}
+		return new BandwidthThrottle(serverBucket, sharedLimit, serverLimit, schedule);
+	}
+
+	/**
+	 * @param in a stream to or from the remote server
+	 * @return the given stream, only reading as fast as the throttle allows
+	 */
+	public InputStream throttle(InputStream in) {
+		return new ThrottledInputStream(in, this);
+	}
+
+	/**
+	 * Waits until the given number of bytes may be transferred
+	 *
+	 * @param bytes the number of bytes about to be transferred
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void consume(int bytes) throws InterruptedIOException {
+		int minute = getMinuteOfDay(Calendar.getInstance());
+		long sharedRate = getSharedRate(minute);
+		long serverRate = getServerRate(minute);
+		long now = System.nanoTime();
+
+		long wait = Math.max(sharedBucket.reserve(bytes, sharedRate, now), serverBucket.reserve(bytes, serverRate, now));
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+			}
+		}
+	}
+
+	/**
+	 * @return the shared limit in bytes per second at the given minute of the day, 0 if unlimited
+	 */
+	long getSharedRate(int minuteOfDay) {
+		if (schedule.isEmpty())
+			return sharedLimit;
+		Window window = getWindow(minuteOfDay);
+		if (window == null)
+			return 0;
+		return window.limit > 0 ? window.limit : sharedLimit;
+	}
+
+	/**
+	 * @return the per server limit in bytes per second at the given minute of the day, 0 if
+	 *         unlimited
+	 */
+	long getServerRate(int minuteOfDay) {
+		if (schedule.isEmpty() || getWindow(minuteOfDay) != null)
+			return serverLimit;
+		return 0;
+	}
+
+	private Window getWindow(int minuteOfDay) {
+		for (Window window : schedule) {
+			if (window.contains(minuteOfDay))
+				return window;
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a list of time windows like <code>07:00-12:00=32768,22:00-06:00</code>. Windows may
+	 * run past midnight. Invalid entries are logged and skipped.
+	 *
+	 * @param value the value of {@link SyncConstants#PROPERTY_BANDWIDTH_SCHEDULE}
+	 * @return the windows, empty if there are none
+	 */
+	static List<Window> parseSchedule(String value) {
+		List<Window> windows = new ArrayList<Window>();
+		if (StringUtils.isBlank(value))
+			return windows;
+
+		for (String entry : value.split(",")) {
+			if (StringUtils.isBlank(entry))
+				continue;
+			try {
+				String[] rangeAndLimit = entry.trim().split("=");
+				String[] range = rangeAndLimit[0].trim().split("-");
+				long limit = rangeAndLimit.length > 1 ? Long.parseLong(rangeAndLimit[1].trim()) : 0;
+				windows.add(new Window(parseMinuteOfDay(range[0]), parseMinuteOfDay(range[1]), limit));
+			}
+			catch (RuntimeException e) {
+				log.error("Ignoring invalid bandwidth window '" + entry + "' in " + SyncConstants.PROPERTY_BANDWIDTH_SCHEDULE);
+			}
+		}
+		return windows;
+	}
+
+	private static int parseMinuteOfDay(String time) {
+		String[] hoursAndMinutes = time.trim().split(":");
+		int hours = Integer.parseInt(hoursAndMinutes[0]);
+		int minutes = hoursAndMinutes.length > 1 ? Integer.parseInt(hoursAndMinutes[1]) : 0;
+		if (hours < 0 || hours > 24 || minutes < 0 || minutes > 59)
+			throw new IllegalArgumentException("Invalid time " + time);
+		return hours * 60 + minutes;
+	}
+
+	private static int getMinuteOfDay(Calendar now) {
+		return now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+	}
+
+	private static long getLongProperty(String name) {
+		String value = Context.getAdministrationService().getGlobalProperty(name);
+		try {
+			if (StringUtils.isNotBlank(value))
+				return Math.max(0, Long.parseLong(value.trim()));
+		}
+		catch (NumberFormatException e) {
+			log.error("Could not convert " + value + " to a number of bytes per second, not limiting " + name);
+		}
+		return 0;
+	}
+
+	/**
+	 * A window of the day, from start (inclusive) to end (exclusive), in minutes since midnight
+	 */
+	static class Window {
+
+		private final int start;
+
+		private final int end;
+
+		private final long limit;
+
+		Window(int start, int end, long limit) {
+			this.start = start;
+			this.end = end;
+			this.limit = limit;
+		}
+
+		boolean contains(int minuteOfDay) {
+			if (start <= end)
+				return minuteOfDay >= start && minuteOfDay < end;
+			return minuteOfDay >= start || minuteOfDay < end; // past midnight
+		}
+	}
+
+	/**
+	 * A token bucket that holds up to one second worth of bytes. Callers take the bytes they are
+	 * about to transfer right away, possibly going into debt, and then wait until the debt would
+	 * have been refilled; this keeps concurrent callers in order without holding the lock while
+	 * waiting.
+	 */
+	static class TokenBucket {
+
+		private double tokens = 0;
+
+		private long lastRefill = -1;
+
+		/**
+		 * @param bytes the number of bytes to take
+		 * @param rate the rate in bytes per second, 0 or less for unlimited
+		 * @param now the current time in nanoseconds, see {@link System#nanoTime()}
+		 * @return the number of milliseconds to wait before transferring the bytes
+		 */
+		synchronized long reserve(long bytes, long rate, long now) {
+			if (rate <= 0) {
+				lastRefill = -1;
+				return 0;
+			}
+			if (lastRefill < 0)
+				tokens = rate; // start with a full bucket
+			else
+				tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+
+			tokens -= bytes;
+			return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / rate);
+		}
+	}
+
+	/**
+	 * Reads at most as fast as the throttle allows, in pieces of at most
+	 * {@link ThrottledInputStream#MAX_READ} bytes
+	 */
+	private static class ThrottledInputStream extends FilterInputStream {
+
+		private static final int MAX_READ = 8192;
+
+		private final BandwidthThrottle throttle;
+
+		public ThrottledInputStream(InputStream in, BandwidthThrottle throttle) {
+			super(in);
+			this.throttle = throttle;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				throttle.consume(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, Math.min(len, MAX_READ));
+			if (n > 0)
+				throttle.consume(n);
+			return n;
+		}
+	}
+}
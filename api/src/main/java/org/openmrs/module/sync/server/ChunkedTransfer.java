@@ -0,0 +1,303 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncUtil;
+
+/**
+ * A transmission that is uploaded in numbered, checksummed chunks rather than in a single POST, so
+ * that a dropped connection only costs the chunks that did not arrive yet.
+ * <p/>
+ * The sending side splits the (compressed) payload and names the transfer after its content, see
+ * {@link #getTransferId(byte[])}. The receiving side keeps the chunks in a staging directory until
+ * the set is complete and then reads them back as one stream. Staged transfers that are never
+ * completed are removed after {@link #STALE_TRANSFER_AGE} milliseconds.
+ *
+ * @see ServerConnection#sendExportedData(String, String, String, String, boolean)
+ */
+public class ChunkedTransfer {
+
+	private static final Log log = LogFactory.getLog(ChunkedTransfer.class);
+
+	public static final String PARAM_TRANSFER_ID = "transferId";
+
+	public static final String PARAM_CHUNK_INDEX = "chunkIndex";
+
+	public static final String PARAM_CHUNK_COUNT = "chunkCount";
+
+	public static final String PARAM_CHUNK_CHECKSUM = "chunkChecksum";
+
+	/**
+	 * Response header listing the chunks the receiver holds, sent as long as the transfer is not
+	 * complete
+	 */
+	public static final String HEADER_CHUNKS_RECEIVED = "Sync-Chunks-Received";
+
+	/**
+	 * Chunk index used to only ask the receiver which chunks it already holds
+	 */
+	public static final int STATUS_CHUNK_INDEX = -1;
+
+	public static final int MAX_CHUNK_COUNT = 10000;
+
+	public static final long STALE_TRANSFER_AGE = 24 * 60 * 60 * 1000L;
+
+	private static final Pattern TRANSFER_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+	private static final String CHUNK_SUFFIX = ".chunk";
+
+	private final File dir;
+
+	private final int chunkCount;
+
+	/**
+	 * Opens the staged transfer with the given id in the sync application directory
+	 *
+	 * @param transferId the id of the transfer, as sent by the sender
+	 * @param chunkCount the number of chunks of the whole transfer
+	 * @throws SyncException if the id or chunk count are not valid
+	 */
+	public ChunkedTransfer(String transferId, int chunkCount) throws SyncException {
+		this(getStagingDir(), transferId, chunkCount);
+	}
+
+	/**
+	 * Opens the staged transfer with the given id in the given staging directory
+	 *
+	 * @param stagingDir the directory holding all staged transfers
+	 * @param transferId the id of the transfer, as sent by the sender
+	 * @param chunkCount the number of chunks of the whole transfer
+	 * @throws SyncException if the id or chunk count are not valid
+	 */
+	public ChunkedTransfer(File stagingDir, String transferId, int chunkCount) throws SyncException {
+		if (transferId == null || !TRANSFER_ID.matcher(transferId).matches())
+			throw new SyncException("Invalid transfer id: " + transferId);
+		if (chunkCount < 1 || chunkCount > MAX_CHUNK_COUNT)
+			throw new SyncException("Invalid chunk count " + chunkCount + " for transfer " + transferId);
+
+		this.dir = new File(stagingDir, transferId);
+		this.chunkCount = chunkCount;
+
+		if (!dir.exists()) {
+			removeStaleTransfers(stagingDir, STALE_TRANSFER_AGE);
+			if (!dir.mkdirs() && !dir.isDirectory())
+				throw new SyncException("Unable to create staging directory " + dir.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Stores one chunk of the transfer, replacing an earlier copy of the same chunk
+	 *
+	 * @param index the 0 based index of the chunk
+	 * @param data the contents of the chunk
+	 * @param checksum the CRC32 checksum of the chunk as computed by the sender
+	 * @return false if the chunk was rejected because the index or checksum are not valid
+	 * @throws IOException if the chunk cannot be written
+	 */
+	public boolean storeChunk(int index, byte[] data, long checksum) throws IOException {
+		if (index < 0 || index >= chunkCount) {
+			log.warn("Rejecting chunk " + index + " of " + chunkCount + " for transfer " + dir.getName());
+			return false;
+		}
+		if (data == null || getChecksum(data, 0, data.length) != checksum) {
+			log.warn("Rejecting chunk " + index + " for transfer " + dir.getName() + ": checksum does not match");
+			return false;
+		}
+
+		// write to a temporary file first so a half written chunk never counts as received
+		File tmp = new File(dir, index + CHUNK_SUFFIX + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(data);
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+		}
+		File chunk = getChunkFile(index);
+		if (chunk.exists())
+			chunk.delete();
+		if (!tmp.renameTo(chunk))
+			throw new IOException("Unable to move " + tmp.getAbsolutePath() + " to " + chunk.getAbsolutePath());
+		return true;
+	}
+
+	/**
+	 * @return the indexes of the chunks that have been stored so far
+	 */
+	public SortedSet<Integer> getReceivedChunks() {
+		SortedSet<Integer> received = new TreeSet<Integer>();
+		for (int index = 0; index < chunkCount; index++) {
+			if (getChunkFile(index).isFile())
+				received.add(index);
+		}
+		return received;
+	}
+
+	/**
+	 * @return true if all chunks of the transfer have been stored
+	 */
+	public boolean isComplete() {
+		return getReceivedChunks().size() == chunkCount;
+	}
+
+	/**
+	 * Reads the complete transfer back, chunk after chunk. The caller closes the stream and then
+	 * calls {@link #discard()}.
+	 *
+	 * @return the whole payload as it was before it was split
+	 * @throws IOException if the transfer is not complete or a chunk cannot be read
+	 */
+	public InputStream openStream() throws IOException {
+		if (!isComplete())
+			throw new IOException("Transfer " + dir.getName() + " is not complete");
+
+		List<InputStream> chunks = new ArrayList<InputStream>(chunkCount);
+		try {
+			for (int index = 0; index < chunkCount; index++) {
+				chunks.add(new FileInputStream(getChunkFile(index)));
+			}
+		}
+		catch (IOException e) {
+			for (InputStream in : chunks) {
+				IOUtils.closeQuietly(in);
+			}
+			throw e;
+		}
+		return new SequenceInputStream(Collections.enumeration(chunks));
+	}
+
+	/**
+	 * Removes the staged chunks of this transfer
+	 */
+	public void discard() {
+		try {
+			FileUtils.deleteDirectory(dir);
+		}
+		catch (IOException e) {
+			log.warn("Unable to remove staged transfer " + dir.getAbsolutePath(), e);
+		}
+	}
+
+	private File getChunkFile(int index) {
+		return new File(dir, index + CHUNK_SUFFIX);
+	}
+
+	/**
+	 * Names a transfer after its content, so that sending the same payload again resumes the
+	 * chunks that were already received
+	 *
+	 * @param payload the whole payload to be sent
+	 * @return the id of the transfer
+	 */
+	public static String getTransferId(byte[] payload) {
+		return getTransferId(payload.length, getChecksum(payload, 0, payload.length));
+	}
+	
+	/**
+	 * @param length the length of the whole payload
+	 * @param checksum the CRC32 checksum of the whole payload
+	 * @return the id of the transfer
+	 * @see #getTransferId(byte[])
+	 */
+	public static String getTransferId(long length, long checksum) {
+		return length + "-" + Long.toHexString(checksum);
+	}
+
+	/**
+	 * @return the CRC32 checksum of the given range of bytes
+	 */
+	public static long getChecksum(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return crc.getValue();
+	}
+
+	/**
+	 * @return the number of chunks needed to send the given number of bytes
+	 */
+	public static int getChunkCount(long length, int chunkSize) {
+		return (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+	}
+
+	/**
+	 * @return the given chunk indexes as the value of the {@link #HEADER_CHUNKS_RECEIVED} header
+	 */
+	public static String formatChunkList(Collection<Integer> chunks) {
+		return StringUtils.join(chunks, ",");
+	}
+
+	/**
+	 * @return the chunk indexes from a {@link #HEADER_CHUNKS_RECEIVED} header
+	 */
+	public static SortedSet<Integer> parseChunkList(String value) {
+		SortedSet<Integer> chunks = new TreeSet<Integer>();
+		if (StringUtils.isNotBlank(value)) {
+			for (String index : value.split(",")) {
+				if (StringUtils.isNotBlank(index))
+					chunks.add(Integer.valueOf(index.trim()));
+			}
+		}
+		return chunks;
+	}
+
+	private static File getStagingDir() {
+		File dir = new File(SyncUtil.getSyncApplicationDir(), "staging");
+		if (!dir.exists())
+			dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * Removes staged transfers that have not been touched for the given time
+	 */
+	private static void removeStaleTransfers(File stagingDir, long maxAge) {
+		File[] transfers = stagingDir.listFiles();
+		if (transfers == null)
+			return;
+		long cutoff = System.currentTimeMillis() - maxAge;
+		for (File transfer : transfers) {
+			if (transfer.isDirectory() && transfer.lastModified() < cutoff) {
+				log.info("Removing stale staged transfer " + transfer.getName());
+				try {
+					FileUtils.deleteDirectory(transfer);
+				}
+				catch (IOException e) {
+					log.warn("Unable to remove stale staged transfer " + transfer.getAbsolutePath(), e);
+				}
+			}
+		}
+	}
+}
@@ -14,9 +14,11 @@
 package org.openmrs.module.sync.server;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.GZIPOutputStream;
@@ -27,15 +29,25 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.sync.SyncException;
 
 /**
- *
+ * The (compressed) body of a request or response to a remote server. The body is kept in memory
+ * while it is small and moved to a temporary file once it grows beyond
+ * {@link #IN_MEMORY_THRESHOLD}, so it can be streamed out without holding a second copy of a large
+ * transmission on the heap. Call {@link #release()} when done to remove the temporary file.
  */
 public class ConnectionRequest {
 
 	private static final Log log = LogFactory.getLog(ConnectionRequest.class);
 
+	/**
+	 * Bodies larger than this many bytes are kept in a temporary file
+	 */
+	public static final int IN_MEMORY_THRESHOLD = 1024 * 1024;
+
 	private long checksum;
+	private long contentChecksum;
+	private long contentLength;
 	private boolean useCompression;
-	private ByteArrayOutputStream baos; 
+	private SpillingOutputStream baos; 
 	private CheckedOutputStream cos;             
 	private GZIPOutputStream zos;   			
 		
@@ -60,25 +72,65 @@ public class ConnectionRequest {
 	 */
 	public ConnectionRequest(String content, boolean useCompression) throws SyncException { 
 		try {
-			this.useCompression = useCompression;
-			this.baos = new ByteArrayOutputStream();
-			this.cos = new CheckedOutputStream(baos, new CRC32());			
-			
-			if (useCompression) { 
-				this.zos = new GZIPOutputStream(new BufferedOutputStream(cos));			
-				IOUtils.copy(new ByteArrayInputStream(content.getBytes("UTF-8")), zos);
-				IOUtils.closeQuietly(zos);		
-			} 
-			else { 
-				IOUtils.copy(new ByteArrayInputStream(content.getBytes("UTF-8")), baos);
-				IOUtils.closeQuietly(baos);
+			// write the content straight through, rather than copying it into a byte array first
+			Writer writer = new OutputStreamWriter(open(useCompression), "UTF-8");
+			try {
+				writer.write(content);
+			}
+			finally {
+				IOUtils.closeQuietly(writer);
 			}
-			this.checksum = cos.getChecksum().getValue();
-						
+			finish();
 		} catch (IOException e) { 
+			release();
 			throw new SyncException(e);			
 		}		
 	}
+	
+	/**
+	 * Public constructor that creates a request from content read from a stream, e.g. a file
+	 * 
+	 * @param content the content, which is read to the end but not closed
+	 * @param useCompression
+	 * @throws SyncException
+	 */
+	public ConnectionRequest(InputStream content, boolean useCompression) throws SyncException {
+		try {
+			OutputStream out = open(useCompression);
+			try {
+				IOUtils.copy(content, out);
+			}
+			finally {
+				IOUtils.closeQuietly(out);
+			}
+			finish();
+		}
+		catch (IOException e) {
+			release();
+			throw new SyncException(e);
+		}
+	}
+	
+	private OutputStream open(boolean useCompression) throws IOException {
+		this.useCompression = useCompression;
+		this.baos = new SpillingOutputStream("sync-request");
+		this.cos = new CheckedOutputStream(baos, new CRC32());			
+		
+		if (useCompression) { 
+			this.zos = new GZIPOutputStream(new BufferedOutputStream(cos));			
+			return zos;
+		} 
+		return new BufferedOutputStream(cos);
+	}
+	
+	private void finish() throws IOException {
+		baos.checkFailure();
+		
+		this.contentLength = baos.getSize();
+		this.contentChecksum = cos.getChecksum().getValue();
+		// uncompressed bodies have never carried a checksum, receivers expect 0 for them
+		this.checksum = useCompression ? contentChecksum : 0;
+	}
 		
 	/**
 	 * Get checksum of content.
@@ -88,20 +140,65 @@ public class ConnectionRequest {
 	public long getChecksum() { 
 		return checksum;	
 	}
+	
+	/**
+	 * @return the CRC32 checksum of the body as sent, also for uncompressed bodies
+	 */
+	public long getContentChecksum() {
+		return contentChecksum;
+	}
+	
 	public long getContentLength() {
-		return baos.size();
+		return contentLength;
 	}
 	
 	/**
-	 * Returns a compressed or uncompressed data. 
+	 * Returns a compressed or uncompressed data. This reads the whole body into memory, prefer
+	 * {@link #getInputStream()}.
 	 * 
 	 * @return
 	 */
 	public byte[] getBytes() { 
-		return baos.toByteArray();
+		InputStream in = null;
+		try {
+			in = getInputStream();
+			return IOUtils.toByteArray(in);
+		}
+		catch (IOException e) {
+			throw new SyncException(e);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+	
+	/**
+	 * @return a new stream over the compressed or uncompressed body
+	 * @throws IOException if the temporary file holding the body cannot be read
+	 */
+	public InputStream getInputStream() throws IOException {
+		return baos.getInputStream();
+	}
+	
+	/**
+	 * Writes the body to the given stream
+	 * 
+	 * @param out the stream to write to, which is not closed
+	 * @throws IOException if the body cannot be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		baos.writeTo(out);
 	}
+	
 	public boolean forceCompression() {
 		return useCompression;
 	}
 	
+	/**
+	 * Removes the temporary file holding the body, if any
+	 */
+	public void release() {
+		if (baos != null)
+			baos.delete();
+	}
 }
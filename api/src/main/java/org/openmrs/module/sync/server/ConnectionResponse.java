@@ -14,8 +14,10 @@
 package org.openmrs.module.sync.server;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.GZIPInputStream;
@@ -26,7 +28,11 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.sync.SyncException;
 
 /**
- * 
+ * The body of a response from, or request by, a remote server. The body is checksummed and
+ * decompressed while it is read, and kept as bytes the way {@link ConnectionRequest} keeps what is
+ * sent: in memory while it is small, in a temporary file beyond
+ * {@link ConnectionRequest#IN_MEMORY_THRESHOLD}. Read it with {@link #getPayloadStream()}, or as a
+ * string with {@link #getResponsePayload()}, and call {@link #release()} when done.
  */
 public class ConnectionResponse {
 	
@@ -36,7 +42,7 @@ public class ConnectionResponse {
 	private String errorMessage;
 	private long checksum;
 	private String responsePayload;
-	private CheckedInputStream cis;
+	private SpillingOutputStream payload;
 	private boolean useCompression;
 	
 	public ConnectionResponse() { 
@@ -53,23 +59,27 @@ public class ConnectionResponse {
 	public ConnectionResponse(InputStream is, boolean useCompression) throws SyncException {
 		try { 
 			this.useCompression = useCompression;
-			this.cis = new CheckedInputStream(is, new CRC32());
-
+			CheckedInputStream cis = new CheckedInputStream(is, new CRC32());
+			InputStream in = cis;
+			if (this.useCompression)
+				in = new GZIPInputStream(new BufferedInputStream(cis));
+			
+			this.payload = new SpillingOutputStream("sync-response");
+			try {
+				IOUtils.copy(in, payload);
+			}
+			finally {
+				IOUtils.closeQuietly(payload);
+			}
+			payload.checkFailure();
+			
 			if (this.useCompression) { 
-		        GZIPInputStream zis = new GZIPInputStream(new BufferedInputStream(cis)); 	        
-		        this.responsePayload = IOUtils.toString(zis,"UTF-8");
-		        IOUtils.closeQuietly(zis);
-				IOUtils.closeQuietly(cis);
 		        log.info("**********************  CHECKSUM: " + cis.getChecksum().getValue() );
 		        this.checksum = cis.getChecksum().getValue();			
 			} 
-			else { 
-				this.responsePayload = IOUtils.toString(cis, "UTF-8");				
-			}
 			
 			log.info("Response compressed: " + useCompression);
-			//log.info("Response input: " + is.toString());
-			//log.info("Response data: " + this.responsePayload);
+			log.info("Response size: " + payload.getSize());
 			log.info("Response checksum: " + this.checksum);
 
 	        this.setState(ServerConnectionState.OK);
@@ -77,6 +87,8 @@ public class ConnectionResponse {
 		} catch (IOException e) { 
 			//throw new SyncException(e);
 			log.error("An error occurred while unzipping response", e);
+			release();
+			this.payload = null;
 		}
 		
 	}
@@ -93,14 +105,67 @@ public class ConnectionResponse {
     	this.errorMessage = errorMessage;
     }
 
+	/**
+	 * Reads the whole body into a string, prefer {@link #getPayloadStream()} for bodies that may be
+	 * large
+	 * 
+	 * @return the body as a string
+	 */
 	public String getResponsePayload() {
+		if (responsePayload == null && payload != null) {
+			InputStream in = null;
+			try {
+				in = payload.getInputStream();
+				responsePayload = IOUtils.toString(in, "UTF-8");
+			}
+			catch (IOException e) {
+				throw new SyncException(e);
+			}
+			finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
     	return responsePayload;
     }
 	
 	public void setResponsePayload(String responsePayload) {
+		release();
+		this.payload = null;
     	this.responsePayload = responsePayload;
     }
 	
+	/**
+	 * @return a new stream over the (decompressed) UTF-8 body
+	 * @throws IOException if the temporary file holding the body cannot be read
+	 */
+	public InputStream getPayloadStream() throws IOException {
+		if (payload != null)
+			return payload.getInputStream();
+		return new ByteArrayInputStream(responsePayload == null ? new byte[0] : responsePayload.getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Writes the (decompressed) body to the given stream, without turning it into a string
+	 * 
+	 * @param out the stream to write to, which is not closed
+	 * @throws IOException if the body cannot be written
+	 */
+	public void writePayloadTo(OutputStream out) throws IOException {
+		if (payload != null)
+			payload.writeTo(out);
+		else if (responsePayload != null)
+			out.write(responsePayload.getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Removes the temporary file holding the body, if any. The body can no longer be read after
+	 * this, unless it was read as a string before.
+	 */
+	public void release() {
+		if (payload != null)
+			payload.delete();
+	}
+	
 	public ServerConnectionState getState() {
     	return state;
     }
@@ -16,9 +16,9 @@ package org.openmrs.module.sync.server;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.openmrs.module.sync.SyncRecord;
@@ -57,7 +57,19 @@ public class RemoteServer {
 	
 	private String childUsername = null;
 	
-	private static Map<Integer, Date> syncServersInProgress = new LinkedHashMap<Integer, Date>();
+	private Integer batchSize;
+	
+	private Integer averageRecordBytes;
+	
+	private Integer recordWatermark;
+	
+	private Integer committedWatermark;
+	
+	/**
+	 * server id -> start of the sync running with that server; doubles as a per-server lock so syncs
+	 * with different servers never wait on each other
+	 */
+	private static ConcurrentMap<Integer, Date> syncServersInProgress = new ConcurrentHashMap<Integer, Date>();
 	
 	public Boolean getDisabled() {
 		return disabled;
@@ -309,6 +321,57 @@ public class RemoteServer {
 		this.childUsername = childUsername;
 	}
 	
+	/**
+	 * @return the number of records to send in the next transmission to this server, as adapted
+	 *         by {@link AdaptiveBatchSizer}; null until the first exchange
+	 */
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+	
+	public void setBatchSize(Integer batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * @return the smoothed average size in bytes of a serialized record sent to this server
+	 */
+	public Integer getAverageRecordBytes() {
+		return averageRecordBytes;
+	}
+	
+	public void setAverageRecordBytes(Integer averageRecordBytes) {
+		this.averageRecordBytes = averageRecordBytes;
+	}
+	
+	/**
+	 * @return the id up to which all sync records were committed by this server, except those
+	 *         with a server record of their own; null if a server record is kept for every sync
+	 *         record sent to this server
+	 * @see org.openmrs.module.sync.SyncConstants#JOURNAL_MODE_WATERMARK
+	 */
+	public Integer getRecordWatermark() {
+		return recordWatermark;
+	}
+	
+	public void setRecordWatermark(Integer recordWatermark) {
+		this.recordWatermark = recordWatermark;
+	}
+	
+	/**
+	 * @return the id up to which all sync records are done with for this server, i.e. committed or
+	 *         not supposed to be sent to it; null if it was not worked out yet. Only ever written by
+	 *         {@link org.openmrs.module.sync.api.db.SyncDAO}.
+	 * @see org.openmrs.module.sync.api.SyncService#getMostRecentFullyCommittedRecordId()
+	 */
+	public Integer getCommittedWatermark() {
+		return committedWatermark;
+	}
+	
+	public void setCommittedWatermark(Integer committedWatermark) {
+		this.committedWatermark = committedWatermark;
+	}
+	
 	public Set<SyncServerRecord> getServerRecords() {
 		return serverRecords;
 	}
@@ -318,30 +381,41 @@ public class RemoteServer {
 	}
 	
     public Boolean getSyncInProgress() {
-    	synchronized (syncServersInProgress) {
-	    	if (getServerId() == null)
-	    		return false;
-	    	else
-	    		return syncServersInProgress.get(getServerId()) != null;
-    	}
+    	if (getServerId() == null)
+    		return false;
+    	else
+    		return syncServersInProgress.containsKey(getServerId());
     }
 
     /**
      * If given true, marks this current server as 'in progress' (static variable not to be saved in the database)
      * 
      * @param syncInProgress
+     * @see #tryStartSync()
      */
-    public synchronized void setSyncInProgress(Boolean syncInProgress) {
-    	synchronized (syncServersInProgress) {
-	    	if (syncInProgress) {
-	    		syncServersInProgress.put(getServerId(), new Date());
-	    	}
-	    	else {
-	    		syncServersInProgress.remove(getServerId());
-	    	}
+    public void setSyncInProgress(Boolean syncInProgress) {
+    	if (getServerId() == null)
+    		return;
+    	if (syncInProgress) {
+    		syncServersInProgress.put(getServerId(), new Date());
+    	}
+    	else {
+    		syncServersInProgress.remove(getServerId());
     	}
     }
     
+    /**
+     * Marks this server as 'in progress' unless a sync with it is already running, in one atomic
+     * step. Release with setSyncInProgress(false).
+     * 
+     * @return true if this server was marked, false if a sync with it is already running
+     */
+    public boolean tryStartSync() {
+    	if (getServerId() == null)
+    		return true;
+    	return syncServersInProgress.putIfAbsent(getServerId(), new Date()) == null;
+    }
+    
     private static DecimalFormat df = new DecimalFormat("0.00");
 	
 	/**
@@ -349,13 +423,14 @@ public class RemoteServer {
 	 *         not in progress the empty string is returned
 	 */
 	public String getSyncInProgressMinutes() {
-		synchronized (syncServersInProgress) {
-	    	if (getServerId() == null || syncServersInProgress.get(getServerId()) == null)
-	    		return "";
-	    	
-	    	Long difference = System.currentTimeMillis() - syncServersInProgress.get(getServerId()).getTime();
-	    	
-	    	return df.format((float)(difference) / 1000 / 60);
+		Date started = getServerId() == null ? null : syncServersInProgress.get(getServerId());
+		if (started == null)
+			return "";
+		
+		Long difference = System.currentTimeMillis() - started.getTime();
+		
+		synchronized (df) {
+			return df.format((float) (difference) / 1000 / 60);
 		}
     }
 
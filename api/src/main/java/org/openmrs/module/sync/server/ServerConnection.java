@@ -13,9 +13,14 @@
  */
 package org.openmrs.module.sync.server;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
@@ -27,14 +32,18 @@ import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 import org.apache.commons.httpclient.protocol.SSLProtocolSocketFactory;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.springframework.util.StringUtils;
 
 /**
@@ -44,6 +53,11 @@ public class ServerConnection {
 
 	private static final Log log = LogFactory.getLog(ServerConnection.class);
 	
+	/**
+	 * Number of times in a row a chunk is tried before a chunked upload is given up
+	 */
+	private static final int MAX_CHUNK_ATTEMPTS = 5;
+	
 	public static ConnectionResponse cloneParentDB(String address, String username,
 			String password) {
 		return sendExportedData(address,
@@ -60,6 +74,26 @@ public class ServerConnection {
 		                        SyncConstants.TEST_MESSAGE);
 	}
 
+	/**
+	 * Asks the given server how many records it has waiting for us, without having it build a
+	 * transmission
+	 * 
+	 * @param server the server to ask, normally the parent
+	 * @return the answer of the server, or null if it could not be reached or does not understand
+	 *         the question
+	 */
+	public static SyncPendingSummary getPendingSummary(RemoteServer server) {
+		ConnectionResponse response = sendExportedData(server, SyncConstants.PENDING_MESSAGE);
+		if (response.getState() != ServerConnectionState.OK)
+			return null;
+		try {
+			return SyncPendingSummary.parse(response.getResponsePayload());
+		}
+		finally {
+			response.release();
+		}
+	}
+
 	public static ConnectionResponse sendExportedData(RemoteServer server,
 			String message) {
 		return sendExportedData(server.getAddress(),
@@ -85,18 +119,66 @@ public class ServerConnection {
 
 	public static ConnectionResponse sendExportedData(String url, String username, String password, String content, boolean isResponse) {
 
-		// Default response - default constructor instantiates contains error codes 
+		ConnectionRequest request = null;
+		try {
+			request = createRequest(content);
+
+			return sendExportedData(url, username, password, request, isResponse);
+		} catch (Exception e) {
+			log.error("Error occurred while compressing data ", e);
+			ConnectionResponse syncResponse = new ConnectionResponse();
+			syncResponse.setState(ServerConnectionState.CONNECTION_FAILED);
+			return syncResponse;
+		} finally {
+			if (request != null)
+				request.release();
+		}
+	}
+
+	/**
+	 * Compresses the given content into a request, if compression is enabled
+	 * 
+	 * @param content the content to send
+	 * @return the request, which the caller has to release
+	 * @throws SyncException if the content cannot be compressed
+	 */
+	public static ConnectionRequest createRequest(String content) throws SyncException {
+		boolean useCompression =
+			Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_ENABLE_COMPRESSION, "true"));
+
+		log.info("use compression: " + useCompression);
+		// Compress content
+		return new ConnectionRequest(content, useCompression);
+	}
+
+	/**
+	 * Sends a request that has already been compressed, see {@link #createRequest(String)}. The
+	 * request is not released, this is up to the caller.
+	 */
+	public static ConnectionResponse sendExportedData(String url, String username, String password, ConnectionRequest request, boolean isResponse) {
+		return sendExportedData(url, username, password, request, isResponse, ConnectionSettings.read(url));
+	}
+
+	/**
+	 * Same as {@link #sendExportedData(String, String, String, ConnectionRequest, boolean)}, with
+	 * settings that were read beforehand. Does not need an authenticated user, so it can be called
+	 * from a thread of its own.
+	 */
+	public static ConnectionResponse sendExportedData(String url, String username, String password, ConnectionRequest request, boolean isResponse, ConnectionSettings settings) {
+
+		// Default response - default constructor instantiates contains error codes
 		ConnectionResponse syncResponse = new ConnectionResponse();
-		
-		HttpClient client = new HttpClient();
+
+		// connections are pooled and kept alive per remote server, see ServerConnectionPool
+		final String address = url;
+		HttpClient client = ServerConnectionPool.getHttpClient(address);
 		
 		url = url + SyncConstants.DATA_IMPORT_SERVLET;
 		log.info("POST multipart request to " + url);
 		
 		if (url.startsWith("https")){
 			try {
-				if (Boolean.parseBoolean(Context.getAdministrationService()
-						.getGlobalProperty(SyncConstants.PROPERTY_ALLOW_SELFSIGNED_CERTS))){
+				if (settings.allowSelfSignedCerts){
 
 					// It is necessary to provide a relative url (from the host name and port to the right)
 					String relativeUrl;
@@ -113,7 +195,13 @@ public class ServerConnection {
 						relativeUrl = url.split(host + ":" + port, 2)[1];
 					}
 
-					Protocol easyhttps = new Protocol("https", (ProtocolSocketFactory) new EasySSLProtocolSocketFactory(), port);
+					final int easyPort = port;
+					Protocol easyhttps = ServerConnectionPool.getProtocol(address, new ServerConnectionPool.ProtocolFactory() {
+						
+						public Protocol createProtocol() throws Exception {
+							return new Protocol("https", (ProtocolSocketFactory) new EasySSLProtocolSocketFactory(), easyPort);
+						}
+					});
 					client.getHostConfiguration().setHost(host, port, easyhttps);
 					
 					url = relativeUrl;
@@ -122,36 +210,45 @@ public class ServerConnection {
 				log.error("Unable to configure SSL to accept self-signed certificates");
 			} catch (GeneralSecurityException e) {
 				log.error("Unable to configure SSL to accept self-signed certificates");
+			} catch (Exception e) {
+				log.error("Unable to configure SSL to accept self-signed certificates", e);
 			}
 		}
 		
-		PostMethod method = new PostMethod(url);
-		
+		PostMethod method = null;
+
 		try {
+			client.getHttpConnectionManager().getParams().setConnectionTimeout(settings.timeout);
 			
-			boolean useCompression = 
-				Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_ENABLE_COMPRESSION, "true"));
-			
-			log.info("use compression: " + useCompression);
-			// Compress content
-			ConnectionRequest request = new ConnectionRequest(content, useCompression);
-
-			// Create up multipart request
-			Part[] parts = {
-					new FilePart("syncDataFile", new ByteArrayPartSource("syncDataFile", request.getBytes())),
-					new StringPart("username", username),				
-					new StringPart("password", password),				
-					new StringPart("compressed", String.valueOf(useCompression)),
-					new StringPart("isResponse", String.valueOf(isResponse)),
-					new StringPart("checksum", String.valueOf(request.getChecksum()))
-			};	
+			// null if the bandwidth is not limited
+			BandwidthThrottle throttle = settings.throttle;
 			
-			method.setRequestEntity(new MultipartRequestEntity(parts, method.getParams()));		
-
-			// Open a connection to the server and post the data
-			client.getHttpConnectionManager().getParams().setSoTimeout(ServerConnection.getTimeout().intValue());
-			client.getHttpConnectionManager().getParams().setConnectionTimeout(ServerConnection.getTimeout().intValue());
-			int status = client.executeMethod(method);	
+			int chunkSize = settings.chunkSize;
+			if (chunkSize > 0 && request.getContentLength() > chunkSize) {
+				// large transmission: upload in chunks, only resending the ones that did not arrive
+				method = sendChunks(client, url, username, password, request, isResponse, chunkSize, throttle,
+				    settings.timeout);
+			} else {
+				// Create up multipart request
+				Part[] parts = {
+						new FilePart("syncDataFile", new ThrottledPartSource(new RequestPartSource("syncDataFile", request), throttle)),
+						new StringPart("username", username),				
+						new StringPart("password", password),				
+						new StringPart("compressed", String.valueOf(request.forceCompression())),
+						new StringPart("isResponse", String.valueOf(isResponse)),
+						new StringPart("checksum", String.valueOf(request.getChecksum()))
+				};	
+				
+				method = new PostMethod(url);
+				// only looked at by the parent when asked for a clone
+				method.setRequestHeader(SyncConstants.HEADER_ACCEPT_DUMP_ENCODING, "gzip");
+				method.setRequestEntity(new MultipartRequestEntity(parts, method.getParams()));		
+	
+				// Open a connection to the server and post the data
+				method.getParams().setSoTimeout(settings.timeout);
+				client.executeMethod(method);
+			}
+			int status = method.getStatusCode();
 			
 			
 			// As long as the response is OK (200)
@@ -161,11 +258,14 @@ public class ServerConnection {
 	
 				// Check to see if the child/parent sent back a compressed response
 				Header compressionHeader = method.getResponseHeader("Enable-Compression");
-				useCompression = (compressionHeader!=null)?new Boolean(compressionHeader.getValue()):false;
+				boolean useCompression = (compressionHeader!=null)?new Boolean(compressionHeader.getValue()):false;
 				log.info("Response header Enable-Compression: " + useCompression);
 
 				// Decompress the data received (if compression is enabled)
-				syncResponse = new ConnectionResponse(method.getResponseBodyAsStream(), useCompression);
+				InputStream responseBody = method.getResponseBodyAsStream();
+				if (throttle != null)
+					responseBody = throttle.throttle(responseBody);
+				syncResponse = new ConnectionResponse(responseBody, useCompression);
 				
 				// Now we want to validate the checksum
 				Header checksumHeader = method.getResponseHeader("Content-Checksum");
@@ -196,10 +296,227 @@ public class ServerConnection {
 			log.error("Error occurred while sending/receiving data ", e);
 			syncResponse.setState(ServerConnectionState.CONNECTION_FAILED);
 		} finally { 			
-			method.releaseConnection();
+			if (method != null)
+				method.releaseConnection();
 		}
 		return syncResponse;
 	}
+	
+	/**
+	 * Uploads the given request in numbered, checksummed chunks. The server is first asked which
+	 * chunks of the transfer it already holds (from an earlier, interrupted attempt), then only the
+	 * missing chunks are posted. A chunk that fails is retried on a new connection, up to
+	 * {@link #MAX_CHUNK_ATTEMPTS} times in a row.
+	 * 
+	 * @return the method holding the response to the transmission, sent by the server once it has
+	 *         received all chunks, or an HTTP error; the caller releases its connection
+	 * @throws IOException if a chunk could not be sent after all attempts
+	 * @see ChunkedTransfer
+	 */
+	private static PostMethod sendChunks(HttpClient client, String url, String username, String password,
+	                                     ConnectionRequest request, boolean isResponse, int chunkSize,
+	                                     BandwidthThrottle throttle, int timeout) throws IOException {
+		long length = request.getContentLength();
+		String transferId = ChunkedTransfer.getTransferId(length, request.getContentChecksum());
+		int chunkCount = ChunkedTransfer.getChunkCount(length, chunkSize);
+		log.info("Sending transfer " + transferId + " in " + chunkCount + " chunks of " + chunkSize + " bytes");
+		
+		int index = ChunkedTransfer.STATUS_CHUNK_INDEX;
+		int failedAttempts = 0;
+		ChunkReader chunks = new ChunkReader(request);
+		try {
+			while (true) {
+				List<Part> parts = new ArrayList<Part>();
+				parts.add(new StringPart("username", username));
+				parts.add(new StringPart("password", password));
+				parts.add(new StringPart("compressed", String.valueOf(request.forceCompression())));
+				parts.add(new StringPart("isResponse", String.valueOf(isResponse)));
+				parts.add(new StringPart("checksum", String.valueOf(request.getChecksum())));
+				parts.add(new StringPart(ChunkedTransfer.PARAM_TRANSFER_ID, transferId));
+				parts.add(new StringPart(ChunkedTransfer.PARAM_CHUNK_COUNT, String.valueOf(chunkCount)));
+				parts.add(new StringPart(ChunkedTransfer.PARAM_CHUNK_INDEX, String.valueOf(index)));
+				if (index != ChunkedTransfer.STATUS_CHUNK_INDEX) {
+					byte[] chunk = chunks.read((long) index * chunkSize, (int) Math.min(chunkSize, length - (long) index
+					        * chunkSize));
+					parts.add(new FilePart("syncDataFile", new ThrottledPartSource(new ByteArrayPartSource("syncDataFile",
+					        chunk), throttle)));
+					parts.add(new StringPart(ChunkedTransfer.PARAM_CHUNK_CHECKSUM, String.valueOf(ChunkedTransfer.getChecksum(
+					    chunk, 0, chunk.length))));
+				}
+			
+				PostMethod method = new PostMethod(url);
+				method.setRequestEntity(new MultipartRequestEntity(parts.toArray(new Part[parts.size()]), method.getParams()));
+				method.getParams().setSoTimeout(timeout);
+			
+				Set<Integer> received;
+				try {
+					int status = client.executeMethod(method);
+					Header receivedHeader = method.getResponseHeader(ChunkedTransfer.HEADER_CHUNKS_RECEIVED);
+					if (status != HttpStatus.SC_OK || receivedHeader == null)
+						return method; // the server has all chunks and processed the transmission, or failed
+					received = ChunkedTransfer.parseChunkList(receivedHeader.getValue());
+					method.releaseConnection();
+				}
+				catch (IOException e) {
+					method.releaseConnection();
+					if (++failedAttempts >= MAX_CHUNK_ATTEMPTS)
+						throw e;
+					log.warn("Sending chunk " + index + " of transfer " + transferId + " failed, retrying", e);
+					// the chunk may or may not have arrived, so ask again
+					index = ChunkedTransfer.STATUS_CHUNK_INDEX;
+					continue;
+				}
+			
+				if (index != ChunkedTransfer.STATUS_CHUNK_INDEX && !received.contains(index)) {
+					if (++failedAttempts >= MAX_CHUNK_ATTEMPTS)
+						throw new IOException("Chunk " + index + " of transfer " + transferId + " was rejected by the server");
+					log.warn("Chunk " + index + " of transfer " + transferId + " was rejected by the server, resending");
+					continue;
+				}
+				failedAttempts = 0;
+			
+				index = ChunkedTransfer.STATUS_CHUNK_INDEX;
+				for (int next = 0; next < chunkCount; next++) {
+					if (!received.contains(next)) {
+						index = next;
+						break;
+					}
+				}
+				if (index == ChunkedTransfer.STATUS_CHUNK_INDEX)
+					throw new IOException("Server holds all chunks of transfer " + transferId
+					        + " but did not process the transmission");
+			}
+		}
+		finally {
+			chunks.close();
+		}
+	}
+	
+	/**
+	 * Reads the chunks of the body of a request from one stream. Chunks are mostly asked for in
+	 * order, so the stream is only reopened when a chunk before the current position is asked for
+	 * again, e.g. when a rejected chunk is resent.
+	 */
+	private static class ChunkReader {
+		
+		private final ConnectionRequest request;
+		
+		private InputStream in;
+		
+		private long position;
+		
+		public ChunkReader(ConnectionRequest request) {
+			this.request = request;
+		}
+		
+		/**
+		 * Reads one chunk of the body
+		 */
+		public byte[] read(long offset, int length) throws IOException {
+			if (in == null || offset < position) {
+				close();
+				in = request.getInputStream();
+				position = 0;
+			}
+			while (position < offset) {
+				long n = in.skip(offset - position);
+				if (n <= 0)
+					throw new IOException("Unable to skip to chunk at offset " + offset);
+				position += n;
+			}
+			byte[] chunk = new byte[length];
+			try {
+				new DataInputStream(in).readFully(chunk);
+			}
+			catch (IOException e) {
+				close(); // where the stream stopped is not known, start over next time
+				throw e;
+			}
+			position += length;
+			return chunk;
+		}
+		
+		public void close() {
+			IOUtils.closeQuietly(in);
+			in = null;
+		}
+	}
+	
+	/**
+	 * Streams the body of a request into a multipart request, without copying it into memory
+	 */
+	private static class RequestPartSource implements PartSource {
+		
+		private final String fileName;
+		
+		private final ConnectionRequest request;
+		
+		public RequestPartSource(String fileName, ConnectionRequest request) {
+			this.fileName = fileName;
+			this.request = request;
+		}
+		
+		public long getLength() {
+			return request.getContentLength();
+		}
+		
+		public String getFileName() {
+			return fileName;
+		}
+		
+		public InputStream createInputStream() throws IOException {
+			return request.getInputStream();
+		}
+	}
+	
+	/**
+	 * Has the body of a multipart request read as fast as the bandwidth throttle allows
+	 */
+	private static class ThrottledPartSource implements PartSource {
+		
+		private final PartSource source;
+		
+		private final BandwidthThrottle throttle;
+		
+		/**
+		 * @param source the part to send
+		 * @param throttle the throttle, null if the bandwidth is not limited
+		 */
+		public ThrottledPartSource(PartSource source, BandwidthThrottle throttle) {
+			this.source = source;
+			this.throttle = throttle;
+		}
+		
+		public long getLength() {
+			return source.getLength();
+		}
+		
+		public String getFileName() {
+			return source.getFileName();
+		}
+		
+		public InputStream createInputStream() throws IOException {
+			InputStream in = source.createInputStream();
+			return throttle == null ? in : throttle.throttle(in);
+		}
+	}
+	
+	/**
+	 * @return the size in bytes above which transmissions are sent in chunks, 0 if they are always
+	 *         sent in a single request
+	 */
+	private static int getChunkSize() {
+		String chunkSizeGP = Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_TRANSMISSION_CHUNK_SIZE, SyncConstants.PROPERTY_TRANSMISSION_CHUNK_SIZE_DEFAULT);
+		try {
+			if (StringUtils.hasText(chunkSizeGP))
+				return Math.max(0, Integer.parseInt(chunkSizeGP.trim()));
+		}
+		catch (NumberFormatException e) {
+			log.error("Could not convert " + chunkSizeGP + " to a number of bytes, sending transmissions in one request");
+		}
+		return 0;
+	}
 
 	
 	/**
@@ -234,5 +551,39 @@ public class ServerConnection {
 		
 		return timeout;
 	}
+	
+	/**
+	 * The settings a connection to a remote server is made with, read from the global properties
+	 * all at once. A transmission can then be sent from a thread that has no authenticated user,
+	 * e.g. while the next one is being built.
+	 */
+	public static class ConnectionSettings {
+		
+		private final int timeout;
+		
+		private final int chunkSize;
+		
+		private final boolean allowSelfSignedCerts;
+		
+		private final BandwidthThrottle throttle;
+		
+		private ConnectionSettings(int timeout, int chunkSize, boolean allowSelfSignedCerts, BandwidthThrottle throttle) {
+			this.timeout = timeout;
+			this.chunkSize = chunkSize;
+			this.allowSelfSignedCerts = allowSelfSignedCerts;
+			this.throttle = throttle;
+		}
+		
+		/**
+		 * @param address the address of the remote server
+		 * @return the current settings for connections to that server
+		 */
+		public static ConnectionSettings read(String address) {
+			boolean allowSelfSignedCerts = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+			    SyncConstants.PROPERTY_ALLOW_SELFSIGNED_CERTS));
+			return new ConnectionSettings(getTimeout().intValue(), getChunkSize(), allowSelfSignedCerts,
+			        BandwidthThrottle.getThrottle(address));
+		}
+	}
 
 }
@@ -0,0 +1,143 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncUtil;
+
+/**
+ * Keeps one pooled, keep-alive connection manager per remote server address so that the steps of
+ * a sync cycle (test connection, request, send response) reuse the same TCP/TLS connection rather
+ * than paying a full handshake each time. Connections that sit idle longer than
+ * {@link SyncConstants#PROPERTY_CONNECTION_IDLE_TIMEOUT} are closed by a single background thread.
+ *
+ * @see ServerConnection#sendExportedData(String, String, String, String, boolean)
+ */
+public class ServerConnectionPool {
+
+	private static final Log log = LogFactory.getLog(ServerConnectionPool.class);
+
+	/**
+	 * address (scheme://host:port) -> connection manager for that server
+	 */
+	private static final Map<String, MultiThreadedHttpConnectionManager> connectionManagers = new HashMap<String, MultiThreadedHttpConnectionManager>();
+
+	/**
+	 * address -> protocol used for servers with self-signed certificates; the same instance has to
+	 * be used for every request for pooled connections to be found again
+	 */
+	private static final Map<String, Protocol> protocols = new HashMap<String, Protocol>();
+
+	private static IdleConnectionTimeoutThread idleConnectionEvictor = null;
+
+	/**
+	 * Gets a client that uses the pooled connections for the given server address
+	 *
+	 * @param address scheme, host and port of the remote server
+	 * @return a new client sharing the connection manager of the address
+	 */
+	public static synchronized HttpClient getHttpClient(String address) {
+		MultiThreadedHttpConnectionManager manager = connectionManagers.get(address);
+		if (manager == null) {
+			manager = new MultiThreadedHttpConnectionManager();
+			connectionManagers.put(address, manager);
+			getIdleConnectionEvictor().addConnectionManager(manager);
+			log.debug("Created connection pool for " + address);
+		}
+
+		HttpConnectionManagerParams params = manager.getParams();
+		int poolSize = getIntegerProperty(SyncConstants.PROPERTY_CONNECTION_POOL_SIZE,
+		    SyncConstants.PROPERTY_CONNECTION_POOL_SIZE_DEFAULT);
+		params.setDefaultMaxConnectionsPerHost(poolSize);
+		params.setMaxTotalConnections(poolSize);
+		params.setStaleCheckingEnabled(true);
+
+		return new HttpClient(manager);
+	}
+
+	/**
+	 * Gets the protocol for the given address, creating it with the given factory the first time
+	 *
+	 * @param address scheme, host and port of the remote server
+	 * @param factory creates the protocol if there is none for the address yet
+	 * @return the protocol to use for the address
+	 * @throws Exception if the protocol cannot be created
+	 */
+	public static synchronized Protocol getProtocol(String address, ProtocolFactory factory) throws Exception {
+		Protocol protocol = protocols.get(address);
+		if (protocol == null) {
+			protocol = factory.createProtocol();
+			protocols.put(address, protocol);
+		}
+		return protocol;
+	}
+
+	/**
+	 * Closes all pooled connections, e.g. when the module is stopped
+	 */
+	public static synchronized void shutdown() {
+		if (idleConnectionEvictor != null) {
+			idleConnectionEvictor.shutdown();
+			idleConnectionEvictor = null;
+		}
+		for (HttpConnectionManager manager : connectionManagers.values()) {
+			((MultiThreadedHttpConnectionManager) manager).shutdown();
+		}
+		connectionManagers.clear();
+		protocols.clear();
+	}
+
+	private static IdleConnectionTimeoutThread getIdleConnectionEvictor() {
+		if (idleConnectionEvictor == null) {
+			long idleTimeout = getIntegerProperty(SyncConstants.PROPERTY_CONNECTION_IDLE_TIMEOUT,
+			    SyncConstants.PROPERTY_CONNECTION_IDLE_TIMEOUT_DEFAULT);
+			idleConnectionEvictor = new IdleConnectionTimeoutThread();
+			idleConnectionEvictor.setName("sync-idle-connection-evictor");
+			idleConnectionEvictor.setConnectionTimeout(idleTimeout);
+			idleConnectionEvictor.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+			idleConnectionEvictor.start();
+		}
+		return idleConnectionEvictor;
+	}
+
+	private static int getIntegerProperty(String name, String defaultValue) {
+		Integer value = null;
+		try {
+			value = SyncUtil.getGlobalPropetyValueAsInteger(name);
+		}
+		catch (Exception e) {
+			log.debug("Unable to read global property " + name, e);
+		}
+		return (value != null && value > 0) ? value : Integer.valueOf(defaultValue);
+	}
+
+	/**
+	 * Creates the protocol for an address the first time it is needed
+	 */
+	public interface ProtocolFactory {
+
+		public Protocol createProtocol() throws Exception;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Buffers in memory up to {@link ConnectionRequest#IN_MEMORY_THRESHOLD} bytes, then moves
+ * everything to a temporary file. Holds the bodies of requests to and responses from remote
+ * servers.
+ */
+class SpillingOutputStream extends OutputStream {
+
+	private static final Log log = LogFactory.getLog(SpillingOutputStream.class);
+
+	private final String prefix;
+
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+	private File file;
+
+	private OutputStream fileOut;
+
+	private long size;
+
+	private IOException failure;
+
+	/**
+	 * @param prefix the prefix of the name of the temporary file, if one is needed
+	 */
+	public SpillingOutputStream(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		try {
+			if (fileOut == null && memory.size() + len > ConnectionRequest.IN_MEMORY_THRESHOLD) {
+				file = File.createTempFile(prefix, ".tmp");
+				fileOut = new BufferedOutputStream(new FileOutputStream(file));
+				memory.writeTo(fileOut);
+				memory = null;
+			}
+			if (fileOut != null)
+				fileOut.write(b, off, len);
+			else
+				memory.write(b, off, len);
+			size += len;
+		}
+		catch (IOException e) {
+			// remembered, as the writers above only close quietly
+			failure = e;
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fileOut != null) {
+			try {
+				fileOut.close();
+			}
+			catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException the first failure to write, if any
+	 */
+	public void checkFailure() throws IOException {
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return a new stream over the bytes written, once the stream is closed
+	 * @throws IOException if the temporary file cannot be read
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (file != null)
+			return new FileInputStream(file);
+		return new ByteArrayInputStream(memory.toByteArray());
+	}
+
+	/**
+	 * Writes the bytes written to this stream to the given stream
+	 *
+	 * @param out the stream to write to, which is not closed
+	 * @throws IOException if the bytes cannot be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (file == null) {
+			memory.writeTo(out);
+			return;
+		}
+		InputStream in = getInputStream();
+		try {
+			IOUtils.copy(in, out);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Removes the temporary file, if any
+	 */
+	public void delete() {
+		if (file != null) {
+			if (!file.delete())
+				log.warn("Unable to delete temporary file " + file.getAbsolutePath());
+			file = null;
+		}
+	}
+}
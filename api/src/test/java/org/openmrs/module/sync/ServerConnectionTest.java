@@ -13,10 +13,21 @@
  */
 package org.openmrs.module.sync;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
+import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.ServerConnection;
+import org.openmrs.module.sync.server.ServerConnectionPool;
+import org.openmrs.module.sync.server.ServerConnectionState;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
 
@@ -31,4 +42,135 @@ public class ServerConnectionTest extends BaseModuleContextSensitiveTest {
 		ServerConnection.getTimeout();
 		Assert.assertTrue(true);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * A full synchronize posts the request, then the response to the same server; with pooled
+	 * connections all of these steps should share one connection (and so one handshake).
+	 */
+	@Test
+	public void sendExportedData_shouldReuseTheConnectionToTheSameServer() throws Exception {
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		try {
+			String address = "http://localhost:" + server.getPort() + "/openmrs";
+			
+			ConnectionResponse test = ServerConnection.test(address, "admin", "test");
+			ConnectionResponse request = ServerConnection.sendExportedData(address, "admin", "test", "<request/>", false);
+			ConnectionResponse response = ServerConnection.sendExportedData(address, "admin", "test", "<response/>", true);
+			
+			Assert.assertEquals(ServerConnectionState.OK, test.getState());
+			Assert.assertEquals(ServerConnectionState.OK, request.getState());
+			Assert.assertEquals(ServerConnectionState.OK, response.getState());
+			Assert.assertEquals(3, server.getRequestCount());
+			Assert.assertEquals(1, server.getConnectionCount());
+		}
+		finally {
+			server.close();
+			ServerConnectionPool.shutdown();
+		}
+	}
+	
+	/**
+	 * Minimal keep-alive HTTP/1.1 server standing in for the remote sync server: it answers every
+	 * POST with an empty, uncompressed sync response and counts connections and requests.
+	 */
+	private static class LoopbackServer extends Thread {
+		
+		private final ServerSocket serverSocket;
+		
+		private final AtomicInteger connectionCount = new AtomicInteger();
+		
+		private final AtomicInteger requestCount = new AtomicInteger();
+		
+		public LoopbackServer() throws IOException {
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+		
+		public int getPort() {
+			return serverSocket.getLocalPort();
+		}
+		
+		public int getConnectionCount() {
+			return connectionCount.get();
+		}
+		
+		public int getRequestCount() {
+			return requestCount.get();
+		}
+		
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+		
+		@Override
+		public void run() {
+			while (!serverSocket.isClosed()) {
+				try {
+					final Socket socket = serverSocket.accept();
+					connectionCount.incrementAndGet();
+					Thread handler = new Thread() {
+						
+						@Override
+						public void run() {
+							handle(socket);
+						}
+					};
+					handler.setDaemon(true);
+					handler.start();
+				}
+				catch (IOException e) {
+					// closed
+				}
+			}
+		}
+		
+		private void handle(Socket socket) {
+			try {
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				String headers;
+				while ((headers = readHeaders(in)) != null) {
+					int contentLength = 0;
+					for (String line : headers.split("\r\n")) {
+						if (line.toLowerCase().startsWith("content-length:"))
+							contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+					}
+					for (int i = 0; i < contentLength; i++) {
+						if (in.read() < 0)
+							return;
+					}
+					requestCount.incrementAndGet();
+					
+					byte[] body = "<SyncTransmissionResponse/>".getBytes("UTF-8");
+					out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length
+					        + "\r\nEnable-Compression: false\r\nContent-Checksum: 0\r\n\r\n").getBytes("UTF-8"));
+					out.write(body);
+					out.flush();
+				}
+			}
+			catch (IOException e) {
+				// client went away
+			}
+			finally {
+				try {
+					socket.close();
+				}
+				catch (IOException e) {}
+			}
+		}
+		
+		private String readHeaders(InputStream in) throws IOException {
+			ByteArrayOutputStream headers = new ByteArrayOutputStream();
+			int matched = 0;
+			int b;
+			while ((b = in.read()) >= 0) {
+				headers.write(b);
+				matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+				if (matched == 4)
+					return headers.toString("UTF-8");
+			}
+			return null;
+		}
+	}
+}
@@ -201,6 +201,53 @@ public class SyncEncounterTest extends SyncBaseTest {
 		});
 	}
 	
-	
+	@Test
+    @NotTransactional
+	public void shouldAddObsGroupWithItsMembersAndEncounterInOneRecord() throws Exception {
+		runSyncTest(new SyncTestHelper() {			
+			
+			String encUuid;
+			
+			String groupUuid;
+			
+			String memberUuid;
+			
+			public void runOnChild() {
+				Encounter e = new Encounter();
+				e.setEncounterDatetime(new Date());
+				e.setPatient(Context.getPatientService().getPatient(2));
+				e.setEncounterType(Context.getEncounterService().getEncounterType("ADULTINITIAL"));
+				
+				// the member refers to the group and both refer to the encounter, all new in this record
+				Person person = Context.getPersonService().getPerson(2);
+				Concept concept = Context.getConceptService().getConcept(1);
+				Location loc = Context.getLocationService().getLocation(1);
+				Obs group = new Obs(person, concept, new Date(), loc);
+				Obs member = new Obs(person, concept, new Date(), loc);
+				member.setValueText("member");
+				group.addGroupMember(member);
+				e.addObs(group);
+				e.addObs(member);
+				
+				Context.getEncounterService().saveEncounter(e);
+				
+				encUuid = e.getUuid();
+				groupUuid = group.getUuid();
+				memberUuid = member.getUuid();
+			}
+			public void runOnParent() {
+				Context.clearSession();
+				
+				Encounter e = Context.getEncounterService().getEncounterByUuid(encUuid);
+				assertNotNull(e);
+				Obs member = Context.getObsService().getObsByUuid(memberUuid);
+				assertNotNull(member);
+				assertNotNull(member.getObsGroup());
+				assertEquals(groupUuid, member.getObsGroup().getUuid());
+				assertEquals(encUuid, member.getEncounter().getUuid());
+				assertEquals(encUuid, Context.getObsService().getObsByUuid(groupUuid).getEncounter().getUuid());
+			}
+		});
+	}
 	
 }
@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncTransmissionPrebuilder.Prebuilt;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Tests the {@link SyncTransmissionPrebuilder}
+ */
+public class SyncTransmissionPrebuilderTest extends BaseModuleContextSensitiveTest {
+
+	private RemoteServer parent;
+
+	private long pendingCount;
+
+	@Before
+	public void registerParent() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		executeDataSet("org/openmrs/module/sync/include/SyncRecordsAddingParent.xml");
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(SyncConstants.PROPERTY_PREBUILD_TRANSMISSION, "true"));
+
+		SyncService syncService = Context.getService(SyncService.class);
+		parent = syncService.getParentServer();
+		pendingCount = syncService.getPendingSummary(parent).getCount();
+		SyncTransmissionPrebuilder.scheduleBuild(parent, 2);
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		SyncTransmissionPrebuilder.shutdown();
+	}
+
+	@Test
+	public void take_shouldReturnTheTransmissionBuiltForTheServer() throws Exception {
+		Prebuilt entry = createPrebuilt(1, 2, pendingCount);
+		Assert.assertTrue(SyncTransmissionPrebuilder.store(parent.getServerId(), SyncTransmissionPrebuilder
+		        .getGeneration(parent.getServerId()), entry));
+
+		Assert.assertSame(entry, SyncTransmissionPrebuilder.take(parent, 2));
+		Assert.assertNull(SyncTransmissionPrebuilder.take(parent, 2));
+	}
+
+	@Test
+	public void store_shouldDiscardATransmissionBuiltBeforeTheServerWasSyncedWith() throws Exception {
+		Integer generation = SyncTransmissionPrebuilder.getGeneration(parent.getServerId());
+		Assert.assertNull(SyncTransmissionPrebuilder.take(parent, 2));
+
+		Assert.assertFalse(SyncTransmissionPrebuilder.store(parent.getServerId(), generation, createPrebuilt(1, 2,
+		    pendingCount)));
+		Assert.assertNull(SyncTransmissionPrebuilder.take(parent, 2));
+	}
+
+	@Test
+	public void recordCreated_shouldDropATransmissionThatIsNotFull() throws Exception {
+		Integer generation = SyncTransmissionPrebuilder.getGeneration(parent.getServerId());
+		SyncTransmissionPrebuilder.store(parent.getServerId(), generation, createPrebuilt(1, 2, pendingCount));
+
+		SyncTransmissionPrebuilder.recordCreated(createNewRecord());
+
+		Assert.assertFalse(generation.equals(SyncTransmissionPrebuilder.getGeneration(parent.getServerId())));
+		Assert.assertNull(SyncTransmissionPrebuilder.take(parent, 2));
+	}
+
+	@Test
+	public void recordCreated_shouldKeepATransmissionThatIsFull() throws Exception {
+		Integer generation = SyncTransmissionPrebuilder.getGeneration(parent.getServerId());
+		Prebuilt entry = createPrebuilt(2, 2, pendingCount);
+		SyncTransmissionPrebuilder.store(parent.getServerId(), generation, entry);
+
+		SyncTransmissionPrebuilder.recordCreated(createNewRecord());
+
+		Assert.assertEquals(generation, SyncTransmissionPrebuilder.getGeneration(parent.getServerId()));
+		Assert.assertSame(entry, SyncTransmissionPrebuilder.take(parent, 2));
+	}
+
+	@Test
+	public void isUsable_shouldRejectATransmissionLargerThanTheBatchSize() throws Exception {
+		Assert.assertTrue(SyncTransmissionPrebuilder.isUsable(createPrebuilt(2, 2, pendingCount), parent, 2));
+		Assert.assertFalse(SyncTransmissionPrebuilder.isUsable(createPrebuilt(2, 2, pendingCount), parent, 1));
+	}
+
+	@Test
+	public void isUsable_shouldRejectATransmissionThatIsNotFullIfMoreRecordsAreWaiting() throws Exception {
+		Assert.assertFalse(SyncTransmissionPrebuilder.isUsable(createPrebuilt(1, 2, pendingCount - 1), parent, 2));
+		Assert.assertTrue(SyncTransmissionPrebuilder.isUsable(createPrebuilt(2, 2, pendingCount - 1), parent, 2));
+		Assert.assertFalse(SyncTransmissionPrebuilder.isUsable(createPrebuilt(2, 2, pendingCount + 1), parent, 2));
+	}
+
+	@Test
+	public void isUsable_shouldRejectATransmissionWithRecordsThatReachedTheMaxRetryCount() throws Exception {
+		Prebuilt entry = createPrebuilt(2, 2, pendingCount);
+		entry.getTransmission().getSyncRecords().get(1).setRetryCount(
+		    Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT));
+		Assert.assertFalse(SyncTransmissionPrebuilder.isUsable(entry, parent, 2));
+	}
+
+	private Prebuilt createPrebuilt(int recordCount, int batchSize, long pendingCount) {
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < recordCount; i++) {
+			SyncRecord record = new SyncRecord();
+			record.setRecordId(i + 1);
+			record.setState(SyncRecordState.NEW);
+			records.add(record);
+		}
+		return new Prebuilt(new SyncTransmission(parent.getUuid(), records), batchSize, pendingCount);
+	}
+
+	private SyncRecord createNewRecord() {
+		SyncRecord record = new SyncRecord();
+		record.setState(SyncRecordState.NEW);
+		return record;
+	}
+}
@@ -13,15 +13,22 @@
  */
 package org.openmrs.module.sync;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.Assert;
 import org.junit.Ignore;
 
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncTransmission;
 import org.openmrs.module.sync.SyncTransmissionState;
 import org.openmrs.module.sync.SyncUtilTransmission;
 import org.openmrs.module.sync.SyncUtilTransmission.ReceivingSize;
+import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
@@ -67,4 +74,82 @@ public class SyncUtilTransmissionTest extends BaseModuleContextSensitiveTest imp
 		        true), null);
 		Assert.assertEquals(SyncTransmissionState.CANNOT_FIND_SERVER_WITH_UUID, response.getState());
 	}
+	
+	@Test
+	public void getTransmissionWindow_shouldSendOneTransmissionPerSyncByDefault() throws Exception {
+		Assert.assertEquals(1, SyncUtilTransmission.getTransmissionWindow());
+		Assert.assertFalse(SyncUtilTransmission.isWindowOpen(SyncUtilTransmission.getTransmissionWindow(), 1));
+	}
+	
+	@Test
+	public void getTransmissionWindow_shouldReadTheWindowFromTheGlobalProperty() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(SyncConstants.PROPERTY_TRANSMISSION_WINDOW, "3"));
+		Assert.assertEquals(3, SyncUtilTransmission.getTransmissionWindow());
+	}
+	
+	@Test
+	public void isWindowOpen_shouldStopOnceTheWindowIsFull() throws Exception {
+		Assert.assertTrue(SyncUtilTransmission.isWindowOpen(3, 1));
+		Assert.assertTrue(SyncUtilTransmission.isWindowOpen(3, 2));
+		Assert.assertFalse(SyncUtilTransmission.isWindowOpen(3, 3));
+	}
+	
+	@Test
+	public void isWindowOpen_shouldNotLimitTheTransmissionsIfTheWindowIsZero() throws Exception {
+		Assert.assertTrue(SyncUtilTransmission.isWindowOpen(0, 1));
+		Assert.assertTrue(SyncUtilTransmission.isWindowOpen(0, 1000));
+	}
+	
+	@Test
+	public void isBacklogLeft_shouldOnlyContinueAfterAFullTransmissionThatWentFine() throws Exception {
+		SyncTransmission full = createTransmission(2);
+		SyncTransmissionResponse ok = new SyncTransmissionResponse();
+		ok.setState(SyncTransmissionState.OK);
+		SyncTransmissionResponse failed = new SyncTransmissionResponse();
+		failed.setState(SyncTransmissionState.FAILED);
+		
+		Assert.assertTrue(SyncUtilTransmission.isBacklogLeft(full, 2, ok));
+		Assert.assertFalse(SyncUtilTransmission.isBacklogLeft(createTransmission(1), 2, ok));
+		Assert.assertFalse(SyncUtilTransmission.isBacklogLeft(full, 2, failed));
+		Assert.assertFalse(SyncUtilTransmission.isBacklogLeft(full, 2, null));
+	}
+	
+	@Test
+	public void prebuildSyncTransmission_shouldLeaveTheRecordsAsTheyWere() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		executeDataSet("org/openmrs/module/sync/include/SyncRecordsAddingParent.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		Map<Integer, String> before = new HashMap<Integer, String>();
+		for (SyncRecord record : syncService.getSyncRecords()) {
+			before.put(record.getRecordId(), record.getState() + "/" + record.getRetryCount());
+		}
+		
+		SyncTransmission st = SyncUtilTransmission.prebuildSyncTransmission(syncService.getParentServer(), 5, null);
+		Assert.assertFalse(st.getSyncRecords().isEmpty());
+		Context.flushSession();
+		Context.clearSession();
+		
+		for (SyncRecord record : st.getSyncRecords()) {
+			SyncRecord reloaded = syncService.getSyncRecord(record.getRecordId());
+			Assert.assertEquals(before.get(record.getRecordId()), reloaded.getState() + "/" + reloaded.getRetryCount());
+		}
+	}
+	
+	@Test
+	public void getLastRecord_shouldReturnWhereTheNextTransmissionStarts() throws Exception {
+		SyncTransmission st = createTransmission(3);
+		Assert.assertSame(st.getSyncRecords().get(2), SyncUtilTransmission.getLastRecord(st));
+		Assert.assertNull(SyncUtilTransmission.getLastRecord(createTransmission(0)));
+	}
+	
+	private SyncTransmission createTransmission(int recordCount) {
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < recordCount; i++) {
+			SyncRecord record = new SyncRecord();
+			record.setRecordId(i + 1);
+			records.add(record);
+		}
+		return new SyncTransmission("source", records);
+	}
 }
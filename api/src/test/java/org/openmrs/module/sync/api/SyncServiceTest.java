@@ -13,8 +13,21 @@
  */
 package org.openmrs.module.sync.api;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -25,9 +38,19 @@ import org.openmrs.Person;
 import org.openmrs.PersonAttributeType;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncArchive;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
 import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncStatistic;
+import org.openmrs.module.sync.SyncUtil;
+import org.openmrs.module.sync.api.db.hibernate.SyncRecordsInFlight;
 import org.openmrs.module.sync.api.impl.SyncServiceImpl;
+import org.openmrs.module.sync.server.BackportProgress;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
 import org.openmrs.module.sync.server.SyncServerRecord;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
@@ -89,6 +112,48 @@ public class SyncServiceTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(59, records.size());
     }
     
+    /**
+     * @see {@link SyncService#deleteSyncRecords(SyncRecordState[],Date,int,int,SyncArchive)}
+     */
+    @Test
+    @Verifies(value = "should only delete records within the given range", method = "deleteSyncRecords(SyncRecordState[],Date,int,int,SyncArchive)")
+    public void deleteSyncRecords_shouldOnlyDeleteRecordsWithinTheGivenRange() throws Exception {
+    	executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+    	SyncService syncService = Context.getService(SyncService.class);
+    	
+    	Assert.assertEquals(30, syncService.deleteSyncRecords(null, new Date(), 1, 31, null));
+    	
+    	Context.clearSession();
+    	List<SyncRecord> records = syncService.getSyncRecords();
+    	Assert.assertEquals(30, records.size());
+    	for (SyncRecord record : records) {
+    		Assert.assertTrue(record.getRecordId() >= 31);
+    	}
+    }
+    
+    /**
+     * @see {@link SyncService#deleteSyncRecords(SyncRecordState[],Date,int,int,SyncArchive)}
+     */
+    @Test
+    @Verifies(value = "should write the deleted rows to the archive", method = "deleteSyncRecords(SyncRecordState[],Date,int,int,SyncArchive)")
+    public void deleteSyncRecords_shouldWriteTheDeletedRowsToTheArchive() throws Exception {
+    	executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+    	SyncService syncService = Context.getService(SyncService.class);
+    	String uuid = syncService.getSyncRecord(1).getUuid();
+    	
+    	File file = File.createTempFile("sync_archive", ".sql.gz");
+    	file.deleteOnExit();
+    	SyncArchive archive = new SyncArchive(file);
+    	syncService.deleteSyncRecords(null, new Date(), 1, 11, archive);
+    	archive.close();
+    	Assert.assertEquals(20, archive.getRows());
+    	
+    	String sql = IOUtils.toString(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+    	Assert.assertEquals(10, StringUtils.countMatches(sql, "insert into sync_record "));
+    	Assert.assertEquals(10, StringUtils.countMatches(sql, "insert into sync_server_record "));
+    	Assert.assertTrue(sql.contains("'" + uuid + "'"));
+    }
+    
     @Test
     @Verifies(value = "should exclude only types setup for all sync servers", method = "shouldSynchronize(Object)")
     public void shouldSynchronize_shouldOnlySyncValidTypes() throws Exception {
@@ -144,6 +209,79 @@ public class SyncServiceTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(7, syncRecords.size());
 	}
 	
+	/**
+	 * @see {@link SyncService#getSyncRecords(String, Integer, Integer)}
+	 */
+	@Test
+	@Verifies(value = "should find the records referring to a uuid", method = "getSyncRecords(String,Integer,Integer)")
+	public void getSyncRecords_shouldFindTheRecordsReferringToAUuid() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		indexAllSyncRecords(syncService);
+		
+		String taskUuid = "0cbe2ed3-cd5f-4f46-9459-26127c9265ab";
+		List<SyncRecord> syncRecords = syncService.getSyncRecords(taskUuid.toUpperCase(), 0, null);
+		Assert.assertEquals(18, syncRecords.size());
+		Assert.assertEquals(18, syncService.getCountOfSyncRecords(taskUuid).intValue());
+		for (SyncRecord record : syncRecords) {
+			Assert.assertEquals("org.openmrs.scheduler.TaskDefinition", record.getContainedClasses());
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncRecords(String, Integer, Integer)}
+	 */
+	@Test
+	@Verifies(value = "should find the records of a class by its simple name", method = "getSyncRecords(String,Integer,Integer)")
+	public void getSyncRecords_shouldFindTheRecordsOfAClassByItsSimpleName() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		indexAllSyncRecords(syncService);
+		
+		Assert.assertEquals(5, syncService.getSyncRecords("Location", 0, null).size());
+		Assert.assertEquals(5, syncService.getSyncRecords("org.openmrs.Location", 0, null).size());
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncRecords(String, Integer, Integer)}
+	 */
+	@Test
+	@Verifies(value = "should return the given page of the matches", method = "getSyncRecords(String,Integer,Integer)")
+	public void getSyncRecords_shouldReturnTheGivenPageOfTheMatches() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		indexAllSyncRecords(syncService);
+		
+		List<SyncRecord> all = syncService.getSyncRecords("TaskDefinition", 0, null);
+		Assert.assertEquals(18, all.size());
+		Assert.assertEquals(all.subList(5, 10), syncService.getSyncRecords("TaskDefinition", 5, 5));
+	}
+	
+	/**
+	 * @see {@link SyncService#indexSyncRecords(int)}
+	 */
+	@Test
+	@Verifies(value = "should only find exact matches once all records are indexed", method = "indexSyncRecords(int)")
+	public void indexSyncRecords_shouldOnlyFindExactMatchesOnceAllRecordsAreIndexed() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		// the payload of the records that are not indexed yet is searched
+		Assert.assertEquals(18, syncService.getCountOfSyncRecords("0cbe2ed3").intValue());
+		Assert.assertEquals(35, syncService.indexSyncRecords(25));
+		Assert.assertEquals(12, syncService.getCountOfSyncRecords("0cbe2ed3").intValue());
+		
+		indexAllSyncRecords(syncService);
+		Assert.assertEquals(0, syncService.getCountOfSyncRecords("0cbe2ed3").intValue());
+		Assert.assertEquals(18, syncService.getCountOfSyncRecords("0cbe2ed3-cd5f-4f46-9459-26127c9265ab").intValue());
+	}
+	
+	private void indexAllSyncRecords(SyncService syncService) {
+		while (syncService.indexSyncRecords(25) > 0) {
+			// next chunk
+		}
+	}
+	
 	/**
 	 * @see {@link SyncService#getSyncServerRecord(Integer)}
 	 */
@@ -161,5 +299,579 @@ public class SyncServiceTest extends BaseModuleContextSensitiveTest {
 		
 		Assert.assertNull(syncService.getSyncServerRecord(445544));
 	}
-    
-}
\ No newline at end of file
+	
+	/**
+	 * @see {@link SyncService#getSyncImportRecordStates(java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should return the states of existing import records only", method = "getSyncImportRecordStates(Collection)")
+	public void getSyncImportRecordStates_shouldReturnTheStatesOfExistingImportRecordsOnly() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		
+		Map<String, SyncRecordState> states = Context.getService(SyncService.class).getSyncImportRecordStates(
+		    Arrays.asList("29cb7f3d-c4da-4739-a2ab-c9e462044bf4", "31404559-1f80-4f84-b795-c0bc8b0cb6cf", "not-a-known-uuid"));
+		
+		Assert.assertEquals(2, states.size());
+		Assert.assertEquals(SyncRecordState.COMMITTED_AND_CONFIRMATION_SENT, states.get("29cb7f3d-c4da-4739-a2ab-c9e462044bf4"));
+		Assert.assertEquals(SyncRecordState.ALREADY_COMMITTED, states.get("31404559-1f80-4f84-b795-c0bc8b0cb6cf"));
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncRecordStates(java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should update the state of all given records", method = "updateSyncRecordStates(Collection,SyncRecordState,boolean)")
+	public void updateSyncRecordStates_shouldUpdateTheStateOfAllGivenRecords() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		// loaded into the session before the update on purpose
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(1).getState());
+		
+		Assert.assertEquals(2, syncService.updateSyncRecordStates(Arrays.asList(1, 2), SyncRecordState.SENT, false));
+		
+		Assert.assertEquals(SyncRecordState.SENT, syncService.getSyncRecord(1).getState());
+		Assert.assertEquals(SyncRecordState.SENT, syncService.getSyncRecord(2).getState());
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(3).getState());
+		Assert.assertEquals(0, syncService.getSyncRecord(1).getRetryCount());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncRecordStates(java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should increment the retry count if asked to", method = "updateSyncRecordStates(Collection,SyncRecordState,boolean)")
+	public void updateSyncRecordStates_shouldIncrementTheRetryCountIfAskedTo() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		syncService.updateSyncRecordStates(Arrays.asList(1), SyncRecordState.SENT_AGAIN, true);
+		
+		SyncRecord record = syncService.getSyncRecord(1);
+		Assert.assertEquals(SyncRecordState.SENT_AGAIN, record.getState());
+		Assert.assertEquals(1, record.getRetryCount());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncServerRecordStates(RemoteServer, java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should only update the server records of the given server", method = "updateSyncServerRecordStates(RemoteServer,Collection,SyncRecordState,boolean)")
+	public void updateSyncServerRecordStates_shouldOnlyUpdateTheServerRecordsOfTheGivenServer() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		RemoteServer otherServer = new RemoteServer();
+		otherServer.setServerId(445544);
+		Assert.assertEquals(0, syncService.updateSyncServerRecordStates(otherServer, Arrays.asList(1, 2),
+		    SyncRecordState.SENT, true));
+		
+		RemoteServer server = syncService.getRemoteServer(1);
+		Assert.assertEquals(2, syncService.updateSyncServerRecordStates(server, Arrays.asList(1, 2), SyncRecordState.SENT,
+		    true));
+		
+		SyncServerRecord ssr = syncService.getSyncServerRecord(57);
+		Assert.assertEquals(SyncRecordState.SENT, ssr.getState());
+		Assert.assertEquals(1, ssr.getRetryCount());
+		Assert.assertEquals(SyncRecordState.NOT_SUPPOSED_TO_SYNC, syncService.getSyncServerRecord(59).getState());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncServerRecordStates(RemoteServer, java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should only evict the updated records from the session", method = "updateSyncServerRecordStates(RemoteServer,Collection,SyncRecordState,boolean)")
+	public void updateSyncServerRecordStates_shouldOnlyEvictTheUpdatedRecordsFromTheSession() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		SyncRecord updatedRecord = syncService.getSyncRecord(1);
+		SyncServerRecord updated = syncService.getSyncServerRecord(57);
+		SyncRecord otherRecord = syncService.getSyncRecord(3);
+		SyncServerRecord other = syncService.getSyncServerRecord(59);
+		
+		syncService.updateSyncServerRecordStates(syncService.getRemoteServer(1), Arrays.asList(1), SyncRecordState.SENT,
+		    false);
+		
+		Assert.assertNotSame(updatedRecord, syncService.getSyncRecord(1));
+		SyncServerRecord reloaded = syncService.getSyncServerRecord(57);
+		Assert.assertNotSame(updated, reloaded);
+		Assert.assertEquals(SyncRecordState.SENT, reloaded.getState());
+		Assert.assertSame(otherRecord, syncService.getSyncRecord(3));
+		Assert.assertSame(other, syncService.getSyncServerRecord(59));
+	}
+	
+	/**
+	 * @see {@link SyncService#getPendingSummary(RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should count the records waiting for a child server", method = "getPendingSummary(RemoteServer)")
+	public void getPendingSummary_shouldCountTheRecordsWaitingForAChildServer() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		
+		SyncPendingSummary pending = syncService.getPendingSummary(server);
+		Assert.assertEquals(0, pending.getCount());
+		Assert.assertNull(pending.getOldestTimestamp());
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(1, 2), SyncRecordState.NEW, false);
+		
+		pending = syncService.getPendingSummary(server);
+		Assert.assertEquals(2, pending.getCount());
+		Date oldest = syncService.getSyncRecord(1).getTimestamp();
+		if (syncService.getSyncRecord(2).getTimestamp().before(oldest))
+			oldest = syncService.getSyncRecord(2).getTimestamp();
+		Assert.assertEquals(oldest.getTime(), pending.getOldestTimestamp().getTime());
+		Assert.assertEquals(2, SyncPendingSummary.parse(pending.format()).getCount());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncServerRecordStates(RemoteServer, java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should move the watermark of the server past the committed records", method = "updateSyncServerRecordStates(RemoteServer,Collection,SyncRecordState,boolean)")
+	public void updateSyncServerRecordStates_shouldMoveTheWatermarkOfTheServerPastTheCommittedRecords() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = startWatermarkAt58(syncService);
+		
+		// records 59 and 60 are beyond the watermark and have no server record: they are waiting
+		Assert.assertEquals(2, syncService.getPendingSummary(server).getCount());
+		SyncRecord record = syncService.getSyncRecord(60);
+		Assert.assertEquals(SyncRecordState.NEW, record.getServerRecord(server).getState());
+		Assert.assertEquals(SyncRecordState.COMMITTED, syncService.getSyncRecord(3).getServerRecord(server).getState());
+		
+		// 59 is not committed yet, so the watermark cannot go past 60
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(60), SyncRecordState.COMMITTED, false);
+		Assert.assertEquals(58, server.getRecordWatermark().intValue());
+		Assert.assertEquals(1, syncService.getPendingSummary(server).getCount());
+		Assert.assertEquals(SyncRecordState.COMMITTED, syncService.getSyncRecord(60).getServerRecord(server).getState());
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(59), SyncRecordState.COMMITTED, false);
+		Assert.assertEquals(59, server.getRecordWatermark().intValue());
+		Assert.assertEquals(0, syncService.getPendingSummary(server).getCount());
+		Assert.assertEquals(59, syncService.getRemoteServer(1).getRecordWatermark().intValue());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncServerRecordStates(RemoteServer, java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should keep a server record for records that failed beyond the watermark", method = "updateSyncServerRecordStates(RemoteServer,Collection,SyncRecordState,boolean)")
+	public void updateSyncServerRecordStates_shouldKeepAServerRecordForRecordsThatFailedBeyondTheWatermark()
+	                                                                                                      throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = startWatermarkAt58(syncService);
+		
+		// being sent creates a server record, which keeps the retry count
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(59, 60), SyncRecordState.SENT, true);
+		Assert.assertEquals(2, syncService.getPendingSummary(server).getCount());
+		SyncServerRecord sent = syncService.getSyncRecord(60).getServerRecord(server);
+		Assert.assertNotNull(sent.getServerRecordId());
+		Assert.assertEquals(SyncRecordState.SENT, sent.getState());
+		Assert.assertEquals(1, sent.getRetryCount());
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(59), SyncRecordState.FAILED, false);
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(60), SyncRecordState.COMMITTED, false);
+		
+		// the failed record has its own server record, so it does not hold the watermark back
+		Assert.assertEquals(60, server.getRecordWatermark().intValue());
+		Assert.assertEquals(1, syncService.getPendingSummary(server).getCount());
+		SyncServerRecord failed = syncService.getSyncRecord(59).getServerRecord(server);
+		Assert.assertNotNull(failed.getServerRecordId());
+		Assert.assertEquals(SyncRecordState.FAILED, failed.getState());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncServerRecordStates(RemoteServer, java.util.Collection, SyncRecordState, boolean)}
+	 */
+	@Test
+	@Verifies(value = "should not move the watermark past a record another transaction is creating", method = "updateSyncServerRecordStates(RemoteServer,Collection,SyncRecordState,boolean)")
+	public void updateSyncServerRecordStates_shouldNotMoveTheWatermarkPastARecordAnotherTransactionIsCreating()
+	                                                                                                         throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = startWatermarkAt58(syncService);
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(59, 60), SyncRecordState.SENT, true);
+		
+		ExecutorService otherTransaction = Executors.newSingleThreadExecutor();
+		try {
+			otherTransaction.submit(new Runnable() {
+				
+				public void run() {
+					SyncRecordsInFlight.recordCreated(59);
+				}
+			}).get();
+			
+			// 59 has a server record, but the transaction creating it may not be committed yet
+			syncService.updateSyncServerRecordStates(server, Arrays.asList(60), SyncRecordState.COMMITTED, false);
+			Assert.assertEquals(58, server.getRecordWatermark().intValue());
+			Assert.assertNotNull(syncService.getSyncRecord(60).getServerRecord(server).getServerRecordId());
+			
+			otherTransaction.submit(new Runnable() {
+				
+				public void run() {
+					SyncRecordsInFlight.transactionCompleted(false);
+				}
+			}).get();
+		}
+		finally {
+			otherTransaction.shutdown();
+		}
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(60), SyncRecordState.COMMITTED, false);
+		Assert.assertEquals(60, server.getRecordWatermark().intValue());
+		Assert.assertNull(syncService.getSyncRecord(60).getServerRecord(server).getServerRecordId());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncServerRecordErrorMessages(RemoteServer, java.util.Collection, String)}
+	 */
+	@Test
+	@Verifies(value = "should keep the error message of a record beyond the watermark", method = "updateSyncServerRecordErrorMessages(RemoteServer,Collection,String)")
+	public void updateSyncServerRecordErrorMessages_shouldKeepTheErrorMessageOfARecordBeyondTheWatermark()
+	                                                                                                      throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = startWatermarkAt58(syncService);
+		
+		syncService.updateSyncServerRecordErrorMessages(server, Arrays.asList(59), "failed");
+		
+		SyncServerRecord serverRecord = syncService.getSyncRecord(59).getServerRecord(server);
+		Assert.assertNotNull(serverRecord.getServerRecordId());
+		Assert.assertEquals(SyncRecordState.NEW, serverRecord.getState());
+		Assert.assertEquals("failed", serverRecord.getErrorMessage());
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncStatistics(Date, Date)}
+	 */
+	@Test
+	@Verifies(value = "should count the server records moved to another state with sql", method = "getSyncStatistics(Date,Date)")
+	public void getSyncStatistics_shouldCountTheServerRecordsMovedToAnotherStateWithSql() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		syncService.rebuildSyncStateCounts();
+		Map<String, Long> before = getStateCounts(syncService, server);
+		
+		// both were not supposed to sync, which the statistics leave out
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(1, 2), SyncRecordState.FAILED, false);
+		
+		Map<String, Long> after = getStateCounts(syncService, server);
+		Assert.assertEquals(getCount(before, SyncRecordState.FAILED) + 2, getCount(after, SyncRecordState.FAILED));
+		after.remove(SyncRecordState.FAILED.name());
+		before.remove(SyncRecordState.FAILED.name());
+		Assert.assertEquals(before, after);
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncStatistics(Date, Date)}
+	 */
+	@Test
+	@Verifies(value = "should count the server records saved through the session", method = "getSyncStatistics(Date,Date)")
+	public void getSyncStatistics_shouldCountTheServerRecordsSavedThroughTheSession() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		syncService.rebuildSyncStateCounts();
+		long sent = getCount(getStateCounts(syncService, server), SyncRecordState.SENT);
+		
+		SyncRecord record = syncService.getSyncRecord(4);
+		record.getServerRecord(server).setState(SyncRecordState.SENT);
+		syncService.updateSyncRecord(record);
+		Context.flushSession();
+		
+		Assert.assertEquals(sent + 1, getCount(getStateCounts(syncService, server), SyncRecordState.SENT));
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncStatistics(Date, Date)}
+	 */
+	@Test
+	@Verifies(value = "should add up the changes of each flush without updating the counts", method = "getSyncStatistics(Date,Date)")
+	public void getSyncStatistics_shouldAddUpTheChangesOfEachFlushWithoutUpdatingTheCounts() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		syncService.rebuildSyncStateCounts();
+		long sent = getCount(getStateCounts(syncService, server), SyncRecordState.SENT);
+		int rows = countStateCountRows(server, SyncRecordState.SENT);
+		
+		for (int recordId : new int[] { 4, 5 }) {
+			SyncRecord record = syncService.getSyncRecord(recordId);
+			record.getServerRecord(server).setState(SyncRecordState.SENT);
+			syncService.updateSyncRecord(record);
+			Context.flushSession();
+		}
+		
+		Assert.assertEquals(sent + 2, getCount(getStateCounts(syncService, server), SyncRecordState.SENT));
+		Assert.assertEquals(rows + 2, countStateCountRows(server, SyncRecordState.SENT));
+	}
+	
+	private int countStateCountRows(RemoteServer server, SyncRecordState state) throws Exception {
+		ResultSet rs = getConnection().createStatement().executeQuery(
+		    "select count(*) from sync_state_count where server_id = " + server.getServerId() + " and state = '"
+		            + state.name() + "'");
+		rs.next();
+		return rs.getInt(1);
+	}
+	
+	/**
+	 * @see {@link SyncService#rebuildSyncStateCounts()}
+	 */
+	@Test
+	@Verifies(value = "should count the records per server and state as the statistics did", method = "rebuildSyncStateCounts()")
+	public void rebuildSyncStateCounts_shouldCountTheRecordsPerServerAndStateAsTheStatisticsDid() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		syncService.rebuildSyncStateCounts();
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(3, 5, 6), SyncRecordState.SENT, true);
+		SyncRecord record = syncService.getSyncRecord(4);
+		record.getServerRecord(server).setState(SyncRecordState.FAILED);
+		syncService.updateSyncRecord(record);
+		syncService.deleteSyncRecords(null, new Date());
+		Map<String, Long> kept = getStateCounts(syncService, server);
+		
+		syncService.rebuildSyncStateCounts();
+		Assert.assertEquals(kept, getStateCounts(syncService, server));
+	}
+	
+	/**
+	 * @return the number of server records of the given server per state, as shown by the
+	 *         statistics
+	 */
+	private Map<String, Long> getStateCounts(SyncService syncService, RemoteServer server) {
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for (SyncStatistic stat : syncService.getSyncStatistics(null, null).get(server)) {
+			if (stat.getType() == SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE)
+				ret.put(stat.getName(), ((Number) stat.getValue()).longValue());
+		}
+		return ret;
+	}
+	
+	private long getCount(Map<String, Long> counts, SyncRecordState state) {
+		Long count = counts.get(state.name());
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * @see {@link SyncService#backportSyncRecords(RemoteServer, Date, int, int)}
+	 * @see {@link SyncUtil#backportSyncRecords(RemoteServer, Date)}
+	 */
+	@Test
+	@Verifies(value = "should create a server record for the records from the given date on", method = "backportSyncRecords(RemoteServer,Date,int,int)")
+	public void backportSyncRecords_shouldCreateAServerRecordForTheRecordsFromTheGivenDateOn() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = createChildServer(syncService);
+		
+		Date from = syncService.getSyncRecord(30).getTimestamp();
+		int expected = 0;
+		for (SyncRecord record : syncService.getSyncRecords()) {
+			if (!record.getTimestamp().before(from))
+				expected++;
+		}
+		
+		Assert.assertEquals(expected, SyncUtil.backportSyncRecords(server, from));
+		BackportProgress progress = syncService.getBackportProgress(server);
+		Assert.assertFalse(progress.isRunning());
+		Assert.assertEquals(expected, progress.getRecordsBackported());
+		Assert.assertEquals(100, progress.getPercentDone());
+		
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(30).getServerRecord(server).getState());
+		Assert.assertEquals(expected, syncService.getPendingSummary(server).getCount());
+		
+		// the records that have a server record already are left alone
+		Assert.assertEquals(0, SyncUtil.backportSyncRecords(server, from));
+	}
+	
+	/**
+	 * @see {@link SyncService#backportSyncRecords(RemoteServer, Date, int, int)}
+	 */
+	@Test
+	@Verifies(value = "should only backport the records within the given range", method = "backportSyncRecords(RemoteServer,Date,int,int)")
+	public void backportSyncRecords_shouldOnlyBackportTheRecordsWithinTheGivenRange() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = createChildServer(syncService);
+		
+		Assert.assertEquals(10, syncService.backportSyncRecords(server, new Date(0), 20, 30));
+		Context.clearSession();
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(20).getServerRecord(server).getState());
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(29).getServerRecord(server).getState());
+		Assert.assertNull(syncService.getSyncRecord(19).getServerRecord(server));
+		Assert.assertNull(syncService.getSyncRecord(30).getServerRecord(server));
+	}
+	
+	/**
+	 * @see {@link SyncService#backportSyncRecords(RemoteServer, Date, int, int)}
+	 */
+	@Test
+	@Verifies(value = "should send the records committed as far as the watermark goes again", method = "backportSyncRecords(RemoteServer,Date,int,int)")
+	public void backportSyncRecords_shouldSendTheRecordsCommittedAsFarAsTheWatermarkGoesAgain() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = startWatermarkAt58(syncService);
+		getConnection().createStatement().executeUpdate("delete from sync_server_record where record_id = 5");
+		Assert.assertEquals(SyncRecordState.COMMITTED, syncService.getSyncRecord(5).getServerRecord(server).getState());
+		
+		// records 59 and 60 are beyond the watermark, waiting to be sent already
+		Assert.assertEquals(1, syncService.backportSyncRecords(server, new Date(0), 0, 100));
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(5).getServerRecord(server).getState());
+		Assert.assertEquals(3, syncService.getPendingSummary(server).getCount());
+	}
+	
+	/**
+	 * @see {@link SyncService#getMostRecentFullyCommittedRecordId()}
+	 */
+	@Test
+	@Verifies(value = "should return the last record up to which all records are committed", method = "getMostRecentFullyCommittedRecordId()")
+	public void getMostRecentFullyCommittedRecordId_shouldReturnTheLastRecordUpToWhichAllRecordsAreCommitted()
+	                                                                                                         throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		// records 1 to 5 are not supposed to be sent to the child, 6 to 59 are committed
+		Assert.assertEquals(59, syncService.getMostRecentFullyCommittedRecordId());
+	}
+	
+	/**
+	 * @see {@link SyncService#getMostRecentFullyCommittedRecordId()}
+	 */
+	@Test
+	@Verifies(value = "should go back when a record is no longer committed", method = "getMostRecentFullyCommittedRecordId()")
+	public void getMostRecentFullyCommittedRecordId_shouldGoBackWhenARecordIsNoLongerCommitted() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(30), SyncRecordState.FAILED, false);
+		Assert.assertEquals(29, syncService.getMostRecentFullyCommittedRecordId());
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(30), SyncRecordState.COMMITTED, false);
+		Assert.assertEquals(59, syncService.getMostRecentFullyCommittedRecordId());
+		Assert.assertEquals(59, server.getCommittedWatermark().intValue());
+		
+		syncService.updateSyncServerRecordStates(server, Arrays.asList(30), SyncRecordState.FAILED, false);
+		Assert.assertEquals(29, syncService.getMostRecentFullyCommittedRecordId());
+		Assert.assertEquals(29, server.getCommittedWatermark().intValue());
+		
+		// the records up to the watermark are skipped when looking for errors, the failed one is not
+		SyncRecord failed = syncService.getOlderSyncRecordInState(syncService.getSyncRecord(40),
+		    SyncConstants.SYNC_RECORD_ERROR_STATES);
+		Assert.assertEquals(30, failed.getRecordId().intValue());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncRecord(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should move the committed watermark back when a committed record is reopened", method = "updateSyncRecord(SyncRecord)")
+	public void updateSyncRecord_shouldMoveTheCommittedWatermarkBackWhenACommittedRecordIsReopened() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+		Assert.assertEquals(59, syncService.getMostRecentFullyCommittedRecordId());
+		
+		SyncRecord record = syncService.getSyncRecord(30);
+		record.getServerRecord(server).setState(SyncRecordState.FAILED);
+		syncService.updateSyncRecord(record);
+		Assert.assertEquals(29, server.getCommittedWatermark().intValue());
+		Context.flushSession();
+		
+		// already unfinished once flushed: the watermark is not looked at again
+		record.getServerRecord(server).setState(SyncRecordState.SEND_FAILED);
+		syncService.updateSyncRecord(record);
+		Context.flushSession();
+		Assert.assertEquals(29, syncService.getMostRecentFullyCommittedRecordId());
+	}
+	
+	/**
+	 * @see {@link SyncService#processSyncRecords(SyncRecordState[],Date,Date,SyncRecordHandler)}
+	 */
+	@Test
+	@Verifies(value = "should give the handler each record in the given states from oldest to newest", method = "processSyncRecords(SyncRecordState[],Date,Date,SyncRecordHandler)")
+	public void processSyncRecords_shouldGiveTheHandlerEachRecordInTheGivenStatesFromOldestToNewest() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		final List<Integer> handled = new ArrayList<Integer>();
+		SyncRecordHandler handler = new SyncRecordHandler() {
+			
+			public void handle(SyncRecord record) {
+				handled.add(record.getRecordId());
+			}
+		};
+		
+		List<Integer> expected = new ArrayList<Integer>();
+		for (SyncRecord record : syncService.getSyncRecords(SyncRecordState.NEW)) {
+			expected.add(record.getRecordId());
+		}
+		Assert.assertFalse(expected.isEmpty());
+		Assert.assertEquals(expected.size(), syncService.processSyncRecords(new SyncRecordState[] { SyncRecordState.NEW },
+		    null, null, handler));
+		Assert.assertEquals(expected, handled);
+		
+		handled.clear();
+		expected.clear();
+		for (SyncRecord record : syncService.getSyncRecords()) {
+			expected.add(record.getRecordId());
+		}
+		Assert.assertEquals(expected.size(), syncService.processSyncRecords(null, null, null, handler));
+		Assert.assertEquals(expected, handled);
+	}
+	
+	/**
+	 * @see {@link SyncService#processSyncRecords(SyncRecordState[],Date,Date,SyncRecordHandler)}
+	 */
+	@Test
+	@Verifies(value = "should save the changes the handler makes to the records", method = "processSyncRecords(SyncRecordState[],Date,Date,SyncRecordHandler)")
+	public void processSyncRecords_shouldSaveTheChangesTheHandlerMakesToTheRecords() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		int handled = syncService.processSyncRecords(new SyncRecordState[] { SyncRecordState.NEW }, null, null,
+		    new SyncRecordHandler() {
+			    
+			    public void handle(SyncRecord record) {
+				    record.setRetryCount(7);
+			    }
+		    });
+		Context.clearSession();
+		
+		List<SyncRecord> records = syncService.getSyncRecords(SyncRecordState.NEW);
+		Assert.assertEquals(records.size(), handled);
+		for (SyncRecord record : records) {
+			Assert.assertEquals(7, record.getRetryCount());
+		}
+	}
+	
+	/**
+	 * Saves a child server that has no server records yet
+	 */
+	private RemoteServer createChildServer(SyncService syncService) {
+		RemoteServer server = new RemoteServer();
+		server.setNickname("new child");
+		server.setAddress("http://localhost/newchild");
+		server.setServerType(RemoteServerType.CHILD);
+		server.setUuid("2e9e7b6c-1f0a-4d4e-8c35-7a6b1d2f9e04");
+		return syncService.saveRemoteServer(server);
+	}
+	
+	/**
+	 * Makes the child server of the test dataset keep a record watermark at 58, with no server
+	 * records for the records beyond it
+	 */
+	private RemoteServer startWatermarkAt58(SyncService syncService) throws Exception {
+		RemoteServer server = syncService.getRemoteServer(1);
+		server.setRecordWatermark(58);
+		syncService.saveRemoteServer(server);
+		Context.flushSession();
+		getConnection().createStatement().executeUpdate("delete from sync_server_record where record_id = 59");
+		return server;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Times dumping and loading a large embedded h2 database with the {@link ChildDatabaseExporter}
+ * and the {@link ChildDatabaseImporter}. They take a while and depend on the speed of the machine,
+ * so they are not run with the build; remove the @Ignore to run them by hand.
+ */
+@Ignore("benchmarks, run by hand")
+public class ChildDatabaseCloneBenchmarkTest {
+
+	private static final Log log = LogFactory.getLog(ChildDatabaseCloneBenchmarkTest.class);
+
+	private static final String URL = "jdbc:h2:mem:childclonebenchmark;DB_CLOSE_DELAY=-1";
+
+	private static final int BENCHMARK_TABLES = 6;
+
+	private static final int BENCHMARK_ROWS = 50000;
+
+	/**
+	 * Generous, so that a slow machine does not fail the benchmark; writing a value at a time to an
+	 * unbuffered stream is still caught
+	 */
+	private static final long MAX_BENCHMARK_MILLIS = 60000;
+
+	private Connection connection;
+
+	private ChildDatabaseExporter.ConnectionSource connections = new ChildDatabaseExporter.ConnectionSource() {
+
+		public Connection getConnection() throws SQLException {
+			return DriverManager.getConnection(URL);
+		}
+
+		public void releaseConnection(Connection connection) throws SQLException {
+			connection.close();
+		}
+	};
+
+	@Before
+	public void createDatabase() throws Exception {
+		Class.forName("org.h2.Driver");
+		connection = connections.getConnection();
+	}
+
+	@After
+	public void dropDatabase() throws Exception {
+		connection.createStatement().execute("drop all objects");
+		connection.close();
+	}
+
+	/**
+	 * Dumps a few tables of generated rows into a gzipped file, with one thread and with several
+	 */
+	@Test
+	public void export_shouldDumpALargeDatabaseToACompressedFileQuickly() throws Exception {
+		for (int table = 0; table < BENCHMARK_TABLES; table++) {
+			connection.createStatement().execute(
+			    "create table obs_test_" + table + " (obs_id int primary key, value_text varchar(255), value_numeric double,"
+			            + " obs_datetime timestamp, complex blob)");
+			PreparedStatement insert = connection.prepareStatement("insert into obs_test_" + table
+			        + " values (?, ?, ?, ?, ?)");
+			for (int id = 1; id <= BENCHMARK_ROWS; id++) {
+				insert.setInt(1, id);
+				insert.setString(2, "observation's text " + id);
+				insert.setDouble(3, id / 7.0);
+				insert.setTimestamp(4, new Timestamp(1325376000000L + id * 1000L));
+				insert.setBytes(5, (id % 10 == 0) ? ("complex " + id).getBytes("UTF-8") : null);
+				insert.addBatch();
+				if (id % 1000 == 0)
+					insert.executeBatch();
+			}
+		}
+
+		File file = File.createTempFile("childexport", ".sql.gz");
+		try {
+			for (int threads : new int[] { 1, 4 }) {
+				ChildDatabaseExporter exporter = new ChildDatabaseExporter(connections);
+				exporter.setThreads(threads);
+				long start = System.currentTimeMillis();
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(file), 65536);
+				long rows;
+				try {
+					rows = exporter.export(out);
+				}
+				finally {
+					out.close();
+				}
+				long millis = System.currentTimeMillis() - start;
+				log.info("Exported " + rows + " rows on " + threads + " threads in " + millis + " ms, "
+				        + file.length() / 1024 + " kB compressed");
+
+				Assert.assertEquals(BENCHMARK_TABLES * BENCHMARK_ROWS, rows);
+				Assert.assertTrue("Took " + millis + " ms", millis < MAX_BENCHMARK_MILLIS);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Dumps a few tables of generated rows with the {@link ChildDatabaseExporter} and loads them
+	 * again, with one thread and with several
+	 */
+	@Test
+	public void importSql_shouldLoadALargeDumpQuickly() throws Exception {
+		for (int table = 0; table < BENCHMARK_TABLES; table++) {
+			connection.createStatement().execute(
+			    "create table obs_test_" + table + " (obs_id int primary key, value_text varchar(255), value_numeric double,"
+			            + " obs_datetime timestamp)");
+			connection.createStatement().execute(
+			    "insert into obs_test_" + table + " select x, 'observation ' || x, x / 7.0, dateadd('second', x,"
+			            + " timestamp '2012-01-01 00:00:00') from system_range(1, " + BENCHMARK_ROWS + ")");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ChildDatabaseExporter(connections).export(out);
+		String sql = out.toString("UTF-8");
+
+		for (int threads : new int[] { 1, 4 }) {
+			for (int table = 0; table < BENCHMARK_TABLES; table++) {
+				connection.createStatement().execute("delete from obs_test_" + table);
+			}
+
+			ChildDatabaseImporter importer = new ChildDatabaseImporter(connections);
+			importer.setThreads(threads);
+			long start = System.currentTimeMillis();
+			long statements = importer.importSql(connection, new StringReader(sql));
+			long millis = System.currentTimeMillis() - start;
+			log.info("Imported " + statements + " statements on " + threads + " threads in " + millis + " ms");
+
+			Assert.assertEquals(0, importer.getFailedCount());
+			for (int table = 0; table < BENCHMARK_TABLES; table++) {
+				Assert.assertEquals(BENCHMARK_ROWS, count("obs_test_" + table));
+			}
+			Assert.assertTrue("Took " + millis + " ms", millis < MAX_BENCHMARK_MILLIS);
+		}
+	}
+
+	private int count(String table) throws SQLException {
+		ResultSet rs = connection.createStatement().executeQuery("select count(*) from " + table);
+		rs.next();
+		return rs.getInt(1);
+	}
+}
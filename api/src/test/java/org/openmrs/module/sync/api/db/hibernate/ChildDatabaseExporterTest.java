@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Dumps databases in an embedded h2 database with the {@link ChildDatabaseExporter}
+ */
+public class ChildDatabaseExporterTest {
+
+	private static final String URL = "jdbc:h2:mem:childexport;DB_CLOSE_DELAY=-1";
+
+	private Connection connection;
+
+	private ChildDatabaseExporter.ConnectionSource connections = new ChildDatabaseExporter.ConnectionSource() {
+
+		public Connection getConnection() throws SQLException {
+			return DriverManager.getConnection(URL);
+		}
+
+		public void releaseConnection(Connection connection) throws SQLException {
+			connection.close();
+		}
+	};
+
+	@Before
+	public void createDatabase() throws Exception {
+		Class.forName("org.h2.Driver");
+		connection = connections.getConnection();
+		connection.createStatement().execute(
+		    "create table person_test (id int primary key, name varchar(255), photo blob, born timestamp,"
+		            + " dead boolean, weight decimal(5,2))");
+		connection.createStatement().execute("create table sync_record_test (id int primary key)");
+	}
+
+	@After
+	public void dropDatabase() throws Exception {
+		connection.createStatement().execute("drop all objects");
+		connection.close();
+	}
+
+	@Test
+	public void export_shouldWriteTheRowsAsMultiRowInsertsWithEscapedValues() throws Exception {
+		PreparedStatement insert = connection.prepareStatement("insert into person_test values (?, ?, ?, ?, ?, ?)");
+		insert(insert, 1, "it's a \\ test\nover \"two\" lines", new byte[] { 1, (byte) 0xAB, 0 },
+		    Timestamp.valueOf("2012-01-02 03:04:05"), true, "61.50");
+		insert(insert, 2, null, null, null, null, null);
+		insert(insert, 3, "", new byte[0], null, false, "-1.00");
+		connection.createStatement().execute("insert into sync_record_test values (1)");
+
+		ChildDatabaseExporter exporter = new ChildDatabaseExporter(connections);
+		exporter.setTablesToSkip(Arrays.asList("SYNC_RECORD_TEST"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(3, exporter.export(out));
+		String sql = out.toString("UTF-8");
+
+		Assert.assertTrue(sql, sql.contains("INSERT INTO \"PERSON_TEST\" VALUES "
+		        + "(1,'it\\'s a \\\\ test\\nover \\\"two\\\" lines',0x01AB00,'2012-01-02 03:04:05.0',1,61.50),"
+		        + "(2,NULL,NULL,NULL,NULL,NULL),(3,'','',NULL,0,-1.00);\n"));
+		Assert.assertFalse(sql.contains("SYNC_RECORD_TEST"));
+		Assert.assertTrue(sql.contains("FOREIGN_KEY_CHECKS=0"));
+	}
+
+	@Test
+	public void export_shouldStartANewInsertOnceAStatementIsLongEnough() throws Exception {
+		PreparedStatement insert = connection.prepareStatement("insert into person_test values (?, ?, ?, ?, ?, ?)");
+		for (int id = 1; id <= 10; id++) {
+			insert(insert, id, "a name of some length", null, null, false, "1.00");
+		}
+
+		ChildDatabaseExporter exporter = new ChildDatabaseExporter(connections);
+		exporter.setTablesToSkip(Arrays.asList("sync_record_test"));
+		exporter.setStatementSize(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(10, exporter.export(out));
+		String sql = out.toString("UTF-8");
+
+		// each insert holds the row that took it past 100 characters
+		Assert.assertEquals(5, StringUtils.countMatches(sql, "INSERT INTO \"PERSON_TEST\" VALUES ("));
+		Assert.assertEquals(10, StringUtils.countMatches(sql, ",'a name of some length',"));
+	}
+
+	private void insert(PreparedStatement insert, int id, String name, byte[] photo, Timestamp born, Boolean dead,
+	                    String weight) throws SQLException {
+		insert.setInt(1, id);
+		insert.setString(2, name);
+		insert.setBytes(3, photo);
+		insert.setTimestamp(4, born);
+		insert.setObject(5, dead);
+		insert.setBigDecimal(6, weight == null ? null : new BigDecimal(weight));
+		insert.executeUpdate();
+	}
+}
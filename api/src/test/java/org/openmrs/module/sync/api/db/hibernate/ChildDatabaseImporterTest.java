@@ -0,0 +1,200 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Loads dumps into an embedded h2 database with the {@link ChildDatabaseImporter}
+ */
+public class ChildDatabaseImporterTest {
+
+	private static final String URL = "jdbc:h2:mem:childimport;DB_CLOSE_DELAY=-1";
+
+	private Connection connection;
+
+	private ChildDatabaseExporter.ConnectionSource connections = new ChildDatabaseExporter.ConnectionSource() {
+
+		public Connection getConnection() throws SQLException {
+			return DriverManager.getConnection(URL);
+		}
+
+		public void releaseConnection(Connection connection) throws SQLException {
+			connection.close();
+		}
+	};
+
+	@Before
+	public void createDatabase() throws Exception {
+		Class.forName("org.h2.Driver");
+		connection = connections.getConnection();
+	}
+
+	@After
+	public void dropDatabase() throws Exception {
+		connection.createStatement().execute("drop all objects");
+		connection.close();
+	}
+
+	@Test
+	public void importSql_shouldSplitStatementsAtSemicolonsOutsideQuotesAndComments() throws Exception {
+		String sql = "-- a comment; with a semicolon\n" + "INSERT INTO `t` VALUES (1,'a;b\\'c'),(2,\"x;\"\"y\");\n"
+		        + "# another; comment\n" + "/* a block; comment */ update t set a = '--not a comment';\n"
+		        + "/*!40101 SET NAMES utf8 */;\n" + ";\n" + "select 1 -- left\n" + "from dual";
+
+		List<String> statements = new ArrayList<String>();
+		ChildDatabaseImporter.StatementReader reader = new ChildDatabaseImporter.StatementReader(new StringReader(sql));
+		String statement;
+		while ((statement = reader.next()) != null) {
+			statements.add(statement);
+		}
+
+		Assert.assertEquals(Arrays.asList("INSERT INTO `t` VALUES (1,'a;b\\'c'),(2,\"x;\"\"y\")",
+		    "update t set a = '--not a comment'", "/*!40101 SET NAMES utf8 */", "select 1  from dual"), statements);
+	}
+
+	@Test
+	public void importSql_shouldFindTheTablesOfInsertsAndTableDefinitions() throws Exception {
+		Assert.assertEquals("person", ChildDatabaseImporter.getInsertTable("INSERT INTO `person` VALUES (1)"));
+		Assert.assertEquals("person", ChildDatabaseImporter.getInsertTable("insert ignore into \"PERSON\" values (1)"));
+		Assert.assertEquals("obs", ChildDatabaseImporter.getInsertTable("REPLACE INTO obs(obs_id) VALUES (1)"));
+		Assert.assertNull(ChildDatabaseImporter.getInsertTable("update person set voided = 0"));
+
+		Assert.assertEquals("person", ChildDatabaseImporter.getCreatedTable("DROP TABLE IF EXISTS `person`"));
+		Assert.assertEquals("person", ChildDatabaseImporter.getCreatedTable("CREATE TABLE `person` (\n `id` int)"));
+		Assert.assertNull(ChildDatabaseImporter.getCreatedTable("CREATE INDEX person_idx ON person (id)"));
+	}
+
+	@Test
+	public void importSql_shouldLoadTheInsertsBeforeTheStatementsAfterThem() throws Exception {
+		StringBuilder sql = new StringBuilder();
+		sql.append("create table \"PERSON_TEST\" (id int primary key, name varchar(255));\n");
+		sql.append("create table \"OBS_TEST\" (id int primary key, person_id int);\n");
+		for (int id = 1; id <= 100; id++) {
+			sql.append("INSERT INTO \"PERSON_TEST\" VALUES (" + id + ",'person " + id + "');\n");
+			sql.append("INSERT INTO \"OBS_TEST\" VALUES (" + id + "," + id + "),(" + (id + 1000) + "," + id + ");\n");
+		}
+		// already there, the rest of its batch is still loaded
+		sql.append("INSERT INTO \"PERSON_TEST\" VALUES (50,'twice');\n");
+		sql.append("update person_test set name = 'first' where id = 1;\n");
+		sql.append("update person_test set name = (select count(*) from obs_test) where id = 2;\n");
+
+		ChildDatabaseImporter importer = new ChildDatabaseImporter(connections);
+		importer.setThreads(2);
+		importer.setBatchSize(7);
+		Assert.assertEquals(204, importer.importSql(connection, new StringReader(sql.toString())));
+		Assert.assertEquals(1, importer.getFailedCount());
+
+		Assert.assertEquals(100, count("person_test"));
+		Assert.assertEquals(200, count("obs_test"));
+		Assert.assertEquals("first", name(1));
+		Assert.assertEquals("200", name(2));
+		Assert.assertEquals("person 50", name(50));
+	}
+
+	/**
+	 * Dumps a few tables with the {@link ChildDatabaseExporter} and loads them again. The strings
+	 * are kept to what h2 reads the same way as mysql, which is what the backslash escapes are for.
+	 */
+	@Test
+	public void importSql_shouldLoadWhatTheExporterDumpedAsItWas() throws Exception {
+		connection.createStatement().execute(
+		    "create table person_test (id int primary key, name varchar(255), born timestamp, dead boolean,"
+		            + " weight decimal(5,2))");
+		connection.createStatement().execute(
+		    "create table obs_test (id int primary key, person_id int, value_numeric double)");
+		PreparedStatement person = connection.prepareStatement("insert into person_test values (?, ?, ?, ?, ?)");
+		insertPerson(person, 1, "a name; -- with what looks like sql", Timestamp.valueOf("2012-01-02 03:04:05"), true,
+		    "61.50");
+		insertPerson(person, 2, null, null, null, null);
+		insertPerson(person, 3, "", Timestamp.valueOf("1970-01-01 00:00:00"), false, "-1.00");
+		for (int id = 1; id <= 30; id++) {
+			connection.createStatement().execute(
+			    "insert into obs_test values (" + id + ", " + (id % 3 + 1) + ", " + (id / 7.0) + ")");
+		}
+		List<String> people = rows("person_test");
+		List<String> obs = rows("obs_test");
+
+		ChildDatabaseExporter exporter = new ChildDatabaseExporter(connections);
+		exporter.setThreads(2);
+		exporter.setStatementSize(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(33, exporter.export(out));
+		connection.createStatement().execute("delete from person_test");
+		connection.createStatement().execute("delete from obs_test");
+
+		ChildDatabaseImporter importer = new ChildDatabaseImporter(connections);
+		importer.setThreads(2);
+		importer.setBatchSize(3);
+		importer.importSql(connection, new StringReader(out.toString("UTF-8")));
+
+		Assert.assertEquals(0, importer.getFailedCount());
+		Assert.assertEquals(people, rows("person_test"));
+		Assert.assertEquals(obs, rows("obs_test"));
+	}
+
+	private int count(String table) throws SQLException {
+		ResultSet rs = connection.createStatement().executeQuery("select count(*) from " + table);
+		rs.next();
+		return rs.getInt(1);
+	}
+
+	/**
+	 * @return the values of each row of the given table, in id order
+	 */
+	private List<String> rows(String table) throws SQLException {
+		List<String> ret = new ArrayList<String>();
+		ResultSet rs = connection.createStatement().executeQuery("select * from " + table + " order by id");
+		while (rs.next()) {
+			StringBuilder row = new StringBuilder();
+			for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+				row.append(rs.getString(i)).append('|');
+			}
+			ret.add(row.toString());
+		}
+		return ret;
+	}
+
+	private void insertPerson(PreparedStatement insert, int id, String name, Timestamp born, Boolean dead,
+	                          String weight) throws SQLException {
+		insert.setInt(1, id);
+		insert.setString(2, name);
+		insert.setTimestamp(3, born);
+		insert.setObject(4, dead);
+		insert.setBigDecimal(5, weight == null ? null : new BigDecimal(weight));
+		insert.executeUpdate();
+	}
+
+	private String name(int id) throws SQLException {
+		ResultSet rs = connection.createStatement().executeQuery("select name from person_test where id = " + id);
+		rs.next();
+		return rs.getString(1);
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Tests looking up objects by uuid in {@link HibernateSyncDAO}
+ */
+public class HibernateSyncDAOObjectLookupTest extends BaseModuleContextSensitiveTest {
+
+	private static final String LOCATION = Location.class.getName();
+
+	@Autowired
+	private HibernateSyncDAO dao;
+
+	@Test
+	@Verifies(value = "should load the objects of every chunk of uuids", method = "getOpenmrsObjectsByUuid(String,Collection<String>,int)")
+	public void getOpenmrsObjectsByUuid_shouldLoadTheObjectsOfEveryChunkOfUuids() throws Exception {
+		List<String> uuids = new ArrayList<String>();
+		for (int i = 0; i < 7; i++) {
+			Location location = new Location();
+			location.setName("Lookup location " + i);
+			uuids.add(Context.getLocationService().saveLocation(location).getUuid());
+		}
+		Context.flushSession();
+		Context.clearSession();
+		uuids.add(3, "not-a-location-uuid");
+
+		Map<String, OpenmrsObject> loaded = dao.getOpenmrsObjectsByUuid(LOCATION, uuids, 3);
+
+		Assert.assertEquals(7, loaded.size());
+		for (String uuid : uuids) {
+			OpenmrsObject object = loaded.get(LOCATION + "|" + uuid);
+			if ("not-a-location-uuid".equals(uuid)) {
+				Assert.assertNull(object);
+			} else {
+				Assert.assertEquals(uuid, object.getUuid());
+			}
+		}
+	}
+
+	@Test
+	@Verifies(value = "should return nothing for a class that does not exist", method = "getOpenmrsObjectsByUuid(String,Collection<String>,int)")
+	public void getOpenmrsObjectsByUuid_shouldReturnNothingForAClassThatDoesNotExist() throws Exception {
+		List<String> uuids = new ArrayList<String>();
+		uuids.add("some-uuid");
+		Assert.assertTrue(dao.getOpenmrsObjectsByUuid("org.openmrs.NoSuchClass", uuids, 3).isEmpty());
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.sync.SyncSubclassStub;
+import org.openmrs.module.sync.TestUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Tests writing {@link SyncSubclassStub} rows with {@link HibernateSyncDAO}
+ */
+public class HibernateSyncDAOSubclassStubTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private HibernateSyncDAO dao;
+
+	@Override
+	public String getInitialDataset() {
+		try {
+			return "org/openmrs/module/sync/include/" + new TestUtil().getTestDatasetFilename("syncCreateTest");
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	@Verifies(value = "should only insert the subclass rows that are missing", method = "processSyncSubclassStubs(List<SyncSubclassStub>)")
+	public void processSyncSubclassStubs_shouldOnlyInsertTheSubclassRowsThatAreMissing() throws Exception {
+		int patients = countPatients();
+
+		List<SyncSubclassStub> stubs = new ArrayList<SyncSubclassStub>();
+		stubs.add(getPatientStub(5)); // a person who is not a patient yet
+		stubs.add(getPatientStub(5)); // twice in the same batch
+		stubs.add(getPatientStub(2)); // already a patient
+		SyncSubclassStub unknown = getPatientStub(1);
+		unknown.setUuid("not-a-person-uuid");
+		stubs.add(unknown);
+		dao.processSyncSubclassStubs(stubs);
+
+		Assert.assertEquals(patients + 1, countPatients());
+		Context.clearSession();
+		Assert.assertNotNull(Context.getPatientService().getPatient(5));
+		Assert.assertFalse(dao.isSubclassStubInsertNeeded(getPatientStub(5)));
+	}
+
+	@Test(expected = DAOException.class)
+	@Verifies(value = "should throw a DAOException if the rows cannot be written", method = "processSyncSubclassStubs(List<SyncSubclassStub>)")
+	public void processSyncSubclassStubs_shouldThrowADAOExceptionIfTheRowsCannotBeWritten() throws Exception {
+		SyncSubclassStub stub = getPatientStub(5);
+		stub.setSubclassTable("no_such_table");
+		List<SyncSubclassStub> stubs = new ArrayList<SyncSubclassStub>();
+		stubs.add(stub);
+		dao.processSyncSubclassStubs(stubs);
+	}
+
+	@Test
+	@Verifies(value = "should insert the subclass row with one statement that checks for it", method = "getInsertStatement()")
+	public void getInsertStatement_shouldInsertTheSubclassRowWithOneStatementThatChecksForIt() throws Exception {
+		Assert.assertEquals("INSERT INTO patient (patient_id, voided, creator, date_created) SELECT p.person_id, ?, ?, ?"
+		        + " FROM person p WHERE p.uuid = ? AND NOT EXISTS (SELECT 1 FROM patient s WHERE s.patient_id = p.person_id)",
+		    SubclassStubStatements.getStatements(getPatientStub(5)).getInsertStatement());
+	}
+
+	@Test(expected = DAOException.class)
+	@Verifies(value = "should reject table names that are not plain identifiers", method = "getStatements(SyncSubclassStub)")
+	public void getStatements_shouldRejectTableNamesThatAreNotPlainIdentifiers() throws Exception {
+		SyncSubclassStub stub = getPatientStub(5);
+		stub.setSubclassTable("patient; drop table person");
+		SubclassStubStatements.getStatements(stub);
+	}
+
+	/**
+	 * @return a stub like the one sync creates when the given person is saved as a patient
+	 */
+	private SyncSubclassStub getPatientStub(Integer personId) {
+		Person person = Context.getPersonService().getPerson(personId);
+		SyncSubclassStub stub = new SyncSubclassStub(person, "person", "person_id", "patient", "patient_id", null, null,
+		        null);
+		stub.addColumn("voided", 0);
+		stub.addColumn("creator", 1);
+		stub.addColumn("date_created", person.getDateCreated());
+		return stub;
+	}
+
+	private int countPatients() throws SQLException {
+		ResultSet rs = getConnection().createStatement().executeQuery("select count(*) from patient");
+		rs.next();
+		return rs.getInt(1);
+	}
+}
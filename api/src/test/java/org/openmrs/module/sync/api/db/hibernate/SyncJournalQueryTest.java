@@ -0,0 +1,206 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
+import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Runs the journal queries of {@link HibernateSyncDAO} against a large synthetic journal in the
+ * in-memory test database
+ */
+public class SyncJournalQueryTest extends BaseModuleContextSensitiveTest {
+
+	private static final int JOURNAL_SIZE = 20000;
+
+	private static final int FIRST_RECORD_ID = 1000;
+
+	/**
+	 * One record in this many is still waiting to be sent
+	 */
+	private static final int PENDING_EVERY = 50;
+
+	private static final int PAGE_SIZE = 50;
+
+	/**
+	 * Generous, so that a slow build machine does not fail the test; a query scanning and sorting
+	 * the whole journal for every page is still caught
+	 */
+	private static final long MAX_PAGE_MILLIS = 2000;
+
+	private static final SyncRecordState[] PENDING = { SyncRecordState.NEW, SyncRecordState.SENT };
+
+	private Set<Integer> pendingIds = new HashSet<Integer>();
+
+	/**
+	 * Fills the journal with records whose timestamps are out of id order, several records sharing
+	 * each timestamp
+	 */
+	@Before
+	public void createJournal() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+
+		Connection connection = getConnection();
+		PreparedStatement record = connection.prepareStatement("insert into sync_record (record_id, uuid, original_uuid, "
+		        + "timestamp, retry_count, state, contained_classes) values (?, ?, ?, ?, 0, ?, 'org.openmrs.Location')");
+		PreparedStatement serverRecord = connection.prepareStatement("insert into sync_server_record (server_record_id, "
+		        + "server_id, record_id, retry_count, state) values (?, 1, ?, 0, ?)");
+		long start = Timestamp.valueOf("2012-01-01 00:00:00").getTime();
+		for (int i = 0; i < JOURNAL_SIZE; i++) {
+			int recordId = FIRST_RECORD_ID + i;
+			String state = (i % PENDING_EVERY == 0) ? SyncRecordState.NEW.name() : SyncRecordState.COMMITTED.name();
+			if (i % PENDING_EVERY == 0)
+				pendingIds.add(recordId);
+
+			// 7919 is prime, so this visits every slot once, in an order unrelated to the ids
+			long second = ((long) i * 7919 % JOURNAL_SIZE) / 3;
+
+			record.setInt(1, recordId);
+			record.setString(2, "journal-record-" + recordId);
+			record.setString(3, "journal-record-" + recordId);
+			record.setTimestamp(4, new Timestamp(start + second * 1000));
+			record.setString(5, state);
+			record.addBatch();
+
+			serverRecord.setInt(1, recordId);
+			serverRecord.setInt(2, recordId);
+			serverRecord.setString(3, state);
+			serverRecord.addBatch();
+		}
+		record.executeBatch();
+		serverRecord.executeBatch();
+		record.close();
+		serverRecord.close();
+	}
+
+	@Test
+	@Verifies(value = "should page through the records of a server in journal order without gaps or duplicates", method = "getSyncRecordsAfter(SyncRecordState[],RemoteServer,Integer,SyncRecord)")
+	public void getSyncRecordsAfter_shouldPageThroughTheRecordsOfAServerInJournalOrderWithoutGapsOrDuplicates()
+	                                                                                                            throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer server = syncService.getRemoteServer(1);
+
+		List<SyncRecord> seen = new ArrayList<SyncRecord>();
+		SyncRecord after = null;
+		while (true) {
+			long started = System.currentTimeMillis();
+			List<SyncRecord> page = syncService.getSyncRecordsAfter(PENDING, server, PAGE_SIZE, after);
+			long elapsed = System.currentTimeMillis() - started;
+			Assert.assertTrue("A page took " + elapsed + " ms", elapsed < MAX_PAGE_MILLIS);
+
+			if (page.isEmpty())
+				break;
+			seen.addAll(page);
+			after = page.get(page.size() - 1);
+		}
+
+		Set<Integer> seenIds = new HashSet<Integer>();
+		SyncRecord previous = null;
+		for (SyncRecord record : seen) {
+			Assert.assertTrue("Record " + record.getRecordId() + " was returned twice", seenIds.add(record.getRecordId()));
+			if (previous != null) {
+				int order = previous.getTimestamp().compareTo(record.getTimestamp());
+				Assert.assertTrue(order < 0 || (order == 0 && previous.getRecordId() < record.getRecordId()));
+			}
+			previous = record;
+		}
+		Assert.assertTrue(seenIds.containsAll(pendingIds));
+	}
+
+	@Test
+	@Verifies(value = "should have a composite index on the columns the server records are filtered on", method = "getSyncRecordsAfter(SyncRecordState[],Integer,RemoteServer,SyncRecord)")
+	public void getSyncRecordsAfter_shouldHaveACompositeIndexOnTheColumnsTheServerRecordsAreFilteredOn() throws Exception {
+		Connection connection = getConnection();
+		
+		// only the filter is served by it: the records found are still sorted by sync_record.timestamp
+
+		// the columns of the index, in order
+		TreeMap<Short, String> columns = new TreeMap<Short, String>();
+		ResultSet index = connection.getMetaData().getIndexInfo(null, null, "SYNC_SERVER_RECORD", false, false);
+		while (index.next()) {
+			if ("sync_server_record_server_state".equalsIgnoreCase(index.getString("INDEX_NAME")))
+				columns.put(index.getShort("ORDINAL_POSITION"), index.getString("COLUMN_NAME").toLowerCase());
+		}
+		index.close();
+		Assert.assertEquals("[server_id, state, record_id]", columns.values().toString());
+	}
+
+	@Test
+	@Verifies(value = "should give the handler each record once in journal order across chunks", method = "processSyncRecords(SyncRecordState[],Date,Date,SyncRecordHandler)")
+	public void processSyncRecords_shouldGiveTheHandlerEachRecordOnceInJournalOrderAcrossChunks() throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+
+		// the journal holds many more records than a chunk, several of them sharing each timestamp,
+		// so chunks end in the middle of a timestamp
+		final List<SyncRecord> seen = new ArrayList<SyncRecord>();
+		int processed = syncService.processSyncRecords(null, null, null, new SyncRecordHandler() {
+
+			public void handle(SyncRecord record) {
+				seen.add(record);
+			}
+		});
+
+		ResultSet count = getConnection().createStatement().executeQuery("select count(*) from sync_record");
+		count.next();
+		Assert.assertTrue(count.getInt(1) >= JOURNAL_SIZE);
+		Assert.assertEquals(count.getInt(1), processed);
+		Assert.assertEquals(processed, seen.size());
+		count.close();
+
+		Set<Integer> seenIds = new HashSet<Integer>();
+		SyncRecord previous = null;
+		for (SyncRecord record : seen) {
+			Assert.assertTrue("Record " + record.getRecordId() + " was handled twice", seenIds.add(record.getRecordId()));
+			if (previous != null) {
+				int order = previous.getTimestamp().compareTo(record.getTimestamp());
+				Assert.assertTrue(order < 0 || (order == 0 && previous.getRecordId() < record.getRecordId()));
+			}
+			previous = record;
+		}
+	}
+
+	@Test
+	@Verifies(value = "should start the page at the given record when paging from newest to oldest", method = "getSyncRecords(Integer,Integer)")
+	public void getSyncRecords_shouldStartThePageAtTheGivenRecordWhenPagingFromNewestToOldest() throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+		List<SyncRecord> firstPage = syncService.getSyncRecords(null, PAGE_SIZE + 1);
+		SyncRecord firstOfNextPage = firstPage.get(PAGE_SIZE);
+
+		List<SyncRecord> nextPage = syncService.getSyncRecords(firstOfNextPage.getRecordId(), PAGE_SIZE);
+		Assert.assertEquals(firstOfNextPage.getRecordId(), nextPage.get(0).getRecordId());
+		for (SyncRecord record : nextPage) {
+			Assert.assertTrue(record.getTimestamp().compareTo(firstOfNextPage.getTimestamp()) <= 0);
+			Assert.assertFalse(firstPage.subList(0, PAGE_SIZE).contains(record));
+		}
+	}
+}
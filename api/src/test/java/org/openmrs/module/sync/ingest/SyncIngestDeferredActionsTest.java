@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.ingest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the per-thread queue of {@link SyncIngestDeferredActions}
+ */
+public class SyncIngestDeferredActionsTest {
+
+	@After
+	public void endAll() {
+		while (SyncIngestDeferredActions.isDeferring()) {
+			SyncIngestDeferredActions.end();
+		}
+	}
+
+	@Test
+	public void deferConceptWordUpdate_shouldNotDeferOutsideOfBeginAndEnd() throws Exception {
+		Assert.assertFalse(SyncIngestDeferredActions.deferConceptWordUpdate(1));
+		Assert.assertTrue(SyncIngestDeferredActions.end().isEmpty());
+	}
+
+	@Test
+	public void end_shouldReturnEachDeferredConceptOnceInOrder() throws Exception {
+		SyncIngestDeferredActions.begin();
+		Assert.assertTrue(SyncIngestDeferredActions.deferConceptWordUpdate(3));
+		Assert.assertTrue(SyncIngestDeferredActions.deferConceptWordUpdate(1));
+		SyncIngestDeferredActions.recordProcessed(true);
+		Assert.assertTrue(SyncIngestDeferredActions.deferConceptWordUpdate(3));
+		SyncIngestDeferredActions.recordProcessed(true);
+
+		Assert.assertEquals(Arrays.asList(3, 1), new ArrayList<Integer>(SyncIngestDeferredActions.end()));
+		Assert.assertFalse(SyncIngestDeferredActions.isDeferring());
+	}
+
+	@Test
+	public void end_shouldKeepTheConceptsOfTheOuterCallerWhenNested() throws Exception {
+		SyncIngestDeferredActions.begin();
+		SyncIngestDeferredActions.deferConceptWordUpdate(1);
+		SyncIngestDeferredActions.recordProcessed(true);
+
+		SyncIngestDeferredActions.begin();
+		SyncIngestDeferredActions.deferConceptWordUpdate(2);
+		SyncIngestDeferredActions.recordProcessed(true);
+		Assert.assertTrue(SyncIngestDeferredActions.end().isEmpty());
+		Assert.assertTrue(SyncIngestDeferredActions.isDeferring());
+
+		SyncIngestDeferredActions.deferConceptWordUpdate(3);
+		SyncIngestDeferredActions.recordProcessed(true);
+		Assert.assertEquals(Arrays.asList(1, 2, 3), new ArrayList<Integer>(SyncIngestDeferredActions.end()));
+		Assert.assertFalse(SyncIngestDeferredActions.isDeferring());
+	}
+
+	@Test
+	public void end_shouldLeaveOutTheConceptsOfRecordsThatWereNotCommitted() throws Exception {
+		SyncIngestDeferredActions.begin();
+		SyncIngestDeferredActions.deferConceptWordUpdate(1);
+		SyncIngestDeferredActions.recordProcessed(true);
+		SyncIngestDeferredActions.deferConceptWordUpdate(1);
+		SyncIngestDeferredActions.deferConceptWordUpdate(2);
+		SyncIngestDeferredActions.recordProcessed(false);
+		SyncIngestDeferredActions.deferConceptWordUpdate(3);
+
+		Assert.assertEquals(Arrays.asList(1), new ArrayList<Integer>(SyncIngestDeferredActions.end()));
+	}
+}
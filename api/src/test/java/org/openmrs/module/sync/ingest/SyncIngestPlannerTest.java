@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.ingest;
+
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.module.sync.SyncItem;
+import org.openmrs.module.sync.SyncItemKey;
+import org.openmrs.module.sync.SyncItemState;
+import org.openmrs.module.sync.SyncRecord;
+
+/**
+ * Tests the ordering produced by {@link SyncIngestPlanner}
+ */
+public class SyncIngestPlannerTest {
+
+	@Test
+	public void getPlannedItems_shouldPlaceNewReferencedObjectsBeforeObjectsReferencingThem() throws Exception {
+		SyncRecord record = new SyncRecord();
+		record.addItem(createItem(Obs.class, "obs", SyncItemState.NEW));
+		record.addItem(createItem(Encounter.class, "encounter", SyncItemState.NEW));
+
+		List<SyncItem> planned = new SyncIngestPlanner(record).getPlannedItems();
+		Assert.assertEquals("encounter", planned.get(0).getKey().getKeyValue());
+		Assert.assertEquals("obs", planned.get(1).getKey().getKeyValue());
+	}
+
+	@Test
+	public void getPlannedItems_shouldKeepOriginalOrderOfObjectsOfTheSameType() throws Exception {
+		SyncRecord record = new SyncRecord();
+		record.addItem(createItem(Obs.class, "group", SyncItemState.NEW));
+		record.addItem(createItem(Obs.class, "member", SyncItemState.NEW));
+
+		List<SyncItem> planned = new SyncIngestPlanner(record).getPlannedItems();
+		Assert.assertEquals("group", planned.get(0).getKey().getKeyValue());
+		Assert.assertEquals("member", planned.get(1).getKey().getKeyValue());
+	}
+
+	@Test
+	public void getPlannedItems_shouldApplyPersonsFirstAndSortedSetUpdatesLast() throws Exception {
+		SyncRecord record = new SyncRecord();
+		record.addItem(createItem(PatientIdentifier.class, "identifier", SyncItemState.UPDATED));
+		record.addItem(createItem(Encounter.class, "encounter", SyncItemState.DELETED));
+		record.addItem(createItem(Obs.class, "obs", SyncItemState.UPDATED));
+		record.addItem(createItem(Patient.class, "patient", SyncItemState.NEW));
+
+		List<SyncItem> planned = new SyncIngestPlanner(record).getPlannedItems();
+		Assert.assertEquals(4, planned.size());
+		Assert.assertEquals("patient", planned.get(0).getKey().getKeyValue());
+		Assert.assertEquals("obs", planned.get(1).getKey().getKeyValue());
+		Assert.assertEquals("encounter", planned.get(2).getKey().getKeyValue());
+		Assert.assertEquals("identifier", planned.get(3).getKey().getKeyValue());
+	}
+
+	@Test
+	public void getPlannedItems_shouldSkipSortedSetUpdatesOfObjectsDeletedInTheSameRecord() throws Exception {
+		SyncRecord record = new SyncRecord();
+		record.addItem(createItem(PatientIdentifier.class, "identifier", SyncItemState.UPDATED));
+		record.addItem(createItem(PatientIdentifier.class, "identifier", SyncItemState.DELETED));
+
+		SyncIngestPlanner planner = new SyncIngestPlanner(record);
+		Assert.assertEquals(1, planner.getPlannedItems().size());
+		Assert.assertEquals(SyncItemState.DELETED, planner.getPlannedItems().get(0).getState());
+		Assert.assertEquals(1, planner.getSkippedItemCount());
+	}
+
+	@Test
+	public void isFlushNeededBefore_shouldFlushBeforeAnItemReferringToAnObjectCreatedEarlierInTheRecord() throws Exception {
+		SyncItem encounter = createItem(Encounter.class, "encounter-uuid", SyncItemState.NEW);
+		SyncItem obs = createItem(Obs.class, "obs-uuid", SyncItemState.NEW);
+		obs.setContent("<org.openmrs.Obs><encounter type=\"org.openmrs.Encounter\">encounter-uuid</encounter></org.openmrs.Obs>");
+		SyncItem otherObs = createItem(Obs.class, "other-obs-uuid", SyncItemState.NEW);
+		otherObs.setContent("<org.openmrs.Obs><encounter type=\"org.openmrs.Encounter\">encounter-uuid</encounter></org.openmrs.Obs>");
+
+		SyncIngestPlanner planner = new SyncIngestPlanner(new SyncRecord());
+		Assert.assertFalse(planner.isFlushNeededBefore(encounter));
+		Assert.assertTrue(planner.isFlushNeededBefore(obs));
+		// the encounter was flushed already, and the other obs does not refer to the first one
+		Assert.assertFalse(planner.isFlushNeededBefore(otherObs));
+	}
+
+	@Test
+	public void isFlushNeededBefore_shouldFlushBeforeAnUpdateOfAnObjectCreatedEarlierInTheRecord() throws Exception {
+		SyncIngestPlanner planner = new SyncIngestPlanner(new SyncRecord());
+		Assert.assertFalse(planner.isFlushNeededBefore(createItem(Encounter.class, "encounter-uuid", SyncItemState.NEW)));
+		Assert.assertTrue(planner.isFlushNeededBefore(createItem(Encounter.class, "encounter-uuid", SyncItemState.UPDATED)));
+		Assert.assertFalse(planner.isFlushNeededBefore(createItem(Obs.class, "obs-uuid", SyncItemState.UPDATED)));
+	}
+
+	private SyncItem createItem(Class<?> type, String uuid, SyncItemState state) {
+		SyncItem item = new SyncItem();
+		item.setContainedType(type);
+		item.setKey(new SyncItemKey<String>(uuid, String.class));
+		item.setState(state);
+		return item;
+	}
+}
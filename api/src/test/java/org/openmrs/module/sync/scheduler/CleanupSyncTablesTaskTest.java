@@ -18,6 +18,7 @@ import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncRecord;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.scheduler.TaskDefinition;
@@ -57,4 +58,34 @@ public class CleanupSyncTablesTaskTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(59, records.size());
 	}
 	
+	@Test
+	public void shouldGoThroughTheJournalInChunksAndStartOverAfterwards() throws Exception {
+		
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		
+		SyncService syncService = Context.getService(SyncService.class);
+		syncService.setGlobalProperty(SyncConstants.PROPERTY_CLEANUP_RESUME_RECORD_ID, "20");
+		
+		CleanupSyncTablesTask task = new CleanupSyncTablesTask();
+		
+		TaskDefinition td = new TaskDefinition();
+		td.setProperty(CleanupSyncTablesTask.PROPERTY_STATES_TO_DELETE, "NOT_SUPPOSED_TO_SYNC,NEW");
+		td.setProperty(CleanupSyncTablesTask.PROPERTY_CHUNK_SIZE, "7");
+		task.initialize(td);
+		
+		task.execute();
+		
+		Context.clearSession();
+		Context.openSession();
+		
+		// only the records from the resume position on were deleted
+		List<SyncRecord> records = syncService.getSyncRecords();
+		Assert.assertEquals(19, records.size());
+		for (SyncRecord record : records) {
+			Assert.assertTrue(record.getRecordId() < 20);
+		}
+		Assert.assertEquals("0", Context.getAdministrationService().getGlobalProperty(
+		    SyncConstants.PROPERTY_CLEANUP_RESUME_RECORD_ID));
+	}
+	
 }
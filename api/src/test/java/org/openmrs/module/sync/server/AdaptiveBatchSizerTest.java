@@ -0,0 +1,57 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the sizing rules of {@link AdaptiveBatchSizer}
+ */
+public class AdaptiveBatchSizerTest {
+
+	@Test
+	public void getNextBatchSize_shouldGrowAdditivelyAfterFullFastExchange() throws Exception {
+		Assert.assertEquals(20 + AdaptiveBatchSizer.ADDITIVE_INCREASE, AdaptiveBatchSizer.getNextBatchSize(20, 5, 50, 20,
+		    1000, 60000, false));
+	}
+
+	@Test
+	public void getNextBatchSize_shouldNotGrowAfterPartialExchange() throws Exception {
+		Assert.assertEquals(20, AdaptiveBatchSizer.getNextBatchSize(20, 5, 50, 3, 1000, 60000, false));
+	}
+
+	@Test
+	public void getNextBatchSize_shouldHalveAfterSlowOrFailedExchange() throws Exception {
+		Assert.assertEquals(10, AdaptiveBatchSizer.getNextBatchSize(20, 5, 50, 20, 90000, 60000, false));
+		Assert.assertEquals(10, AdaptiveBatchSizer.getNextBatchSize(20, 5, 50, 20, 1000, 60000, true));
+	}
+
+	@Test
+	public void getNextBatchSize_shouldStayWithinConfiguredBounds() throws Exception {
+		Assert.assertEquals(5, AdaptiveBatchSizer.getNextBatchSize(6, 5, 50, 6, 1000, 60000, true));
+		Assert.assertEquals(50, AdaptiveBatchSizer.getNextBatchSize(48, 5, 50, 48, 1000, 60000, false));
+	}
+
+	@Test
+	public void getBatchSize_shouldCapByByteBudget() throws Exception {
+		// nothing measured yet: the configured maximum
+		Assert.assertEquals(50, AdaptiveBatchSizer.getBatchSize(null, null, 5, 50, 1000000));
+		// records of 100 KB with a 1 MB budget
+		Assert.assertEquals(10, AdaptiveBatchSizer.getBatchSize(50, 100000, 5, 50, 1000000));
+		// never below the minimum, even for very large records
+		Assert.assertEquals(5, AdaptiveBatchSizer.getBatchSize(50, 10000000, 5, 50, 1000000));
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.module.sync.server.BandwidthThrottle.TokenBucket;
+
+/**
+ * Tests the token buckets and schedule of {@link BandwidthThrottle}
+ */
+public class BandwidthThrottleTest {
+
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void reserve_shouldLetABurstOfOneSecondThroughRightAway() throws Exception {
+		TokenBucket bucket = new TokenBucket();
+		Assert.assertEquals(0, bucket.reserve(1000, 1000, 0));
+	}
+
+	@Test
+	public void reserve_shouldWaitForTheDebtToBeRefilled() throws Exception {
+		TokenBucket bucket = new TokenBucket();
+		bucket.reserve(1000, 1000, 0);
+		Assert.assertEquals(500, bucket.reserve(500, 1000, 0));
+		// two seconds later the debt has been paid back
+		Assert.assertEquals(0, bucket.reserve(500, 1000, 2 * SECOND));
+	}
+
+	@Test
+	public void reserve_shouldNotSaveUpMoreThanOneSecond() throws Exception {
+		TokenBucket bucket = new TokenBucket();
+		bucket.reserve(1000, 1000, 0);
+		Assert.assertEquals(1000, bucket.reserve(2000, 1000, 60 * SECOND));
+	}
+
+	@Test
+	public void reserve_shouldNeverWaitWithoutLimit() throws Exception {
+		TokenBucket bucket = new TokenBucket();
+		Assert.assertEquals(0, bucket.reserve(1000000, 0, 0));
+	}
+
+	@Test
+	public void getRates_shouldAlwaysApplyLimitsWithoutSchedule() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(new TokenBucket(), 2000, 1000, BandwidthThrottle
+		        .parseSchedule(""));
+		Assert.assertEquals(2000, throttle.getSharedRate(3 * 60));
+		Assert.assertEquals(1000, throttle.getServerRate(3 * 60));
+	}
+
+	@Test
+	public void getRates_shouldOnlyApplyLimitsWithinScheduledWindows() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(new TokenBucket(), 2000, 1000, BandwidthThrottle
+		        .parseSchedule("07:00-12:00=500, 12:00-17:30"));
+		Assert.assertEquals(500, throttle.getSharedRate(8 * 60));
+		Assert.assertEquals(1000, throttle.getServerRate(8 * 60));
+		Assert.assertEquals(2000, throttle.getSharedRate(17 * 60 + 29));
+		Assert.assertEquals(0, throttle.getSharedRate(17 * 60 + 30));
+		Assert.assertEquals(0, throttle.getServerRate(3 * 60));
+	}
+
+	@Test
+	public void parseSchedule_shouldSupportWindowsPastMidnightAndSkipInvalidOnes() throws Exception {
+		BandwidthThrottle throttle = new BandwidthThrottle(new TokenBucket(), 2000, 0, BandwidthThrottle
+		        .parseSchedule("22:00-06:00,not a window,25:00-26:00"));
+		Assert.assertEquals(2000, throttle.getSharedRate(23 * 60));
+		Assert.assertEquals(2000, throttle.getSharedRate(5 * 60));
+		Assert.assertEquals(0, throttle.getSharedRate(12 * 60));
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncException;
+
+/**
+ * Tests staging and reassembly of chunked transfers
+ */
+public class ChunkedTransferTest {
+
+	private File stagingDir;
+
+	@Before
+	public void createStagingDir() throws Exception {
+		stagingDir = File.createTempFile("sync-staging", "");
+		stagingDir.delete();
+		stagingDir.mkdirs();
+	}
+
+	@After
+	public void removeStagingDir() throws Exception {
+		FileUtils.deleteDirectory(stagingDir);
+	}
+
+	@Test
+	public void openStream_shouldReassembleChunksReceivedOutOfOrderAcrossConnections() throws Exception {
+		byte[] payload = "a payload that is split into several small chunks".getBytes("UTF-8");
+		int chunkSize = 8;
+		int chunkCount = ChunkedTransfer.getChunkCount(payload.length, chunkSize);
+		String transferId = ChunkedTransfer.getTransferId(payload);
+
+		// first connection drops after the last and the first chunk
+		ChunkedTransfer transfer = new ChunkedTransfer(stagingDir, transferId, chunkCount);
+		storeChunk(transfer, payload, chunkCount - 1, chunkSize);
+		storeChunk(transfer, payload, 0, chunkSize);
+		Assert.assertFalse(transfer.isComplete());
+
+		// after reconnecting only the missing chunks are sent
+		transfer = new ChunkedTransfer(stagingDir, transferId, chunkCount);
+		Assert.assertEquals(2, transfer.getReceivedChunks().size());
+		for (int index = 1; index < chunkCount - 1; index++) {
+			Assert.assertFalse(transfer.getReceivedChunks().contains(index));
+			storeChunk(transfer, payload, index, chunkSize);
+		}
+		Assert.assertTrue(transfer.isComplete());
+
+		InputStream in = transfer.openStream();
+		byte[] assembled = IOUtils.toByteArray(in);
+		in.close();
+		Assert.assertTrue(Arrays.equals(payload, assembled));
+
+		transfer.discard();
+		Assert.assertFalse(new File(stagingDir, transferId).exists());
+	}
+
+	@Test
+	public void storeChunk_shouldRejectChunkWithWrongChecksum() throws Exception {
+		ChunkedTransfer transfer = new ChunkedTransfer(stagingDir, "12-abc", 2);
+		byte[] chunk = "chunk".getBytes("UTF-8");
+		Assert.assertFalse(transfer.storeChunk(0, chunk, ChunkedTransfer.getChecksum(chunk, 0, chunk.length) + 1));
+		Assert.assertTrue(transfer.getReceivedChunks().isEmpty());
+	}
+
+	@Test(expected = SyncException.class)
+	public void ChunkedTransfer_shouldRejectTransferIdsThatAreNotPlainNames() throws Exception {
+		new ChunkedTransfer(stagingDir, "../outside", 1);
+	}
+
+	@Test
+	public void parseChunkList_shouldReadFormattedChunkList() throws Exception {
+		Assert.assertEquals(Arrays.asList(0, 3, 4), Arrays.asList(ChunkedTransfer.parseChunkList(
+		    ChunkedTransfer.formatChunkList(Arrays.asList(4, 0, 3))).toArray()));
+		Assert.assertTrue(ChunkedTransfer.parseChunkList("").isEmpty());
+	}
+
+	private void storeChunk(ChunkedTransfer transfer, byte[] payload, int index, int chunkSize) throws Exception {
+		int offset = index * chunkSize;
+		int length = Math.min(chunkSize, payload.length - offset);
+		byte[] chunk = Arrays.copyOfRange(payload, offset, offset + length);
+		Assert.assertTrue(transfer.storeChunk(index, chunk, ChunkedTransfer.getChecksum(chunk, 0, length)));
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+/**
+ * Tests streaming request bodies through {@link ConnectionRequest} and {@link ConnectionResponse}
+ */
+public class ConnectionRequestTest {
+
+	@Test
+	public void getInputStream_shouldRoundTripContentLargerThanTheInMemoryThresholdThroughAFile() throws Exception {
+		// incompressible enough to stay above the threshold once gzipped
+		StringBuilder content = new StringBuilder();
+		Random random = new Random(42);
+		while (content.length() < 2 * ConnectionRequest.IN_MEMORY_THRESHOLD) {
+			content.append(Long.toString(random.nextLong(), 36));
+		}
+
+		ConnectionRequest request = new ConnectionRequest(content.toString(), true);
+		try {
+			Assert.assertTrue(request.getContentLength() > ConnectionRequest.IN_MEMORY_THRESHOLD);
+
+			InputStream in = request.getInputStream();
+			ConnectionResponse response = new ConnectionResponse(in, true);
+			in.close();
+
+			Assert.assertEquals(ServerConnectionState.OK, response.getState());
+			Assert.assertEquals(request.getChecksum(), response.getChecksum());
+			Assert.assertEquals(content.toString(), response.getResponsePayload());
+		}
+		finally {
+			request.release();
+		}
+	}
+
+	@Test
+	public void getPayloadStream_shouldReadAResponseLargerThanTheInMemoryThresholdWithoutAString() throws Exception {
+		byte[] content = StringUtils.repeat("<record uuid=\"\u00e9\"/>", ConnectionRequest.IN_MEMORY_THRESHOLD / 10).getBytes(
+		    "UTF-8");
+
+		ConnectionResponse response = new ConnectionResponse(new ByteArrayInputStream(content), false);
+		try {
+			Assert.assertEquals(ServerConnectionState.OK, response.getState());
+
+			InputStream in = response.getPayloadStream();
+			Assert.assertTrue(Arrays.equals(content, IOUtils.toByteArray(in)));
+			in.close();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			response.writePayloadTo(out);
+			Assert.assertTrue(Arrays.equals(content, out.toByteArray()));
+			Assert.assertEquals(new String(content, "UTF-8"), response.getResponsePayload());
+		}
+		finally {
+			response.release();
+		}
+	}
+
+	@Test
+	public void getChecksum_shouldStayZeroForUncompressedContent() throws Exception {
+		ConnectionRequest request = new ConnectionRequest(StringUtils.repeat("x", 100), false);
+		Assert.assertEquals(0, request.getChecksum());
+		Assert.assertTrue(request.getContentChecksum() != 0);
+		Assert.assertEquals(100, request.getContentLength());
+	}
+}
@@ -105,4 +105,28 @@ public class SyncRemoteServerTest {
 		
         return;
     }
+
+	@Test
+	public void tryStartSync_shouldOnlyLockTheGivenServer() throws Exception {
+		RemoteServer parent = new RemoteServer();
+		parent.setServerId(901);
+		RemoteServer child = new RemoteServer();
+		child.setServerId(902);
+		RemoteServer parentAgain = new RemoteServer();
+		parentAgain.setServerId(901);
+		
+		try {
+			assertTrue(parent.tryStartSync());
+			assertFalse(parentAgain.tryStartSync());
+			assertTrue(child.tryStartSync());
+			assertTrue(parentAgain.getSyncInProgress());
+			
+			parent.setSyncInProgress(false);
+			assertTrue(parentAgain.tryStartSync());
+		}
+		finally {
+			parent.setSyncInProgress(false);
+			child.setSyncInProgress(false);
+		}
+	}
 }
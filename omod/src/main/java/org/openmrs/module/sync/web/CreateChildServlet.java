@@ -17,7 +17,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -35,6 +37,7 @@ import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.web.WebConstants;
+import org.springframework.web.bind.ServletRequestUtils;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.multipart.commons.CommonsMultipartResolver;
@@ -78,10 +81,26 @@ public class CreateChildServlet extends HttpServlet {
 			return;
 		}
 		File generatedFile = Context.getService(SyncService.class).generateDataFile();
-		response.setContentType("text/sql");
-		response.setHeader("Content-Disposition", "attachment; filename=" + generatedFile.getName());
+		// plain sql unless asked for gzipped, which older children cannot load
+		String name = generatedFile.getName();
+		InputStream in = new FileInputStream(generatedFile);
+		if (name.endsWith(".gz") && ServletRequestUtils.getBooleanParameter(request, "gzip", false)) {
+			response.setContentType("application/x-gzip");
+		} else {
+			if (name.endsWith(".gz")) {
+				in = new GZIPInputStream(in, 65536);
+				name = name.substring(0, name.length() - ".gz".length());
+			}
+			response.setContentType("text/sql");
+		}
+		response.setHeader("Content-Disposition", "attachment; filename=" + name);
 		response.setHeader("Pragma", "no-cache");
-		IOUtils.copy(new FileInputStream(generatedFile), response.getOutputStream());
+		try {
+			IOUtils.copy(in, response.getOutputStream());
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
 		response.getOutputStream().flush();
 		response.getOutputStream().close();
 		
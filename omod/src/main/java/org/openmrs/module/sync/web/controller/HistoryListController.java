@@ -85,13 +85,19 @@ public class HistoryListController {
 		log.debug("Vewing history page with size: " + size);
 		
 		List<SyncRecord> recordList = null;
+		Integer olderRecordId = null;
 		
 		// only fill the record list if the user has authenticated properly
 		if (Context.isAuthenticated()) {
 			SyncService ss = Context.getService(SyncService.class);
-			if (!StringUtils.hasText(state)) 
-				recordList = ss.getSyncRecords(firstRecordId, size);
-			else {
+			if (!StringUtils.hasText(state)) {
+				// one more record than shown, where the next older page starts
+				recordList = ss.getSyncRecords(firstRecordId, size + 1);
+				if (recordList.size() > size) {
+					olderRecordId = recordList.get(size).getRecordId();
+					recordList = recordList.subList(0, size);
+				}
+			} else {
 				SyncRecordState[] states = new SyncRecordState[] { SyncRecordState.valueOf(state) };
 				recordList = ss.getSyncRecords(states, size, firstRecordId);
 			}
@@ -178,6 +184,7 @@ public class HistoryListController {
 		modelMap.put("syncDateDisplayFormat", TimestampNormalizer.DATETIME_DISPLAY_FORMAT);
 		
 		modelMap.put("firstRecordId", firstRecordId);
+		modelMap.put("olderRecordId", olderRecordId);
 		
 		if(latestRecord != null)
 		modelMap.put("latestRecordId", latestRecord.getRecordId());
@@ -18,6 +18,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncPendingSummary;
 import org.openmrs.module.sync.SyncTransmission;
 import org.openmrs.module.sync.SyncTransmissionState;
 import org.openmrs.module.sync.SyncUtil;
@@ -25,8 +27,8 @@ import org.openmrs.module.sync.SyncUtilTransmission;
 import org.openmrs.module.sync.api.SyncIngestService;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.ingest.SyncDeserializer;
-import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.server.ChunkedTransfer;
 import org.openmrs.module.sync.server.ConnectionRequest;
 import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.RemoteServer;
@@ -42,8 +44,8 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.util.Date;
+import java.util.zip.GZIPInputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -85,8 +87,6 @@ public class ImportListController extends SimpleFormController {
 		log.info("CharacterEncoding: " + request.getCharacterEncoding());
 		log.info("ContentLength: " + request.getContentLength());
 		log.info("checksum: " + request.getParameter("checksum"));
-		log.info("syncData: " + request.getParameter("syncData"));
-		log.info("syncDataResponse: " + request.getParameter("syncDataResponse"));
 		
 		long checksum = 0;
 		Integer serverId = 0;
@@ -118,21 +118,33 @@ public class ImportListController extends SimpleFormController {
 			
 			log.info("Request content length: " + request.getContentLength());
 			MultipartFile multipartFile = multipartRequest.getFile("syncDataFile");
-			if (multipartFile != null && !multipartFile.isEmpty()) {
+			
+			// chunked upload: stage the chunk, and only go on once all chunks of the transfer are in
+			ChunkedTransfer transfer = null;
+			String transferId = ServletRequestUtils.getStringParameter(multipartRequest, ChunkedTransfer.PARAM_TRANSFER_ID,
+			    null);
+			if (transferId != null) {
+				transfer = stageChunk(multipartRequest, transferId, username, password, response);
+				if (transfer == null)
+					return null;
+			}
+			
+			if (transfer != null || (multipartFile != null && !multipartFile.isEmpty())) {
 				InputStream inputStream = null;
 				try {
+					if (transfer != null)
+						inputStream = transfer.openStream();
+					else
+						inputStream = multipartFile.getInputStream();
+					
 					// Decompress content in file
-					ConnectionResponse syncResponse = new ConnectionResponse(new ByteArrayInputStream(
-					        multipartFile.getBytes()), useCompression);
+					ConnectionResponse syncResponse = new ConnectionResponse(inputStream, useCompression);
 					
-					log.info("Content to decompress: " + multipartFile.getBytes());
-					log.info("Content received: " + syncResponse.getResponsePayload());
 					log.info("Decompression Checksum: " + syncResponse.getChecksum());
 					
 					contents = syncResponse.getResponsePayload();
 					checksum = syncResponse.getChecksum();
-					
-					log.info("Final content: " + contents);
+					syncResponse.release();
 					
 				}
 				catch (Exception e) {
@@ -140,6 +152,8 @@ public class ImportListController extends SimpleFormController {
 				}
 				finally {
 					IOUtils.closeQuietly(inputStream);
+					if (transfer != null)
+						transfer.discard();
 				}
 			}
 		} else {
@@ -156,8 +170,8 @@ public class ImportListController extends SimpleFormController {
 		str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
 		str.setTimestamp(new Date()); //set the timestamp of the response
 		
-		if (log.isInfoEnabled()) {
-			log.info("CONTENT IN IMPORT CONTROLLER: " + contents);
+		if (log.isDebugEnabled()) {
+			log.debug("Length of content in import controller: " + (contents == null ? 0 : contents.length()));
 		}
 		
 		//if no content, nothing to process just send back response
@@ -214,13 +228,28 @@ public class ImportListController extends SimpleFormController {
 			return null;
 		}
 		
+		//Pending message: a child asks how many records are waiting for it, answer with just the counts
+		if (SyncConstants.PENDING_MESSAGE.equals(contents)) {
+			RemoteServer child = Context.getService(SyncService.class).getRemoteServerByUsername(username);
+			if (child == null) {
+				str.setErrorMessage("No server is registered for user " + username);
+				str.setState(SyncTransmissionState.INVALID_SERVER);
+				this.sendResponse(str, isUpload, response);
+				return null;
+			}
+			SyncPendingSummary pending = Context.getService(SyncService.class).getPendingSummary(child);
+			log.debug("Pending for " + child.getNickname() + ": " + pending);
+			writeRequest(new ConnectionRequest(pending.format(), false), false, response);
+			return null;
+		}
+		
 		if (SyncConstants.CLONE_MESSAGE.equals(contents)) {
 			try {
 				log.info("CLONE MESSAGE RECEIVED, TRYING TO CLONE THE DB");
 				File file = Context.getService(SyncService.class).generateDataFile();
-				StringWriter writer = new StringWriter();
-				IOUtils.copy(new FileInputStream(file), writer);
-				this.sendCloneResponse(writer.toString(), response, false);
+				// older children load the clone as plain sql
+				boolean gzipped = "gzip".equals(request.getHeader(SyncConstants.HEADER_ACCEPT_DUMP_ENCODING));
+				this.sendCloneResponse(file, gzipped, response);
 				
 				boolean clonedDBLog = Boolean.parseBoolean(Context.getAdministrationService()
 						.getGlobalProperty(SyncConstants.PROPERTY_SYNC_CLONED_DATABASE_LOG_ENABLED, "true"));
@@ -246,11 +275,10 @@ public class ImportListController extends SimpleFormController {
 		if (!isResponse) {
 			//this is not 'response' to something we sent out; thus the contents should contain plan SyncTransmission 
 			try {
-				log.info("xml to sync transmission with contents: " + contents);
 				st = SyncDeserializer.xmlToSyncTransmission(contents);
 			}
 			catch (Exception e) {
-				log.error("Unable to deserialize the following: " + contents, e);
+				log.error("Unable to deserialize the transmission contents", e);
 				str.setErrorMessage("Unable to deserialize transmission contents into SyncTansmission.");
 				str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
 				this.sendResponse(str, isUpload, response);
@@ -266,7 +294,7 @@ public class ImportListController extends SimpleFormController {
 				log.info("This is a response from a previous transmission.  Uuid is: " + priorResponse.getUuid());
 			}
 			catch (Exception e) {
-				log.error("Unable to deserialize the following: " + contents, e);
+				log.error("Unable to deserialize the response contents", e);
 				str.setErrorMessage("Unable to deserialize transmission contents into SyncTransmissionResponse.");
 				str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
 				this.sendResponse(str, isUpload, response);
@@ -298,10 +326,9 @@ public class ImportListController extends SimpleFormController {
 			if (priorResponse.getSyncImportRecords() == null) {
 				log.debug("No records to process in response");
 			} else {
-				// now process each incoming syncImportRecord, this is just status update
-				for (SyncImportRecord importRecord : priorResponse.getSyncImportRecords()) {
-					Context.getService(SyncIngestService.class).processSyncImportRecord(importRecord, origin);
-				}
+				// now process the incoming syncImportRecords, this is just status update
+				Context.getService(SyncIngestService.class).processSyncImportRecords(priorResponse.getSyncImportRecords(),
+				    origin);
 			}
 			
 			// now pull out the data that originated on the 'source' server and try to process it
@@ -323,6 +350,59 @@ public class ImportListController extends SimpleFormController {
 		return null;
 	}
 	
+	/**
+	 * Stores the chunk sent with the given request in the staging area of its transfer. As long as
+	 * the transfer is not complete, the chunks received so far are sent back in the
+	 * {@link ChunkedTransfer#HEADER_CHUNKS_RECEIVED} header so that the sender only resends the
+	 * missing ones.
+	 * 
+	 * @return the complete transfer, or null if a response has already been sent
+	 */
+	private ChunkedTransfer stageChunk(MultipartHttpServletRequest request, String transferId, String username,
+	                                   String password, HttpServletResponse response) throws Exception {
+		// nothing is written to disk for unknown callers
+		if (!Context.isAuthenticated()) {
+			try {
+				Context.authenticate(username, password);
+			}
+			catch (Exception e) {}
+		}
+		if (!Context.isAuthenticated()) {
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return null;
+		}
+		
+		ChunkedTransfer transfer;
+		try {
+			transfer = new ChunkedTransfer(transferId, ServletRequestUtils.getIntParameter(request,
+			    ChunkedTransfer.PARAM_CHUNK_COUNT, 0));
+		}
+		catch (SyncException e) {
+			log.warn("Rejecting chunked transfer", e);
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+		
+		int chunkIndex = ServletRequestUtils.getIntParameter(request, ChunkedTransfer.PARAM_CHUNK_INDEX,
+		    ChunkedTransfer.STATUS_CHUNK_INDEX);
+		if (chunkIndex != ChunkedTransfer.STATUS_CHUNK_INDEX) {
+			MultipartFile chunk = request.getFile("syncDataFile");
+			long chunkChecksum = ServletRequestUtils.getLongParameter(request, ChunkedTransfer.PARAM_CHUNK_CHECKSUM, -1);
+			if (chunk != null)
+				transfer.storeChunk(chunkIndex, chunk.getBytes(), chunkChecksum);
+		}
+		
+		if (transfer.isComplete()) {
+			log.info("All chunks of transfer " + transferId + " received");
+			return transfer;
+		}
+		
+		response.setHeader(ChunkedTransfer.HEADER_CHUNKS_RECEIVED, ChunkedTransfer.formatChunkList(transfer
+		        .getReceivedChunks()));
+		response.setContentLength(0);
+		return null;
+	}
+	
 	/**
 	 * This is called prior to displaying a form for the first time. It tells Spring the
 	 * form/command object to load into the request
@@ -370,44 +450,53 @@ public class ImportListController extends SimpleFormController {
 		
 		// Otherwise, all other requests are compressed and sent back to the client 
 		ConnectionRequest syncRequest = new ConnectionRequest(content, useCompression);
-		log.info("Compressed content length: " + syncRequest.getContentLength());
-		log.info("Compression Checksum: " + syncRequest.getChecksum());
-		log.info("Full Content to send: " + content);
-		
-		response.setContentLength((int) syncRequest.getContentLength());
-		response.addHeader("Enable-Compression", String.valueOf(useCompression));
-		response.addHeader("Content-Checksum", String.valueOf(syncRequest.getChecksum()));
-		response.addHeader("Content-Encoding", "gzip");
-		
-		// Write compressed sync data to response
-		InputStream in = new ByteArrayInputStream(syncRequest.getBytes());
-		IOUtils.copy(in, response.getOutputStream());
-		
-		return;
+		writeRequest(syncRequest, useCompression, response);
 	}
 	
-	private void sendCloneResponse(String content, HttpServletResponse response, boolean isUpload) throws Exception {
+	/**
+	 * Sends the given dump of the database, as it is if the child accepts it gzipped, as plain sql
+	 * otherwise
+	 */
+	private void sendCloneResponse(File file, boolean gzipped, HttpServletResponse response) throws Exception {
 		
 		boolean useCompression = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
 		    SyncConstants.PROPERTY_ENABLE_COMPRESSION, "true"));
 		log.debug("Global property sychronization.enable_compression = " + useCompression);
 		
 		// Otherwise, all other requests are compressed and sent back to the
-		// client
-		ConnectionRequest syncRequest = new ConnectionRequest(content, useCompression);
+		// client, straight from the data file
+		InputStream in = new FileInputStream(file);
+		if (!gzipped && file.getName().endsWith(".gz"))
+			in = new GZIPInputStream(in, 65536);
+		ConnectionRequest syncRequest;
+		try {
+			syncRequest = new ConnectionRequest(in, useCompression);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+		writeRequest(syncRequest, useCompression, response);
+	}
+	
+	/**
+	 * Streams the given compressed or uncompressed body to the client, then removes it
+	 */
+	private void writeRequest(ConnectionRequest syncRequest, boolean useCompression, HttpServletResponse response)
+	                                                                                                          throws Exception {
 		log.info("Compressed content length: " + syncRequest.getContentLength());
 		log.info("Compression Checksum: " + syncRequest.getChecksum());
 		
-		response.setContentLength((int) syncRequest.getContentLength());
-		response.addHeader("Enable-Compression", String.valueOf(useCompression));
-		response.addHeader("Content-Checksum", String.valueOf(syncRequest.getChecksum()));
-		response.addHeader("Content-Encoding", "gzip");
-		
-		// Write compressed sync data to response
-		InputStream in = new ByteArrayInputStream(syncRequest.getBytes());
-		IOUtils.copy(in, response.getOutputStream());
-		
-		return;
-		
+		try {
+			response.setContentLength((int) syncRequest.getContentLength());
+			response.addHeader("Enable-Compression", String.valueOf(useCompression));
+			response.addHeader("Content-Checksum", String.valueOf(syncRequest.getChecksum()));
+			response.addHeader("Content-Encoding", "gzip");
+			
+			// Write compressed sync data to response
+			syncRequest.writeTo(response.getOutputStream());
+		}
+		finally {
+			syncRequest.release();
+		}
 	}
 }
@@ -26,6 +26,7 @@ import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.serialization.Item;
 import org.openmrs.module.sync.serialization.Record;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
+import org.openmrs.module.sync.server.BackportProgress;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.scheduler.TaskDefinition;
 import org.openmrs.scheduler.web.controller.SchedulerFormController;
@@ -139,7 +140,6 @@ public class MaintenanceController extends SimpleFormController {
 		Map<String, Object> ret = new HashMap<String, Object>();
 		
 		List<SyncRecord> returnList = new ArrayList<SyncRecord>();
-		List<SyncRecord> matchesList = new ArrayList<SyncRecord>();
 		String keyword = ServletRequestUtils.getStringParameter(request, "keyword", "");
 		Integer page = ServletRequestUtils.getIntParameter(request, "page", 1);
 		
@@ -153,9 +153,6 @@ public class MaintenanceController extends SimpleFormController {
 			// if ("".equals(keyword) || keyword == null)
 			// return new ArrayList<SyncRecord>();
 			
-			if (StringUtils.hasText(keyword))
-				matchesList = syncService.getSyncRecords(keyword);
-			
 			String maxPageRecordsString = Context.getAdministrationService().getGlobalProperty(
 			    SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS, SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS_DEFAULT);
 			
@@ -170,9 +167,14 @@ public class MaintenanceController extends SimpleFormController {
 				maxPageRecords = Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS_DEFAULT);
 			}
 			
-			// Adding paging
-			totalRecords = matchesList.size();
-			if (matchesList.size() % maxPageRecords == 0)
+			// Adding paging, only the records of the page are loaded; the links to the other pages
+			// carry the number of matches, so the search is only counted once
+			Integer knownTotal = ServletRequestUtils.getIntParameter(request, "totalRecords", -1);
+			if (knownTotal >= 0)
+				totalRecords = knownTotal;
+			else if (StringUtils.hasText(keyword))
+				totalRecords = syncService.getCountOfSyncRecords(keyword).intValue();
+			if (totalRecords % maxPageRecords == 0)
 				maxPages = (int) (totalRecords / maxPageRecords);
 			else
 				maxPages = (int) (totalRecords / maxPageRecords) + 1;
@@ -180,11 +182,8 @@ public class MaintenanceController extends SimpleFormController {
 			if (page > maxPages)
 				page = 1;
 			
-			returnList.clear();
-			int start = (page - 1) * maxPageRecords;
-			for (int i = 0; start + i < totalRecords && i < maxPageRecords; i++) {
-				returnList.add(matchesList.get(start + i));
-			}
+			if (totalRecords > 0)
+				returnList = syncService.getSyncRecords(keyword, (page - 1) * maxPageRecords, maxPageRecords);
 			
 		}
 		
@@ -277,7 +276,15 @@ public class MaintenanceController extends SimpleFormController {
 		ret.put("recordText", recordText);
 		ret.put("recordChangeType", recordChangeType);
 		ret.put("parent", Context.getService(SyncService.class).getParentServer());
-		ret.put("servers", Context.getService(SyncService.class).getRemoteServers());
+		List<RemoteServer> servers = Context.getService(SyncService.class).getRemoteServers();
+		ret.put("servers", servers);
+		Map<String, BackportProgress> backports = new LinkedHashMap<String, BackportProgress>();
+		for (RemoteServer server : servers) {
+			BackportProgress progress = Context.getService(SyncService.class).getBackportProgress(server);
+			if (progress != null)
+				backports.put(server.getNickname(), progress);
+		}
+		ret.put("backports", backports);
 		ret.put(
 		    "datePattern",
 		    Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_DATE_PATTERN,
@@ -330,7 +337,8 @@ public class MaintenanceController extends SimpleFormController {
 			Date date = new SimpleDateFormat(Context.getAdministrationService().getGlobalProperty(
 			    SyncConstants.PROPERTY_DATE_PATTERN, SyncConstants.DEFAULT_DATE_PATTERN)).parse(dateString);
 			
-			Integer numberBackproted = syncService.backportSyncRecords(server, date);
+			// committed a range of records at a time
+			Integer numberBackproted = SyncUtil.backportSyncRecords(server, date);
 			request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "sync.maintenance.backport.success");
 			request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ARGS, numberBackproted);
 			
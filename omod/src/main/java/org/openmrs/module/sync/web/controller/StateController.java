@@ -39,7 +39,8 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
- *
+ * Not mapped to any url in webModuleApplicationContext.xml. It still loads the whole journal at
+ * once, so it should go through {@link SyncService#processSyncRecords} before it is mapped again.
  */
 public class StateController extends SimpleFormController {
 
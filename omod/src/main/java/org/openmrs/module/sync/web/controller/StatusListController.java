@@ -39,6 +39,7 @@ import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncException;
 import org.openmrs.module.sync.SyncItem;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordHandler;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncSource;
 import org.openmrs.module.sync.SyncSourceJournal;
@@ -107,16 +108,19 @@ public class StatusListController extends SimpleFormController {
 		
 		String action = ServletRequestUtils.getStringParameter(request, "action", "");
 		
-		SyncService syncService = Context.getService(SyncService.class);
+		final SyncService syncService = Context.getService(SyncService.class);
 		
 		if ("resetAttempts".equals(action)) {
-			List<SyncRecord> syncRecords = syncService.getSyncRecords(SyncRecordState.FAILED_AND_STOPPED);
-			for (SyncRecord syncRecord : syncRecords) {
-				syncRecord.setState(SyncRecordState.FAILED);
-				syncRecord.setRetryCount(0);
-				syncService.updateSyncRecord(syncRecord);
-			}
-			success = msa.getMessage("sync.status.transmission.reset.attempts.success", new Object[] { syncRecords.size() });
+			int reset = syncService.processSyncRecords(new SyncRecordState[] { SyncRecordState.FAILED_AND_STOPPED }, null,
+			    null, new SyncRecordHandler() {
+				    
+				    public void handle(SyncRecord syncRecord) {
+					    syncRecord.setState(SyncRecordState.FAILED);
+					    syncRecord.setRetryCount(0);
+					    syncService.updateSyncRecord(syncRecord);
+				    }
+			    });
+			success = msa.getMessage("sync.status.transmission.reset.attempts.success", new Object[] { reset });
 			result.addObject("mode", request.getParameter("mode"));
 		} else if ("createTx".equals(action)) { // handle transmission generation
 			try {
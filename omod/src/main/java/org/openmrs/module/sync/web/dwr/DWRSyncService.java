@@ -17,7 +17,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Date;
 
@@ -65,9 +65,12 @@ public class DWRSyncService {
 			
 			// execute the parent's sql file on our database
 			if (ServerConnectionState.OK.equals(connResponse.getState())) {
-				byte sql[] = connResponse.getResponsePayload().getBytes(Charset.forName("UTF-8"));
+				OutputStream out = null;
 				try {
-					IOUtils.write(sql, new FileOutputStream(file));
+					// the dump may be large, or gzipped: copied as it is, without making a string of it
+					out = new FileOutputStream(file);
+					connResponse.writePayloadTo(out);
+					out.close();
 					
 					Context.getService(SyncService.class).execGeneratedFile(file);
 					item.setResponsefileName(file.getName());
@@ -88,7 +91,11 @@ public class DWRSyncService {
 					item.setErrorMessage("Unable to save file(" + file.getAbsolutePath() + ")");
 					log.error("Unable to save file(" + file.getAbsolutePath() + ") : Error generated", e);
 				}
+				finally {
+					IOUtils.closeQuietly(out);
+				}
 			}
+			connResponse.release();
 		}
 		
 		return item;
@@ -111,6 +118,7 @@ public class DWRSyncService {
 			
 			// constructor for SyncTransmissionResponse is null-safe
 			SyncTransmissionResponse str = new SyncTransmissionResponse(connResponse);
+			connResponse.release();
 			
 			// constructor for SyncConnectionTestItem is null-safe
 			item = new SyncConnectionTestItem(str);
@@ -51,14 +51,18 @@
         }
 	}
 	
-	function getOlderItemsList(firstRecordId) {
+	function getOlderItemsList(firstRecordId, olderRecordId) {
 		var firstRecordNum = parseInt(firstRecordId);
 		var dropdown = document.getElementById("itemsPerPage");
     	var index = dropdown.selectedIndex;
     	var ddVal = dropdown.options[index].value;
     	var ddNum = parseInt(ddVal);
     	parseInt(ddNum);
-    	firstRecordNum = firstRecordNum - ddNum;
+    	// the older page starts at the record following this one, if it was looked up
+    	if (olderRecordId != '')
+    		firstRecordNum = parseInt(olderRecordId);
+    	else
+    		firstRecordNum = firstRecordNum - ddNum;
    		document.location = "?firstRecordId=" + firstRecordNum + "&size=" + ddNum + "&state=${param.state}";
 	}
 	
@@ -146,7 +150,7 @@
 	</c:if>
 	<c:if test="${firstRecordId != null}">
 	<c:if test="${isEarliestRecord != true}">
-	<a href="javascript: getOlderItemsList(${firstRecordId})"><spring:message code="sync.general.older"/> &rarr;</a>
+	<a href="javascript: getOlderItemsList(${firstRecordId}, '${olderRecordId}')"><spring:message code="sync.general.older"/> &rarr;</a>
 	</c:if>
     &#124;
     <a href="historyRecentAllCommitted.list?recordId=${firstRecordId}&size=${size}"><spring:message code="sync.general.mostRecentAllCommitted"/></a>
@@ -288,7 +292,7 @@
 	</c:if>
 	<c:if test="${firstRecordId != null}">
 	<c:if test="${isEarliestRecord != true}">
-	<a href="javascript: getOlderItemsList(${firstRecordId})"><spring:message code="sync.general.older"/> &rarr;</a>
+	<a href="javascript: getOlderItemsList(${firstRecordId}, '${olderRecordId}')"><spring:message code="sync.general.older"/> &rarr;</a>
 	</c:if>
 	&#124;
     <a href="historyRecentAllCommitted.list?recordId=${firstRecordId}&size=${size}"><spring:message code="sync.general.mostRecentAllCommitted"/></a>
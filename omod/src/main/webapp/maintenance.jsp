@@ -188,10 +188,10 @@
 		 	|
 			<c:choose>
 					<c:when test="${p==currentPage}">
-						<span class="syncPageNum"><a href="?keyword=${keyword}&page=${p}" style="font-size: 18px">${p}</a></span>
+						<span class="syncPageNum"><a href="?keyword=${keyword}&page=${p}&totalRecords=${totalRecords}" style="font-size: 18px">${p}</a></span>
 					</c:when>
 					<c:otherwise>
-						<span class="syncPageNum"><a href="?keyword=${keyword}&page=${p}">${p}</a></span>
+						<span class="syncPageNum"><a href="?keyword=${keyword}&page=${p}&totalRecords=${totalRecords}">${p}</a></span>
 					</c:otherwise>
 			  </c:choose>
 			</c:forEach></td>
@@ -214,6 +214,19 @@
 	<div class="box">
 		<br/>
 		<span><spring:message code="sync.maintenance.backport.description" /></span>
+		<c:forEach var="backport" items="${backports}">
+			<br/>
+			<span>
+				<c:choose>
+					<c:when test="${backport.value.running}">
+						<spring:message code="sync.maintenance.backport.running" arguments="${backport.key},${backport.value.percentDone},${backport.value.recordsBackported}" />
+					</c:when>
+					<c:otherwise>
+						<spring:message code="sync.maintenance.backport.finished" arguments="${backport.key},${backport.value.recordsBackported}" />
+					</c:otherwise>
+				</c:choose>
+			</span>
+		</c:forEach>
 			<form method="post" action="">
 				<table>
 					<tr>